@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a file that is shared by all streams reading
+ * from it. The mapping is reference counted: the owner holds one reference
+ * and every open stream holds another. The file is unmapped when the last
+ * reference is released, rather than whenever the garbage collector gets
+ * to it.
+ *
+ * @author Karl Duderstadt
+ */
+public final class MappedBuffer {
+
+    private final ByteBuffer buffer;
+    private int references = 1;
+
+    private MappedBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Map the first bytes of the channel given. The returned mapping holds one
+     * reference for the caller, which must be released when it is no longer
+     * needed.
+     *
+     * @param channel the file channel.
+     * @param size the number of bytes to map, at most Integer.MAX_VALUE.
+     * @return the mapping.
+     * @throws IOException if the file cannot be mapped.
+     */
+    public static MappedBuffer map(FileChannel channel, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Files larger than 2 GB cannot be mapped at once.");
+        return new MappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    }
+
+    /**
+     * @return the number of bytes mapped.
+     */
+    public long size() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Open a stream over a range of the mapping without copying it. The stream
+     * holds a reference to the mapping until it is closed.
+     *
+     * @param offset the start of the range.
+     * @param length the length of the range.
+     * @return the stream or null if the mapping was already released.
+     */
+    public InputStream openInputStream(long offset, int length) {
+        if (offset < 0 || offset + length > buffer.capacity())
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length +
+                    " is outside the mapping of " + buffer.capacity() + " bytes.");
+        synchronized (this) {
+            if (references == 0) return null;
+            references++;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) offset);
+        view.limit((int) offset + length);
+        return new MappedInputStream(view.slice());
+    }
+
+    /**
+     * Release one reference. The file is unmapped when no references remain.
+     */
+    public void release() {
+        synchronized (this) {
+            if (references == 0) return;
+            if (--references > 0) return;
+        }
+        unmap(buffer);
+    }
+
+    private final class MappedInputStream extends InputStream {
+
+        private ByteBuffer view;
+
+        private MappedInputStream(ByteBuffer view) {
+            this.view = view;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer current = current();
+            return (current.hasRemaining()) ? current.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            ByteBuffer current = current();
+            if (length == 0) return 0;
+            if (!current.hasRemaining()) return -1;
+            length = Math.min(length, current.remaining());
+            current.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            ByteBuffer current = current();
+            int skipped = (int) Math.max(0, Math.min(n, current.remaining()));
+            current.position(current.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return current().remaining();
+        }
+
+        @Override
+        public void close() {
+            if (view == null) return;
+            view = null;
+            release();
+        }
+
+        private ByteBuffer current() throws IOException {
+            if (view == null) throw new IOException("Stream closed");
+            return view;
+        }
+    }
+
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    /*
+     * There is no public API to unmap a buffer. Java 9 and later provide
+     * Unsafe.invokeCleaner, Java 8 exposes the cleaner on the buffer itself.
+     * If neither is reachable the mapping is left to the garbage collector.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // Unmapped by the garbage collector.
+        }
+    }
+}
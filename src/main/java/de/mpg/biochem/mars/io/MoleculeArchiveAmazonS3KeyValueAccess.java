@@ -45,8 +45,10 @@ import java.nio.channels.NonReadableChannelException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import com.amazonaws.services.s3.model.DeleteObjectsRequest;
@@ -326,6 +328,30 @@ public class MoleculeArchiveAmazonS3KeyValueAccess {
         return keys;
     }
 
+    /**
+     * Lists the objects directly below a path together with their ETags.
+     *
+     * @param normalPath the path to list.
+     * @return map from object key to ETag.
+     */
+    public Map<String, String> listObjectETags(final String normalPath) {
+        final Map<String, String> eTags = new HashMap<>();
+        final String prefix = removeLeadingSlash(addTrailingSlash(normalPath));
+        final ListObjectsV2Request listObjectsRequest = new ListObjectsV2Request()
+                .withBucketName(bucketName)
+                .withPrefix(prefix)
+                .withDelimiter("/");
+        ListObjectsV2Result objectsListing;
+        do {
+            objectsListing = s3.listObjectsV2(listObjectsRequest);
+            for (final S3ObjectSummary objectSummary : objectsListing.getObjectSummaries()) {
+                eTags.put(objectSummary.getKey(), objectSummary.getETag());
+            }
+            listObjectsRequest.setContinuationToken(objectsListing.getNextContinuationToken());
+        } while (objectsListing.isTruncated());
+        return eTags;
+    }
+
     public String[] listDirectories(final String normalPath) {
         return list(normalPath, true);
     }
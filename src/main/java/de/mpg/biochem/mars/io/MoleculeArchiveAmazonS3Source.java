@@ -42,7 +42,9 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MoleculeArchiveAmazonS3Source implements MoleculeArchiveSource {
     protected final AmazonS3 s3;
@@ -316,6 +318,26 @@ public class MoleculeArchiveAmazonS3Source implements MoleculeArchiveSource {
         return this.keyValueAccess.listObjectKeys(containerPath + "/" + MOLECULES_SUBDIRECTORY_NAME);
     }
 
+    @Override
+    public Map<String, String> getMoleculeVersions() {
+        return listVersions(MOLECULES_SUBDIRECTORY_NAME);
+    }
+
+    @Override
+    public Map<String, String> getMetadataVersions() {
+        return listVersions(METADATA_SUBDIRECTORY_NAME);
+    }
+
+    private Map<String, String> listVersions(String subdirectory) {
+        final Map<String, String> versions = new HashMap<>();
+        keyValueAccess.listObjectETags(containerPath + "/" + subdirectory).forEach((key, eTag) -> {
+            if (!key.endsWith(fileExtension)) return;
+            final String name = key.substring(key.lastIndexOf('/') + 1);
+            versions.put(name.substring(0, name.length() - fileExtension.length()), eTag);
+        });
+        return versions;
+    }
+
     @Override
     public List<String> getMetadataUIDs() {
         return this.keyValueAccess.listObjectKeys(containerPath + "/" + METADATA_SUBDIRECTORY_NAME);
@@ -37,9 +37,18 @@ import com.fasterxml.jackson.core.format.DataFormatMatcher;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
 
@@ -81,6 +90,13 @@ public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
                 "/" + MOLECULES_SUBDIRECTORY_NAME);
         if (!moleculesDir.exists()) moleculesDir.mkdirs();
 
+        detectStoreFileExtension();
+    }
+
+    /**
+     * Set the file extension of store files from the properties file present.
+     */
+    protected void detectStoreFileExtension() {
         //Check for encoding. Default to smile.
         if (new File(file.getAbsolutePath() +
                 "/" + PROPERTIES_FILE_NAME + ".sml").exists()) storeFileExtension = ".sml";
@@ -218,6 +234,47 @@ public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
         return getOutputStream("/" + INDEXES_FILE_NAME + storeFileExtension);
     }
 
+    @Override
+    public InputStream getIndexesJournalInputStream() throws IOException {
+        File journalFile = new File(file.getAbsolutePath() + "/" + INDEXES_JOURNAL_FILE_NAME);
+        return (journalFile.exists()) ? Files.newInputStream(journalFile.toPath()) : null;
+    }
+
+    @Override
+    public OutputStream getIndexesJournalOutputStream() throws IOException {
+        File journalFile = new File(file.getAbsolutePath() + "/" + INDEXES_JOURNAL_FILE_NAME);
+        // Batches are synced on close so a saved batch survives a crash.
+        return new FileOutputStream(journalFile, true) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                try {
+                    getFD().sync();
+                } finally {
+                    super.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void removeIndexesJournal() throws IOException {
+        Files.deleteIfExists(new File(file.getAbsolutePath() + "/" + INDEXES_JOURNAL_FILE_NAME).toPath());
+    }
+
+    @Override
+    public boolean truncateIndexesJournal(long length) throws IOException {
+        File journalFile = new File(file.getAbsolutePath() + "/" + INDEXES_JOURNAL_FILE_NAME);
+        try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+            channel.force(false);
+        }
+        return true;
+    }
+
     public InputStream getMoleculeInputStream(String UID) throws IOException {
         return getInputStream("/" + MOLECULES_SUBDIRECTORY_NAME + "/" + UID + storeFileExtension);
     }
@@ -262,6 +319,71 @@ public class MoleculeArchiveFSSource implements MoleculeArchiveSource {
         } else return new ArrayList<>();
     }
 
+    /**
+     * Versions are the size and last modification time of each record file,
+     * which are read from the directory listing without opening the files.
+     */
+    @Override
+    public Map<String, String> getMoleculeVersions() throws IOException {
+        return listVersions(MOLECULES_SUBDIRECTORY_NAME);
+    }
+
+    /**
+     * Reads the attributes of the record files given without listing the
+     * directory.
+     */
+    @Override
+    public Map<String, String> getMoleculeVersions(Collection<String> UIDs) throws IOException {
+        return readVersions(MOLECULES_SUBDIRECTORY_NAME, UIDs);
+    }
+
+    @Override
+    public Map<String, String> getMetadataVersions() throws IOException {
+        return listVersions(METADATA_SUBDIRECTORY_NAME);
+    }
+
+    @Override
+    public Map<String, String> getMetadataVersions(Collection<String> metaUIDs) throws IOException {
+        return readVersions(METADATA_SUBDIRECTORY_NAME, metaUIDs);
+    }
+
+    private Map<String, String> listVersions(String subdirectory) throws IOException {
+        Map<String, String> versions = new HashMap<>();
+        Path directory = new File(file.getAbsolutePath() + "/" + subdirectory).toPath();
+        if (!Files.isDirectory(directory)) return versions;
+
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*" + storeFileExtension)) {
+            for (Path path : paths) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                String fileName = path.getFileName().toString();
+                String UID = fileName.substring(0, fileName.length() - storeFileExtension.length());
+                versions.put(UID, version(attributes));
+            }
+        }
+        return versions;
+    }
+
+    private Map<String, String> readVersions(String subdirectory, Collection<String> UIDs)
+            throws IOException
+    {
+        Map<String, String> versions = new HashMap<>();
+        for (String UID : UIDs) {
+            Path path = new File(file.getAbsolutePath() + "/" + subdirectory + "/" + UID +
+                    storeFileExtension).toPath();
+            try {
+                versions.put(UID, version(Files.readAttributes(path, BasicFileAttributes.class)));
+            }
+            catch (NoSuchFileException e) {
+                // Removed since it was written.
+            }
+        }
+        return versions;
+    }
+
+    private static String version(BasicFileAttributes attributes) {
+        return attributes.size() + "-" + attributes.lastModifiedTime().toMillis();
+    }
+
     public List<String> getMetadataUIDs() {
         String[] metadataFileNameIndex = new File(file.getAbsolutePath() +
                 "/" + METADATA_SUBDIRECTORY_NAME).list((dir, name) -> name.endsWith(storeFileExtension));
@@ -95,9 +95,34 @@ public class MoleculeArchiveIOFactory {
      * @throws IOException the io exception
      */
     public MoleculeArchiveFSSource openFSSource(final File file) throws IOException {
+        if (MoleculeArchivePackedSource.isPackedStore(file)) return new MoleculeArchivePackedSource(file);
         return new MoleculeArchiveFSSource(file);
     }
 
+    /**
+     * Open a {@link MoleculeArchiveSource} for a virtual store that keeps
+     * records in pack files. Use to create a new packed store.
+     *
+     * @param directory store directory
+     * @return the MoleculeArchivePackedSource
+     * @throws IOException the io exception
+     */
+    public MoleculeArchivePackedSource openPackedSource(final File directory) throws IOException {
+        return new MoleculeArchivePackedSource(directory);
+    }
+
+    /**
+     * Open a {@link MoleculeArchiveSource} that reads molecule records from a
+     * .yama file when they are requested instead of loading them all.
+     *
+     * @param file archive file
+     * @return the MoleculeArchiveLazyYamaSource
+     * @throws IOException the io exception
+     */
+    public MoleculeArchiveLazyYamaSource openLazyYamaSource(final File file) throws IOException {
+        return new MoleculeArchiveLazyYamaSource(file);
+    }
+
     /**
      * Open an {@link MoleculeArchiveSource} for MoleculeArchive filesystem.
      *
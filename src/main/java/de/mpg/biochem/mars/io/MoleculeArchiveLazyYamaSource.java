@@ -0,0 +1,622 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.io;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only view of a monolithic .yama file that decodes molecule records on
+ * demand. A single pass over the file records the byte range of every
+ * molecule record. The archive is then opened in virtual mode and each record
+ * is read from the file with a positional read when it is requested, so
+ * memory use is similar to a virtual store.
+ * <p>
+ * Records that are put or removed while the archive is open are kept in
+ * memory until the archive is saved, which rewrites the complete file.
+ * </p>
+ * <p>
+ * Smile encoded files share field names between records using back
+ * references. To decode a record on its own, the names that were shared when
+ * the record was written are replayed in a short prefix before the record
+ * bytes. Files written with shared string values are not supported. The
+ * field names of each record are checked against those seen while scanning
+ * the first time the record is read, so a record decoded with the wrong names
+ * fails instead of loading with missing fields.
+ * </p>
+ *
+ * @author Karl Duderstadt
+ */
+public class MoleculeArchiveLazyYamaSource extends MoleculeArchiveFSSource {
+
+    private static final byte[] SMILE_HEADER = { ':', ')', '\n' };
+    private static final int SMILE_SHARED_STRING_VALUES = 0x02;
+    private static final byte SMILE_START_OBJECT = (byte) 0xFA;
+
+    /**
+     * Size of the Smile shared name table. The table is cleared when it is
+     * full.
+     */
+    private static final int MAX_SHARED_NAMES = 1024;
+
+    /**
+     * Molecule fields that are not needed to build the index and are skipped
+     * while scanning.
+     */
+    private static final Set<String> SKIPPED_MOLECULE_FIELDS = new HashSet<>(
+            Arrays.asList("table", "DataTable", "segmentTables", "SegmentTables"));
+
+    private final File file;
+    private final ConcurrentHashMap<String, Record> records = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, byte[]> writtenMolecules = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, byte[]> writtenMetadata = new ConcurrentHashMap<>();
+    private final Set<String> metadataUIDs = ConcurrentHashMap.newKeySet();
+    private final Set<String> verifiedUIDs = ConcurrentHashMap.newKeySet();
+
+    private FileChannel channel;
+    private boolean smile;
+    private boolean sharedNamesCleared;
+    private volatile boolean verifyRecords = true;
+    private JsonFactory jFactory;
+
+    /**
+     * Callbacks used to read the records encountered while scanning the file.
+     */
+    public interface RecordReader {
+
+        /**
+         * Read the properties record. The parser is at the start of the record.
+         *
+         * @param jParser the parser.
+         * @throws IOException if the record cannot be read.
+         */
+        void readProperties(JsonParser jParser) throws IOException;
+
+        /**
+         * Read a metadata record. The parser is at the start of the record.
+         *
+         * @param jParser the parser.
+         * @return the UID of the record.
+         * @throws IOException if the record cannot be read.
+         */
+        String readMetadata(JsonParser jParser) throws IOException;
+
+        /**
+         * Read a molecule record for indexing. The parser is at the start of
+         * the record. Tables and segment tables are skipped.
+         *
+         * @param jParser the parser.
+         * @return the UID of the record.
+         * @throws IOException if the record cannot be read.
+         */
+        String readMolecule(JsonParser jParser) throws IOException;
+    }
+
+    /**
+     * Create a lazy source for the .yama file given. The file is only read
+     * when {@link #scan(RecordReader)} is called.
+     *
+     * @param file the .yama file.
+     */
+    public MoleculeArchiveLazyYamaSource(File file) {
+        super(file);
+        this.file = file;
+    }
+
+    /**
+     * @return true if the file is Smile encoded, false if it is JSON.
+     */
+    public boolean isSmileEncoded() {
+        return smile;
+    }
+
+    /**
+     * Whether every molecule record found by the last scan can be decoded on
+     * its own without further checks. This is the case for JSON files and for
+     * Smile files in which the shared name table was never cleared, since the
+     * prefix then replays exactly the names the record was written with.
+     *
+     * @return true if records can be decoded in any order and on any thread.
+     */
+    public boolean canDecodeIndependently() {
+        return !smile || !sharedNamesCleared;
+    }
+
+    /**
+     * Set whether the field names of each molecule record are checked against
+     * those seen while scanning the first time the record is read. On by
+     * default. Only turn this off if {@link #canDecodeIndependently()} is true.
+     *
+     * @param verifyRecords true to check each record on first read.
+     */
+    public void setVerifyRecords(boolean verifyRecords) {
+        this.verifyRecords = verifyRecords;
+    }
+
+    /**
+     * Read through the file once and record the location of every molecule
+     * record. Properties and metadata records are passed to the reader given.
+     * Any records held in memory are discarded.
+     *
+     * @param reader reads the records found in the file.
+     * @throws IOException if the file cannot be read or records cannot be
+     * decoded independently.
+     */
+    public synchronized void scan(RecordReader reader) throws IOException {
+        close();
+        records.clear();
+        writtenMolecules.clear();
+        writtenMetadata.clear();
+        metadataUIDs.clear();
+        verifiedUIDs.clear();
+
+        smile = detectSmile();
+        jFactory = (smile) ? new SmileFactory() : new JsonFactory();
+
+        try (InputStream inputStream = Files.newInputStream(file.toPath());
+             ScanningParser jParser = new ScanningParser(jFactory.createParser(inputStream))) {
+            if (jParser.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("Expected a MoleculeArchive in " + file.getName());
+
+            sharedNamesCleared = false;
+            while (jParser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = jParser.getCurrentName();
+                JsonToken value = jParser.nextToken();
+                switch (fieldName) {
+                    case "properties":
+                    case "MoleculeArchiveProperties":
+                        reader.readProperties(jParser);
+                        break;
+                    case "metadata":
+                    case "Metadata":
+                    case "ImageMetadata":
+                    case "ImageMetaData":
+                        while (jParser.nextToken() != JsonToken.END_ARRAY)
+                            metadataUIDs.add(reader.readMetadata(jParser));
+                        break;
+                    case "molecules":
+                    case "Molecules":
+                        while (jParser.nextToken() != JsonToken.END_ARRAY) {
+                            long offset = jParser.getTokenLocation().getByteOffset();
+                            jParser.startRecord();
+                            String UID = reader.readMolecule(jParser);
+                            long end = jParser.getTokenLocation().getByteOffset() + 1;
+                            records.put(UID, jParser.endRecord(offset, end));
+                        }
+                        break;
+                    default:
+                        if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY)
+                            jParser.skipValue();
+                }
+            }
+        }
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        verify();
+    }
+
+    /*
+     * Checks a few records spread over the file so files that cannot be read
+     * lazily fail when they are opened. Every other record is checked when it
+     * is first read.
+     */
+    private void verify() throws IOException {
+        if (records.isEmpty()) return;
+        List<String> UIDs = new ArrayList<>(records.keySet());
+        for (String UID : new String[] { UIDs.get(0), UIDs.get(UIDs.size() / 2),
+                UIDs.get(UIDs.size() - 1) })
+            verify(UID);
+    }
+
+    /**
+     * Reads through the molecule record with the UID given and compares its
+     * field names with those seen while scanning. Records are also checked
+     * the first time they are read unless this is turned off with
+     * {@link #setVerifyRecords(boolean)}.
+     *
+     * @param UID the UID of the molecule record to check.
+     * @throws IOException if the record cannot be read on its own.
+     */
+    public void verify(String UID) throws IOException {
+        Record record = records.get(UID);
+        // Records written since the scan are not in the file.
+        if (record == null || writtenMolecules.containsKey(UID)) return;
+        verify(UID, record, read(record.offset, record.length));
+    }
+
+    private void verify(String UID, Record record, byte[] bytes) throws IOException {
+        int nameHash = 0;
+        try (JsonParser jParser = jFactory.createParser(open(UID, record, bytes))) {
+            int depth = 0;
+            JsonToken token;
+            while ((token = jParser.nextToken()) != null) {
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) depth++;
+                else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    if (--depth == 0) break;
+                }
+                else if (token == JsonToken.FIELD_NAME) {
+                    String name = jParser.getCurrentName();
+                    if (depth == 1 && name.isEmpty()) {
+                        // Shared name prefix
+                        jParser.nextToken();
+                        jParser.skipChildren();
+                        continue;
+                    }
+                    nameHash = 31 * nameHash + name.hashCode();
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IOException("Molecule record " + UID + " in " + file.getName() +
+                    " cannot be read on its own. Open the archive without lazy loading.", e);
+        }
+        if (nameHash != record.nameHash)
+            throw new IOException("Molecule record " + UID + " in " + file.getName() +
+                    " cannot be read on its own. Open the archive without lazy loading.");
+        verifiedUIDs.add(UID);
+    }
+
+    private boolean detectSmile() throws IOException {
+        byte[] header = new byte[4];
+        int read;
+        try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+            read = inputStream.read(header);
+        }
+        if (read < 4 || header[0] != SMILE_HEADER[0] || header[1] != SMILE_HEADER[1] ||
+                header[2] != SMILE_HEADER[2]) return false;
+        if ((header[3] & SMILE_SHARED_STRING_VALUES) != 0)
+            throw new IOException(file.getName() + " uses shared string values and " +
+                    "cannot be opened with lazy loading.");
+        return true;
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        if (channel == null) channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return channel;
+    }
+
+    /**
+     * Close the file channel used to read records. It is opened again when a
+     * record is read.
+     */
+    @Override
+    public synchronized void close() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+
+    @Override
+    public void initializeLocation() {
+        // The file is written when the archive is saved.
+    }
+
+    @Override
+    public boolean isVirtual() {
+        return true;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return (smile) ? ".sml" : ".json";
+    }
+
+    @Override
+    public InputStream getPropertiesInputStream() throws IOException {
+        throw new IOException("Properties are read while scanning " + file.getName());
+    }
+
+    @Override
+    public OutputStream getPropertiesOutputStream() {
+        // Properties are written when the complete file is saved.
+        return new ByteArrayOutputStream();
+    }
+
+    @Override
+    public InputStream getIndexesInputStream() {
+        return null;
+    }
+
+    @Override
+    public OutputStream getIndexesOutputStream() {
+        // Indexes are rebuilt when the file is scanned.
+        return new ByteArrayOutputStream();
+    }
+
+    @Override
+    public InputStream getIndexesJournalInputStream() {
+        return null;
+    }
+
+    @Override
+    public OutputStream getIndexesJournalOutputStream() {
+        return null;
+    }
+
+    @Override
+    public void removeIndexesJournal() {}
+
+    @Override
+    public InputStream getMoleculeInputStream(String UID) throws IOException {
+        byte[] written = writtenMolecules.get(UID);
+        if (written != null) return new ByteArrayInputStream(written);
+
+        Record record = records.get(UID);
+        if (record == null) throw new FileNotFoundException("Molecule record " + UID +
+                " not found in " + file.getName());
+
+        byte[] bytes = read(record.offset, record.length);
+        if (verifyRecords && !verifiedUIDs.contains(UID)) verify(UID, record, bytes);
+        return open(UID, record, bytes);
+    }
+
+    private InputStream open(String UID, Record record, byte[] bytes) throws IOException {
+        if (!smile) return new ByteArrayInputStream(bytes);
+
+        if (bytes[0] != SMILE_START_OBJECT) throw new IOException("Molecule record " + UID +
+                " in " + file.getName() + " does not start with an object.");
+        return new SequenceInputStream(new ByteArrayInputStream(buildPrefix(record)),
+                new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+    }
+
+    /*
+     * Writes a Smile header followed by an object with an empty field name
+     * that holds all shared names in the order they were added. Empty names
+     * are never shared, so the record fields that follow see the same shared
+     * name table they were written with. The record opens with its own start
+     * object marker, which is dropped so the prefix object becomes the record.
+     */
+    private byte[] buildPrefix(Record record) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        JsonGenerator jGenerator = jFactory.createGenerator(stream);
+        jGenerator.writeStartObject();
+        jGenerator.writeFieldName("");
+        jGenerator.writeStartObject();
+        for (int i = 0; i < record.sharedNameCount; i++) {
+            jGenerator.writeFieldName(record.sharedNames.get(i));
+            jGenerator.writeNull();
+        }
+        jGenerator.writeEndObject();
+        jGenerator.flush();
+        return stream.toByteArray();
+    }
+
+    private byte[] read(long offset, int length) throws IOException {
+        FileChannel fileChannel = getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of " + file.getName());
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public OutputStream getMoleculeOutputStream(String UID) {
+        return new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                writtenMolecules.put(UID, toByteArray());
+            }
+        };
+    }
+
+    @Override
+    public void removeMolecule(String UID) {
+        writtenMolecules.remove(UID);
+        records.remove(UID);
+    }
+
+    @Override
+    public InputStream getMetadataInputStream(String metaUID) throws IOException {
+        byte[] written = writtenMetadata.get(metaUID);
+        if (written != null) return new ByteArrayInputStream(written);
+        throw new FileNotFoundException("Metadata records are read while scanning " + file.getName());
+    }
+
+    @Override
+    public OutputStream getMetadataOutputStream(String metaUID) {
+        return new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                writtenMetadata.put(metaUID, toByteArray());
+                metadataUIDs.add(metaUID);
+            }
+        };
+    }
+
+    @Override
+    public void removeMetadata(String metaUID) {
+        writtenMetadata.remove(metaUID);
+        metadataUIDs.remove(metaUID);
+    }
+
+    @Override
+    public List<String> getMoleculeUIDs() {
+        Set<String> UIDs = new HashSet<>(records.keySet());
+        UIDs.addAll(writtenMolecules.keySet());
+        return new ArrayList<>(UIDs);
+    }
+
+    @Override
+    public List<String> getMetadataUIDs() {
+        return new ArrayList<>(metadataUIDs);
+    }
+
+    @Override
+    public Map<String, String> getMoleculeVersions() {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getMoleculeVersions(Collection<String> UIDs) {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getMetadataVersions() {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getMetadataVersions(Collection<String> metaUIDs) {
+        return null;
+    }
+
+    /**
+     * Location of a molecule record in the file and the Smile names that were
+     * shared when it was written.
+     */
+    private static final class Record {
+        private final long offset;
+        private final int length;
+        private final int nameHash;
+        private final List<String> sharedNames;
+        private final int sharedNameCount;
+
+        private Record(long offset, int length, int nameHash, List<String> sharedNames,
+                       int sharedNameCount) {
+            this.offset = offset;
+            this.length = length;
+            this.nameHash = nameHash;
+            this.sharedNames = sharedNames;
+            this.sharedNameCount = sharedNameCount;
+        }
+    }
+
+    /**
+     * Parser used while scanning. Follows the Smile shared name table, skips
+     * the fields listed in SKIPPED_MOLECULE_FIELDS inside molecule records and
+     * hashes the field names of each molecule record.
+     */
+    private final class ScanningParser extends JsonParserDelegate {
+
+        // Shared names in the order they were added. A new list is started
+        // whenever the table is cleared so earlier records keep their view.
+        private List<String> sharedNames = new ArrayList<>();
+        private Set<String> sharedNameSet = new HashSet<>();
+
+        private int depth;
+        private int recordDepth = -1;
+        private int nameHash;
+        private List<String> recordSharedNames;
+        private int recordSharedNameCount;
+
+        private ScanningParser(JsonParser jParser) {
+            super(jParser);
+        }
+
+        private void startRecord() {
+            recordDepth = depth;
+            nameHash = 0;
+            recordSharedNames = sharedNames;
+            recordSharedNameCount = sharedNames.size();
+        }
+
+        private Record endRecord(long offset, long end) throws IOException {
+            recordDepth = -1;
+            if (end - offset > Integer.MAX_VALUE) throw new IOException(
+                    "Molecule record larger than 2 GB in " + file.getName());
+            return new Record(offset, (int) (end - offset), nameHash,
+                    (smile) ? recordSharedNames : null, recordSharedNameCount);
+        }
+
+        private void skipValue() throws IOException {
+            int start = depth - 1;
+            while (depth > start) {
+                if (next() == null) throw new EOFException("Unexpected end of " + file.getName());
+            }
+        }
+
+        @Override
+        public JsonToken nextToken() throws IOException {
+            JsonToken token = next();
+            while (token == JsonToken.FIELD_NAME && depth == recordDepth &&
+                    SKIPPED_MOLECULE_FIELDS.contains(delegate.getCurrentName())) {
+                JsonToken value = next();
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) skipValue();
+                token = next();
+            }
+            return token;
+        }
+
+        private JsonToken next() throws IOException {
+            JsonToken token = delegate.nextToken();
+            if (token == null) return null;
+            switch (token) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    depth++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    depth--;
+                    break;
+                case FIELD_NAME:
+                    String name = delegate.getCurrentName();
+                    if (recordDepth >= 0) nameHash = 31 * nameHash + name.hashCode();
+                    if (smile) addSharedName(name);
+                    break;
+                default:
+                    break;
+            }
+            return token;
+        }
+
+        private void addSharedName(String name) {
+            if (name.isEmpty() || sharedNameSet.contains(name)) return;
+            if (sharedNames.size() == MAX_SHARED_NAMES) {
+                sharedNames = new ArrayList<>();
+                sharedNameSet = new HashSet<>();
+                sharedNamesCleared = true;
+            }
+            sharedNames.add(name);
+            sharedNameSet.add(name);
+        }
+    }
+}
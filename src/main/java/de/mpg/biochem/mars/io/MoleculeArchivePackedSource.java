@@ -0,0 +1,665 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Virtual store that keeps molecule and metadata records in a few large pack
+ * files instead of one file per record. Records are appended to the current
+ * pack file and their location is appended to a small index journal
+ * (records.idx). When a record is rewritten or removed, the old bytes stay in
+ * the pack file until {@link #compact()} is called. Properties and indexes
+ * are stored as in a regular virtual store.
+ * <p>
+ * Stores that contain a records.idx file are opened with this source by
+ * {@link MoleculeArchiveIOFactory}.
+ * </p>
+ *
+ * @author Karl Duderstadt
+ */
+public class MoleculeArchivePackedSource extends MoleculeArchiveFSSource {
+
+    public static final String PACK_INDEX_FILE_NAME = "records.idx";
+    public static final String PACK_FILE_PREFIX = "records-";
+    public static final String PACK_FILE_EXTENSION = ".pack";
+
+    /**
+     * A new pack file is started once the current one reaches this size.
+     */
+    public static final long MAX_PACK_SIZE = 1L << 30;
+
+    private static final int INDEX_MAGIC = 0x4D504B31; // MPK1
+
+    /*
+     * Journal entries are held back until this many bytes are pending or the
+     * source is synced, so the pack files are forced once per batch.
+     */
+    private static final int JOURNAL_BATCH_SIZE = 1 << 16;
+
+    private static final byte PUT_MOLECULE = 1;
+    private static final byte PUT_METADATA = 2;
+    private static final byte REMOVE_MOLECULE = 3;
+    private static final byte REMOVE_METADATA = 4;
+
+    private final File directory;
+
+    private final ConcurrentHashMap<String, Entry> molecules = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> metadata = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, FileChannel> packs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, MappedBuffer> mappings = new ConcurrentHashMap<>();
+
+    private volatile boolean memoryMapped;
+
+    private volatile boolean open;
+    private FileChannel indexChannel;
+    private int currentPack;
+    private long currentPackSize;
+    private long supersededBytes;
+    private final ByteArrayOutputStream pendingJournal = new ByteArrayOutputStream();
+    private final Set<Integer> unsyncedPacks = new HashSet<>();
+
+    /**
+     * Use to read from a packed store or create one.
+     *
+     * @param directory the store directory.
+     */
+    public MoleculeArchivePackedSource(File directory) {
+        super(directory);
+        this.directory = directory;
+        if (directory.isDirectory()) detectStoreFileExtension();
+    }
+
+    /**
+     * Returns true if the directory given contains a packed store.
+     *
+     * @param directory the store directory.
+     * @return true if the directory contains a pack index.
+     */
+    public static boolean isPackedStore(File directory) {
+        return new File(directory, PACK_INDEX_FILE_NAME).isFile();
+    }
+
+    @Override
+    public void initializeLocation() {
+        if (!directory.exists()) directory.mkdirs();
+        detectStoreFileExtension();
+        try {
+            // Creates the index journal, which marks the directory as a packed store.
+            ensureOpen();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean isVirtual() {
+        return true;
+    }
+
+    /*
+     * Reads the index journal and opens the pack files. Entries that were only
+     * partly written are dropped.
+     */
+    private synchronized void ensureOpen() throws IOException {
+        if (open) return;
+
+        molecules.clear();
+        metadata.clear();
+        supersededBytes = 0;
+        currentPack = 0;
+
+        File indexFile = new File(directory, PACK_INDEX_FILE_NAME);
+        indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long validLength = 0;
+        if (indexChannel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(INDEX_MAGIC);
+            header.flip();
+            writeFully(indexChannel, header, 0);
+            validLength = 4;
+        }
+        else {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(indexFile.toPath())));
+            try {
+                if (input.readInt() != INDEX_MAGIC)
+                    throw new IOException(indexFile.getAbsolutePath() + " is not a pack index.");
+                validLength = 4;
+                Map<Integer, Long> packSizes = new HashMap<>();
+                while (true) {
+                    byte operation = input.readByte();
+                    String UID = input.readUTF();
+                    long entryLength = 1 + 2 + UID.getBytes(StandardCharsets.UTF_8).length;
+                    if (operation == PUT_MOLECULE || operation == PUT_METADATA) {
+                        Entry entry = new Entry(input.readInt(), input.readLong(), input.readInt());
+                        Long packSize = packSizes.get(entry.pack);
+                        if (packSize == null) {
+                            packSize = getPack(entry.pack).size();
+                            packSizes.put(entry.pack, packSize);
+                        }
+                        // The record bytes did not reach the pack before a crash. Later
+                        // entries may point into the same range once it is appended
+                        // to again, so the journal is cut here.
+                        if (entry.offset < 0 || entry.length < 0 || entry.offset + entry.length > packSize)
+                            break;
+                        replay(operation, UID, entry);
+                        entryLength += 16;
+                    }
+                    else replay(operation, UID, null);
+                    validLength += entryLength;
+                }
+            }
+            catch (EOFException e) {
+                // End of the journal or a partly written final entry.
+            }
+            finally {
+                input.close();
+            }
+        }
+        indexChannel.truncate(validLength);
+        indexChannel.position(validLength);
+
+        for (Entry entry : molecules.values())
+            currentPack = Math.max(currentPack, entry.pack);
+        for (Entry entry : metadata.values())
+            currentPack = Math.max(currentPack, entry.pack);
+        currentPackSize = getPack(currentPack).size();
+
+        open = true;
+    }
+
+    private void replay(byte operation, String UID, Entry entry) throws IOException {
+        Entry previous;
+        switch (operation) {
+            case PUT_MOLECULE:
+                previous = molecules.put(UID, entry);
+                break;
+            case PUT_METADATA:
+                previous = metadata.put(UID, entry);
+                break;
+            case REMOVE_MOLECULE:
+                previous = molecules.remove(UID);
+                break;
+            case REMOVE_METADATA:
+                previous = metadata.remove(UID);
+                break;
+            default:
+                throw new IOException("Unknown entry in " + PACK_INDEX_FILE_NAME);
+        }
+        if (previous != null) supersededBytes += previous.length;
+    }
+
+    private FileChannel getPack(int pack) throws IOException {
+        FileChannel channel = packs.get(pack);
+        if (channel != null) return channel;
+        synchronized (packs) {
+            channel = packs.get(pack);
+            if (channel == null) {
+                channel = FileChannel.open(getPackFile(pack).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                packs.put(pack, channel);
+            }
+            return channel;
+        }
+    }
+
+    private Set<Integer> listPacks() {
+        Set<Integer> packNumbers = new HashSet<>();
+        String[] fileNames = directory.list((dir, name) -> name.startsWith(PACK_FILE_PREFIX) &&
+                name.endsWith(PACK_FILE_EXTENSION));
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                try {
+                    packNumbers.add(Integer.parseInt(fileName.substring(PACK_FILE_PREFIX.length(),
+                            fileName.length() - PACK_FILE_EXTENSION.length())));
+                }
+                catch (NumberFormatException e) {
+                    // Not a pack file written by this source.
+                }
+            }
+        }
+        return packNumbers;
+    }
+
+    private File getPackFile(int pack) {
+        return new File(directory, String.format("%s%05d%s", PACK_FILE_PREFIX, pack,
+                PACK_FILE_EXTENSION));
+    }
+
+    /*
+     * Appends the record to the current pack file. Its location is recorded in
+     * the journal with the next batch, after the pack files are forced to disk,
+     * so the journal never points at missing bytes.
+     */
+    private synchronized void append(byte operation, String UID, byte[] bytes) throws IOException {
+        ensureOpen();
+        if (currentPackSize > 0 && currentPackSize + bytes.length > MAX_PACK_SIZE) {
+            currentPack++;
+            currentPackSize = getPack(currentPack).size();
+        }
+
+        Entry entry = new Entry(currentPack, currentPackSize, bytes.length);
+        FileChannel packChannel = getPack(currentPack);
+        writeFully(packChannel, ByteBuffer.wrap(bytes), entry.offset);
+        unsyncedPacks.add(currentPack);
+        currentPackSize += bytes.length;
+
+        journal(operation, UID, entry);
+        replay(operation, UID, entry);
+        if (pendingJournal.size() >= JOURNAL_BATCH_SIZE) sync();
+    }
+
+    private synchronized void remove(byte operation, String UID) throws IOException {
+        ensureOpen();
+        Map<String, Entry> entries = (operation == REMOVE_MOLECULE) ? molecules : metadata;
+        if (!entries.containsKey(UID)) return;
+        journal(operation, UID, null);
+        replay(operation, UID, null);
+    }
+
+    private void journal(byte operation, String UID, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(operation);
+        output.writeUTF(UID);
+        if (entry != null) {
+            output.writeInt(entry.pack);
+            output.writeLong(entry.offset);
+            output.writeInt(entry.length);
+        }
+        output.flush();
+        bytes.writeTo(pendingJournal);
+    }
+
+    /**
+     * Forces the pack files written since the last sync to disk and then
+     * appends the held back entries to the index journal. Called when the
+     * archive is flushed or saved and when the source is closed.
+     *
+     * @throws IOException if the packs or the journal cannot be written.
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        if (pendingJournal.size() == 0) return;
+        for (int pack : unsyncedPacks)
+            getPack(pack).force(false);
+        unsyncedPacks.clear();
+
+        ByteBuffer buffer = ByteBuffer.wrap(pendingJournal.toByteArray());
+        while (buffer.hasRemaining())
+            indexChannel.write(buffer);
+        pendingJournal.reset();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * Read records through memory mappings of the pack files instead of
+     * copying them from the file. Each pack file is mapped once, and record
+     * streams are views over the mapping. Suited to sessions that read many
+     * records and write few. Disabling the mode releases the mappings.
+     *
+     * @param memoryMapped true to read records through memory mappings.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) releaseMappings();
+    }
+
+    /**
+     * @return true if records are read through memory mappings.
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /*
+     * Returns a mapping that covers the range given. The pack file is mapped
+     * again if it has grown past the current mapping. Returns null if the pack
+     * cannot be mapped at once.
+     */
+    private MappedBuffer getMapping(int pack, long end) throws IOException {
+        MappedBuffer mapping = mappings.get(pack);
+        if (mapping != null && mapping.size() >= end) return mapping;
+        synchronized (mappings) {
+            mapping = mappings.get(pack);
+            if (mapping != null && mapping.size() >= end) return mapping;
+            FileChannel channel = getPack(pack);
+            if (channel.size() > Integer.MAX_VALUE) return null;
+            MappedBuffer newMapping = MappedBuffer.map(channel, channel.size());
+            mappings.put(pack, newMapping);
+            if (mapping != null) mapping.release();
+            return newMapping;
+        }
+    }
+
+    private void releaseMappings() {
+        synchronized (mappings) {
+            for (MappedBuffer mapping : mappings.values())
+                mapping.release();
+            mappings.clear();
+        }
+    }
+
+    private InputStream read(Entry entry, String UID) throws IOException {
+        if (entry == null) throw new FileNotFoundException("Record " + UID +
+                " not found in " + directory.getName());
+        if (memoryMapped) {
+            MappedBuffer mapping = getMapping(entry.pack, entry.offset + entry.length);
+            // Null if the mapping was released or replaced in the meantime.
+            InputStream inputStream = (mapping != null) ? mapping.openInputStream(
+                    entry.offset, entry.length) : null;
+            if (inputStream != null) return inputStream;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        FileChannel channel = getPack(entry.pack);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.offset + buffer.position()) < 0)
+                throw new EOFException("Record " + UID + " is truncated in " + getPackFile(entry.pack).getName());
+        }
+        return new ByteArrayInputStream(buffer.array());
+    }
+
+    private OutputStream write(byte operation, String UID) {
+        return new ByteArrayOutputStream() {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                append(operation, UID, toByteArray());
+            }
+        };
+    }
+
+    @Override
+    public InputStream getMoleculeInputStream(String UID) throws IOException {
+        ensureOpen();
+        return read(molecules.get(UID), UID);
+    }
+
+    @Override
+    public OutputStream getMoleculeOutputStream(String UID) throws IOException {
+        ensureOpen();
+        return write(PUT_MOLECULE, UID);
+    }
+
+    @Override
+    public void removeMolecule(String UID) {
+        try {
+            remove(REMOVE_MOLECULE, UID);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public InputStream getMetadataInputStream(String metaUID) throws IOException {
+        ensureOpen();
+        return read(metadata.get(metaUID), metaUID);
+    }
+
+    @Override
+    public OutputStream getMetadataOutputStream(String metaUID) throws IOException {
+        ensureOpen();
+        return write(PUT_METADATA, metaUID);
+    }
+
+    @Override
+    public void removeMetadata(String metaUID) {
+        try {
+            remove(REMOVE_METADATA, metaUID);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public List<String> getMoleculeUIDs() {
+        try {
+            ensureOpen();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(molecules.keySet());
+    }
+
+    @Override
+    public List<String> getMetadataUIDs() {
+        try {
+            ensureOpen();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(metadata.keySet());
+    }
+
+    /**
+     * Versions are the pack file and offset of each record, which change
+     * every time a record is written.
+     */
+    @Override
+    public Map<String, String> getMoleculeVersions() throws IOException {
+        ensureOpen();
+        Map<String, String> versions = new HashMap<>();
+        for (Map.Entry<String, Entry> entry : molecules.entrySet())
+            versions.put(entry.getKey(), entry.getValue().pack + ":" + entry.getValue().offset);
+        return versions;
+    }
+
+    @Override
+    public Map<String, String> getMoleculeVersions(Collection<String> UIDs) throws IOException {
+        ensureOpen();
+        return getVersions(molecules, UIDs);
+    }
+
+    @Override
+    public Map<String, String> getMetadataVersions() throws IOException {
+        ensureOpen();
+        return getVersions(metadata, metadata.keySet());
+    }
+
+    @Override
+    public Map<String, String> getMetadataVersions(Collection<String> metaUIDs) throws IOException {
+        ensureOpen();
+        return getVersions(metadata, metaUIDs);
+    }
+
+    private static Map<String, String> getVersions(Map<String, Entry> entries, Collection<String> UIDs) {
+        Map<String, String> versions = new HashMap<>();
+        for (String UID : UIDs) {
+            Entry entry = entries.get(UID);
+            if (entry != null) versions.put(UID, entry.pack + ":" + entry.offset);
+        }
+        return versions;
+    }
+
+    /**
+     * @return the number of bytes in pack files taken up by records that were
+     * rewritten or removed.
+     * @throws IOException if the store cannot be opened.
+     */
+    public synchronized long getSupersededBytes() throws IOException {
+        ensureOpen();
+        return supersededBytes;
+    }
+
+    /**
+     * Copy all current records to new pack files and write a new index
+     * journal. Afterwards the old pack files are deleted, which frees the
+     * space taken up by records that were rewritten or removed. Records
+     * should not be read or written while the store is compacted.
+     *
+     * @throws IOException if the store cannot be compacted. The store is left
+     * unchanged if this happens before the new index replaces the old one.
+     */
+    public synchronized void compact() throws IOException {
+        ensureOpen();
+        sync();
+
+        Set<Integer> oldPacks = listPacks();
+        oldPacks.add(currentPack);
+        int pack = Collections.max(oldPacks) + 1;
+        int firstNewPack = pack;
+
+        File tempIndexFile = new File(directory, PACK_INDEX_FILE_NAME + ".tmp");
+        Map<String, Entry> newMolecules = new HashMap<>();
+        Map<String, Entry> newMetadata = new HashMap<>();
+        long packSize = 0;
+        FileChannel packChannel = null;
+        try (FileOutputStream indexOutput = new FileOutputStream(tempIndexFile);
+                DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                indexOutput))) {
+            index.writeInt(INDEX_MAGIC);
+            for (int type = 0; type < 2; type++) {
+                Map<String, Entry> entries = (type == 0) ? metadata : molecules;
+                Map<String, Entry> newEntries = (type == 0) ? newMetadata : newMolecules;
+                byte operation = (type == 0) ? PUT_METADATA : PUT_MOLECULE;
+                for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                    Entry entry = mapEntry.getValue();
+                    if (packChannel == null || packSize > 0 && packSize + entry.length > MAX_PACK_SIZE) {
+                        if (packChannel != null) {
+                            packChannel.force(true);
+                            packChannel.close();
+                            pack++;
+                        }
+                        packChannel = FileChannel.open(getPackFile(pack).toPath(),
+                                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                        packSize = 0;
+                    }
+                    FileChannel source = getPack(entry.pack);
+                    long transferred = 0;
+                    while (transferred < entry.length)
+                        transferred += source.transferTo(entry.offset + transferred,
+                                entry.length - transferred, packChannel);
+
+                    Entry newEntry = new Entry(pack, packSize, entry.length);
+                    packSize += entry.length;
+                    newEntries.put(mapEntry.getKey(), newEntry);
+
+                    index.writeByte(operation);
+                    index.writeUTF(mapEntry.getKey());
+                    index.writeInt(newEntry.pack);
+                    index.writeLong(newEntry.offset);
+                    index.writeInt(newEntry.length);
+                }
+            }
+            if (packChannel != null) packChannel.force(true);
+            // The new index must be on disk before it replaces the old one.
+            index.flush();
+            indexOutput.getFD().sync();
+        }
+        catch (IOException e) {
+            if (packChannel != null) packChannel.close();
+            for (int p = firstNewPack; p <= pack; p++)
+                Files.deleteIfExists(getPackFile(p).toPath());
+            Files.deleteIfExists(tempIndexFile.toPath());
+            throw e;
+        }
+        finally {
+            if (packChannel != null && packChannel.isOpen()) packChannel.close();
+        }
+
+        close();
+        Files.move(tempIndexFile.toPath(), new File(directory, PACK_INDEX_FILE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        for (int oldPack : oldPacks)
+            Files.deleteIfExists(getPackFile(oldPack).toPath());
+
+        ensureOpen();
+    }
+
+    /**
+     * Close the pack files and the index journal. They are opened again when
+     * records are accessed.
+     */
+    @Override
+    public synchronized void close() {
+        if (!open) return;
+        try {
+            sync();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        open = false;
+        // Streams that are still open keep their mapping until they are closed.
+        releaseMappings();
+        for (FileChannel channel : packs.values()) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        packs.clear();
+        try {
+            indexChannel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        indexChannel = null;
+    }
+
+    private static final class Entry {
+        private final int pack;
+        private final long offset;
+        private final int length;
+
+        private Entry(int pack, long offset, int length) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
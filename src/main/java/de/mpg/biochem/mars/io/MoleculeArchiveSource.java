@@ -32,7 +32,10 @@ package de.mpg.biochem.mars.io;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Basic interface for
@@ -42,6 +45,7 @@ import java.util.List;
 public interface MoleculeArchiveSource extends MoleculeArchiveStorage {
     public static final String PROPERTIES_FILE_NAME = "MoleculeArchiveProperties";
     public static final String INDEXES_FILE_NAME = "indexes";
+    public static final String INDEXES_JOURNAL_FILE_NAME = "indexes.journal";
     public static final String MOLECULES_SUBDIRECTORY_NAME = "Molecules";
     public static final String METADATA_SUBDIRECTORY_NAME = "Metadata";
 
@@ -76,6 +80,56 @@ public interface MoleculeArchiveSource extends MoleculeArchiveStorage {
 
     OutputStream getIndexesOutputStream() throws IOException;
 
+    /**
+     * Open the journal of index changes written since the indexes file.
+     *
+     * @return the journal stream or null if there is no journal.
+     * @throws IOException thrown when the journal cannot be opened.
+     */
+    default InputStream getIndexesJournalInputStream() throws IOException {
+        return null;
+    }
+
+    /**
+     * Open the journal of index changes for appending.
+     *
+     * @return the journal stream or null if the source does not support
+     * journals, in which case the indexes file is always written in full.
+     * @throws IOException thrown when the journal cannot be opened.
+     */
+    default OutputStream getIndexesJournalOutputStream() throws IOException {
+        return null;
+    }
+
+    /**
+     * Remove the journal of index changes after the indexes file was written
+     * in full.
+     *
+     * @throws IOException thrown when the journal cannot be removed.
+     */
+    default void removeIndexesJournal() throws IOException {}
+
+    /**
+     * Cut the journal of index changes to the given length. Used to drop a
+     * batch left incomplete by an interrupted write before appending again.
+     *
+     * @param length the length in bytes of the complete batches to keep.
+     * @return false if the source cannot truncate the journal, in which case
+     * the indexes file is written in full instead.
+     * @throws IOException thrown when the journal cannot be truncated.
+     */
+    default boolean truncateIndexesJournal(long length) throws IOException {
+        return false;
+    }
+
+    /**
+     * Make the records written so far durable. Sources that commit writes in
+     * batches commit the current batch.
+     *
+     * @throws IOException thrown when the records cannot be committed.
+     */
+    default void sync() throws IOException {}
+
     InputStream getMoleculeInputStream(String UID) throws IOException;
 
     OutputStream getMoleculeOutputStream(String UID) throws IOException;
@@ -88,7 +142,71 @@ public interface MoleculeArchiveSource extends MoleculeArchiveStorage {
 
     public List<String> getMoleculeUIDs();
 
+    /**
+     * Lists the molecule records in the source together with a version string
+     * that changes whenever a record is rewritten, for example the size and
+     * modification time of a file or the ETag of an object. Used to find the
+     * records that changed since the indexes were written.
+     *
+     * @return map from molecule UID to record version or null if the source
+     * cannot provide versions.
+     * @throws IOException thrown when listing the records fails.
+     */
+    default Map<String, String> getMoleculeVersions() throws IOException {
+        return null;
+    }
+
+    /**
+     * Lists the versions of the molecule records with the UIDs given. Records
+     * that do not exist are left out. Sources that can look up single records
+     * override this to avoid listing all records.
+     *
+     * @param UIDs the UIDs of the molecule records.
+     * @return map from molecule UID to record version or null if the source
+     * cannot provide versions.
+     * @throws IOException thrown when reading the versions fails.
+     */
+    default Map<String, String> getMoleculeVersions(Collection<String> UIDs) throws IOException {
+        return selectVersions(getMoleculeVersions(), UIDs);
+    }
+
     public List<String> getMetadataUIDs();
 
+    /**
+     * Lists the metadata records in the source together with a version string
+     * that changes whenever a record is rewritten, in the same way as
+     * {@link #getMoleculeVersions()}.
+     *
+     * @return map from metadata UID to record version or null if the source
+     * cannot provide versions.
+     * @throws IOException thrown when listing the records fails.
+     */
+    default Map<String, String> getMetadataVersions() throws IOException {
+        return null;
+    }
+
+    /**
+     * Lists the versions of the metadata records with the UIDs given. Records
+     * that do not exist are left out.
+     *
+     * @param metaUIDs the UIDs of the metadata records.
+     * @return map from metadata UID to record version or null if the source
+     * cannot provide versions.
+     * @throws IOException thrown when reading the versions fails.
+     */
+    default Map<String, String> getMetadataVersions(Collection<String> metaUIDs) throws IOException {
+        return selectVersions(getMetadataVersions(), metaUIDs);
+    }
+
+    static Map<String, String> selectVersions(Map<String, String> versions, Collection<String> UIDs) {
+        if (versions == null) return null;
+        Map<String, String> selected = new HashMap<>();
+        for (String UID : UIDs) {
+            String version = versions.get(UID);
+            if (version != null) selected.put(UID, version);
+        }
+        return selected;
+    }
+
     void removeMetadata(String metaUID) throws IOException;
 }
@@ -0,0 +1,381 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Write-behind queue used by virtual archives to move record storage off the
+ * calling thread. Records are handed to a small pool of dedicated writer
+ * threads. Repeated puts of the same key before the record has been written
+ * are coalesced so only the latest version is written.
+ * <p>
+ * The queue takes ownership of each record put. Records must not be changed
+ * after they are queued, since writers may read them at any time until they
+ * are written. Virtual archives queue encoded copies of their records for
+ * this reason.
+ * </p>
+ * <p>
+ * The queue keeps an estimate of the memory held by pending records. Callers
+ * should use {@link #awaitCapacity()} before {@link #put(String, Object)} to
+ * block while the estimate exceeds the memory budget. Writers hold the record
+ * lock provided for each key while writing, so callers that also take the
+ * record lock see a consistent view of pending and written records.
+ * </p>
+ *
+ * @author Karl Duderstadt
+ * @param <T> Record type.
+ */
+public class WriteBehindQueue<T> implements AutoCloseable {
+
+    private static final String SHUTDOWN = new String("SHUTDOWN");
+
+    private final ConcurrentHashMap<String, PendingRecord<T>> pending;
+    private final LinkedBlockingQueue<String> keyQueue;
+    private final ExecutorService writers;
+    private final int writerThreads;
+
+    private final long memoryBudget;
+    private final ToLongFunction<T> weigher;
+    private final Function<String, Lock> recordLocks;
+    private final RecordWriter<T> writer;
+
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Condition spaceAvailable = stateLock.newCondition();
+    private final Condition drained = stateLock.newCondition();
+
+    /**
+     * Estimated bytes held by pending records. Guarded by stateLock.
+     */
+    private long pendingBytes = 0;
+
+    /**
+     * Number of records pending or being written. Guarded by stateLock.
+     */
+    private int unwritten = 0;
+
+    private final List<IOException> errors = new ArrayList<>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a write-behind queue and starts the writer threads.
+     *
+     * @param writerThreads Number of writer threads.
+     * @param memoryBudget Estimated bytes of pending records above which
+     *          {@link #awaitCapacity()} blocks.
+     * @param weigher Estimate of the bytes held by a record.
+     * @param recordLocks Provides the lock for each record key.
+     * @param writer Stores a record.
+     */
+    public WriteBehindQueue(int writerThreads, long memoryBudget,
+                            ToLongFunction<T> weigher, Function<String, Lock> recordLocks,
+                            RecordWriter<T> writer)
+    {
+        this.writerThreads = Math.max(1, writerThreads);
+        this.memoryBudget = memoryBudget;
+        this.weigher = weigher;
+        this.recordLocks = recordLocks;
+        this.writer = writer;
+
+        pending = new ConcurrentHashMap<>();
+        keyQueue = new LinkedBlockingQueue<>();
+
+        AtomicInteger threadCount = new AtomicInteger(0);
+        writers = Executors.newFixedThreadPool(this.writerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "mars-write-behind-" + threadCount
+                    .incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < this.writerThreads; i++)
+            writers.submit(this::writeLoop);
+    }
+
+    /**
+     * Blocks while the estimated memory of pending records exceeds the budget.
+     * Should not be called while holding a record lock.
+     */
+    public void awaitCapacity() {
+        stateLock.lock();
+        try {
+            while (pendingBytes > memoryBudget && !closed)
+                spaceAvailable.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Queue a record for writing. If a version of the record with the same key
+     * is still waiting, it is replaced and only the latest version is written.
+     * The record must not be changed afterwards.
+     *
+     * @param key The record key.
+     * @param record The record to write.
+     * @return False if the queue has been closed and the record was not queued.
+     */
+    public boolean put(String key, T record) {
+        PendingRecord<T> newRecord = new PendingRecord<>(record, weigher
+                .applyAsLong(record));
+
+        stateLock.lock();
+        try {
+            if (closed) return false;
+            PendingRecord<T> oldRecord = pending.put(key, newRecord);
+            pendingBytes += newRecord.bytes;
+            if (oldRecord != null) pendingBytes -= oldRecord.bytes;
+            else {
+                unwritten++;
+                keyQueue.add(key);
+            }
+            return true;
+        }
+        finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Get the latest version of a record that has not been written yet.
+     *
+     * @param key The record key.
+     * @return The pending record or null if there is no pending version.
+     */
+    public T get(String key) {
+        PendingRecord<T> pendingRecord = pending.get(key);
+        return (pendingRecord != null) ? pendingRecord.record : null;
+    }
+
+    /**
+     * Drop the pending version of a record so it is never written. Callers
+     * should hold the record lock.
+     *
+     * @param key The record key.
+     * @return True if a pending version was dropped.
+     */
+    public boolean remove(String key) {
+        stateLock.lock();
+        try {
+            PendingRecord<T> pendingRecord = pending.remove(key);
+            if (pendingRecord == null) return false;
+            release(pendingRecord);
+            return true;
+        }
+        finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Number of records waiting to be written or being written.
+     *
+     * @return The number of unwritten records.
+     */
+    public int size() {
+        stateLock.lock();
+        try {
+            return unwritten;
+        }
+        finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until all records queued before this call have been written.
+     *
+     * @throws IOException if writing any record failed since the last flush.
+     */
+    public void flush() throws IOException {
+        stateLock.lock();
+        try {
+            while (unwritten > 0)
+                drained.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing write-behind queue.",
+                    e);
+        }
+        finally {
+            stateLock.unlock();
+        }
+        throwErrors();
+    }
+
+    /**
+     * Flushes all pending records and stops the writer threads. Records put
+     * after the queue is closed are rejected.
+     *
+     * @throws IOException if writing any record failed.
+     */
+    @Override
+    public void close() throws IOException {
+        stateLock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            spaceAvailable.signalAll();
+        }
+        finally {
+            stateLock.unlock();
+        }
+
+        try {
+            flush();
+        }
+        finally {
+            for (int i = 0; i < writerThreads; i++)
+                keyQueue.add(SHUTDOWN);
+            writers.shutdown();
+            try {
+                writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            String key;
+            try {
+                key = keyQueue.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            //noinspection StringEquality
+            if (key == SHUTDOWN) return;
+
+            Lock lock = recordLocks.apply(key);
+            lock.lock();
+            try {
+                PendingRecord<T> pendingRecord = pending.remove(key);
+                if (pendingRecord == null) continue;
+                try {
+                    writer.write(key, pendingRecord.record);
+                }
+                catch (IOException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+                catch (RuntimeException e) {
+                    synchronized (errors) {
+                        errors.add(new IOException("Failed to write record " + key, e));
+                    }
+                }
+                finally {
+                    stateLock.lock();
+                    try {
+                        release(pendingRecord);
+                    }
+                    finally {
+                        stateLock.unlock();
+                    }
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding stateLock.
+     */
+    private void release(PendingRecord<T> pendingRecord) {
+        pendingBytes -= pendingRecord.bytes;
+        unwritten--;
+        spaceAvailable.signalAll();
+        if (unwritten == 0) drained.signalAll();
+    }
+
+    private void throwErrors() throws IOException {
+        synchronized (errors) {
+            if (errors.isEmpty()) return;
+            IOException exception = errors.get(0);
+            for (int i = 1; i < errors.size(); i++)
+                exception.addSuppressed(errors.get(i));
+            errors.clear();
+            throw exception;
+        }
+    }
+
+    /**
+     * Stores records taken from the queue.
+     *
+     * @param <T> Record type.
+     */
+    @FunctionalInterface
+    public interface RecordWriter<T> {
+
+        /**
+         * Store a record. Called on a writer thread while holding the record
+         * lock for the key.
+         *
+         * @param key The record key.
+         * @param record The record to store.
+         * @throws IOException if the record could not be stored.
+         */
+        void write(String key, T record) throws IOException;
+    }
+
+    private static class PendingRecord<T> {
+
+        private final T record;
+        private final long bytes;
+
+        private PendingRecord(T record, long bytes) {
+            this.record = record;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -62,6 +62,7 @@ import de.mpg.biochem.mars.molecule.MoleculeArchive;
 import de.mpg.biochem.mars.molecule.MoleculeArchiveIndex;
 import de.mpg.biochem.mars.molecule.MoleculeArchiveProperties;
 import de.mpg.biochem.mars.molecule.MoleculeArchiveService;
+import de.mpg.biochem.mars.molecule.MoleculeQuery;
 import de.mpg.biochem.mars.table.MarsTable;
 import de.mpg.biochem.mars.util.LogBuilder;
 import de.mpg.biochem.mars.util.MarsPosition;
@@ -185,16 +186,11 @@ public class SingleChangePointFinder extends DynamicCommand implements Command,
 				tagList[i] = tagList[i].trim();
 			}
 
-			UIDs = archive.getMoleculeUIDs().stream().filter(UID -> {
-				boolean hasTags = true;
-				for (String s : tagList) {
-					if (!archive.moleculeHasTag(UID, s)) {
-						hasTags = false;
-						break;
-					}
-				}
-				return hasTags;
-			}).collect(toList());
+			MoleculeQuery query = MoleculeQuery.all();
+			for (String s : tagList)
+				query.withTag(s);
+
+			UIDs = archive.moleculeUIDs(query);
 		}
 		else if (include.equals("Untagged")) {
 			UIDs = archive.getMoleculeUIDs().stream().filter(
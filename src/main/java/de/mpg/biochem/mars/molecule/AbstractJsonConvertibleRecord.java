@@ -132,6 +132,10 @@ public abstract class AbstractJsonConvertibleRecord implements
 
 			if (inputMap.containsKey(fieldName)) {
 				jParser.nextToken();
+				if (!isFieldRequested(fieldName)) {
+					jParser.skipChildren();
+					continue;
+				}
 				if (!inputMap.get(fieldName).test(jParser)) throw new IOException(
 					"IOException: JsonParser encountered a problem reading from the input stream");
 				continue;
@@ -183,6 +187,19 @@ public abstract class AbstractJsonConvertibleRecord implements
 		return outputMap.get(field);
 	}
 
+	/**
+	 * Check whether a field is the last one written by toJSON.
+	 * 
+	 * @param field Json field.
+	 * @return true if no other field is written after the field given.
+	 */
+	protected boolean isLastJsonField(String field) {
+		String last = null;
+		for (String outputField : outputMap.keySet())
+			last = outputField;
+		return field.equals(last);
+	}
+
 	/**
 	 * Get the JsonParser for a field.
 	 * 
@@ -204,6 +221,19 @@ public abstract class AbstractJsonConvertibleRecord implements
 		return MarsUtil.dumpJSON(this::toJSON);
 	}
 
+	/**
+	 * Determines whether a field is decoded by {@link #fromJSON(JsonParser)
+	 * fromJSON}. Fields that are not requested are skipped without being
+	 * decoded. Subclasses can override this method to read only part of a
+	 * record.
+	 * 
+	 * @param field Json field.
+	 * @return True if the field should be decoded.
+	 */
+	protected boolean isFieldRequested(String field) {
+		return true;
+	}
+
 	/**
 	 * Must be implemented in subclasses to define how fields, objects, arrays
 	 * should be saved based on the Jackson streaming API.
@@ -89,6 +89,12 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 	private final LinkedHashMap<List<String>, MarsTable> segmentTables =
 		new LinkedHashMap<>();
 
+	/**
+	 * Projection used when this record was read. Null if the record was read in
+	 * full.
+	 */
+	private Projection projection;
+
 	/**
 	 * Constructor for creating an empty Molecule record.
 	 */
@@ -142,7 +148,8 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 				jGenerator.writeFieldName("table");
 				table.toJSON(jGenerator);
 			}
-		}, jParser -> table.fromJSON(jParser));
+		}, jParser -> table.fromJSON(jParser, (projection == null) ? null
+			: projection.getTableColumns()));
 
 		setJsonField("metadataUID", jGenerator -> {
 			if (metadataUID != null) jGenerator.writeStringField("metadataUID",
@@ -241,7 +248,8 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 		 * 
 		 */
 
-		setJsonField("DataTable", null, jParser -> table.fromJSON(jParser));
+		setJsonField("DataTable", null, jParser -> table.fromJSON(jParser,
+			(projection == null) ? null : projection.getTableColumns()));
 
 		setJsonField("MetadataUID", null, jParser -> metadataUID = jParser
 			.getText());
@@ -324,6 +332,7 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 			this.image = image;
 		}
 		else channel = -1;
+		if (parent != null) parent.index().updateMolecule(this);
 	}
 
 	/**
@@ -348,9 +357,7 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 	public void setChannel(int channel) {
 		if (channel > -1) {
 			this.channel = channel;
-			if (parent != null) {
-				parent.properties().addChannel(channel);
-			}
+			updateParent();
 		}
 	}
 
@@ -376,7 +383,7 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 	@Override
 	public void setParameter(String parameter, double value) {
 		super.setParameter(parameter, value);
-		if (parent != null) parent.properties().addParameter(parameter);
+		updateParentParameter(parameter);
 	}
 
 	/**
@@ -388,7 +395,7 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 	@Override
 	public void setParameter(String parameter, String value) {
 		super.setParameter(parameter, value);
-		if (parent != null) parent.properties().addParameter(parameter);
+		updateParentParameter(parameter);
 	}
 
 	/**
@@ -400,7 +407,27 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 	@Override
 	public void setParameter(String parameter, boolean value) {
 		super.setParameter(parameter, value);
-		if (parent != null) parent.properties().addParameter(parameter);
+		updateParentParameter(parameter);
+	}
+
+	/**
+	 * Remove a parameter.
+	 * 
+	 * @param parameter The name of the parameter to remove.
+	 */
+	@Override
+	public void removeParameter(String parameter) {
+		super.removeParameter(parameter);
+		updateParentParameter(parameter);
+	}
+
+	/**
+	 * Remove all parameters from the record.
+	 */
+	@Override
+	public void removeAllParameters() {
+		super.removeAllParameters();
+		updateParent();
 	}
 
 	/**
@@ -412,7 +439,27 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 	@Override
 	public void addTag(String tag) {
 		super.addTag(tag);
-		if (parent != null) parent.properties().addTag(tag);
+		updateParentTag(tag);
+	}
+
+	/**
+	 * Remove a tag from the record.
+	 * 
+	 * @param tag The string tag to remove.
+	 */
+	@Override
+	public void removeTag(String tag) {
+		super.removeTag(tag);
+		updateParentTag(tag);
+	}
+
+	/**
+	 * Remove all tags from the record.
+	 */
+	@Override
+	public void removeAllTags() {
+		super.removeAllTags();
+		updateParent();
 	}
 
 	/**
@@ -426,8 +473,27 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 	@Override
 	public void putRegion(MarsRegion regionOfInterest) {
 		super.putRegion(regionOfInterest);
-		if (parent != null) parent.properties().addRegion(regionOfInterest
-			.getName());
+		updateParent();
+	}
+
+	/**
+	 * Remove a {@link MarsRegion} from the record using the name.
+	 * 
+	 * @param name The name of the region to remove.
+	 */
+	@Override
+	public void removeRegion(String name) {
+		super.removeRegion(name);
+		updateParent();
+	}
+
+	/**
+	 * Remove all regions from the record.
+	 */
+	@Override
+	public void removeAllRegions() {
+		super.removeAllRegions();
+		updateParent();
 	}
 
 	/**
@@ -441,8 +507,27 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 	@Override
 	public void putPosition(MarsPosition positionOfInterest) {
 		super.putPosition(positionOfInterest);
-		if (parent != null) parent.properties().addPosition(positionOfInterest
-			.getName());
+		updateParent();
+	}
+
+	/**
+	 * Remove a {@link MarsPosition} from the record using the name.
+	 * 
+	 * @param name The name of the position to remove.
+	 */
+	@Override
+	public void removePosition(String name) {
+		super.removePosition(name);
+		updateParent();
+	}
+
+	/**
+	 * Remove all positions from the record.
+	 */
+	@Override
+	public void removeAllPositions() {
+		super.removeAllPositions();
+		updateParent();
 	}
 
 	/**
@@ -476,6 +561,69 @@ public abstract class AbstractMolecule extends AbstractMarsRecord implements
 	@Override
 	public void setMetadataUID(String metadataUID) {
 		this.metadataUID = metadataUID;
+		if (parent != null) parent.index().updateMolecule(this);
+	}
+
+	/**
+	 * Read the molecule record decoding only the fields included in the
+	 * {@link Projection} provided. All other fields are skipped.
+	 * 
+	 * @param jParser A JsonParser at the start of the molecule record Json.
+	 * @param projection The fields to decode.
+	 * @throws IOException Thrown if unable to read Json from the JsonParser
+	 *           stream.
+	 */
+	@Override
+	public void fromJSON(JsonParser jParser, Projection projection)
+		throws IOException
+	{
+		this.projection = projection;
+		fromJSON(jParser);
+	}
+
+	/**
+	 * Get the {@link Projection} used when this record was read.
+	 * 
+	 * @return The projection or null if the record was read in full.
+	 */
+	@Override
+	public Projection getProjection() {
+		return projection;
+	}
+
+	@Override
+	protected boolean isFieldRequested(String field) {
+		return projection == null || projection.includesJsonField(field);
+	}
+
+	/**
+	 * Brings the archive properties and index up to date after a change to
+	 * this molecule.
+	 */
+	private void updateParent() {
+		if (parent == null) return;
+		parent.properties().updateMoleculeProperties(this);
+		parent.index().updateMolecule(this);
+	}
+
+	/**
+	 * Brings the archive properties and the column of one parameter in the
+	 * index up to date after the parameter was set or removed.
+	 */
+	private void updateParentParameter(String parameter) {
+		if (parent == null) return;
+		parent.properties().updateMoleculeParameter(this, parameter);
+		parent.index().updateMoleculeParameter(this, parameter);
+	}
+
+	/**
+	 * Brings the archive properties and index up to date after a tag was added
+	 * or removed.
+	 */
+	private void updateParentTag(String tag) {
+		if (parent == null) return;
+		parent.properties().updateMoleculeTag(this, tag);
+		parent.index().updateMolecule(this);
 	}
 
 	/**
@@ -36,22 +36,32 @@ import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.format.DataFormatDetector;
 import com.fasterxml.jackson.core.format.DataFormatMatcher;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Striped;
 import de.mpg.biochem.mars.image.commands.MoleculeIntegratorMultiViewCommand;
 import de.mpg.biochem.mars.image.commands.PeakTrackerCommand;
 import de.mpg.biochem.mars.io.MoleculeArchiveFSSource;
 import de.mpg.biochem.mars.io.MoleculeArchiveIOFactory;
+import de.mpg.biochem.mars.io.MoleculeArchiveLazyYamaSource;
+import de.mpg.biochem.mars.io.MoleculeArchivePackedSource;
 import de.mpg.biochem.mars.io.MoleculeArchiveSource;
+import de.mpg.biochem.mars.io.WriteBehindQueue;
 import de.mpg.biochem.mars.kcp.commands.KCPCommand;
 import de.mpg.biochem.mars.kcp.commands.SigmaCalculatorCommand;
 import de.mpg.biochem.mars.metadata.MarsMetadata;
 import de.mpg.biochem.mars.molecule.commands.*;
 import de.mpg.biochem.mars.table.GroupIndices;
 import de.mpg.biochem.mars.table.MarsTable;
+import de.mpg.biochem.mars.table.MarsTableCodec;
 import de.mpg.biochem.mars.table.MarsTableService;
+import de.mpg.biochem.mars.util.MarsBitmap;
 import de.mpg.biochem.mars.util.MarsMath;
 import de.mpg.biochem.mars.util.MarsUtil;
 import ij.IJ;
+import org.apache.commons.io.IOUtils;
 import org.scijava.Context;
 import org.scijava.app.StatusService;
 import org.scijava.table.DoubleColumn;
@@ -59,9 +69,12 @@ import org.scijava.table.GenericColumn;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
@@ -172,10 +185,93 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	protected ConcurrentSkipListMap<String, M> moleculeMap;
 
 	/**
-	 * Map from molecule UID to ReentrantLock to ensure thread blocking when
-	 * accessing molecule files in virtual mode.
+	 * Number of lock stripes used for record locks.
 	 */
-	protected ConcurrentMap<String, ReentrantLock> recordLocks;
+	public static final int RECORD_LOCK_STRIPES = 1024;
+
+	/**
+	 * Index changes are journaled on save until the journal holds this many
+	 * entries, or INDEX_JOURNAL_FRACTION of the molecule count if that is
+	 * larger. Then the indexes file is written in full.
+	 */
+	public static final int MIN_INDEX_JOURNAL_LENGTH = 10000;
+
+	public static final double INDEX_JOURNAL_FRACTION = 0.1;
+
+	/**
+	 * Fixed-size table of ReentrantLocks hashed by record UID to ensure thread
+	 * blocking when accessing molecule and metadata files in virtual mode.
+	 * Records with different UIDs may share a lock, but the number of locks
+	 * does not grow with the number of records.
+	 */
+	protected Striped<Lock> recordLocks;
+
+	/**
+	 * Default maximum weight of the molecule cache used in virtual mode. The
+	 * weight of each record is the number of cells in its table. The cache is
+	 * disabled by default, so each retrieval returns a new record instance.
+	 */
+	public static final long DEFAULT_MOLECULE_CACHE_WEIGHT = 0;
+
+	/**
+	 * Bounded least-recently-used cache of decoded molecule records. Only used
+	 * in virtual mode to avoid reading and parsing the same record repeatedly.
+	 * Cached records are shared by all callers of {@link #get(String)}.
+	 */
+	protected Cache<String, M> moleculeCache;
+
+	/**
+	 * Maximum total weight of the records held in the molecule cache.
+	 */
+	protected long moleculeCacheMaximumWeight = DEFAULT_MOLECULE_CACHE_WEIGHT;
+
+	/**
+	 * Optional queue used in virtual mode to write molecule records on
+	 * dedicated writer threads. Null when records are written synchronously.
+	 */
+	protected volatile WriteBehindQueue<byte[]> writeBehindQueue;
+
+	/**
+	 * Optional executor used to encode molecule records in parallel when the
+	 * archive is written to a stream. Null when records are encoded on the
+	 * calling thread.
+	 */
+	protected volatile ExecutorService encodingExecutor;
+
+	/*
+	 * Incremented after every change to the set of molecule or metadata UIDs.
+	 * Used to decide when the ordered UID snapshots must be rebuilt.
+	 */
+	private final AtomicLong moleculeUIDsVersion = new AtomicLong();
+	private final AtomicLong metadataUIDsVersion = new AtomicLong();
+
+	/*
+	 * Ordered UID lists reused for positional access until the UID sets change.
+	 */
+	private volatile UIDSnapshot moleculeUIDSnapshot;
+	private volatile UIDSnapshot metadataUIDSnapshot;
+
+	/*
+	 * Records written to the virtual store since the indexes were last saved.
+	 * Their versions are read when the indexes are saved.
+	 */
+	private final Set<String> unversionedMoleculeUIDs = ConcurrentHashMap
+		.newKeySet();
+	private final Set<String> unversionedMetadataUIDs = ConcurrentHashMap
+		.newKeySet();
+
+	/*
+	 * Length of the complete batches in the index journal if the journal ends
+	 * with a damaged batch, otherwise -1. The damaged batch is cut off before
+	 * the next batch is appended.
+	 */
+	private long indexesJournalValidLength = -1;
+
+	/*
+	 * Set when the index journal may be missing changes because a write
+	 * failed. The indexes file is then written in full on the next save.
+	 */
+	private boolean indexesSnapshotRequired;
 
 	/**
 	 * Set to true if working from a virtual store.
@@ -187,6 +283,11 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	protected boolean smileEncoding = true;
 
+	/**
+	 * Codec used to compress molecule table columns when saving.
+	 */
+	protected volatile MarsTableCodec tableCodec = MarsTableCodec.GZIP;
+
 	/**
 	 * Constructor for creating an empty MoleculeArchive.
 	 * 
@@ -357,7 +458,193 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		archiveProperties = createProperties();
 		archiveProperties.setParent(this);
 
-		recordLocks = new ConcurrentHashMap<>();
+		// Replaced by the stored index when a virtual store is opened.
+		archiveIndex = createIndex();
+
+		recordLocks = Striped.lock(RECORD_LOCK_STRIPES);
+
+		moleculeCache = buildMoleculeCache(moleculeCacheMaximumWeight);
+	}
+
+	/**
+	 * Get the lock guarding reads and writes of the record with the UID given.
+	 *
+	 * @param UID The UID of the molecule or metadata record.
+	 * @return The lock for the record.
+	 */
+	protected Lock recordLock(String UID) {
+		return recordLocks.get(UID);
+	}
+
+	private Cache<String, M> buildMoleculeCache(long maximumWeight) {
+		return CacheBuilder.newBuilder().maximumWeight(maximumWeight).weigher(
+			(String UID, M molecule) -> moleculeCacheWeight(molecule)).recordStats()
+			.build();
+	}
+
+	private static int moleculeCacheWeight(Molecule molecule) {
+		MarsTable table = molecule.getTable();
+		if (table == null) return 1;
+		long cells = (long) table.getRowCount() * table.getColumnCount();
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(1, cells));
+	}
+
+	/**
+	 * Set the maximum total weight of the molecule cache used in virtual mode.
+	 * The weight of each record is the number of cells in its table. The cache
+	 * is cleared when this method is called. A weight of 0 disables caching,
+	 * which is the default.
+	 * <p>
+	 * While the cache is enabled, {@link #get(String)} returns the same
+	 * instance to every caller until the record is evicted. Changes made to
+	 * that instance are seen by other callers before the record is put back,
+	 * and are lost if the record is evicted first. Call
+	 * {@link #put(Molecule)} to save changes and do not modify records that
+	 * are read on several threads at once.
+	 * </p>
+	 *
+	 * @param maximumWeight The maximum total weight of cached records.
+	 */
+	public void setMoleculeCacheMaximumWeight(long maximumWeight) {
+		this.moleculeCacheMaximumWeight = maximumWeight;
+		moleculeCache.invalidateAll();
+		moleculeCache = buildMoleculeCache(maximumWeight);
+	}
+
+	/**
+	 * Get the maximum total weight of the molecule cache used in virtual mode.
+	 *
+	 * @return The maximum total weight of cached records.
+	 */
+	public long getMoleculeCacheMaximumWeight() {
+		return moleculeCacheMaximumWeight;
+	}
+
+	/**
+	 * Number of molecule record retrievals served from the cache in virtual
+	 * mode.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public long getMoleculeCacheHitCount() {
+		return moleculeCache.stats().hitCount();
+	}
+
+	/**
+	 * Number of molecule record retrievals that required reading the record
+	 * from the source in virtual mode.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public long getMoleculeCacheMissCount() {
+		return moleculeCache.stats().missCount();
+	}
+
+	/**
+	 * Remove all molecule records from the cache used in virtual mode.
+	 */
+	public void clearMoleculeCache() {
+		moleculeCache.invalidateAll();
+	}
+
+	/**
+	 * Activate write-behind mode for virtual archives. Molecule records passed
+	 * to {@link #put(Molecule)} are encoded on the calling thread, queued and
+	 * written to the source by dedicated writer threads, so the calling thread
+	 * is not blocked by file or network IO. Since the encoded copy is queued,
+	 * the molecule can be changed again as soon as put returns. Repeated puts
+	 * of the same UID before it has been written are coalesced into one write.
+	 * When the size of queued records exceeds the memory budget, put blocks
+	 * until writers catch up. Pending records are written by {@link #flush()},
+	 * {@link #save()} and {@link #close()}. Has no effect for archives that are
+	 * not virtual.
+	 *
+	 * @param writerThreads Number of writer threads.
+	 * @param memoryBudget Bytes of encoded records queued above which put
+	 *          blocks.
+	 * @throws IOException if records queued by an earlier write-behind
+	 *           configuration could not be written.
+	 */
+	public void enableWriteBehind(int writerThreads, long memoryBudget)
+		throws IOException
+	{
+		if (!virtual) return;
+		disableWriteBehind();
+		writeBehindQueue = new WriteBehindQueue<>(writerThreads, memoryBudget,
+			bytes -> bytes.length, this::recordLock, this::saveMoleculeToSource);
+	}
+
+	/**
+	 * Write all queued records and return to synchronous writes.
+	 *
+	 * @throws IOException if any queued record could not be written.
+	 */
+	public void disableWriteBehind() throws IOException {
+		WriteBehindQueue<byte[]> queue = writeBehindQueue;
+		if (queue == null) return;
+		writeBehindQueue = null;
+		queue.close();
+	}
+
+	/**
+	 * True if molecule records are written by the write-behind queue.
+	 *
+	 * @return A boolean which is true if write-behind mode is active.
+	 */
+	public boolean isWriteBehind() {
+		return writeBehindQueue != null;
+	}
+
+	/**
+	 * Encode molecule records on the executor given when the archive is
+	 * written to a file or stream, for example by {@link #saveAs(File)}.
+	 * Records are still written in order. Off by default. Smile records
+	 * encoded this way cannot use the shared field names of the file, so Smile
+	 * files grow by a few hundred bytes per molecule record. JSON output is
+	 * unchanged. The executor is not shut down by the archive.
+	 *
+	 * @param executor The executor to encode records on or null to encode them
+	 *          on the calling thread.
+	 */
+	public void setEncodingExecutor(ExecutorService executor) {
+		this.encodingExecutor = executor;
+	}
+
+	/**
+	 * Get the executor used to encode molecule records in parallel.
+	 *
+	 * @return The executor or null if records are encoded on the calling
+	 *         thread.
+	 */
+	public ExecutorService getEncodingExecutor() {
+		return encodingExecutor;
+	}
+
+	/**
+	 * Blocks until all molecule records queued for writing in write-behind mode
+	 * have been written to the source, then commits them with
+	 * {@link MoleculeArchiveSource#sync()}.
+	 *
+	 * @throws IOException if any queued record could not be written.
+	 */
+	@Override
+	public void flush() throws IOException {
+		WriteBehindQueue<byte[]> queue = writeBehindQueue;
+		if (queue != null) queue.flush();
+		if (virtual && source != null) source.sync();
+	}
+
+	/**
+	 * Writes all queued molecule records and stops the write-behind writer
+	 * threads. The archive can still be used afterwards with synchronous
+	 * writes.
+	 *
+	 * @throws IOException if any queued record could not be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		disableWriteBehind();
+		if (source != null) source.close();
 	}
 
 	protected JsonParser detectEncoding(InputStream inputStream)
@@ -390,32 +677,236 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	protected void loadVirtualStore(MoleculeArchiveSource virtualSource) throws
 			IOException
 	{
+		if (virtualSource instanceof MoleculeArchiveLazyYamaSource) {
+			loadLazily((MoleculeArchiveLazyYamaSource) virtualSource);
+			return;
+		}
 
-		InputStream propertiesInputStream = new BufferedInputStream(virtualSource.getPropertiesInputStream());
-		JsonParser propertiesJParser = detectEncoding(propertiesInputStream);
-
-		archiveProperties.fromJSON(propertiesJParser);
-		propertiesJParser.close();
-		propertiesInputStream.close();
+		try (InputStream propertiesInputStream = new BufferedInputStream(
+			virtualSource.getPropertiesInputStream());
+				JsonParser propertiesJParser = detectEncoding(propertiesInputStream))
+		{
+			archiveProperties.fromJSON(propertiesJParser);
+		}
 
 		InputStream indexInputStream = virtualSource.getIndexesInputStream();
 
 		if (indexInputStream != null) {
-			InputStream bufferedIndexInputStream = new BufferedInputStream(indexInputStream);
-			JsonParser indexJParser = jFactory.createParser(bufferedIndexInputStream);
-
-			archiveIndex = createIndex(indexJParser);
+			try (InputStream bufferedIndexInputStream = new BufferedInputStream(
+				indexInputStream); JsonParser indexJParser = jFactory.createParser(
+					bufferedIndexInputStream))
+			{
+				archiveIndex = createIndex(indexJParser);
+			}
 
-			indexJParser.close();
-			bufferedIndexInputStream.close();
-			indexInputStream.close();
+			readIndexesJournal(virtualSource);
+			moleculeUIDsChanged();
+			metadataUIDsChanged();
 		}
 		else {
 			rebuildIndexes();
 		}
 	}
 
+	/**
+	 * Scan a .yama file and record the location of each molecule record without
+	 * keeping the records in memory. Indexes are built from the records while
+	 * scanning. Properties and metadata records are loaded as usual.
+	 *
+	 * @param lazySource The source to scan.
+	 * @throws IOException if the file cannot be read lazily.
+	 */
+	protected void loadLazily(MoleculeArchiveLazyYamaSource lazySource)
+		throws IOException
+	{
+		archiveProperties = createProperties();
+		archiveProperties.setParent(this);
+		archiveIndex = createIndex();
+		metadataMap.clear();
+		moleculeCache.invalidateAll();
+
+		lazySource.scan(new MoleculeArchiveLazyYamaSource.RecordReader() {
+
+			@Override
+			public void readProperties(JsonParser jParser) throws IOException {
+				archiveProperties.fromJSON(jParser);
+			}
+
+			@Override
+			public String readMetadata(JsonParser jParser) throws IOException {
+				I metadata = createMetadata(jParser);
+				metadata.setParent(AbstractMoleculeArchive.this);
+				metadataMap.put(metadata.getUID(), metadata);
+				archiveIndex.addMetadata(metadata);
+				return metadata.getUID();
+			}
+
+			@Override
+			public String readMolecule(JsonParser jParser) throws IOException {
+				// Only used to index the record, tables are skipped.
+				M molecule = createMolecule(jParser);
+				archiveIndex.addMolecule(molecule);
+				return molecule.getUID();
+			}
+		});
+
+		smileEncoding = lazySource.isSmileEncoded();
+		jFactory = (smileEncoding) ? new SmileFactory() : new JsonFactory();
+
+		moleculeUIDsChanged();
+		metadataUIDsChanged();
+
+		properties().setNumberOfMolecules(archiveIndex.getMoleculeUIDSet().size());
+		properties().setNumberOfMetadatas(archiveIndex.getMetadataUIDSet().size());
+	}
+
+	/**
+	 * Smallest .yama file that is loaded in parallel. Smaller files load faster
+	 * in a single pass than with a scan followed by parallel decoding.
+	 */
+	protected static final long PARALLEL_LOAD_MIN_FILE_SIZE = 4 << 20;
+
+	/**
+	 * Load a .yama file by first locating the molecule records and then
+	 * decoding them in parallel using the number of threads given. Whether the
+	 * records can be decoded on their own is decided once from the file header
+	 * and the scan. Returns false without loading any records if they cannot,
+	 * so the caller can fall back to a sequential load.
+	 *
+	 * @param file The .yama file to load.
+	 * @param nThreads The thread count.
+	 * @return true if the archive was loaded.
+	 * @throws IOException if something goes wrong reading the records.
+	 */
+	protected boolean loadInParallel(File file, final int nThreads)
+		throws IOException
+	{
+		MoleculeArchiveLazyYamaSource yamaSource =
+			new MoleculeArchiveLazyYamaSource(file);
+		try {
+			yamaSource.scan(new MoleculeArchiveLazyYamaSource.RecordReader() {
+
+				@Override
+				public void readProperties(JsonParser jParser) throws IOException {
+					archiveProperties.fromJSON(jParser);
+				}
+
+				@Override
+				public String readMetadata(JsonParser jParser) throws IOException {
+					I metadata = createMetadata(jParser);
+					putMetadata(metadata);
+					return metadata.getUID();
+				}
+
+				@Override
+				public String readMolecule(JsonParser jParser) throws IOException {
+					// Only the UID is needed to locate the record.
+					String UID = null;
+					int depth = 1;
+					while (depth > 0) {
+						JsonToken token = jParser.nextToken();
+						if (token == null) throw new IOException(
+							"Unexpected end of molecule record.");
+						if (token.isStructStart()) depth++;
+						else if (token.isStructEnd()) depth--;
+						else if (token == JsonToken.FIELD_NAME && depth == 1 && (jParser
+							.getCurrentName().equals("uid") || jParser.getCurrentName()
+								.equals("UID")))
+						{
+							jParser.nextToken();
+							UID = jParser.getText();
+						}
+					}
+					if (UID == null) throw new IOException(
+						"Molecule record without a UID.");
+					return UID;
+				}
+			});
+		}
+		catch (IOException e) {
+			// Start over with a sequential load.
+			yamaSource.close();
+			clearForSequentialLoad();
+			logSequentialLoad(file, e.getMessage());
+			return false;
+		}
+
+		if (!yamaSource.canDecodeIndependently()) {
+			yamaSource.close();
+			clearForSequentialLoad();
+			logSequentialLoad(file,
+				"the Smile shared name table is cleared within the file.");
+			return false;
+		}
+		yamaSource.setVerifyRecords(false);
+
+		smileEncoding = yamaSource.isSmileEncoded();
+		jFactory = (smileEncoding) ? new SmileFactory() : new JsonFactory();
+
+		ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
+		try {
+			forkJoinPool.submit(() -> yamaSource.getMoleculeUIDs().parallelStream()
+				.forEach(UID -> {
+					try (InputStream inputStream = yamaSource.getMoleculeInputStream(
+						UID); JsonParser jParser = jFactory.createParser(inputStream))
+					{
+						put(createMolecule(jParser));
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				})).get();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		}
+		catch (ExecutionException | RuntimeException e) {
+			// Start over with a sequential load, which reports errors in the file.
+			clearForSequentialLoad();
+			Throwable cause = (e instanceof ExecutionException) ? e.getCause() : e;
+			logSequentialLoad(file, String.valueOf(cause.getMessage()));
+			return false;
+		}
+		finally {
+			forkJoinPool.shutdown();
+			yamaSource.close();
+		}
+
+		return true;
+	}
+
+	private void logSequentialLoad(File file, String reason) {
+		String message = "Loading " + file.getName() +
+			" sequentially because it cannot be loaded in parallel: " + reason;
+		if (getWindow() != null) getWindow().logln(message);
+		else System.err.println(message);
+	}
+
+	/*
+	 * Discards everything read by an incomplete parallel load.
+	 */
+	private void clearForSequentialLoad() {
+		archiveProperties = createProperties();
+		archiveProperties.setParent(this);
+		archiveIndex = createIndex();
+		metadataMap.clear();
+		moleculeMap.clear();
+		moleculeCache.invalidateAll();
+		moleculeUIDsChanged();
+		metadataUIDsChanged();
+	}
+
 	protected void load(MoleculeArchiveSource source) throws IOException {
+		File file = (source instanceof MoleculeArchiveFSSource) ? new File(source
+			.getPath()) : null;
+		if (file != null && file.isFile() && file
+			.length() >= PARALLEL_LOAD_MIN_FILE_SIZE && loadInParallel(file, Runtime
+				.getRuntime().availableProcessors()))
+		{
+			rebuildIndexes();
+			return;
+		}
+
 		InputStream inputStream = source.getInputStream();
 		JsonParser jParser = detectEncoding(inputStream);
 
@@ -501,13 +992,22 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	@Override
 	public void rebuildIndexes(final int nThreads) throws IOException {
+		flush();
 		properties().clear();
 
 		ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
 
 		if (virtual) {
+			// Records are reread from the source so cached copies may be stale.
+			moleculeCache.invalidateAll();
+
 			MoleculeArchiveIndex<M, I> newIndex = createIndex();
 
+			// Versions are listed before the records are read so a record changed
+			// during the rebuild is read again by the next updateIndexes.
+			Map<String, String> versions = source.getMoleculeVersions();
+			Map<String, String> metadataVersions = source.getMetadataVersions();
+
 			List<String> moleculeUIDs = source.getMoleculeUIDs();
 			newIndex.getMoleculeUIDSet().addAll(moleculeUIDs);
 
@@ -519,6 +1019,8 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 					.forEach(UID -> {
 						M molecule = get(UID);
 						newIndex.addMolecule(molecule);
+						if (versions != null) newIndex.setMoleculeVersion(UID, versions.get(
+							UID));
 						properties().addMoleculeProperties(molecule);
 					})).get();
 
@@ -526,6 +1028,8 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 					.forEach(metaUID -> {
 						I metadata = getMetadata(metaUID);
 						newIndex.addMetadata(metadata);
+						if (metadataVersions != null) newIndex.setMetadataVersion(metaUID,
+							metadataVersions.get(metaUID));
 						properties().addMetadataProperties(metadata);
 					})).get();
 			}
@@ -537,24 +1041,32 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 			}
 
 			this.archiveIndex = newIndex;
+			unversionedMoleculeUIDs.clear();
+			unversionedMetadataUIDs.clear();
+			moleculeUIDsChanged();
+			metadataUIDsChanged();
 
 			properties().setNumberOfMolecules(newIndex.getMoleculeUIDSet().size());
 			properties().setNumberOfMetadatas(newIndex.getMetadataUIDSet().size());
 
-			MarsUtil.writeJsonRecord(archiveIndex, source.getIndexesOutputStream(), jFactory);
+			writeIndexes(false);
 			MarsUtil.writeJsonRecord(properties(), source.getPropertiesOutputStream(), jFactory);
 		}
 		else {
+			MoleculeArchiveIndex<M, I> newIndex = createIndex();
+
 			try {
 				forkJoinPool.submit(() -> moleculeMap.keySet().parallelStream().forEach(
 					UID -> {
 						M molecule = get(UID);
+						newIndex.addMolecule(molecule);
 						properties().addMoleculeProperties(molecule);
 					})).get();
 
 				forkJoinPool.submit(() -> metadataMap.keySet().parallelStream().forEach(
 					metaUID -> {
 						I metadata = getMetadata(metaUID);
+						newIndex.addMetadata(metadata);
 						properties().addMetadataProperties(metadata);
 					})).get();
 
@@ -566,11 +1078,237 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 				forkJoinPool.shutdown();
 			}
 
+			this.archiveIndex = newIndex;
+
 			properties().setNumberOfMolecules(moleculeMap.size());
 			properties().setNumberOfMetadatas(metadataMap.size());
 		}
 	}
 
+	/**
+	 * Update the indexes of a virtual store by reading only the molecule and
+	 * metadata records that were added or changed since the indexes were last
+	 * written. Entries
+	 * for records that no longer exist are removed. Records are compared using
+	 * the versions provided by the {@link MoleculeArchiveSource}. Falls back to
+	 * {@link #rebuildIndexes()} if the source does not provide versions or the
+	 * archive is not virtual.
+	 * 
+	 * @throws IOException if something goes wrong saving the indexes.
+	 */
+	@Override
+	public void updateIndexes() throws IOException {
+		updateIndexes(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Update the indexes of a virtual store by reading only the molecule and
+	 * metadata records that were added or changed since the indexes were last
+	 * written. Use the number of threads specified.
+	 * 
+	 * @param nThreads The thread count.
+	 * @throws IOException if something goes wrong saving the indexes.
+	 */
+	@Override
+	public void updateIndexes(final int nThreads) throws IOException {
+		if (!virtual) {
+			rebuildIndexes(nThreads);
+			return;
+		}
+
+		flush();
+		Map<String, String> versions = source.getMoleculeVersions();
+		if (versions == null) {
+			rebuildIndexes(nThreads);
+			return;
+		}
+
+		for (String UID : new ArrayList<>(archiveIndex.getMoleculeUIDSet())) {
+			if (versions.containsKey(UID)) continue;
+			moleculeCache.invalidate(UID);
+			archiveIndex.removeMolecule(UID);
+			properties().removeMoleculeProperties(UID);
+		}
+
+		List<String> changedUIDs = versions.keySet().stream().filter(
+			UID -> !versions.get(UID).equals(archiveIndex.getMoleculeVersion(UID)))
+			.collect(toList());
+
+		Map<String, String> metadataVersions = source.getMetadataVersions();
+		Set<String> metadataUIDs = (metadataVersions != null) ? metadataVersions
+			.keySet() : new HashSet<>(source.getMetadataUIDs());
+		for (String metaUID : new ArrayList<>(archiveIndex.getMetadataUIDSet()))
+			if (!metadataUIDs.contains(metaUID)) {
+				archiveIndex.removeMetadata(metaUID);
+				metadataMap.remove(metaUID);
+			}
+
+		// All metadata records are read again if the source has no versions.
+		List<String> changedMetadataUIDs = metadataUIDs.stream().filter(
+			metaUID -> metadataVersions == null || !metadataVersions.get(metaUID)
+				.equals(archiveIndex.getMetadataVersion(metaUID))).collect(toList());
+
+		ForkJoinPool forkJoinPool = new ForkJoinPool(nThreads);
+		try {
+			forkJoinPool.submit(() -> changedUIDs.parallelStream().forEach(UID -> {
+				moleculeCache.invalidate(UID);
+				M molecule = get(UID, false);
+				if (molecule == null) return;
+				archiveIndex.addMolecule(molecule);
+				archiveIndex.setMoleculeVersion(UID, versions.get(UID));
+				properties().addMoleculeProperties(molecule);
+			})).get();
+
+			forkJoinPool.submit(() -> changedMetadataUIDs.parallelStream().forEach(
+				metaUID -> {
+					// Read the stored record rather than the copy in memory.
+					if (metadataVersions != null) metadataMap.remove(metaUID);
+					I metadata = getMetadata(metaUID);
+					if (metadata == null) return;
+					archiveIndex.addMetadata(metadata);
+					if (metadataVersions != null) archiveIndex.setMetadataVersion(
+						metaUID, metadataVersions.get(metaUID));
+					properties().addMetadataProperties(metadata);
+				})).get();
+		}
+		catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+		finally {
+			forkJoinPool.shutdown();
+		}
+
+		moleculeUIDsChanged();
+		metadataUIDsChanged();
+
+		properties().setNumberOfMolecules(getNumberOfMolecules());
+		properties().setNumberOfMetadatas(getNumberOfMetadatas());
+
+		writeIndexes(false);
+		MarsUtil.writeJsonRecord(properties(), source.getPropertiesOutputStream(), jFactory);
+	}
+
+	/*
+	 * Records put since the indexes were last saved have no record version.
+	 * The versions of only those records are read from the source when the
+	 * indexes are saved so the next updateIndexes does not read them again. A
+	 * record rewritten after its version was read keeps a version that no
+	 * longer matches and is read again, which is safe.
+	 */
+	private void recordVersions() throws IOException {
+		if (!unversionedMoleculeUIDs.isEmpty()) {
+			List<String> UIDs = new ArrayList<>(unversionedMoleculeUIDs);
+			unversionedMoleculeUIDs.removeAll(UIDs);
+			Map<String, String> versions = source.getMoleculeVersions(UIDs);
+			if (versions != null) for (String UID : UIDs)
+				if (archiveIndex.getMoleculeVersion(UID) == null) archiveIndex
+					.setMoleculeVersion(UID, versions.get(UID));
+		}
+
+		if (!unversionedMetadataUIDs.isEmpty()) {
+			List<String> metaUIDs = new ArrayList<>(unversionedMetadataUIDs);
+			unversionedMetadataUIDs.removeAll(metaUIDs);
+			Map<String, String> versions = source.getMetadataVersions(metaUIDs);
+			if (versions != null) for (String metaUID : metaUIDs)
+				if (archiveIndex.getMetadataVersion(metaUID) == null) archiveIndex
+					.setMetadataVersion(metaUID, versions.get(metaUID));
+		}
+	}
+
+	/**
+	 * Write the index of a virtual store. Changes are appended to the index
+	 * journal if allowed and the journal is short enough. Otherwise the
+	 * indexes file is written in full and the journal is removed.
+	 *
+	 * @param journal true to write changes to the journal if possible.
+	 * @throws IOException if the index cannot be written.
+	 */
+	private void writeIndexes(boolean journal) throws IOException {
+		int journalLimit = Math.max(MIN_INDEX_JOURNAL_LENGTH,
+			(int) (INDEX_JOURNAL_FRACTION * archiveIndex.getMoleculeUIDSet().size()));
+		journal = journal && !indexesSnapshotRequired && archiveIndex
+			.getJournalLength() + archiveIndex.getNumberOfChanges() <= journalLimit;
+
+		if (journal && indexesJournalValidLength >= 0) {
+			journal = source.truncateIndexesJournal(indexesJournalValidLength);
+			if (journal) indexesJournalValidLength = -1;
+		}
+
+		OutputStream journalStream = (journal) ? source
+			.getIndexesJournalOutputStream() : null;
+
+		if (journalStream != null) {
+			if (archiveIndex.getNumberOfChanges() == 0) {
+				journalStream.close();
+				return;
+			}
+			// The changes are taken from the index when the batch is written, so
+			// if appending fails they are only saved by writing the indexes in
+			// full on the next save.
+			indexesSnapshotRequired = true;
+
+			// Each batch is written with its length so a batch cut short by a
+			// crash can be recognized and skipped.
+			ByteArrayOutputStream batch = new ByteArrayOutputStream();
+			JsonGenerator jGenerator = jFactory.createGenerator(batch);
+			archiveIndex.writeJournal(jGenerator);
+			jGenerator.close();
+
+			try (DataOutputStream dataStream = new DataOutputStream(
+				new BufferedOutputStream(journalStream)))
+			{
+				dataStream.writeInt(batch.size());
+				batch.writeTo(dataStream);
+			}
+			indexesSnapshotRequired = false;
+		}
+		else {
+			indexesSnapshotRequired = true;
+			archiveIndex.clearJournal();
+			MarsUtil.writeJsonRecord(archiveIndex, source.getIndexesOutputStream(),
+				jFactory);
+			source.removeIndexesJournal();
+			indexesJournalValidLength = -1;
+			indexesSnapshotRequired = false;
+		}
+	}
+
+	/*
+	 * Applies the batches in the index journal of the source to the index.
+	 */
+	private void readIndexesJournal(MoleculeArchiveSource virtualSource)
+		throws IOException
+	{
+		byte[] journal;
+		try (InputStream journalStream = virtualSource
+			.getIndexesJournalInputStream())
+		{
+			if (journalStream == null) return;
+			journal = IOUtils.toByteArray(journalStream);
+		}
+
+		// Replay stops at the first batch that was cut short or whose length
+		// prefix is damaged. That batch and anything after it are dropped
+		// before the next batch is appended.
+		int position = 0;
+		while (journal.length - position >= 4) {
+			int length = ((journal[position] & 0xFF) << 24) |
+				((journal[position + 1] & 0xFF) << 16) |
+				((journal[position + 2] & 0xFF) << 8) | (journal[position + 3] & 0xFF);
+			if (length <= 0 || length > journal.length - position - 4) break;
+			try (JsonParser jParser = jFactory.createParser(journal, position + 4,
+				length))
+			{
+				archiveIndex.readJournal(jParser);
+			}
+			catch (IOException e) {
+				break;
+			}
+			position += 4 + length;
+		}
+		indexesJournalValidLength = (position < journal.length) ? position : -1;
+	}
+
 	/**
 	 * Saves the MoleculeArchive to the file from which it was opened.
 	 * 
@@ -578,9 +1316,30 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	@Override
 	public void save() throws IOException {
-		if (virtual) {
+		if (source instanceof MoleculeArchiveLazyYamaSource) {
+			// The complete file is rewritten and scanned again.
+			flush();
+			MoleculeArchiveLazyYamaSource lazySource =
+				(MoleculeArchiveLazyYamaSource) source;
+			File file = new File(lazySource.getPath());
+			File tempFile = File.createTempFile(file.getName(), ".tmp", file
+				.getAbsoluteFile().getParentFile());
+			try {
+				MarsUtil.writeJsonRecord(this, tempFile, jFactory);
+				lazySource.close();
+				Files.move(tempFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			}
+			finally {
+				Files.deleteIfExists(tempFile.toPath());
+			}
+			loadLazily(lazySource);
+		}
+		else if (virtual) {
+			flush();
+			recordVersions();
 			MarsUtil.writeJsonRecord(properties(),source.getPropertiesOutputStream(), jFactory);
-			MarsUtil.writeJsonRecord(archiveIndex, source.getIndexesOutputStream(), jFactory);
+			writeIndexes(true);
 		}
 		else if (smileEncoding) MarsUtil.writeJsonRecord(this, source.getOutputStream(), new SmileFactory());
 		else MarsUtil.writeJsonRecord(this, source.getOutputStream(), new JsonFactory());
@@ -664,16 +1423,24 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 				getNumberOfMolecules() + " molecule records...");
 			if (getNumberOfMolecules() > 0) {
 				jGenerator.writeArrayFieldStart("molecules");
-				Iterator<String> iterator = (virtual) ? archiveIndex.getMoleculeUIDSet()
-					.iterator() : moleculeMap.keySet().iterator();
-				double count = 0;
-				double moleculeNumber = getNumberOfMolecules();
-				while (iterator.hasNext()) {
-					Molecule molecule = get(iterator.next());
-					molecule.toJSON(jGenerator);
-					count++;
-					if (getWindow() != null) getWindow().setProgress(count /
-						moleculeNumber);
+				List<String> UIDs = (virtual) ? new ArrayList<>(archiveIndex
+					.getMoleculeUIDSet()) : new ArrayList<>(moleculeMap.keySet());
+				// Records encoded apart from the generator are only safe to append
+				// if the generator writes no field names after them.
+				ExecutorService executor = encodingExecutor;
+				if (executor != null && jGenerator
+					.getOutputTarget() instanceof OutputStream && isLastJsonField(
+						"molecules")) writeMoleculesInParallel(jGenerator, UIDs, executor);
+				else {
+					double count = 0;
+					double moleculeNumber = UIDs.size();
+					for (String UID : UIDs) {
+						Molecule molecule = get(UID);
+						writeMolecule(molecule, jGenerator);
+						count++;
+						if (getWindow() != null) getWindow().setProgress(count /
+							moleculeNumber);
+					}
 				}
 				jGenerator.writeEndArray();
 			}
@@ -729,6 +1496,83 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		});
 	}
 
+	/**
+	 * Write the molecule records with the UIDs given as elements of the array
+	 * the generator is in. Records are encoded on the executor into pooled
+	 * buffers and appended to the output in the order given. Smile records are
+	 * encoded without shared names so they can be appended as they are. The
+	 * generator does not see these names, so this is only used when
+	 * "molecules" is the last field written.
+	 * <p>
+	 * Without shared names every field name is written in full instead of as
+	 * a one or two byte back-reference, which adds about the length of the
+	 * name for each field written. A molecule record with a four column table
+	 * writes about 40 field names, so Smile files grow by a few hundred bytes
+	 * per molecule record. JSON output is identical to the sequential writer.
+	 * </p>
+	 *
+	 * @param jGenerator The generator, which must write to an OutputStream.
+	 * @param UIDs The UIDs of the molecule records to write.
+	 * @param executor The executor to encode records on.
+	 * @throws IOException if a record cannot be written.
+	 */
+	private void writeMoleculesInParallel(JsonGenerator jGenerator,
+		List<String> UIDs, ExecutorService executor) throws IOException
+	{
+		final boolean smile = jGenerator instanceof SmileGenerator;
+		final JsonFactory recordFactory = (smile) ? new SmileFactory().disable(
+			SmileGenerator.Feature.WRITE_HEADER).disable(
+				SmileGenerator.Feature.CHECK_SHARED_NAMES) : new JsonFactory();
+
+		// Bounds the number of encoded records held in memory.
+		final int window = Runtime.getRuntime().availableProcessors() * 2;
+		final BlockingQueue<ByteArrayOutputStream> buffers =
+			new ArrayBlockingQueue<>(window);
+		for (int i = 0; i < window; i++)
+			buffers.add(new ByteArrayOutputStream());
+
+		jGenerator.flush();
+		OutputStream outputStream = (OutputStream) jGenerator.getOutputTarget();
+
+		ArrayDeque<Future<ByteArrayOutputStream>> pending = new ArrayDeque<>();
+		try {
+			int next = 0;
+			for (int written = 0; written < UIDs.size(); written++) {
+				while (next < UIDs.size() && pending.size() < window) {
+					String UID = UIDs.get(next++);
+					pending.add(executor.submit(() -> {
+						ByteArrayOutputStream buffer = buffers.take();
+						try (JsonGenerator recordGenerator = recordFactory
+							.createGenerator(buffer))
+						{
+							writeMolecule(get(UID), recordGenerator);
+						}
+						return buffer;
+					}));
+				}
+
+				ByteArrayOutputStream buffer = pending.remove().get();
+				if (!smile && written > 0) outputStream.write(',');
+				buffer.writeTo(outputStream);
+				buffer.reset();
+				buffers.add(buffer);
+
+				if (getWindow() != null) getWindow().setProgress((double) (written +
+					1) / UIDs.size());
+			}
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Could not write molecule record.", e.getCause());
+		}
+		finally {
+			for (Future<ByteArrayOutputStream> future : pending)
+				future.cancel(true);
+		}
+	}
+
 	/**
 	 * Creates the directory given and a virtual store inside with all files in
 	 * json format with .json file extension. Indexes are rebuilt while saving
@@ -874,6 +1718,51 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		return virtualDirectory;
 	}
 
+	/**
+	 * Creates the directory given and a virtual store inside that keeps all
+	 * molecule and metadata records in a few large pack files in smile format.
+	 * Indexes are rebuilt while saving if the archive was loaded from a virtual
+	 * store.
+	 *
+	 * @param virtualDirectory a directory destination for the virtual store.
+	 * @throws IOException if something goes wrong creating the virtual store.
+	 */
+	@Override
+	public File saveAsPackedVirtualStore(File virtualDirectory)
+		throws IOException
+	{
+		return saveAsPackedVirtualStore(virtualDirectory, Runtime.getRuntime()
+			.availableProcessors());
+	}
+
+	/**
+	 * Creates the directory given and a virtual store inside that keeps all
+	 * molecule and metadata records in a few large pack files in smile format.
+	 * Indexes are rebuilt while saving if the archive was loaded from a virtual
+	 * store.
+	 *
+	 * @param virtualDirectory a directory destination for the virtual store.
+	 * @param nThreads The thread count.
+	 * @throws IOException if something goes wrong creating the virtual store.
+	 */
+	@Override
+	public File saveAsPackedVirtualStore(File virtualDirectory,
+		final int nThreads) throws IOException
+	{
+		virtualDirectory = ArchiveUtils.storeFileExtensionFixer(virtualDirectory);
+
+		MoleculeArchivePackedSource packedSource = new MoleculeArchiveIOFactory()
+			.openPackedSource(virtualDirectory);
+		try {
+			saveAsVirtualStore(packedSource, new SmileFactory(), ".sml", nThreads);
+		}
+		finally {
+			packedSource.close();
+		}
+
+		return virtualDirectory;
+	}
+
 	private void saveAsVirtualStore(File virtualDirectory, JsonFactory jFactory,
 									String fileExtension, final int nThreads) throws IOException
 	{
@@ -923,6 +1812,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		}
 
 		MarsUtil.writeJsonRecord(newIndex, newVirtualSource.getIndexesOutputStream(), jFactory);
+		newVirtualSource.removeIndexesJournal();
 		MarsUtil.writeJsonRecord(properties(), newVirtualSource.getPropertiesOutputStream(), jFactory);
 	}
 
@@ -935,19 +1825,48 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	@Override
 	public void put(M molecule) {
+		if (molecule.getProjection() != null) throw new IllegalArgumentException(
+			"Molecule " + molecule.getUID() + " was read with the projection " +
+				molecule.getProjection() + " and cannot be put into the archive.");
+
 		if (virtual) {
+			boolean newUID = !archiveIndex.containsMoleculeUID(molecule.getUID());
+			if (!newUID) trackStoredMoleculeProperties(molecule.getUID());
 			archiveIndex.addMolecule(molecule);
+			if (newUID) moleculeUIDsChanged();
 
+			WriteBehindQueue<byte[]> queue = writeBehindQueue;
 			try {
-				saveMoleculeToSource(source, molecule, jFactory);
+				// Queue an encoded copy so the caller keeps ownership of the
+				// molecule.
+				byte[] bytes = null;
+				if (queue != null) {
+					bytes = encodeMolecule(molecule);
+					queue.awaitCapacity();
+				}
+
+				recordLock(molecule.getUID()).lock();
+				try {
+					if (queue == null) saveMoleculeToSource(source, molecule, jFactory);
+					else if (!queue.put(molecule.getUID(), bytes)) saveMoleculeToSource(
+						molecule.getUID(), bytes);
+					moleculeCache.put(molecule.getUID(), molecule);
+					unversionedMoleculeUIDs.add(molecule.getUID());
+				}
+				finally {
+					recordLock(molecule.getUID()).unlock();
+				}
 			}
 			catch (IOException e) {
+				moleculeCache.invalidate(molecule.getUID());
 				e.printStackTrace();
 			}
 		}
 		else {
 			molecule.setParent(this);
-			moleculeMap.put(molecule.getUID(), molecule);
+			archiveIndex.addMolecule(molecule);
+			if (moleculeMap.put(molecule.getUID(), molecule) == null)
+				moleculeUIDsChanged();
 		}
 
 		properties().addMoleculeProperties(molecule);
@@ -963,11 +1882,12 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	@Override
 	public void putMetadata(I metadata) {
+		boolean newUID = !containsMetadata(metadata.getUID());
+		archiveIndex.addMetadata(metadata);
 		if (virtual) {
-			archiveIndex.addMetadata(metadata);
-
 			try {
 				saveMetadataToSource(source, metadata, jFactory);
+				unversionedMetadataUIDs.add(metadata.getUID());
 			}
 			catch (IOException e) {
 				e.printStackTrace();
@@ -977,6 +1897,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		// Also, do this in virtual mode to lazy load records into memory.
 		metadata.setParent(this);
 		metadataMap.put(metadata.getUID(), metadata);
+		if (newUID) metadataUIDsChanged();
 
 		properties().addMetadataProperties(metadata);
 		properties().setNumberOfMetadatas(getNumberOfMetadatas());
@@ -990,14 +1911,16 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	@Override
 	public void removeMetadata(String metaUID) {
+		archiveIndex.removeMetadata(metaUID);
 		if (virtual) {
-			archiveIndex.removeMetadata(metaUID);
 			try { source.removeMetadata(metaUID); } catch (IOException e) { e.printStackTrace(); }
+			unversionedMetadataUIDs.remove(metaUID);
 		}
 
 		metadataMap.remove(metaUID);
+		metadataUIDsChanged();
 
-		properties().setNumberOfMetadatas(metadataMap.size());
+		properties().setNumberOfMetadatas(getNumberOfMetadatas());
 	}
 
 	/**
@@ -1019,17 +1942,9 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	@Override
 	public I getMetadata(int index) {
-		Iterator<String> iterator = (virtual) ? archiveIndex.getMetadataUIDSet()
-			.iterator() : metadataMap.keySet().iterator();
-		int i = 0;
-		while (iterator.hasNext()) {
-			if (i == index) return getMetadata(iterator.next());
-			else {
-				iterator.next();
-				i++;
-			}
-		}
-		return null;
+		List<String> metaUIDs = getMetadataUIDs();
+		return (index >= 0 && index < metaUIDs.size()) ? getMetadata(metaUIDs.get(
+			index)) : null;
 	}
 
 	/**
@@ -1043,28 +1958,29 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		if (virtual) {
 			if (metadataMap.containsKey(metaUID)) return metadataMap.get(metaUID);
 			else {
-				I metadata;
+				I metadata = null;
+				boolean corrupted = false;
 
-				if (!recordLocks.containsKey(metaUID)) recordLocks.put(metaUID,
-					new ReentrantLock());
-
-				recordLocks.get(metaUID).lock();
+				recordLock(metaUID).lock();
 				try {
-					InputStream inputStream = source.getMetadataInputStream(metaUID);
-					JsonParser jParser = jFactory.createParser(inputStream);
-
-					metadata = createMetadata(jParser);
-
-					jParser.close();
-					inputStream.close();
+					try (InputStream inputStream = source.getMetadataInputStream(metaUID);
+							JsonParser jParser = jFactory.createParser(inputStream))
+					{
+						metadata = createMetadata(jParser);
+					}
 				}
 				catch (IOException e) {
-					logln("MarsMetadata record " + metaUID + " has been corrupted.");
-					recordLocks.get(metaUID).unlock();
-					return null;
+					corrupted = true;
 				}
 				finally {
-					recordLocks.get(metaUID).unlock();
+					recordLock(metaUID).unlock();
+				}
+
+				// Logging updates all metadata records so it must happen outside the
+				// record lock.
+				if (corrupted) {
+					logln("MarsMetadata record " + metaUID + " has been corrupted.");
+					return null;
 				}
 
 				if (metadata != null) {
@@ -1088,8 +2004,17 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	@Override
 	public final List<String> getMetadataUIDs() {
-		if (virtual) return ImmutableList.copyOf(archiveIndex.getMetadataUIDSet());
-		else return ImmutableList.copyOf(metadataMap.keySet());
+		// Read the version before copying so changes made during the copy force a
+		// rebuild next time.
+		long version = metadataUIDsVersion.get();
+		UIDSnapshot snapshot = metadataUIDSnapshot;
+		if (snapshot != null && snapshot.version == version) return snapshot.UIDs;
+
+		ImmutableList<String> metaUIDs = (virtual) ? ImmutableList.copyOf(
+			archiveIndex.getMetadataUIDSet()) : ImmutableList.copyOf(metadataMap
+				.keySet());
+		metadataUIDSnapshot = new UIDSnapshot(version, metaUIDs);
+		return metaUIDs;
 	}
 
 	/**
@@ -1145,30 +2070,42 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		return virtual;
 	}
 
+	/**
+	 * Set the codec used to compress the DoubleColumns of molecule tables when
+	 * molecule records are saved in smile format.
+	 * 
+	 * @param codec The codec to use for all subsequent saves.
+	 */
+	@Override
+	public void setTableCodec(MarsTableCodec codec) {
+		this.tableCodec = codec;
+	}
+
+	/**
+	 * Get the codec used to compress the DoubleColumns of molecule tables when
+	 * molecule records are saved in smile format.
+	 * 
+	 * @return The codec used when saving.
+	 */
+	@Override
+	public MarsTableCodec getTableCodec() {
+		return tableCodec;
+	}
+
 	/**
 	 * Retrieves the molecule record at the provided index. Molecule records are
-	 * stored in a map and not a List, so this method creates a new UID list
-	 * every time it is called, reducing performance. The molecules() method
-	 * and get(UID) methods offer better performance. If a list is required
-	 * the getMoleculeUIDs() method should be used once and then the list can
-	 * be iterated.
+	 * stored in a map and not a List, so positions are looked up in an ordered
+	 * UID snapshot that is only rebuilt after molecules are added or removed.
+	 * Repeated positional access without changes to the archive is constant
+	 * time.
 	 * 
 	 * @param index The integer index position of the molecule record.
 	 * @return A Molecule record.
 	 */
 	@Override
 	public M get(int index) {
-		Iterator<String> iterator = (virtual) ? archiveIndex.getMoleculeUIDSet()
-			.iterator() : moleculeMap.keySet().iterator();
-		int i = 0;
-		while (iterator.hasNext()) {
-			if (i == index) return get(iterator.next());
-			else {
-				iterator.next();
-				i++;
-			}
-		}
-		return null;
+		List<String> UIDs = getMoleculeUIDs();
+		return (index >= 0 && index < UIDs.size()) ? get(UIDs.get(index)) : null;
 	}
 
 	/**
@@ -1179,13 +2116,30 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	@Override
 	public void remove(String UID) {
 		if (virtual) {
-			try { source.removeMolecule(UID); } catch (IOException e) { e.printStackTrace(); }
+			trackStoredMoleculeProperties(UID);
+			recordLock(UID).lock();
+			try {
+				WriteBehindQueue<byte[]> queue = writeBehindQueue;
+				if (queue != null) queue.remove(UID);
+				moleculeCache.invalidate(UID);
+				source.removeMolecule(UID);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			finally {
+				recordLock(UID).unlock();
+			}
+			unversionedMoleculeUIDs.remove(UID);
 			archiveIndex.removeMolecule(UID);
 		}
 		else {
 			moleculeMap.remove(UID);
+			archiveIndex.removeMolecule(UID);
 		}
-		properties().setNumberOfMolecules(moleculeMap.size());
+		moleculeUIDsChanged();
+		properties().removeMoleculeProperties(UID);
+		properties().setNumberOfMolecules(getNumberOfMolecules());
 	}
 
 	/**
@@ -1198,16 +2152,90 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		remove(molecule.getUID());
 	}
 
+	/**
+	 * Retrieves the UIDs of the Molecule records matching the query given. The
+	 * query is answered from the inverted maps of the index in both virtual and
+	 * in-memory mode, so the time taken scales with the number of matches rather
+	 * than the number of molecules in the archive.
+	 * 
+	 * @param query The {@link MoleculeQuery} to evaluate.
+	 * @return The sorted list of matching Molecule UIDs.
+	 */
+	@Override
+	public List<String> moleculeUIDs(MoleculeQuery query) {
+		return archiveIndex.query(query);
+	}
+
+	/**
+	 * Retrieves the UIDs of the Molecule records selected by an expression such
+	 * as "tagA AND NOT tagB AND channel=1". The expression is evaluated with
+	 * compressed bitmaps held in the index in both virtual and in-memory mode.
+	 * 
+	 * @param expression The selection expression.
+	 * @return The sorted list of selected Molecule UIDs.
+	 */
+	@Override
+	public List<String> select(String expression) {
+		return archiveIndex.getMoleculeUIDs(archiveIndex.select(expression));
+	}
+
+	/**
+	 * Evaluates a selection expression and returns the selected molecule
+	 * ordinals as a bitmap.
+	 * 
+	 * @param expression The selection expression.
+	 * @return Bitmap of the ordinals of the selected molecules.
+	 */
+	@Override
+	public MarsBitmap selectBitmap(String expression) {
+		return archiveIndex.select(expression);
+	}
+
+	/**
+	 * Retrieves the values of a molecule parameter for all molecules from the
+	 * index. In virtual mode no records are read.
+	 * 
+	 * @param name The parameter name.
+	 * @return A snapshot of the {@link ParameterColumn} for the parameter.
+	 */
+	@Override
+	public ParameterColumn parameterColumn(String name) {
+		return archiveIndex.getParameterColumn(name);
+	}
+
 	/**
 	 * Retrieves the list of UIDs for all Molecule records. Useful for
-	 * stream().forEach(...) operations.
+	 * stream().forEach(...) operations. The same immutable list is returned
+	 * until molecules are added or removed.
 	 * 
 	 * @return The list with all Molecule UIDs.
 	 */
 	@Override
 	public final List<String> getMoleculeUIDs() {
-		if (virtual) return ImmutableList.copyOf(archiveIndex.getMoleculeUIDSet());
-		else return ImmutableList.copyOf(moleculeMap.keySet());
+		// Read the version before copying so changes made during the copy force a
+		// rebuild next time.
+		long version = moleculeUIDsVersion.get();
+		UIDSnapshot snapshot = moleculeUIDSnapshot;
+		if (snapshot != null && snapshot.version == version) return snapshot.UIDs;
+
+		ImmutableList<String> UIDs = (virtual) ? ImmutableList.copyOf(archiveIndex
+			.getMoleculeUIDSet()) : ImmutableList.copyOf(moleculeMap.keySet());
+		moleculeUIDSnapshot = new UIDSnapshot(version, UIDs);
+		return UIDs;
+	}
+
+	/**
+	 * Must be called after the set of molecule UIDs changes.
+	 */
+	protected void moleculeUIDsChanged() {
+		moleculeUIDsVersion.incrementAndGet();
+	}
+
+	/**
+	 * Must be called after the set of metadata UIDs changes.
+	 */
+	protected void metadataUIDsChanged() {
+		metadataUIDsVersion.incrementAndGet();
 	}
 
 	/**
@@ -1315,6 +2343,26 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		return source;
 	}
 
+	/**
+	 * Writes a molecule record compressing table columns with the codec set for
+	 * this archive.
+	 * 
+	 * @param molecule The molecule record to write.
+	 * @param jGenerator The generator to write to.
+	 * @throws IOException if the molecule can't be written.
+	 */
+	private void writeMolecule(Molecule molecule, JsonGenerator jGenerator)
+		throws IOException
+	{
+		MarsTableCodec previous = MarsTable.setBlockCodec(tableCodec);
+		try {
+			molecule.toJSON(jGenerator);
+		}
+		finally {
+			MarsTable.setBlockCodec(previous);
+		}
+	}
+
 	/**
 	 * Saves a molecule record as a json file.
 	 * 
@@ -1327,20 +2375,43 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	protected void saveMoleculeToSource(MoleculeArchiveSource virtualSource, M molecule,
 										JsonFactory jFactory) throws IOException
 	{
-		if (!recordLocks.containsKey(molecule.getUID())) recordLocks.put(molecule
-			.getUID(), new ReentrantLock());
-
-		recordLocks.get(molecule.getUID()).lock();
+		recordLock(molecule.getUID()).lock();
 		try {
 			OutputStream stream = virtualSource.getMoleculeOutputStream(molecule.getUID());
 
 			JsonGenerator jGenerator = jFactory.createGenerator(stream);
-			molecule.toJSON(jGenerator);
+			writeMolecule(molecule, jGenerator);
 
 			jGenerator.close();
 		}
 		finally {
-			recordLocks.get(molecule.getUID()).unlock();
+			recordLock(molecule.getUID()).unlock();
+		}
+	}
+
+	/*
+	 * Encodes a molecule record for the write-behind queue.
+	 */
+	private byte[] encodeMolecule(M molecule) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JsonGenerator jGenerator = jFactory.createGenerator(bytes);
+		writeMolecule(molecule, jGenerator);
+		jGenerator.close();
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Stores a molecule record encoded by encodeMolecule.
+	 */
+	private void saveMoleculeToSource(String UID, byte[] bytes)
+		throws IOException
+	{
+		recordLock(UID).lock();
+		try (OutputStream stream = source.getMoleculeOutputStream(UID)) {
+			stream.write(bytes);
+		}
+		finally {
+			recordLock(UID).unlock();
 		}
 	}
 
@@ -1356,10 +2427,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	protected void saveMetadataToSource(MoleculeArchiveSource virtualSource, I metadata,
 										JsonFactory jFactory) throws IOException
 	{
-		if (!recordLocks.containsKey(metadata.getUID())) recordLocks.put(metadata
-			.getUID(), new ReentrantLock());
-
-		recordLocks.get(metadata.getUID()).lock();
+		recordLock(metadata.getUID()).lock();
 		try {
 			OutputStream stream = virtualSource.getMetadataOutputStream(metadata.getUID());
 
@@ -1369,7 +2437,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 			jGenerator.close();
 		}
 		finally {
-			recordLocks.get(metadata.getUID()).unlock();
+			recordLock(metadata.getUID()).unlock();
 		}
 	}
 
@@ -1576,9 +2644,7 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	@Override
 	public void deleteMoleculesWithTag(String tag) {
-		ArrayList<String> deleteUIDs = (ArrayList<String>) getMoleculeUIDs()
-			.parallelStream().filter(UID -> moleculeHasTag(UID, tag)).collect(
-				toList());
+		List<String> deleteUIDs = moleculeUIDs(MoleculeQuery.all().withTag(tag));
 		deleteUIDs.parallelStream().forEach(this::remove);
 	}
 
@@ -1637,29 +2703,50 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	 */
 	@Override
 	public M get(String UID) {
-		if (virtual) {
-			M molecule;
+		return get(UID, true);
+	}
 
-			if (!recordLocks.containsKey(UID)) recordLocks.put(UID,
-				new ReentrantLock());
+	/*
+	 * Molecules read from the store in full are matched to the properties
+	 * counted for them when the store was opened, unless the stored record may
+	 * differ from the one that was counted.
+	 */
+	private M get(String UID, boolean trackProperties) {
+		if (virtual) {
+			M molecule = moleculeCache.getIfPresent(UID);
+			if (molecule != null) return molecule;
 
-			recordLocks.get(UID).lock();
+			boolean corrupted = false;
+			recordLock(UID).lock();
 			try {
-				InputStream inputStream = source.getMoleculeInputStream(UID);
-				JsonParser jParser = jFactory.createParser(inputStream);
-
-				molecule = createMolecule(jParser);
+				// Another thread may have loaded or put the record while we waited.
+				molecule = moleculeCache.asMap().get(UID);
+				if (molecule != null) return molecule;
+
+				try (InputStream inputStream = getMoleculeInputStream(UID);
+						JsonParser jParser = jFactory.createParser(inputStream))
+				{
+					molecule = createMolecule(jParser);
+				}
 
-				jParser.close();
-				inputStream.close();
+				if (molecule != null) {
+					if (trackProperties && properties().hasUntrackedMoleculeProperties(
+						UID)) properties().trackMoleculeProperties(molecule);
+					moleculeCache.put(UID, molecule);
+				}
 			}
 			catch (IOException e) {
-				logln("Molecule record " + UID + " has been corrupted.");
-				recordLocks.get(UID).unlock();
-				return null;
+				corrupted = true;
 			}
 			finally {
-				recordLocks.get(UID).unlock();
+				recordLock(UID).unlock();
+			}
+
+			// Logging updates all metadata records so it must happen outside the
+			// record lock.
+			if (corrupted) {
+				logln("Molecule record " + UID + " has been corrupted.");
+				return null;
 			}
 
 			return molecule;
@@ -1669,6 +2756,88 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		}
 	}
 
+	/*
+	 * A stored molecule that was not read since the store was opened is read
+	 * once before it is replaced or removed, so the names it used are released
+	 * from the property sets.
+	 */
+	private void trackStoredMoleculeProperties(String UID) {
+		if (!properties().hasUntrackedMoleculeProperties(UID)) return;
+		recordLock(UID).lock();
+		try (InputStream inputStream = getMoleculeInputStream(UID);
+				JsonParser jParser = jFactory.createParser(inputStream))
+		{
+			M molecule = createMolecule(jParser);
+			if (molecule != null) properties().trackMoleculeProperties(molecule);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			recordLock(UID).unlock();
+		}
+	}
+
+	/*
+	 * Opens the latest version of a molecule record, which is the encoded copy
+	 * waiting in the write-behind queue if there is one. Callers must hold the
+	 * record lock.
+	 */
+	private InputStream getMoleculeInputStream(String UID) throws IOException {
+		WriteBehindQueue<byte[]> queue = writeBehindQueue;
+		byte[] bytes = (queue != null) ? queue.get(UID) : null;
+		return (bytes != null) ? new ByteArrayInputStream(bytes) : source
+			.getMoleculeInputStream(UID);
+	}
+
+	/**
+	 * Get the molecule record with the given UID decoding only the fields
+	 * included in the {@link Projection} provided. Records that are already in
+	 * memory are returned complete. Otherwise, the record is read from the
+	 * virtual store skipping all other fields. Records read this way are not
+	 * cached and are not linked to this archive, so changes to them are not
+	 * saved.
+	 * 
+	 * @param UID The UID of the record to retrieve.
+	 * @param projection The fields to decode.
+	 * @return The Molecule record with the UID given or null if none is located.
+	 */
+	@Override
+	public M get(String UID, Projection projection) {
+		if (!virtual || projection == null) return get(UID);
+
+		M molecule = moleculeCache.getIfPresent(UID);
+		if (molecule != null) return molecule;
+
+		boolean corrupted = false;
+		recordLock(UID).lock();
+		try {
+			// Another thread may have loaded or put the record while we waited.
+			molecule = moleculeCache.asMap().get(UID);
+			if (molecule != null) return molecule;
+
+			try (InputStream inputStream = getMoleculeInputStream(UID);
+					JsonParser jParser = jFactory.createParser(inputStream))
+			{
+				molecule = createMolecule();
+				molecule.fromJSON(jParser, projection);
+			}
+		}
+		catch (IOException e) {
+			corrupted = true;
+		}
+		finally {
+			recordLock(UID).unlock();
+		}
+
+		if (corrupted) {
+			logln("Molecule record " + UID + " has been corrupted.");
+			return null;
+		}
+
+		return molecule;
+	}
+
 	/**
 	 * Convenience method to retrieve a Molecule stream. Can be used to iterate
 	 * over all molecules using forEach.
@@ -1832,6 +3001,18 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 		return archiveProperties;
 	}
 
+	/**
+	 * Get the {@link MoleculeArchiveIndex} which maps molecule UIDs to tags,
+	 * channels, images and metadata UIDs and back.
+	 * 
+	 * @return The {@link MoleculeArchiveIndex} for this
+	 *         {@link AbstractMoleculeArchive}.
+	 */
+	@Override
+	public MoleculeArchiveIndex<M, I> index() {
+		return archiveIndex;
+	}
+
 	/**
 	 * Create empty MoleculeArchiveIndex.
 	 */
@@ -1886,4 +3067,15 @@ public abstract class AbstractMoleculeArchive<M extends Molecule, I extends Mars
 	public String toString() {
 		return name;
 	}
+
+	private static final class UIDSnapshot {
+
+		private final long version;
+		private final ImmutableList<String> UIDs;
+
+		private UIDSnapshot(long version, ImmutableList<String> UIDs) {
+			this.version = version;
+			this.UIDs = UIDs;
+		}
+	}
 }
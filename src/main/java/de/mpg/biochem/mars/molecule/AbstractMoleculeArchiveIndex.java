@@ -31,18 +31,33 @@ package de.mpg.biochem.mars.molecule;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
 import de.mpg.biochem.mars.metadata.MarsMetadata;
+import de.mpg.biochem.mars.util.MarsBitmap;
+import de.mpg.biochem.mars.util.MarsMath;
 import de.mpg.biochem.mars.util.MarsUtil;
 
 public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends MarsMetadata>
@@ -84,6 +99,79 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 	 */
 	private ConcurrentMap<String, String> moleculeUIDtoMetadataUID;
 
+	/*
+	 * Map from molecule UID to the version of the stored record the entry was
+	 * built from. Entries are dropped whenever a molecule is indexed again
+	 * until the new record version is known.
+	 */
+	private ConcurrentMap<String, String> moleculeUIDtoVersion;
+
+	/*
+	 * Map from metadata UID to the version of the stored record, maintained in
+	 * the same way as the molecule versions.
+	 */
+	private ConcurrentMap<String, String> metadataUIDtoVersion;
+
+	/*
+	 * Dense ordinals assigned to molecule UIDs. Ordinals of removed molecules
+	 * are reused for molecules added later.
+	 */
+	private Map<String, Integer> moleculeUIDtoOrdinal;
+	private String[] ordinalToMoleculeUID;
+	private int nextOrdinal;
+	private ArrayDeque<Integer> freeOrdinals;
+
+	/*
+	 * Ordinals of all molecules in the index.
+	 */
+	private MarsBitmap moleculeBitmap;
+
+	/*
+	 * Bitmaps of molecule ordinals for each tag, channel, image and metadata
+	 * UID.
+	 */
+	private Map<String, MarsBitmap> tagBitmaps;
+	private Map<Integer, MarsBitmap> channelBitmaps;
+	private Map<Integer, MarsBitmap> imageBitmaps;
+	private Map<String, MarsBitmap> metadataUIDBitmaps;
+
+	/*
+	 * Parameter values of all molecules stored by ordinal.
+	 */
+	private Map<String, ParameterColumn> parameterColumns;
+
+	/*
+	 * Parameters read from the indexes file that are moved into the columns
+	 * once ordinals are assigned.
+	 */
+	private ConcurrentMap<String, Map<String, Object>> loadedParameters;
+
+	/*
+	 * Guards the ordinals and bitmaps above.
+	 */
+	private ReadWriteLock bitmapLock;
+
+	/*
+	 * Changes to molecules already in the index that are not yet in the
+	 * bitmaps and parameter columns. Changes made to molecules in memory are
+	 * collected here so they do not take the bitmap write lock each time, and
+	 * are applied together before the bitmaps are next read.
+	 */
+	private ConcurrentMap<String, PendingUpdate> pendingUpdates;
+
+	/**
+	 * UIDs of entries changed since the indexes were last written or journaled.
+	 */
+	private Set<String> changedMoleculeUIDs;
+	private Set<String> changedMetadataUIDs;
+
+	/**
+	 * Identifies the snapshot journal batches belong to. Batches written for an
+	 * earlier snapshot are ignored when the journal is replayed.
+	 */
+	private String journalId;
+	private int journalLength;
+
 	public AbstractMoleculeArchiveIndex() {
 		super();
 		initializeVariables();
@@ -101,6 +189,24 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 		moleculeUIDtoImage = new ConcurrentHashMap<>();
 		metadataUIDtoTagList = new ConcurrentHashMap<>();
 		moleculeUIDtoMetadataUID = new ConcurrentHashMap<>();
+		moleculeUIDtoVersion = new ConcurrentHashMap<>();
+		metadataUIDtoVersion = new ConcurrentHashMap<>();
+
+		moleculeUIDtoOrdinal = new HashMap<>();
+		ordinalToMoleculeUID = new String[16];
+		freeOrdinals = new ArrayDeque<>();
+		moleculeBitmap = new MarsBitmap();
+		tagBitmaps = new HashMap<>();
+		channelBitmaps = new HashMap<>();
+		imageBitmaps = new HashMap<>();
+		metadataUIDBitmaps = new HashMap<>();
+		parameterColumns = new HashMap<>();
+		loadedParameters = new ConcurrentHashMap<>();
+		bitmapLock = new ReentrantReadWriteLock();
+		pendingUpdates = new ConcurrentHashMap<>();
+		changedMoleculeUIDs = ConcurrentHashMap.newKeySet();
+		changedMetadataUIDs = ConcurrentHashMap.newKeySet();
+		journalId = MarsMath.getUUID58();
 
 		moleculeUIDs = new ConcurrentSkipListSet<>();// ConcurrentHashMap.newKeySet();
 		metadataUIDs = new ConcurrentSkipListSet<>();// ConcurrentHashMap.newKeySet();
@@ -112,109 +218,48 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 		setJsonField("metadata", jGenerator -> {
 			jGenerator.writeFieldName("metadata");
 			jGenerator.writeStartArray();
-			for (String metaUID : metadataUIDs) {
-				jGenerator.writeStartObject();
-				jGenerator.writeStringField("uid", metaUID);
-
-				if (metadataUIDtoTagList.containsKey(metaUID)) {
-					jGenerator.writeArrayFieldStart("tags");
-					for (String tag : metadataUIDtoTagList.get(metaUID)) {
-						jGenerator.writeString(tag);
-					}
-					jGenerator.writeEndArray();
-				}
-
-				jGenerator.writeEndObject();
-			}
+			for (String metaUID : metadataUIDs)
+				writeMetadataEntry(jGenerator, metaUID);
 			jGenerator.writeEndArray();
 		}, jParser -> {
 			while (jParser.nextToken() != JsonToken.END_ARRAY) {
-				String metaUID = "NULL";
-				while (jParser.nextToken() != JsonToken.END_OBJECT) {
-					if ("uid".equals(jParser.getCurrentName())) {
-						jParser.nextToken();
-						metaUID = jParser.getText();
-						metadataUIDs.add(metaUID);
-					}
-
-					if ("tags".equals(jParser.getCurrentName())) {
-						jParser.nextToken();
-						LinkedHashSet<String> tags = new LinkedHashSet<>();
-						while (jParser.nextToken() != JsonToken.END_ARRAY) {
-							tags.add(jParser.getText());
-						}
-						if (!metaUID.equals("NULL")) metadataUIDtoTagList.put(metaUID,
-							tags);
-					}
-				}
-
+				MetadataEntry entry = readMetadataEntry(jParser);
+				if (entry.UID == null) continue;
+				metadataUIDs.add(entry.UID);
+				if (entry.tags != null) metadataUIDtoTagList.put(entry.UID, entry.tags);
+				if (entry.version != null) metadataUIDtoVersion.put(entry.UID,
+					entry.version);
 			}
 		});
 
 		setJsonField("molecules", jGenerator -> {
 			jGenerator.writeArrayFieldStart("molecules");
-			for (String UID : moleculeUIDs) {
-				jGenerator.writeStartObject();
-				jGenerator.writeStringField("uid", UID);
-				jGenerator.writeStringField("metadataUID", moleculeUIDtoMetadataUID.get(
-					UID));
-
-				if (moleculeUIDtoTagList.containsKey(UID)) {
-					jGenerator.writeArrayFieldStart("tags");
-					for (String tag : moleculeUIDtoTagList.get(UID)) {
-						jGenerator.writeString(tag);
-					}
-					jGenerator.writeEndArray();
-				}
-
-				if (moleculeUIDtoChannel.containsKey(UID)) {
-					jGenerator.writeNumberField("channel", moleculeUIDtoChannel.get(UID));
-				}
-
-				if (moleculeUIDtoImage.containsKey(UID)) {
-					jGenerator.writeNumberField("image", moleculeUIDtoImage.get(UID));
-				}
-
-				jGenerator.writeEndObject();
-			}
+			for (String UID : moleculeUIDs)
+				writeMoleculeEntry(jGenerator, UID);
 			jGenerator.writeEndArray();
 		}, jParser -> {
 			while (jParser.nextToken() != JsonToken.END_ARRAY) {
-				String UID = "NULL";
-				while (jParser.nextToken() != JsonToken.END_OBJECT) {
-					if ("uid".equals(jParser.getCurrentName())) {
-						jParser.nextToken();
-						UID = jParser.getText();
-						moleculeUIDs.add(UID);
-					}
-
-					if ("metadataUID".equals(jParser.getCurrentName())) {
-						jParser.nextToken();
-						moleculeUIDtoMetadataUID.put(UID, jParser.getText());
-					}
-
-					if ("tags".equals(jParser.getCurrentName())) {
-						jParser.nextToken();
-						LinkedHashSet<String> tags = new LinkedHashSet<>();
-						while (jParser.nextToken() != JsonToken.END_ARRAY) {
-							tags.add(jParser.getText());
-						}
-						moleculeUIDtoTagList.put(UID, tags);
-					}
-
-					if ("channel".equals(jParser.getCurrentName())) {
-						jParser.nextToken();
-						moleculeUIDtoChannel.put(UID, jParser.getIntValue());
-					}
-
-					if ("image".equals(jParser.getCurrentName())) {
-						jParser.nextToken();
-						moleculeUIDtoImage.put(UID, jParser.getIntValue());
-					}
-				}
+				MoleculeEntry entry = readMoleculeEntry(jParser);
+				if (entry.UID == null) continue;
+				moleculeUIDs.add(entry.UID);
+				if (entry.metadataUID != null) moleculeUIDtoMetadataUID.put(entry.UID,
+					entry.metadataUID);
+				if (entry.tags != null) moleculeUIDtoTagList.put(entry.UID,
+					entry.tags);
+				if (entry.channel != null) moleculeUIDtoChannel.put(entry.UID,
+					entry.channel);
+				if (entry.image != null) moleculeUIDtoImage.put(entry.UID,
+					entry.image);
+				if (!entry.parameters.isEmpty()) loadedParameters.put(entry.UID,
+					entry.parameters);
+				if (entry.version != null) moleculeUIDtoVersion.put(entry.UID,
+					entry.version);
 			}
 		});
 
+		setJsonField("journal", jGenerator -> jGenerator.writeStringField(
+			"journal", journalId), jParser -> journalId = jParser.getText());
+
 		/*
 		 * 
 		 * The fields below are needed for backwards compatibility.
@@ -356,13 +401,595 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 		});
 	}
 
+	@Override
+	public void fromJSON(JsonParser jParser) throws IOException {
+		super.fromJSON(jParser);
+
+		// The ordinals and bitmaps are derived from the molecule entries and are
+		// not written to the indexes file.
+		rebuildBitmaps();
+		changedMoleculeUIDs.clear();
+		changedMetadataUIDs.clear();
+		journalLength = 0;
+	}
+
+	private void writeMoleculeEntry(JsonGenerator jGenerator, String UID)
+		throws IOException
+	{
+		jGenerator.writeStartObject();
+		jGenerator.writeStringField("uid", UID);
+		jGenerator.writeStringField("metadataUID", moleculeUIDtoMetadataUID.get(
+			UID));
+
+		Set<String> tags = moleculeUIDtoTagList.get(UID);
+		if (tags != null) {
+			jGenerator.writeArrayFieldStart("tags");
+			for (String tag : tags) {
+				jGenerator.writeString(tag);
+			}
+			jGenerator.writeEndArray();
+		}
+
+		Integer channel = moleculeUIDtoChannel.get(UID);
+		if (channel != null) jGenerator.writeNumberField("channel", channel);
+
+		Integer image = moleculeUIDtoImage.get(UID);
+		if (image != null) jGenerator.writeNumberField("image", image);
+
+		writeParameters(jGenerator, UID);
+
+		String version = moleculeUIDtoVersion.get(UID);
+		if (version != null) jGenerator.writeStringField("version", version);
+
+		jGenerator.writeEndObject();
+	}
+
+	private static MoleculeEntry readMoleculeEntry(JsonParser jParser)
+		throws IOException
+	{
+		MoleculeEntry entry = new MoleculeEntry();
+		while (jParser.nextToken() != JsonToken.END_OBJECT) {
+			String field = jParser.getCurrentName();
+			jParser.nextToken();
+			if ("uid".equals(field)) entry.UID = jParser.getText();
+			else if ("metadataUID".equals(field)) {
+				if (jParser.getCurrentToken() != JsonToken.VALUE_NULL)
+					entry.metadataUID = jParser.getText();
+			}
+			else if ("tags".equals(field)) entry.tags = readStringSet(jParser);
+			else if ("channel".equals(field)) entry.channel = jParser.getIntValue();
+			else if ("image".equals(field)) entry.image = jParser.getIntValue();
+			else if ("doubleParameters".equals(field) || "stringParameters".equals(
+				field) || "booleanParameters".equals(field)) readParameters(jParser,
+					field, entry.parameters);
+			else if ("version".equals(field)) entry.version = jParser.getText();
+			else if (jParser.getCurrentToken() == JsonToken.START_OBJECT)
+				MarsUtil.passThroughUnknownObjects(jParser);
+			else if (jParser.getCurrentToken() == JsonToken.START_ARRAY)
+				MarsUtil.passThroughUnknownArrays(jParser);
+		}
+		return entry;
+	}
+
+	private void writeMetadataEntry(JsonGenerator jGenerator, String metaUID)
+		throws IOException
+	{
+		jGenerator.writeStartObject();
+		jGenerator.writeStringField("uid", metaUID);
+
+		Set<String> tags = metadataUIDtoTagList.get(metaUID);
+		if (tags != null) {
+			jGenerator.writeArrayFieldStart("tags");
+			for (String tag : tags) {
+				jGenerator.writeString(tag);
+			}
+			jGenerator.writeEndArray();
+		}
+
+		String version = metadataUIDtoVersion.get(metaUID);
+		if (version != null) jGenerator.writeStringField("version", version);
+
+		jGenerator.writeEndObject();
+	}
+
+	private static MetadataEntry readMetadataEntry(JsonParser jParser)
+		throws IOException
+	{
+		MetadataEntry entry = new MetadataEntry();
+		while (jParser.nextToken() != JsonToken.END_OBJECT) {
+			String field = jParser.getCurrentName();
+			jParser.nextToken();
+			if ("uid".equals(field)) entry.UID = jParser.getText();
+			else if ("tags".equals(field)) entry.tags = readStringSet(jParser);
+			else if ("version".equals(field)) entry.version = jParser.getText();
+			else if (jParser.getCurrentToken() == JsonToken.START_OBJECT)
+				MarsUtil.passThroughUnknownObjects(jParser);
+			else if (jParser.getCurrentToken() == JsonToken.START_ARRAY)
+				MarsUtil.passThroughUnknownArrays(jParser);
+		}
+		return entry;
+	}
+
+	private static Set<String> readStringSet(JsonParser jParser) throws IOException {
+		LinkedHashSet<String> tags = new LinkedHashSet<>();
+		while (jParser.nextToken() != JsonToken.END_ARRAY) {
+			tags.add(jParser.getText());
+		}
+		return tags;
+	}
+
+	@Override
+	public int getNumberOfChanges() {
+		return changedMoleculeUIDs.size() + changedMetadataUIDs.size();
+	}
+
+	@Override
+	public int getJournalLength() {
+		return journalLength;
+	}
+
+	@Override
+	public void writeJournal(JsonGenerator jGenerator) throws IOException {
+		List<String> molecules = new ArrayList<>();
+		List<String> removedMolecules = new ArrayList<>();
+		for (String UID : changedMoleculeUIDs) {
+			// Removed first so a change made while writing is journaled again.
+			changedMoleculeUIDs.remove(UID);
+			if (moleculeUIDs.contains(UID)) molecules.add(UID);
+			else removedMolecules.add(UID);
+		}
+		List<String> metadata = new ArrayList<>();
+		List<String> removedMetadata = new ArrayList<>();
+		for (String metaUID : changedMetadataUIDs) {
+			changedMetadataUIDs.remove(metaUID);
+			if (metadataUIDs.contains(metaUID)) metadata.add(metaUID);
+			else removedMetadata.add(metaUID);
+		}
+
+		jGenerator.writeStartObject();
+		jGenerator.writeStringField("journal", journalId);
+		jGenerator.writeArrayFieldStart("molecules");
+		for (String UID : molecules)
+			writeMoleculeEntry(jGenerator, UID);
+		jGenerator.writeEndArray();
+		writeStringArray(jGenerator, "removedMolecules", removedMolecules);
+		jGenerator.writeArrayFieldStart("metadata");
+		for (String metaUID : metadata)
+			writeMetadataEntry(jGenerator, metaUID);
+		jGenerator.writeEndArray();
+		writeStringArray(jGenerator, "removedMetadata", removedMetadata);
+		jGenerator.writeEndObject();
+
+		journalLength += molecules.size() + removedMolecules.size() + metadata
+			.size() + removedMetadata.size();
+	}
+
+	@Override
+	public boolean readJournal(JsonParser jParser) throws IOException {
+		if (jParser.getCurrentToken() == null) jParser.nextToken();
+
+		String id = null;
+		List<MoleculeEntry> molecules = new ArrayList<>();
+		List<String> removedMolecules = new ArrayList<>();
+		List<MetadataEntry> metadata = new ArrayList<>();
+		List<String> removedMetadata = new ArrayList<>();
+		while (jParser.nextToken() != JsonToken.END_OBJECT) {
+			String field = jParser.getCurrentName();
+			jParser.nextToken();
+			if ("journal".equals(field)) id = jParser.getText();
+			else if ("molecules".equals(field)) {
+				while (jParser.nextToken() != JsonToken.END_ARRAY)
+					molecules.add(readMoleculeEntry(jParser));
+			}
+			else if ("removedMolecules".equals(field)) removedMolecules.addAll(
+				readStringSet(jParser));
+			else if ("metadata".equals(field)) {
+				while (jParser.nextToken() != JsonToken.END_ARRAY)
+					metadata.add(readMetadataEntry(jParser));
+			}
+			else if ("removedMetadata".equals(field)) removedMetadata.addAll(
+				readStringSet(jParser));
+			else if (jParser.getCurrentToken() == JsonToken.START_OBJECT)
+				MarsUtil.passThroughUnknownObjects(jParser);
+			else if (jParser.getCurrentToken() == JsonToken.START_ARRAY)
+				MarsUtil.passThroughUnknownArrays(jParser);
+		}
+		if (!journalId.equals(id)) return false;
+
+		for (String UID : removedMolecules)
+			removeMolecule(UID);
+		for (MoleculeEntry entry : molecules) {
+			indexMolecule(entry.UID, (entry.tags != null) ? entry.tags
+				: new LinkedHashSet<>(), entry.channel, entry.image, entry.metadataUID,
+				entry.parameters);
+			setMoleculeVersion(entry.UID, entry.version);
+		}
+		for (String metaUID : removedMetadata)
+			removeMetadata(metaUID);
+		for (MetadataEntry entry : metadata) {
+			metadataUIDs.add(entry.UID);
+			if (entry.tags != null) metadataUIDtoTagList.put(entry.UID, entry.tags);
+			else metadataUIDtoTagList.remove(entry.UID);
+			if (entry.version != null) metadataUIDtoVersion.put(entry.UID,
+				entry.version);
+			else metadataUIDtoVersion.remove(entry.UID);
+		}
+
+		// Replayed entries are already in the journal.
+		for (MoleculeEntry entry : molecules)
+			changedMoleculeUIDs.remove(entry.UID);
+		changedMoleculeUIDs.removeAll(removedMolecules);
+		for (MetadataEntry entry : metadata)
+			changedMetadataUIDs.remove(entry.UID);
+		changedMetadataUIDs.removeAll(removedMetadata);
+		journalLength += molecules.size() + removedMolecules.size() + metadata
+			.size() + removedMetadata.size();
+		return true;
+	}
+
+	@Override
+	public void clearJournal() {
+		journalId = MarsMath.getUUID58();
+		journalLength = 0;
+		changedMoleculeUIDs.clear();
+		changedMetadataUIDs.clear();
+	}
+
+	private static void writeStringArray(JsonGenerator jGenerator, String field,
+		List<String> values) throws IOException
+	{
+		jGenerator.writeArrayFieldStart(field);
+		for (String value : values)
+			jGenerator.writeString(value);
+		jGenerator.writeEndArray();
+	}
+
+	private void rebuildBitmaps() {
+		bitmapLock.writeLock().lock();
+		try {
+			moleculeUIDtoOrdinal.clear();
+			ordinalToMoleculeUID = new String[Math.max(16, moleculeUIDs.size())];
+			nextOrdinal = 0;
+			freeOrdinals.clear();
+			pendingUpdates.clear();
+			moleculeBitmap.clear();
+			tagBitmaps.clear();
+			channelBitmaps.clear();
+			imageBitmaps.clear();
+			metadataUIDBitmaps.clear();
+			parameterColumns.clear();
+
+			// Assign ordinals in UID order so selections rarely need sorting.
+			for (String UID : moleculeUIDs) {
+				int ordinal = assignOrdinal(UID);
+				Set<String> tags = moleculeUIDtoTagList.get(UID);
+				if (tags != null) for (String tag : tags)
+					addToBitmap(tagBitmaps, tag, ordinal);
+				addToBitmap(channelBitmaps, moleculeUIDtoChannel.get(UID), ordinal);
+				addToBitmap(imageBitmaps, moleculeUIDtoImage.get(UID), ordinal);
+				addToBitmap(metadataUIDBitmaps, moleculeUIDtoMetadataUID.get(UID),
+					ordinal);
+				Map<String, Object> parameters = loadedParameters.get(UID);
+				if (parameters != null) setParameters(ordinal, parameters);
+			}
+			loadedParameters.clear();
+		}
+		finally {
+			bitmapLock.writeLock().unlock();
+		}
+	}
+
 	@Override
 	public void addMolecule(M molecule) {
-		moleculeUIDs.add(molecule.getUID());
-		moleculeUIDtoTagList.put(molecule.getUID(), molecule.getTags());
-		moleculeUIDtoChannel.put(molecule.getUID(), molecule.getChannel());
-		moleculeUIDtoImage.put(molecule.getUID(), molecule.getImage());
-		moleculeUIDtoMetadataUID.put(molecule.getUID(), molecule.getMetadataUID());
+		indexMolecule(molecule);
+	}
+
+	/*
+	 * The tag, channel, image and metadata maps are updated right away. The
+	 * bitmaps and parameter columns are updated the next time they are read.
+	 */
+	@Override
+	public void updateMolecule(Molecule molecule) {
+		final String UID = molecule.getUID();
+		if (!moleculeUIDs.contains(UID)) return;
+		final Set<String> tags = new LinkedHashSet<>(molecule.getTags());
+		final Integer channel = molecule.getChannel();
+		final Integer image = molecule.getImage();
+		final String metadataUID = molecule.getMetadataUID();
+		final Map<String, Object> parameters = new LinkedHashMap<>(molecule
+			.getParameters());
+		changedMoleculeUIDs.add(UID);
+		moleculeUIDtoTagList.compute(UID, (key, oldTags) -> {
+			if (!moleculeUIDs.contains(UID)) return oldTags;
+			Integer oldChannel = (channel != null) ? moleculeUIDtoChannel.put(UID,
+				channel) : moleculeUIDtoChannel.remove(UID);
+			Integer oldImage = (image != null) ? moleculeUIDtoImage.put(UID, image)
+				: moleculeUIDtoImage.remove(UID);
+			String oldMetadataUID = (metadataUID != null) ? moleculeUIDtoMetadataUID
+				.put(UID, metadataUID) : moleculeUIDtoMetadataUID.remove(UID);
+			moleculeUIDtoVersion.remove(UID);
+			pendingUpdates.compute(UID, (k, update) -> {
+				if (update == null) update = new PendingUpdate(oldTags, oldChannel,
+					oldImage, oldMetadataUID);
+				update.setMolecule(tags, channel, image, metadataUID, parameters);
+				return update;
+			});
+			return tags;
+		});
+	}
+
+	@Override
+	public void updateMoleculeParameter(Molecule molecule, String parameter) {
+		final String UID = molecule.getUID();
+		final Object value = molecule.getParameters().get(parameter);
+		if (!moleculeUIDs.contains(UID)) return;
+		changedMoleculeUIDs.add(UID);
+		moleculeUIDtoTagList.compute(UID, (key, tags) -> {
+			if (!moleculeUIDs.contains(UID)) return tags;
+			moleculeUIDtoVersion.remove(UID);
+			pendingUpdates.compute(UID, (k, update) -> {
+				if (update == null) update = new PendingUpdate(tags,
+					moleculeUIDtoChannel.get(UID), moleculeUIDtoImage.get(UID),
+					moleculeUIDtoMetadataUID.get(UID));
+				update.setParameter(parameter, value);
+				return update;
+			});
+			return tags;
+		});
+	}
+
+	/*
+	 * Applies all pending updates under a single write lock. Must not be called
+	 * while holding the read lock.
+	 */
+	private void applyPendingUpdates() {
+		if (pendingUpdates.isEmpty()) return;
+		bitmapLock.writeLock().lock();
+		try {
+			for (String UID : pendingUpdates.keySet())
+				applyPendingUpdate(UID);
+		}
+		finally {
+			bitmapLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Brings the bitmaps and parameter columns of one molecule up to date. The
+	 * write lock must be held by the caller. The update is removed under the
+	 * write lock, so updates of the same molecule are applied in order.
+	 */
+	private void applyPendingUpdate(String UID) {
+		PendingUpdate update = pendingUpdates.remove(UID);
+		if (update == null) return;
+		Integer ordinal = moleculeUIDtoOrdinal.get(UID);
+		if (ordinal == null) return;
+		updateTagBitmaps(update.indexedTags, update.tags, ordinal);
+		updateBitmap(channelBitmaps, update.indexedChannel, update.channel,
+			ordinal);
+		updateBitmap(imageBitmaps, update.indexedImage, update.image, ordinal);
+		updateBitmap(metadataUIDBitmaps, update.indexedMetadataUID,
+			update.metadataUID, ordinal);
+		if (update.parameters != null) updateParameters(ordinal,
+			update.parameters);
+		for (Map.Entry<String, Object> entry : update.changedParameters
+			.entrySet())
+		{
+			if (entry.getValue() != null) parameterColumns.computeIfAbsent(entry
+				.getKey(), ParameterColumn::new).set(ordinal, entry.getValue());
+			else {
+				ParameterColumn column = parameterColumns.get(entry.getKey());
+				if (column != null) {
+					column.clear(ordinal);
+					if (column.isEmpty()) parameterColumns.remove(entry.getKey());
+				}
+			}
+		}
+	}
+
+	private void updateTagBitmaps(Set<String> oldTags, Set<String> tags,
+		int ordinal)
+	{
+		if (oldTags != null) for (String tag : oldTags)
+			if (tags == null || !tags.contains(tag)) removeFromBitmap(tagBitmaps,
+				tag, ordinal);
+		if (tags != null) for (String tag : tags)
+			if (oldTags == null || !oldTags.contains(tag)) addToBitmap(tagBitmaps,
+				tag, ordinal);
+	}
+
+	/*
+	 * All updates for a UID run inside compute on the tag map so concurrent
+	 * updates of the same molecule cannot leave the bitmaps inconsistent.
+	 */
+	private void indexMolecule(Molecule molecule) {
+		indexMolecule(molecule.getUID(), new LinkedHashSet<>(molecule.getTags()),
+			molecule.getChannel(), molecule.getImage(), molecule.getMetadataUID(),
+			new LinkedHashMap<>(molecule.getParameters()));
+	}
+
+	private void indexMolecule(final String UID, final Set<String> tags,
+		final Integer channel, final Integer image, final String metadataUID,
+		final Map<String, Object> parameters)
+	{
+		changedMoleculeUIDs.add(UID);
+		moleculeUIDtoTagList.compute(UID, (key, oldTags) -> {
+			// The concurrent maps are updated before taking the bitmap lock so the
+			// lock is only held while bitmaps change.
+			Integer oldChannel = (channel != null) ? moleculeUIDtoChannel.put(UID,
+				channel) : moleculeUIDtoChannel.remove(UID);
+			Integer oldImage = (image != null) ? moleculeUIDtoImage.put(UID, image)
+				: moleculeUIDtoImage.remove(UID);
+			String oldMetadataUID = (metadataUID != null) ? moleculeUIDtoMetadataUID
+				.put(UID, metadataUID) : moleculeUIDtoMetadataUID.remove(UID);
+			moleculeUIDs.add(UID);
+			moleculeUIDtoVersion.remove(UID);
+
+			bitmapLock.writeLock().lock();
+			try {
+				// The bitmaps must reflect the old entries before they are diffed.
+				applyPendingUpdate(UID);
+				Integer ordinal = moleculeUIDtoOrdinal.get(UID);
+				if (ordinal == null) {
+					ordinal = assignOrdinal(UID);
+					for (String tag : tags)
+						addToBitmap(tagBitmaps, tag, ordinal);
+					addToBitmap(channelBitmaps, channel, ordinal);
+					addToBitmap(imageBitmaps, image, ordinal);
+					addToBitmap(metadataUIDBitmaps, metadataUID, ordinal);
+					setParameters(ordinal, parameters);
+				}
+				else {
+					// Only entries that changed are updated.
+					updateTagBitmaps(oldTags, tags, ordinal);
+					updateBitmap(channelBitmaps, oldChannel, channel, ordinal);
+					updateBitmap(imageBitmaps, oldImage, image, ordinal);
+					updateBitmap(metadataUIDBitmaps, oldMetadataUID, metadataUID,
+						ordinal);
+					updateParameters(ordinal, parameters);
+				}
+			}
+			finally {
+				bitmapLock.writeLock().unlock();
+			}
+			return tags;
+		});
+	}
+
+	private int assignOrdinal(String UID) {
+		Integer free = freeOrdinals.poll();
+		int ordinal = (free != null) ? free : nextOrdinal++;
+		if (ordinal == ordinalToMoleculeUID.length) ordinalToMoleculeUID = Arrays
+			.copyOf(ordinalToMoleculeUID, ordinal * 2);
+		ordinalToMoleculeUID[ordinal] = UID;
+		moleculeUIDtoOrdinal.put(UID, ordinal);
+		moleculeBitmap.add(ordinal);
+		return ordinal;
+	}
+
+	private void unindexBitmaps(String UID, int ordinal, Set<String> oldTags) {
+		if (oldTags != null) for (String tag : oldTags)
+			removeFromBitmap(tagBitmaps, tag, ordinal);
+		removeFromBitmap(channelBitmaps, moleculeUIDtoChannel.get(UID), ordinal);
+		removeFromBitmap(imageBitmaps, moleculeUIDtoImage.get(UID), ordinal);
+		removeFromBitmap(metadataUIDBitmaps, moleculeUIDtoMetadataUID.get(UID),
+			ordinal);
+		parameterColumns.values().removeIf(column -> {
+			column.clear(ordinal);
+			return column.isEmpty();
+		});
+	}
+
+	private void setParameters(int ordinal, Map<String, Object> parameters) {
+		for (Map.Entry<String, Object> entry : parameters.entrySet())
+			parameterColumns.computeIfAbsent(entry.getKey(), ParameterColumn::new)
+				.set(ordinal, entry.getValue());
+	}
+
+	private void updateParameters(int ordinal, Map<String, Object> parameters) {
+		parameterColumns.values().removeIf(column -> {
+			if (parameters.containsKey(column.getName())) return false;
+			column.clear(ordinal);
+			return column.isEmpty();
+		});
+		for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+			ParameterColumn column = parameterColumns.computeIfAbsent(entry
+				.getKey(), ParameterColumn::new);
+			if (!entry.getValue().equals(column.getValue(ordinal))) column.set(
+				ordinal, entry.getValue());
+		}
+	}
+
+	/*
+	 * Parameters are written as flat arrays of alternating names and values so
+	 * readers that do not know these fields can skip them.
+	 */
+	private void writeParameters(JsonGenerator jGenerator, String UID)
+		throws IOException
+	{
+		Map<String, Object> parameters = new LinkedHashMap<>();
+		applyPendingUpdates();
+		bitmapLock.readLock().lock();
+		try {
+			Integer ordinal = moleculeUIDtoOrdinal.get(UID);
+			if (ordinal != null) for (ParameterColumn column : parameterColumns
+				.values())
+			{
+				Object value = column.getValue(ordinal);
+				if (value != null) parameters.put(column.getName(), value);
+			}
+			else {
+				Map<String, Object> loaded = loadedParameters.get(UID);
+				if (loaded != null) parameters.putAll(loaded);
+			}
+		}
+		finally {
+			bitmapLock.readLock().unlock();
+		}
+
+		writeParameters(jGenerator, "doubleParameters", parameters, Double.class);
+		writeParameters(jGenerator, "stringParameters", parameters, String.class);
+		writeParameters(jGenerator, "booleanParameters", parameters,
+			Boolean.class);
+	}
+
+	private static void writeParameters(JsonGenerator jGenerator, String field,
+		Map<String, Object> parameters, Class<?> type) throws IOException
+	{
+		if (parameters.values().stream().noneMatch(type::isInstance)) return;
+		jGenerator.writeArrayFieldStart(field);
+		for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+			Object value = entry.getValue();
+			if (!type.isInstance(value)) continue;
+			jGenerator.writeString(entry.getKey());
+			if (value instanceof Double) jGenerator.writeNumber((Double) value);
+			else if (value instanceof String) jGenerator.writeString((String) value);
+			else jGenerator.writeBoolean((Boolean) value);
+		}
+		jGenerator.writeEndArray();
+	}
+
+	private static void readParameters(JsonParser jParser, String field,
+		Map<String, Object> parameters) throws IOException
+	{
+		while (jParser.nextToken() != JsonToken.END_ARRAY) {
+			String name = jParser.getText();
+			jParser.nextToken();
+			if ("doubleParameters".equals(field)) {
+				// Non-finite values are written as strings.
+				if (jParser.getCurrentToken() == JsonToken.VALUE_STRING) parameters
+					.put(name, Double.parseDouble(jParser.getText()));
+				else parameters.put(name, jParser.getDoubleValue());
+			}
+			else if ("stringParameters".equals(field)) parameters.put(name, jParser
+				.getText());
+			else parameters.put(name, jParser.getBooleanValue());
+		}
+	}
+
+	private static <K> void addToBitmap(Map<K, MarsBitmap> bitmaps, K key,
+		int ordinal)
+	{
+		if (key != null) bitmaps.computeIfAbsent(key, k -> new MarsBitmap()).add(
+			ordinal);
+	}
+
+	private static <K> void updateBitmap(Map<K, MarsBitmap> bitmaps, K oldKey,
+		K key, int ordinal)
+	{
+		if (Objects.equals(oldKey, key)) return;
+		removeFromBitmap(bitmaps, oldKey, ordinal);
+		addToBitmap(bitmaps, key, ordinal);
+	}
+
+	private static <K> void removeFromBitmap(Map<K, MarsBitmap> bitmaps, K key,
+		int ordinal)
+	{
+		if (key == null) return;
+		MarsBitmap bitmap = bitmaps.get(key);
+		if (bitmap == null) return;
+		bitmap.remove(ordinal);
+		if (bitmap.isEmpty()) bitmaps.remove(key);
 	}
 
 	@Override
@@ -372,16 +999,37 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 
 	@Override
 	public void removeMolecule(String UID) {
-		moleculeUIDs.remove(UID);
-		moleculeUIDtoTagList.remove(UID);
-		moleculeUIDtoChannel.remove(UID);
-		moleculeUIDtoImage.remove(UID);
-		moleculeUIDtoMetadataUID.remove(UID);
+		changedMoleculeUIDs.add(UID);
+		moleculeUIDtoTagList.compute(UID, (key, oldTags) -> {
+			bitmapLock.writeLock().lock();
+			try {
+				loadedParameters.remove(UID);
+				applyPendingUpdate(UID);
+				Integer ordinal = moleculeUIDtoOrdinal.remove(UID);
+				if (ordinal != null) {
+					unindexBitmaps(UID, ordinal, oldTags);
+					moleculeBitmap.remove(ordinal);
+					ordinalToMoleculeUID[ordinal] = null;
+					freeOrdinals.add(ordinal);
+				}
+				moleculeUIDs.remove(UID);
+				moleculeUIDtoVersion.remove(UID);
+				moleculeUIDtoChannel.remove(UID);
+				moleculeUIDtoImage.remove(UID);
+				moleculeUIDtoMetadataUID.remove(UID);
+			}
+			finally {
+				bitmapLock.writeLock().unlock();
+			}
+			return null;
+		});
 	}
 
 	@Override
 	public void addMetadata(I metadata) {
+		changedMetadataUIDs.add(metadata.getUID());
 		metadataUIDs.add(metadata.getUID());
+		metadataUIDtoVersion.remove(metadata.getUID());
 		metadataUIDtoTagList.put(metadata.getUID(), metadata.getTags());
 	}
 
@@ -392,7 +1040,9 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 
 	@Override
 	public void removeMetadata(String metadataUID) {
+		changedMetadataUIDs.add(metadataUID);
 		metadataUIDs.remove(metadataUID);
+		metadataUIDtoVersion.remove(metadataUID);
 		metadataUIDtoTagList.remove(metadataUID);
 	}
 
@@ -444,4 +1094,301 @@ public abstract class AbstractMoleculeArchiveIndex<M extends Molecule, I extends
 	public Map<String, String> getMoleculeUIDtoMetadataUIDMap() {
 		return moleculeUIDtoMetadataUID;
 	}
+
+	@Override
+	public String getMoleculeVersion(String UID) {
+		return moleculeUIDtoVersion.get(UID);
+	}
+
+	@Override
+	public void setMoleculeVersion(String UID, String version) {
+		if (version == null) {
+			if (moleculeUIDtoVersion.remove(UID) != null) changedMoleculeUIDs.add(
+				UID);
+		}
+		else if (moleculeUIDs.contains(UID) && !version.equals(moleculeUIDtoVersion
+			.put(UID, version))) changedMoleculeUIDs.add(UID);
+	}
+
+	@Override
+	public String getMetadataVersion(String metadataUID) {
+		return metadataUIDtoVersion.get(metadataUID);
+	}
+
+	@Override
+	public void setMetadataVersion(String metadataUID, String version) {
+		if (version == null) {
+			if (metadataUIDtoVersion.remove(metadataUID) != null) changedMetadataUIDs
+				.add(metadataUID);
+		}
+		else if (metadataUIDs.contains(metadataUID) && !version.equals(
+			metadataUIDtoVersion.put(metadataUID, version))) changedMetadataUIDs.add(
+				metadataUID);
+	}
+
+	@Override
+	public MarsBitmap getMoleculeBitmap() {
+		applyPendingUpdates();
+		bitmapLock.readLock().lock();
+		try {
+			return moleculeBitmap.copy();
+		}
+		finally {
+			bitmapLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public MarsBitmap getTagBitmap(String tag) {
+		return copyBitmap(tagBitmaps, tag);
+	}
+
+	@Override
+	public MarsBitmap getChannelBitmap(int channel) {
+		return copyBitmap(channelBitmaps, channel);
+	}
+
+	@Override
+	public MarsBitmap getImageBitmap(int image) {
+		return copyBitmap(imageBitmaps, image);
+	}
+
+	@Override
+	public MarsBitmap getMetadataUIDBitmap(String metadataUID) {
+		return copyBitmap(metadataUIDBitmaps, metadataUID);
+	}
+
+	/*
+	 * The bitmap maps are plain HashMaps, so the lookup must happen under the
+	 * read lock as well as the copy.
+	 */
+	private <K> MarsBitmap copyBitmap(Map<K, MarsBitmap> bitmaps, K key) {
+		applyPendingUpdates();
+		bitmapLock.readLock().lock();
+		try {
+			MarsBitmap bitmap = bitmaps.get(key);
+			return (bitmap == null) ? new MarsBitmap() : bitmap.copy();
+		}
+		finally {
+			bitmapLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Set<String> getMoleculeUIDsWithTag(String tag) {
+		return getMoleculeUIDSet(getTagBitmap(tag));
+	}
+
+	@Override
+	public Set<String> getMoleculeUIDsWithChannel(int channel) {
+		return getMoleculeUIDSet(getChannelBitmap(channel));
+	}
+
+	@Override
+	public Set<String> getMoleculeUIDsWithImage(int image) {
+		return getMoleculeUIDSet(getImageBitmap(image));
+	}
+
+	@Override
+	public Set<String> getMoleculeUIDsForMetadataUID(String metadataUID) {
+		return getMoleculeUIDSet(getMetadataUIDBitmap(metadataUID));
+	}
+
+	private SortedSet<String> getMoleculeUIDSet(MarsBitmap bitmap) {
+		return Collections.unmodifiableSortedSet(new TreeSet<>(getMoleculeUIDs(
+			bitmap)));
+	}
+
+	/*
+	 * Bitmap lookups without copies used while evaluating selections. The read
+	 * lock must be held by the caller.
+	 */
+	MarsBitmap allMoleculesBitmap() {
+		return moleculeBitmap;
+	}
+
+	MarsBitmap tagBitmap(String tag) {
+		return bitmapOrEmpty(tagBitmaps.get(tag));
+	}
+
+	MarsBitmap channelBitmap(int channel) {
+		return bitmapOrEmpty(channelBitmaps.get(channel));
+	}
+
+	MarsBitmap imageBitmap(int image) {
+		return bitmapOrEmpty(imageBitmaps.get(image));
+	}
+
+	MarsBitmap metadataUIDBitmap(String metadataUID) {
+		return bitmapOrEmpty(metadataUIDBitmaps.get(metadataUID));
+	}
+
+	private static MarsBitmap bitmapOrEmpty(MarsBitmap bitmap) {
+		return (bitmap == null) ? new MarsBitmap() : bitmap;
+	}
+
+	ParameterColumn parameterColumn(String name) {
+		ParameterColumn column = parameterColumns.get(name);
+		return (column == null) ? new ParameterColumn(name) : column;
+	}
+
+	@Override
+	public ParameterColumn getParameterColumn(String name) {
+		applyPendingUpdates();
+		bitmapLock.readLock().lock();
+		try {
+			return parameterColumn(name).copy();
+		}
+		finally {
+			bitmapLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Set<String> getParameterColumnNames() {
+		applyPendingUpdates();
+		bitmapLock.readLock().lock();
+		try {
+			return new LinkedHashSet<>(parameterColumns.keySet());
+		}
+		finally {
+			bitmapLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<String> getMoleculeUIDs(MarsBitmap bitmap) {
+		List<String> UIDs = new ArrayList<>(bitmap.getCardinality());
+		bitmapLock.readLock().lock();
+		try {
+			bitmap.forEach(ordinal -> {
+				if (ordinal < nextOrdinal && ordinalToMoleculeUID[ordinal] != null)
+					UIDs.add(ordinalToMoleculeUID[ordinal]);
+			});
+		}
+		finally {
+			bitmapLock.readLock().unlock();
+		}
+
+		// Ordinals follow UID order for loaded indexes. Molecules added later get
+		// new ordinals so the list only needs sorting in that case.
+		for (int i = 1; i < UIDs.size(); i++)
+			if (UIDs.get(i - 1).compareTo(UIDs.get(i)) > 0) {
+				UIDs.sort(null);
+				break;
+			}
+		return UIDs;
+	}
+
+	@Override
+	public MarsBitmap select(String expression) {
+		applyPendingUpdates();
+		bitmapLock.readLock().lock();
+		try {
+			return new MoleculeSelectionParser(expression, this).evaluate();
+		}
+		finally {
+			bitmapLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public MarsBitmap select(MoleculeQuery query) {
+		applyPendingUpdates();
+		bitmapLock.readLock().lock();
+		try {
+			MarsBitmap result = moleculeBitmap;
+			for (String tag : query.getTags())
+				result = MarsBitmap.and(result, tagBitmap(tag));
+			if (query.getChannel() != null) result = MarsBitmap.and(result,
+				channelBitmap(query.getChannel()));
+			if (query.getImage() != null) result = MarsBitmap.and(result,
+				imageBitmap(query.getImage()));
+			if (query.getMetadataUID() != null) result = MarsBitmap.and(result,
+				metadataUIDBitmap(query.getMetadataUID()));
+			for (MoleculeQuery.ParameterRange range : query.getParameterRanges())
+				result = MarsBitmap.and(result, parameterColumn(range.getName()).range(
+					range.getMin(), range.getMax()));
+			for (String tag : query.getExcludedTags())
+				result = MarsBitmap.andNot(result, tagBitmap(tag));
+			return (result == moleculeBitmap) ? result.copy() : result;
+		}
+		finally {
+			bitmapLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<String> query(MoleculeQuery query) {
+		return getMoleculeUIDs(select(query));
+	}
+
+	/*
+	 * Changes to one molecule not yet applied to the bitmaps. The indexed
+	 * fields hold the entries the bitmaps were built from. Parameters are
+	 * either replaced as a whole or changed one at a time, with null marking a
+	 * removed parameter.
+	 */
+	private static final class PendingUpdate {
+
+		private final Set<String> indexedTags;
+		private final Integer indexedChannel;
+		private final Integer indexedImage;
+		private final String indexedMetadataUID;
+
+		private Set<String> tags;
+		private Integer channel;
+		private Integer image;
+		private String metadataUID;
+		private Map<String, Object> parameters;
+		private final Map<String, Object> changedParameters = new HashMap<>();
+
+		private PendingUpdate(Set<String> tags, Integer channel, Integer image,
+			String metadataUID)
+		{
+			this.indexedTags = tags;
+			this.indexedChannel = channel;
+			this.indexedImage = image;
+			this.indexedMetadataUID = metadataUID;
+			this.tags = tags;
+			this.channel = channel;
+			this.image = image;
+			this.metadataUID = metadataUID;
+		}
+
+		private void setMolecule(Set<String> tags, Integer channel, Integer image,
+			String metadataUID, Map<String, Object> parameters)
+		{
+			this.tags = tags;
+			this.channel = channel;
+			this.image = image;
+			this.metadataUID = metadataUID;
+			this.parameters = parameters;
+			changedParameters.clear();
+		}
+
+		private void setParameter(String parameter, Object value) {
+			if (parameters == null) changedParameters.put(parameter, value);
+			else if (value != null) parameters.put(parameter, value);
+			else parameters.remove(parameter);
+		}
+	}
+
+	private static final class MoleculeEntry {
+
+		private String UID;
+		private String metadataUID;
+		private Set<String> tags;
+		private Integer channel;
+		private Integer image;
+		private final Map<String, Object> parameters = new LinkedHashMap<>();
+		private String version;
+	}
+
+	private static final class MetadataEntry {
+
+		private String UID;
+		private Set<String> tags;
+		private String version;
+	}
 }
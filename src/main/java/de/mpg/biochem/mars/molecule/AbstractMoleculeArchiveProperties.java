@@ -30,11 +30,13 @@
 package de.mpg.biochem.mars.molecule;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import de.mpg.biochem.mars.metadata.MarsMetadata;
 import de.mpg.biochem.mars.util.MarsDocument;
 import de.mpg.biochem.mars.util.MarsUtil;
+import de.mpg.biochem.mars.util.ReferenceCountedSet;
 
 import java.io.File;
 import java.io.IOException;
@@ -66,14 +68,28 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 	public static final String SCHEMA = "2022-04-11";
 	private static final String COMMENTS = "Comments";
 
-	// Sets containing global indexes for various molecule properties.
-	protected Set<String> tagSet;
-	protected Set<String> positionSet;
-	protected Set<String> regionSet;
-	protected Set<String> parameterSet;
-	protected Set<String> moleculeDataTableColumnSet;
-	protected Set<Integer> channelSet;
-	protected Set<List<String>> moleculeSegmentTableNames;
+	// Sets containing global indexes for various molecule properties. Each
+	// entry is counted once for every distinct property group that uses it.
+	// Entries added directly with the add methods are pinned until clear().
+	protected ReferenceCountedSet<String> tagSet;
+	protected ReferenceCountedSet<String> positionSet;
+	protected ReferenceCountedSet<String> regionSet;
+	protected ReferenceCountedSet<String> parameterSet;
+	protected ReferenceCountedSet<String> moleculeDataTableColumnSet;
+	protected ReferenceCountedSet<Integer> channelSet;
+	protected ReferenceCountedSet<List<String>> moleculeSegmentTableNames;
+
+	// Molecules with identical property names share one group, so the sets
+	// above only change when the first molecule of a group is added or the
+	// last one is removed. Only the number of molecules in each group is
+	// stored. After reading, molecules are assigned to their group by UID when
+	// they are first read from the store, see trackMoleculeProperties.
+	private final ConcurrentHashMap<PropertyGroup, PropertyGroup> groups =
+		new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, PropertyGroup> moleculeGroups =
+		new ConcurrentHashMap<>();
+	private final AtomicInteger untrackedMolecules = new AtomicInteger();
+	private List<PropertyGroup> loadedGroups;
 
 	protected MoleculeArchive<? extends Molecule, ? extends MarsMetadata, ? extends MoleculeArchiveProperties<?, ?>, ? extends MoleculeArchiveIndex<?, ?>> parent;
 
@@ -91,13 +107,13 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 		// Initialize default Comments
 		documents.put(COMMENTS, new MarsDocument(COMMENTS));
 
-		tagSet = ConcurrentHashMap.newKeySet();
-		positionSet = ConcurrentHashMap.newKeySet();
-		regionSet = ConcurrentHashMap.newKeySet();
-		channelSet = ConcurrentHashMap.newKeySet();
-		parameterSet = ConcurrentHashMap.newKeySet();
-		moleculeDataTableColumnSet = ConcurrentHashMap.newKeySet();
-		moleculeSegmentTableNames = ConcurrentHashMap.newKeySet();
+		tagSet = new ReferenceCountedSet<>();
+		positionSet = new ReferenceCountedSet<>();
+		regionSet = new ReferenceCountedSet<>();
+		channelSet = new ReferenceCountedSet<>();
+		parameterSet = new ReferenceCountedSet<>();
+		moleculeDataTableColumnSet = new ReferenceCountedSet<>();
+		moleculeSegmentTableNames = new ReferenceCountedSet<>();
 	}
 
 	/**
@@ -243,6 +259,37 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 				positionSet.add(jParser.getText());
 		});
 
+		setJsonField("moleculePropertyGroups", jGenerator -> {
+			if (groups.size() > 0) {
+				jGenerator.writeArrayFieldStart("moleculePropertyGroups");
+				for (PropertyGroup group : groups.values()) {
+					jGenerator.writeStartObject();
+					if (group.channel > -1) jGenerator.writeNumberField("channel",
+						group.channel);
+					writeStringArray(jGenerator, "tags", group.tags);
+					writeStringArray(jGenerator, "parameters", group.parameters);
+					writeStringArray(jGenerator, "regions", group.regions);
+					writeStringArray(jGenerator, "positions", group.positions);
+					writeStringArray(jGenerator, "columns", group.columns);
+					jGenerator.writeArrayFieldStart("segmentTables");
+					for (List<String> segmentTableName : group.segmentTableNames) {
+						jGenerator.writeStartArray();
+						for (String name : segmentTableName)
+							jGenerator.writeString(name);
+						jGenerator.writeEndArray();
+					}
+					jGenerator.writeEndArray();
+					jGenerator.writeNumberField("count", group.references);
+					jGenerator.writeEndObject();
+				}
+				jGenerator.writeEndArray();
+			}
+		}, jParser -> {
+			loadedGroups = new ArrayList<>();
+			while (jParser.nextToken() != JsonToken.END_ARRAY)
+				loadedGroups.add(readPropertyGroup(jParser));
+		});
+
 		setJsonField("documents", jGenerator -> {
 			if (documents.size() > 0) {
 				jGenerator.writeArrayFieldStart("documents");
@@ -329,6 +376,140 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 			new MarsDocument(COMMENTS, jParser.getText())));
 	}
 
+	@Override
+	public void fromJSON(JsonParser jParser) throws IOException {
+		super.fromJSON(jParser);
+
+		// Names in the flat sets start out pinned. Names that are covered by a
+		// stored property group are handed over to the group so they are removed
+		// again with the last molecule that uses them. Stores written before
+		// property groups were introduced keep all names pinned until the next
+		// rebuildIndexes.
+		if (loadedGroups == null) return;
+		List<PropertyGroup> loaded = loadedGroups;
+		loadedGroups = null;
+
+		Set<String> pinnedTags = new HashSet<>(tagSet);
+		Set<String> pinnedParameters = new HashSet<>(parameterSet);
+		Set<String> pinnedRegions = new HashSet<>(regionSet);
+		Set<String> pinnedPositions = new HashSet<>(positionSet);
+		Set<String> pinnedColumns = new HashSet<>(moleculeDataTableColumnSet);
+		Set<Integer> pinnedChannels = new HashSet<>(channelSet);
+		Set<List<String>> pinnedSegmentTableNames = new HashSet<>(
+			moleculeSegmentTableNames);
+
+		for (PropertyGroup group : loaded) {
+			// Groups written with molecule UIDs by earlier versions are tracked.
+			for (String UID : group.UIDs)
+				moleculeGroups.compute(UID, (key, previous) -> {
+					PropertyGroup next = acquire(group);
+					if (previous != null) release(previous);
+					return next;
+				});
+			int untracked = group.count - group.UIDs.size();
+			if (untracked <= 0) continue;
+			groups.compute(group, (key, existing) -> {
+				if (existing == null) existing = retain(group);
+				existing.references += untracked;
+				existing.untracked += untracked;
+				return existing;
+			});
+			untrackedMolecules.addAndGet(untracked);
+		}
+
+		unpin(tagSet, pinnedTags);
+		unpin(parameterSet, pinnedParameters);
+		unpin(regionSet, pinnedRegions);
+		unpin(positionSet, pinnedPositions);
+		unpin(moleculeDataTableColumnSet, pinnedColumns);
+		unpin(channelSet, pinnedChannels);
+		unpin(moleculeSegmentTableNames, pinnedSegmentTableNames);
+	}
+
+	private static <E> void unpin(ReferenceCountedSet<E> set, Set<E> pinned) {
+		for (E element : pinned)
+			if (set.count(element) > 1) set.release(element);
+	}
+
+	private static void writeStringArray(JsonGenerator jGenerator,
+		String fieldName, Collection<String> values) throws IOException
+	{
+		if (values.isEmpty()) return;
+		jGenerator.writeArrayFieldStart(fieldName);
+		for (String value : values)
+			jGenerator.writeString(value);
+		jGenerator.writeEndArray();
+	}
+
+	private static List<String> readStringArray(JsonParser jParser)
+		throws IOException
+	{
+		List<String> values = new ArrayList<>();
+		while (jParser.nextToken() != JsonToken.END_ARRAY)
+			values.add(jParser.getText());
+		return values;
+	}
+
+	private static PropertyGroup readPropertyGroup(JsonParser jParser)
+		throws IOException
+	{
+		int channel = -1;
+		Collection<String> tags = Collections.emptyList();
+		Collection<String> parameters = Collections.emptyList();
+		Collection<String> regions = Collections.emptyList();
+		Collection<String> positions = Collections.emptyList();
+		Collection<String> columns = Collections.emptyList();
+		Collection<List<String>> segmentTableNames = new ArrayList<>();
+		List<String> UIDs = Collections.emptyList();
+		int count = -1;
+
+		while (jParser.nextToken() != JsonToken.END_OBJECT) {
+			String fieldName = jParser.getCurrentName();
+			jParser.nextToken();
+			switch (fieldName) {
+				case "channel":
+					channel = jParser.getIntValue();
+					break;
+				case "tags":
+					tags = readStringArray(jParser);
+					break;
+				case "parameters":
+					parameters = readStringArray(jParser);
+					break;
+				case "regions":
+					regions = readStringArray(jParser);
+					break;
+				case "positions":
+					positions = readStringArray(jParser);
+					break;
+				case "columns":
+					columns = readStringArray(jParser);
+					break;
+				case "segmentTables":
+					while (jParser.nextToken() != JsonToken.END_ARRAY)
+						segmentTableNames.add(readStringArray(jParser));
+					break;
+				case "count":
+					count = jParser.getIntValue();
+					break;
+				case "uids":
+					UIDs = readStringArray(jParser);
+					break;
+				default:
+					if (jParser.getCurrentToken() == JsonToken.START_OBJECT)
+						MarsUtil.passThroughUnknownObjects(jParser);
+					else if (jParser.getCurrentToken() == JsonToken.START_ARRAY)
+						MarsUtil.passThroughUnknownArrays(jParser);
+			}
+		}
+
+		PropertyGroup group = new PropertyGroup(tags, parameters, regions,
+			positions, columns, channel, segmentTableNames);
+		group.UIDs = UIDs;
+		group.count = (count < 0) ? UIDs.size() : count;
+		return group;
+	}
+
 	/**
 	 * Get the Json input schema for the archive. Returns a string with the date
 	 * for the schema definition using to save the archive that has just been
@@ -389,7 +570,7 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 	 * Redefine the set of molecule tags in use.
 	 */
 	public void setTagSet(Set<String> tagSet) {
-		this.tagSet = tagSet;
+		this.tagSet = new ReferenceCountedSet<>(tagSet);
 	}
 
 	/**
@@ -420,7 +601,7 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 	 * starting at 0.
 	 */
 	public void setChannelSet(Set<Integer> channelSet) {
-		this.channelSet = channelSet;
+		this.channelSet = new ReferenceCountedSet<>(channelSet);
 	}
 
 	/**
@@ -450,7 +631,7 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 	 * Redefine the set of parameter names in use.
 	 */
 	public void setParameterSet(Set<String> parameterSet) {
-		this.parameterSet = parameterSet;
+		this.parameterSet = new ReferenceCountedSet<>(parameterSet);
 	}
 
 	/**
@@ -480,7 +661,7 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 	 * Redefine the set of molecule position names in use.
 	 */
 	public void setPositionSet(Set<String> positionSet) {
-		this.positionSet = positionSet;
+		this.positionSet = new ReferenceCountedSet<>(positionSet);
 	}
 
 	/**
@@ -510,7 +691,7 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 	 * Redefine the set of molecule region names in use.
 	 */
 	public void setRegionSet(Set<String> regionSet) {
-		this.regionSet = regionSet;
+		this.regionSet = new ReferenceCountedSet<>(regionSet);
 	}
 
 	/**
@@ -569,7 +750,8 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 	 * Redefine the unique set of column names in use in molecule DataTables.
 	 */
 	public void setColumnSet(Set<String> moleculeDataTableColumnSet) {
-		this.moleculeDataTableColumnSet = moleculeDataTableColumnSet;
+		this.moleculeDataTableColumnSet = new ReferenceCountedSet<>(
+			moleculeDataTableColumnSet);
 	}
 
 	/**
@@ -601,7 +783,8 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 	public void setSegmentsTableNames(
 		Set<List<String>> moleculeSegmentTableNames)
 	{
-		this.moleculeSegmentTableNames = moleculeSegmentTableNames;
+		this.moleculeSegmentTableNames = new ReferenceCountedSet<>(
+			moleculeSegmentTableNames);
 	}
 
 	/**
@@ -675,17 +858,121 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 		moleculeDataTableColumnSet.clear();
 		channelSet.clear();
 		moleculeSegmentTableNames.clear();
+		groups.clear();
+		moleculeGroups.clear();
+		untrackedMolecules.set(0);
 	}
 
 	public void addMoleculeProperties(M molecule) {
-		parameterSet.addAll(molecule.getParameters().keySet());
-		tagSet.addAll(molecule.getTags());
-		regionSet.addAll(molecule.getRegionNames());
-		positionSet.addAll(molecule.getPositionNames());
-		if (molecule.getChannel() > -1) channelSet.add(molecule.getChannel());
-		moleculeDataTableColumnSet.addAll(molecule.getTable()
-			.getColumnHeadingList());
-		moleculeSegmentTableNames.addAll(molecule.getSegmentsTableNames());
+		PropertyGroup group = new PropertyGroup(molecule);
+		moleculeGroups.compute(molecule.getUID(), (UID, previous) -> {
+			PropertyGroup next = acquire(group);
+			if (previous != null) release(previous);
+			return next;
+		});
+	}
+
+	public void updateMoleculeProperties(Molecule molecule) {
+		if (!moleculeGroups.containsKey(molecule.getUID())) return;
+		PropertyGroup group = new PropertyGroup(molecule);
+		moleculeGroups.computeIfPresent(molecule.getUID(), (UID, previous) -> {
+			if (previous.equals(group)) return previous;
+			PropertyGroup next = acquire(group);
+			release(previous);
+			return next;
+		});
+	}
+
+	public void updateMoleculeTag(Molecule molecule, String tag) {
+		boolean tagged = molecule.hasTag(tag);
+		moleculeGroups.computeIfPresent(molecule.getUID(), (UID, previous) -> {
+			if (previous.tags.contains(tag) == tagged) return previous;
+			PropertyGroup next = acquire(previous.withTags(toggle(previous.tags,
+				tag, tagged)));
+			release(previous);
+			return next;
+		});
+	}
+
+	public void updateMoleculeParameter(Molecule molecule, String parameter) {
+		boolean present = molecule.hasParameter(parameter);
+		moleculeGroups.computeIfPresent(molecule.getUID(), (UID, previous) -> {
+			if (previous.parameters.contains(parameter) == present) return previous;
+			PropertyGroup next = acquire(previous.withParameters(toggle(
+				previous.parameters, parameter, present)));
+			release(previous);
+			return next;
+		});
+	}
+
+	private static Set<String> toggle(Set<String> names, String name,
+		boolean present)
+	{
+		Set<String> toggled = new LinkedHashSet<>(names);
+		if (present) toggled.add(name);
+		else toggled.remove(name);
+		return toggled;
+	}
+
+	public boolean hasUntrackedMoleculeProperties(String UID) {
+		return untrackedMolecules.get() > 0 && !moleculeGroups.containsKey(UID);
+	}
+
+	public void trackMoleculeProperties(Molecule molecule) {
+		if (untrackedMolecules.get() == 0) return;
+		PropertyGroup group = new PropertyGroup(molecule);
+		moleculeGroups.computeIfAbsent(molecule.getUID(), UID -> {
+			PropertyGroup[] tracked = new PropertyGroup[1];
+			groups.computeIfPresent(group, (key, existing) -> {
+				if (existing.untracked > 0) {
+					existing.untracked--;
+					untrackedMolecules.decrementAndGet();
+					tracked[0] = existing;
+				}
+				return existing;
+			});
+			return tracked[0];
+		});
+	}
+
+	public void removeMoleculeProperties(String UID) {
+		moleculeGroups.computeIfPresent(UID, (key, previous) -> {
+			release(previous);
+			return null;
+		});
+	}
+
+	private PropertyGroup acquire(PropertyGroup group) {
+		return groups.compute(group, (key, existing) -> {
+			if (existing == null) existing = retain(group);
+			existing.references++;
+			return existing;
+		});
+	}
+
+	private PropertyGroup retain(PropertyGroup group) {
+		group.tags.forEach(tagSet::retain);
+		group.parameters.forEach(parameterSet::retain);
+		group.regions.forEach(regionSet::retain);
+		group.positions.forEach(positionSet::retain);
+		group.columns.forEach(moleculeDataTableColumnSet::retain);
+		if (group.channel > -1) channelSet.retain(group.channel);
+		group.segmentTableNames.forEach(moleculeSegmentTableNames::retain);
+		return group;
+	}
+
+	private void release(PropertyGroup group) {
+		groups.computeIfPresent(group, (key, existing) -> {
+			if (--existing.references > 0) return existing;
+			existing.tags.forEach(tagSet::release);
+			existing.parameters.forEach(parameterSet::release);
+			existing.regions.forEach(regionSet::release);
+			existing.positions.forEach(positionSet::release);
+			existing.columns.forEach(moleculeDataTableColumnSet::release);
+			if (existing.channel > -1) channelSet.release(existing.channel);
+			existing.segmentTableNames.forEach(moleculeSegmentTableNames::release);
+			return null;
+		});
 	}
 
 	public void addMetadataProperties(I metadata) {
@@ -701,4 +988,101 @@ public abstract class AbstractMoleculeArchiveProperties<M extends Molecule, I ex
 	{
 		this.parent = archive;
 	}
+
+	/**
+	 * The names used by one molecule. Instances are compared by content and
+	 * shared between all molecules with the same names.
+	 */
+	private static final class PropertyGroup {
+
+		private final Set<String> tags;
+		private final Set<String> parameters;
+		private final Set<String> regions;
+		private final Set<String> positions;
+		private final Set<String> columns;
+		private final int channel;
+		private final Set<List<String>> segmentTableNames;
+		private final int hashCode;
+
+		// Number of molecules in the group and how many of them are not yet
+		// known by UID, guarded by the groups map.
+		private int references;
+		private int untracked;
+
+		// Only set for groups read from JSON.
+		private List<String> UIDs;
+		private int count;
+
+		PropertyGroup(Molecule molecule) {
+			this(molecule.getTags(), molecule.getParameters().keySet(), molecule
+				.getRegionNames(), molecule.getPositionNames(), molecule.getTable()
+					.getColumnHeadingList(), molecule.getChannel(), molecule
+						.getSegmentsTableNames());
+		}
+
+		PropertyGroup(Collection<String> tags, Collection<String> parameters,
+			Collection<String> regions, Collection<String> positions,
+			Collection<String> columns, int channel,
+			Collection<List<String>> segmentTableNames)
+		{
+			this.tags = copyOf(tags);
+			this.parameters = copyOf(parameters);
+			this.regions = copyOf(regions);
+			this.positions = copyOf(positions);
+			this.columns = copyOf(columns);
+			this.channel = channel;
+			Set<List<String>> segments = new LinkedHashSet<>();
+			for (List<String> segmentTableName : segmentTableNames)
+				segments.add(Collections.unmodifiableList(new ArrayList<>(
+					segmentTableName)));
+			this.segmentTableNames = Collections.unmodifiableSet(segments);
+			this.hashCode = Objects.hash(this.tags, this.parameters, this.regions,
+				this.positions, this.columns, channel, this.segmentTableNames);
+		}
+
+		// Shares the unchanged names with the group it is derived from.
+		private PropertyGroup(PropertyGroup group, Set<String> tags,
+			Set<String> parameters)
+		{
+			this.tags = copyOf(tags);
+			this.parameters = copyOf(parameters);
+			this.regions = group.regions;
+			this.positions = group.positions;
+			this.columns = group.columns;
+			this.channel = group.channel;
+			this.segmentTableNames = group.segmentTableNames;
+			this.hashCode = Objects.hash(this.tags, this.parameters, regions,
+				positions, columns, channel, segmentTableNames);
+		}
+
+		PropertyGroup withTags(Set<String> tags) {
+			return new PropertyGroup(this, tags, parameters);
+		}
+
+		PropertyGroup withParameters(Set<String> parameters) {
+			return new PropertyGroup(this, tags, parameters);
+		}
+
+		private static Set<String> copyOf(Collection<String> values) {
+			return values.isEmpty() ? Collections.emptySet() : Collections
+				.unmodifiableSet(new LinkedHashSet<>(values));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof PropertyGroup)) return false;
+			PropertyGroup other = (PropertyGroup) o;
+			return hashCode == other.hashCode && channel == other.channel && tags
+				.equals(other.tags) && parameters.equals(other.parameters) && regions
+					.equals(other.regions) && positions.equals(other.positions) &&
+				columns.equals(other.columns) && segmentTableNames.equals(
+					other.segmentTableNames);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
 }
@@ -192,14 +192,12 @@ public class ArchiveUtils {
 			if (use_incomplete_traces) {
 				// For all molecules in this dataset that are marked with the background
 				// tag and have all Ts
-				Stream<String> UIDs = archive.getMoleculeUIDs().stream().filter(
-					UID -> archive.getMetadataUIDforMolecule(UID).equals(meta.getUID()))
-					.filter(UID -> archive.moleculeHasTag(UID, backgroundTag));
+				MoleculeQuery query = MoleculeQuery.all().withMetadataUID(meta
+					.getUID()).withTag(backgroundTag);
 
-				if (singleChannel) UIDs = UIDs.filter(UID -> archive.getChannel(
-					UID) == channel);
+				if (singleChannel) query.withChannel(channel);
 
-				UIDs.forEach(UID -> {
+				archive.moleculeUIDs(query).forEach(UID -> {
 					MarsTable datatable = archive.get(UID).getTable();
 					double x_mean = datatable.mean(input_x);
 					double y_mean = datatable.mean(input_y);
@@ -217,14 +215,12 @@ public class ArchiveUtils {
 				// For all molecules in this dataset that are marked with the background
 				// tag and have all Ts
 				long[] numFullTrajectory = new long[1];
-				Stream<String> UIDs = archive.getMoleculeUIDs().stream().filter(
-					UID -> archive.getMetadataUIDforMolecule(UID).equals(meta.getUID()))
-					.filter(UID -> archive.moleculeHasTag(UID, backgroundTag));
+				MoleculeQuery query = MoleculeQuery.all().withMetadataUID(meta
+					.getUID()).withTag(backgroundTag);
 
-				if (singleChannel) UIDs = UIDs.filter(UID -> archive.getChannel(
-					UID) == channel);
+				if (singleChannel) query.withChannel(channel);
 
-				UIDs.forEach(UID -> {
+				archive.moleculeUIDs(query).forEach(UID -> {
 					MarsTable datatable = archive.get(UID).getTable();
 					if (archive.get(UID).getTable().getRowCount() == sizeT) {
 						double x_mean = datatable.mean(input_x);
@@ -428,6 +424,10 @@ public class ArchiveUtils {
 		Map<String, String> oldHeaderToNewHeader =
 				new ConcurrentHashMap<>();
 
+		// Every molecule is put back below, which adds its updated names to the
+		// properties again.
+		archive.properties().clear();
+
 		// Check and update molecule table headers
 		archive.parallelMolecules().forEach(molecule -> {
 			MarsTable table = molecule.getTable();
@@ -624,12 +624,14 @@ public class ArchiveUtils {
 			archive.putMetadata(metadata);
 		});
 
-		try {
-			archive.rebuildIndexes();
-		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		// All records were put back so the index and properties are current.
+		if (archive.isVirtual()) {
+			try {
+				archive.save();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 
 		log += "\n" + LogBuilder.endBlock(true);
@@ -29,9 +29,12 @@
 
 package de.mpg.biochem.mars.molecule;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 
+import com.fasterxml.jackson.core.JsonParser;
+
 import de.mpg.biochem.mars.kcp.commands.KCPCommand;
 import de.mpg.biochem.mars.metadata.MarsMetadata;
 import de.mpg.biochem.mars.table.MarsTable;
@@ -252,4 +255,24 @@ public interface Molecule extends JsonConvertibleRecord, MarsRecord {
 	 * @param molecule Molecule to merge into this one.
 	 */
 	void merge(Molecule molecule);
+
+	/**
+	 * Read the molecule record decoding only the fields included in the
+	 * {@link Projection} provided. All other fields are skipped.
+	 * 
+	 * @param jParser A JsonParser at the start of the molecule record Json.
+	 * @param projection The fields to decode.
+	 * @throws IOException Thrown if unable to read Json from the JsonParser
+	 *           stream.
+	 */
+	void fromJSON(JsonParser jParser, Projection projection) throws IOException;
+
+	/**
+	 * Get the {@link Projection} used when this record was read. Records read
+	 * with a projection are incomplete and should not be put back into a
+	 * {@link MoleculeArchive}.
+	 * 
+	 * @return The projection or null if the record was read in full.
+	 */
+	Projection getProjection();
 }
@@ -42,6 +42,8 @@ import com.fasterxml.jackson.core.JsonParser;
 import de.mpg.biochem.mars.io.MoleculeArchiveSource;
 import de.mpg.biochem.mars.metadata.MarsMetadata;
 import de.mpg.biochem.mars.table.MarsTable;
+import de.mpg.biochem.mars.table.MarsTableCodec;
+import de.mpg.biochem.mars.util.MarsBitmap;
 
 /**
  * MoleculeArchives are the primary storage structure of Mars datasets.
@@ -92,6 +94,27 @@ public interface MoleculeArchive<M extends Molecule, I extends MarsMetadata, P e
 	 */
 	void rebuildIndexes(final int nThreads) throws IOException;
 
+	/**
+	 * Update the indexes of a virtual store by reading only the records that
+	 * were added or changed since the indexes were last written. Entries for
+	 * records that were deleted are removed. Then save the indexes to the
+	 * store. Falls back to {@link #rebuildIndexes()} when changes cannot be
+	 * detected.
+	 * 
+	 * @throws IOException if something goes wrong saving the indexes.
+	 */
+	void updateIndexes() throws IOException;
+
+	/**
+	 * Update the indexes of a virtual store by reading only the records that
+	 * were added or changed since the indexes were last written. Use the number
+	 * of threads specified.
+	 * 
+	 * @param nThreads The thread count.
+	 * @throws IOException if something goes wrong saving the indexes.
+	 */
+	void updateIndexes(final int nThreads) throws IOException;
+
 	/**
 	 * Saves the MoleculeArchive to the file from which it was opened.
 	 * 
@@ -99,6 +122,23 @@ public interface MoleculeArchive<M extends Molecule, I extends MarsMetadata, P e
 	 */
 	void save() throws IOException;
 
+	/**
+	 * Blocks until all molecule records that are queued for writing have been
+	 * written to the source. Only relevant for virtual archives in write-behind
+	 * mode.
+	 * 
+	 * @throws IOException if any queued record could not be written.
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Writes all queued molecule records and releases resources held for
+	 * writing to the source.
+	 * 
+	 * @throws IOException if any queued record could not be written.
+	 */
+	void close() throws IOException;
+
 	/**
 	 * Saves MoleculeArchive to the given file destination in smile format.
 	 * 
@@ -233,6 +273,50 @@ public interface MoleculeArchive<M extends Molecule, I extends MarsMetadata, P e
 	File saveAsJsonVirtualStore(File virtualDirectory, final int nThreads)
 		throws IOException;
 
+	/**
+	 * Creates the directory given and a virtual store inside that keeps all
+	 * molecule and metadata records in a few large pack files in smile format
+	 * instead of one file per record. Indexes are rebuilt while saving if the
+	 * archive was loaded from a virtual store.
+	 *
+	 * @param virtualDirectory a directory destination for the virtual store.
+	 * @return the directory where the store was saved.
+	 * @throws IOException if something goes wrong creating the virtual store.
+	 */
+	File saveAsPackedVirtualStore(File virtualDirectory) throws IOException;
+
+	/**
+	 * Creates the directory given and a virtual store inside that keeps all
+	 * molecule and metadata records in a few large pack files in smile format
+	 * instead of one file per record. Indexes are rebuilt while saving if the
+	 * archive was loaded from a virtual store.
+	 *
+	 * @param virtualDirectory a directory destination for the virtual store.
+	 * @param nThreads The thread count.
+	 * @return the directory where the store was saved.
+	 * @throws IOException if something goes wrong creating the virtual store.
+	 */
+	File saveAsPackedVirtualStore(File virtualDirectory, final int nThreads)
+		throws IOException;
+
+	/**
+	 * Set the codec used to compress the DoubleColumns of molecule tables when
+	 * molecule records are saved in smile format. Faster codecs such as
+	 * {@link MarsTableCodec#RAW} reduce loading times at the cost of larger
+	 * files. Tables are read regardless of the codec they were written with.
+	 *
+	 * @param codec The codec to use for all subsequent saves.
+	 */
+	void setTableCodec(MarsTableCodec codec);
+
+	/**
+	 * Get the codec used to compress the DoubleColumns of molecule tables when
+	 * molecule records are saved in smile format.
+	 *
+	 * @return The codec used when saving.
+	 */
+	MarsTableCodec getTableCodec();
+
 	/**
 	 * Adds a molecule to the archive. If a molecule with the same UID is already
 	 * in the archive, the record is updated. All indexes are updated with the
@@ -349,6 +433,55 @@ public interface MoleculeArchive<M extends Molecule, I extends MarsMetadata, P e
 	 */
 	List<String> getMoleculeUIDs();
 
+	/**
+	 * Retrieves the UIDs of the Molecule records matching the query given. The
+	 * query is answered from the index without retrieving any records. For
+	 * example, archive.moleculeUIDs(MoleculeQuery.all().withTag("Active")
+	 * .withChannel(1)).
+	 * 
+	 * @param query The {@link MoleculeQuery} to evaluate.
+	 * @return The sorted list of matching Molecule UIDs.
+	 */
+	List<String> moleculeUIDs(MoleculeQuery query);
+
+	/**
+	 * Retrieves the UIDs of the Molecule records selected by an expression such
+	 * as "tagA AND NOT tagB AND channel=1". Conditions are tags, channel=N,
+	 * image=N, metadata=UID and parameter comparisons such as Variance&gt;0.5
+	 * combined with AND, OR, NOT and parentheses.
+	 * Keywords are upper case and tags can be given in double quotes. The
+	 * selection is evaluated on compressed bitmaps in the index without
+	 * retrieving any records.
+	 * 
+	 * @param expression The selection expression.
+	 * @return The sorted list of selected Molecule UIDs.
+	 * @throws IllegalArgumentException if the expression is malformed.
+	 */
+	List<String> select(String expression);
+
+	/**
+	 * Evaluates a selection expression as for {@link #select(String)} and
+	 * returns the selected molecule ordinals as a bitmap. Bitmaps can be combined
+	 * with the static operations of {@link MarsBitmap} and converted to UIDs
+	 * using the index.
+	 * 
+	 * @param expression The selection expression.
+	 * @return Bitmap of the ordinals of the selected molecules.
+	 * @throws IllegalArgumentException if the expression is malformed.
+	 */
+	MarsBitmap selectBitmap(String expression);
+
+	/**
+	 * Retrieves the values of a molecule parameter for all molecules from the
+	 * index without retrieving any records. Useful for histograms and range
+	 * queries over the whole archive. Ordinals in the column can be converted to
+	 * UIDs using {@link MoleculeArchiveIndex#getMoleculeUIDs(MarsBitmap)}.
+	 * 
+	 * @param name The parameter name.
+	 * @return A snapshot of the {@link ParameterColumn} for the parameter.
+	 */
+	ParameterColumn parameterColumn(String name);
+
 	/**
 	 * Comma separated list of tags for the molecule with the given UID.
 	 * 
@@ -523,6 +656,19 @@ public interface MoleculeArchive<M extends Molecule, I extends MarsMetadata, P e
 	 */
 	M get(String UID);
 
+	/**
+	 * Get the molecule record with the given UID decoding only the fields
+	 * included in the {@link Projection} provided. Intended for read-only passes
+	 * over virtual archives that only need part of each record. Records read
+	 * with a projection are not cached and cannot be put back into the archive.
+	 * If the record is already in memory, the complete record is returned.
+	 * 
+	 * @param UID The UID of the record to retrieve.
+	 * @param projection The fields to decode.
+	 * @return The Molecule record with the UID given or null if none is located.
+	 */
+	M get(String UID, Projection projection);
+
 	/**
 	 * Retrieves the molecule record at the provided index.
 	 * 
@@ -648,6 +794,15 @@ public interface MoleculeArchive<M extends Molecule, I extends MarsMetadata, P e
 	 */
 	MoleculeArchiveProperties<M, I> properties();
 
+	/**
+	 * Get the {@link MoleculeArchiveIndex} which maps molecule UIDs to tags,
+	 * channels, images and metadata UIDs and back. The index is maintained in
+	 * both virtual and in-memory mode.
+	 * 
+	 * @return The {@link MoleculeArchiveIndex} for the {@link MoleculeArchive}.
+	 */
+	MoleculeArchiveIndex<M, I> index();
+
 	/**
 	 * Create empty MoleculeArchiveProperties record.
 	 * 
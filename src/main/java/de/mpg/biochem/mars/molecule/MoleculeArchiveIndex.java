@@ -31,13 +31,17 @@ package de.mpg.biochem.mars.molecule;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 
 import de.mpg.biochem.mars.metadata.MarsMetadata;
+import de.mpg.biochem.mars.util.MarsBitmap;
 
 public interface MoleculeArchiveIndex<M extends Molecule, I extends MarsMetadata>
 	extends JsonConvertibleRecord
@@ -74,4 +78,232 @@ public interface MoleculeArchiveIndex<M extends Molecule, I extends MarsMetadata
 	Map<String, String> getMoleculeUIDtoMetadataUIDMap();
 
 	String getMetadataUIDforMolecule(String UID);
+
+	/**
+	 * Get the version of the stored molecule record this index entry was built
+	 * from, as reported by the MoleculeArchiveSource.
+	 * 
+	 * @param UID The molecule UID.
+	 * @return The record version or null if unknown.
+	 */
+	String getMoleculeVersion(String UID);
+
+	/**
+	 * Set the version of the stored molecule record this index entry was built
+	 * from. The version is cleared whenever the molecule is indexed again.
+	 * 
+	 * @param UID The molecule UID.
+	 * @param version The record version.
+	 */
+	void setMoleculeVersion(String UID, String version);
+
+	/**
+	 * Get the version of the stored metadata record this index entry was built
+	 * from, as reported by the MoleculeArchiveSource.
+	 * 
+	 * @param metadataUID The metadata UID.
+	 * @return The record version or null if unknown.
+	 */
+	String getMetadataVersion(String metadataUID);
+
+	/**
+	 * Set the version of the stored metadata record this index entry was built
+	 * from. The version is cleared whenever the metadata record is indexed
+	 * again.
+	 * 
+	 * @param metadataUID The metadata UID.
+	 * @param version The record version.
+	 */
+	void setMetadataVersion(String metadataUID, String version);
+
+	/**
+	 * Get the number of molecule and metadata entries that were added, changed
+	 * or removed since the index was read or last written, either in full or
+	 * to the journal.
+	 * 
+	 * @return The number of changed entries.
+	 */
+	int getNumberOfChanges();
+
+	/**
+	 * Get the number of entries written to the journal since the index was last
+	 * written in full.
+	 * 
+	 * @return The number of journal entries.
+	 */
+	int getJournalLength();
+
+	/**
+	 * Write the entries changed since the last call as one journal batch. Each
+	 * batch records the current state of the changed entries, so replaying a
+	 * batch more than once gives the same result.
+	 * 
+	 * @param jGenerator The generator to write the batch to.
+	 * @throws IOException if the batch cannot be written.
+	 */
+	void writeJournal(JsonGenerator jGenerator) throws IOException;
+
+	/**
+	 * Apply a journal batch written with {@link #writeJournal(JsonGenerator)}.
+	 * Batches written before the index was last written in full are ignored.
+	 * 
+	 * @param jParser The parser at the start of the batch.
+	 * @return true if the batch was applied.
+	 * @throws IOException if the batch cannot be read.
+	 */
+	boolean readJournal(JsonParser jParser) throws IOException;
+
+	/**
+	 * Start a new journal. Called before the index is written in full so that
+	 * batches journaled before are ignored afterwards.
+	 */
+	void clearJournal();
+
+	/**
+	 * Update the index entries of a molecule already in the index. Molecules not
+	 * in the index are ignored. Bitmaps and parameter columns may be updated
+	 * lazily, before they are next read.
+	 * 
+	 * @param molecule The molecule whose tags, channel, image or metadata UID
+	 *          changed.
+	 */
+	void updateMolecule(Molecule molecule);
+
+	/**
+	 * Update the index entry of a single parameter of a molecule already in the
+	 * index. Only the column of that parameter is changed. Molecules not in the
+	 * index are ignored.
+	 * 
+	 * @param molecule The molecule whose parameter was set or removed.
+	 * @param parameter The name of the parameter.
+	 */
+	void updateMoleculeParameter(Molecule molecule, String parameter);
+
+	/**
+	 * Get the ordinals of all molecules in the index. Molecule ordinals are dense
+	 * integers assigned by the index and are only meaningful for the index that
+	 * created them.
+	 * 
+	 * @return Bitmap of the ordinals of all molecules.
+	 */
+	MarsBitmap getMoleculeBitmap();
+
+	/**
+	 * Get the ordinals of all molecules with a tag.
+	 * 
+	 * @param tag The tag to look up.
+	 * @return Bitmap of the ordinals of molecules with the tag.
+	 */
+	MarsBitmap getTagBitmap(String tag);
+
+	/**
+	 * Get the ordinals of all molecules in a channel.
+	 * 
+	 * @param channel The channel index to look up.
+	 * @return Bitmap of the ordinals of molecules in the channel.
+	 */
+	MarsBitmap getChannelBitmap(int channel);
+
+	/**
+	 * Get the ordinals of all molecules from an image.
+	 * 
+	 * @param image The image index to look up.
+	 * @return Bitmap of the ordinals of molecules from the image.
+	 */
+	MarsBitmap getImageBitmap(int image);
+
+	/**
+	 * Get the ordinals of all molecules linked to a metadata record.
+	 * 
+	 * @param metadataUID The metadata UID to look up.
+	 * @return Bitmap of the ordinals of molecules linked to the metadata record.
+	 */
+	MarsBitmap getMetadataUIDBitmap(String metadataUID);
+
+	/**
+	 * Get the values of a parameter for all molecules by ordinal. The column is
+	 * a snapshot and is empty if no molecule has the parameter.
+	 * 
+	 * @param name The parameter name.
+	 * @return The {@link ParameterColumn} for the parameter.
+	 */
+	ParameterColumn getParameterColumn(String name);
+
+	/**
+	 * Get the names of all parameters with a column in the index.
+	 * 
+	 * @return The set of parameter names.
+	 */
+	Set<String> getParameterColumnNames();
+
+	/**
+	 * Get the UIDs of all molecules with a tag.
+	 * 
+	 * @param tag The tag to look up.
+	 * @return Unmodifiable sorted snapshot of the UIDs with the tag.
+	 */
+	Set<String> getMoleculeUIDsWithTag(String tag);
+
+	/**
+	 * Get the UIDs of all molecules in a channel.
+	 * 
+	 * @param channel The channel index to look up.
+	 * @return Unmodifiable sorted snapshot of the UIDs in the channel.
+	 */
+	Set<String> getMoleculeUIDsWithChannel(int channel);
+
+	/**
+	 * Get the UIDs of all molecules from an image.
+	 * 
+	 * @param image The image index to look up.
+	 * @return Unmodifiable sorted snapshot of the UIDs from the image.
+	 */
+	Set<String> getMoleculeUIDsWithImage(int image);
+
+	/**
+	 * Get the UIDs of all molecules linked to a metadata record.
+	 * 
+	 * @param metadataUID The metadata UID to look up.
+	 * @return Unmodifiable sorted snapshot of the UIDs linked to the metadata
+	 *         record.
+	 */
+	Set<String> getMoleculeUIDsForMetadataUID(String metadataUID);
+
+	/**
+	 * Get the UIDs of the molecules with the ordinals given. Ordinals of removed
+	 * molecules are reused for molecules added later, so bitmaps should be
+	 * resolved before the molecules in the index change.
+	 * 
+	 * @param bitmap Bitmap of molecule ordinals from this index.
+	 * @return Sorted list of molecule UIDs.
+	 */
+	List<String> getMoleculeUIDs(MarsBitmap bitmap);
+
+	/**
+	 * Evaluate a selection expression such as "tagA AND NOT tagB AND channel=1".
+	 * Conditions are tags, channel=N, image=N, metadata=UID and parameter
+	 * comparisons such as Variance&gt;0.5 combined with AND, OR, NOT and
+	 * parentheses.
+	 * 
+	 * @param expression The selection expression.
+	 * @return Bitmap of the ordinals of the selected molecules.
+	 * @throws IllegalArgumentException if the expression is malformed.
+	 */
+	MarsBitmap select(String expression);
+
+	/**
+	 * Evaluate a query.
+	 * 
+	 * @param query The query to evaluate.
+	 * @return Bitmap of the ordinals of the matching molecules.
+	 */
+	MarsBitmap select(MoleculeQuery query);
+
+	/**
+	 * Get the UIDs of all molecules matching a query.
+	 * 
+	 * @param query The query to evaluate.
+	 * @return Sorted list of the matching molecule UIDs.
+	 */
+	List<String> query(MoleculeQuery query);
 }
@@ -386,12 +386,72 @@ public interface MoleculeArchiveProperties<M extends Molecule, I extends MarsMet
 	void clear();
 
 	/**
-	 * Update global sets to include molecule properties.
+	 * Update global sets to include molecule properties. If the archive already
+	 * held a version of the molecule, entries only used by that version are
+	 * removed.
 	 * 
 	 * @param molecule The {@link Molecule} to add the properties from.
 	 */
 	void addMoleculeProperties(M molecule);
 
+	/**
+	 * Update global sets for a molecule whose properties changed. Entries only
+	 * used by the previous version of the molecule are removed. Molecules that
+	 * were never added are ignored.
+	 * 
+	 * @param molecule The {@link Molecule} that changed.
+	 */
+	void updateMoleculeProperties(Molecule molecule);
+
+	/**
+	 * Update global sets after a tag was added to or removed from a molecule.
+	 * Only the tag given is compared with the previous version of the molecule.
+	 * 
+	 * @param molecule The {@link Molecule} that changed.
+	 * @param tag The tag that was added or removed.
+	 */
+	void updateMoleculeTag(Molecule molecule, String tag);
+
+	/**
+	 * Update global sets after a parameter was set or removed on a molecule.
+	 * Only the parameter given is compared with the previous version of the
+	 * molecule.
+	 * 
+	 * @param molecule The {@link Molecule} that changed.
+	 * @param parameter The name of the parameter that was set or removed.
+	 */
+	void updateMoleculeParameter(Molecule molecule, String parameter);
+
+	/**
+	 * Check whether the properties of a molecule are counted in the global sets
+	 * but the molecule has not been matched to them by UID yet. This is the case
+	 * for molecules in a virtual store that were not read since the properties
+	 * were loaded.
+	 * 
+	 * @param UID The UID of the {@link Molecule}.
+	 * @return true if the molecule should be passed to
+	 *         {@link #trackMoleculeProperties(Molecule)} before it is changed or
+	 *         removed.
+	 */
+	boolean hasUntrackedMoleculeProperties(String UID);
+
+	/**
+	 * Match a molecule read from a virtual store to the properties counted for
+	 * it when the properties were loaded, so later changes and removal update
+	 * the global sets. Molecules that are already matched are ignored.
+	 * 
+	 * @param molecule The {@link Molecule} as stored.
+	 */
+	void trackMoleculeProperties(Molecule molecule);
+
+	/**
+	 * Remove the contribution of a molecule from the global sets. Entries no
+	 * other molecule uses are removed.
+	 * 
+	 * @param UID The UID of the {@link Molecule} removed from the archive.
+	 */
+	void removeMoleculeProperties(String UID);
+
 	/**
 	 * Update global sets to include metadata properties.
 	 * 
@@ -229,7 +229,16 @@ public class MoleculeArchiveService extends
 	}
 
 	public void removeArchive(MoleculeArchive archive) {
-		if (archive != null) objectService.removeObject(archive);
+		if (archive != null) {
+			try {
+				archive.close();
+			}
+			catch (IOException e) {
+				logService.error("Failed to write pending records of " + archive
+					.getName() + ".", e);
+			}
+			objectService.removeObject(archive);
+		}
 
 		if (archive != null && displayService.getDisplays(archive).size() > 0)
 			objectService.removeObject(displayService.getDisplays(archive).get(0));
@@ -0,0 +1,193 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.molecule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selection of molecules by tag, channel, image, metadata UID and parameter
+ * value. Queries are answered from the bitmaps and parameter columns of the
+ * {@link MoleculeArchiveIndex} without retrieving any molecule records. All
+ * conditions must hold for a molecule to be selected. For example:
+ * 
+ * <pre>
+ * List&lt;String&gt; UIDs = archive.moleculeUIDs(MoleculeQuery.all().withTag(
+ * 	"Active").withoutTag("Reject").withChannel(1).withParameterInRange(
+ * 	"Variance", 0, 2.5));
+ * </pre>
+ */
+public class MoleculeQuery {
+
+	private final Set<String> tags = new LinkedHashSet<>();
+	private final Set<String> excludedTags = new LinkedHashSet<>();
+	private Integer channel;
+	private Integer image;
+	private String metadataUID;
+	private final List<ParameterRange> parameterRanges = new ArrayList<>();
+
+	private MoleculeQuery() {}
+
+	/**
+	 * Create a query that selects all molecules. Conditions are added using the
+	 * with methods.
+	 * 
+	 * @return A new query without conditions.
+	 */
+	public static MoleculeQuery all() {
+		return new MoleculeQuery();
+	}
+
+	/**
+	 * Only select molecules with a tag.
+	 * 
+	 * @param tag The tag molecules must have.
+	 * @return This query.
+	 */
+	public MoleculeQuery withTag(String tag) {
+		tags.add(tag);
+		return this;
+	}
+
+	/**
+	 * Only select molecules without a tag.
+	 * 
+	 * @param tag The tag molecules must not have.
+	 * @return This query.
+	 */
+	public MoleculeQuery withoutTag(String tag) {
+		excludedTags.add(tag);
+		return this;
+	}
+
+	/**
+	 * Only select molecules in a channel.
+	 * 
+	 * @param channel The channel index.
+	 * @return This query.
+	 */
+	public MoleculeQuery withChannel(int channel) {
+		this.channel = channel;
+		return this;
+	}
+
+	/**
+	 * Only select molecules from an image.
+	 * 
+	 * @param image The image index.
+	 * @return This query.
+	 */
+	public MoleculeQuery withImage(int image) {
+		this.image = image;
+		return this;
+	}
+
+	/**
+	 * Only select molecules linked to a metadata record.
+	 * 
+	 * @param metadataUID The UID of the metadata record.
+	 * @return This query.
+	 */
+	public MoleculeQuery withMetadataUID(String metadataUID) {
+		this.metadataUID = metadataUID;
+		return this;
+	}
+
+	/**
+	 * Only select molecules with a double parameter value from min to max
+	 * inclusive. The values are read from the parameter columns of the index.
+	 * 
+	 * @param parameter The parameter name.
+	 * @param min The lower bound.
+	 * @param max The upper bound.
+	 * @return This query.
+	 */
+	public MoleculeQuery withParameterInRange(String parameter, double min,
+		double max)
+	{
+		parameterRanges.add(new ParameterRange(parameter, min, max));
+		return this;
+	}
+
+	public Set<String> getTags() {
+		return Collections.unmodifiableSet(tags);
+	}
+
+	public Set<String> getExcludedTags() {
+		return Collections.unmodifiableSet(excludedTags);
+	}
+
+	public Integer getChannel() {
+		return channel;
+	}
+
+	public Integer getImage() {
+		return image;
+	}
+
+	public String getMetadataUID() {
+		return metadataUID;
+	}
+
+	public List<ParameterRange> getParameterRanges() {
+		return Collections.unmodifiableList(parameterRanges);
+	}
+
+	/**
+	 * Inclusive range of values for a parameter.
+	 */
+	public static class ParameterRange {
+
+		private final String name;
+		private final double min;
+		private final double max;
+
+		public ParameterRange(String name, double min, double max) {
+			this.name = name;
+			this.min = min;
+			this.max = max;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+	}
+}
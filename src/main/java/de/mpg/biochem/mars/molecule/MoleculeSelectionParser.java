@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.molecule;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.mpg.biochem.mars.util.MarsBitmap;
+
+/**
+ * Evaluates molecule selection expressions against the bitmaps of a
+ * {@link AbstractMoleculeArchiveIndex}. The grammar is:
+ * 
+ * <pre>
+ * expression = term { "OR" term }
+ * term       = factor { "AND" factor }
+ * factor     = "NOT" factor | "(" expression ")" | condition
+ * condition  = "channel=" integer | "image=" integer | "metadata=" UID
+ *            | "tag=" tag | parameter operator value | tag
+ * operator   = "=" | "&lt;" | "&lt;=" | "&gt;" | "&gt;="
+ * </pre>
+ * 
+ * Parameter conditions are evaluated with the parameter columns of the index.
+ * 
+ * Keywords are upper case. Tags containing spaces, parentheses or equal signs
+ * or matching a keyword can be given in double quotes. The read lock of the
+ * index bitmaps must be held while evaluating.
+ */
+class MoleculeSelectionParser {
+
+	private final String expression;
+	private final AbstractMoleculeArchiveIndex<?, ?> index;
+	private final List<Token> tokens;
+	private int position;
+
+	MoleculeSelectionParser(String expression,
+		AbstractMoleculeArchiveIndex<?, ?> index)
+	{
+		this.expression = expression;
+		this.index = index;
+		this.tokens = tokenize(expression);
+	}
+
+	MarsBitmap evaluate() {
+		if (tokens.isEmpty()) return index.allMoleculesBitmap().copy();
+		MarsBitmap result = expression();
+		if (position < tokens.size()) throw error("Unexpected '" + tokens.get(
+			position).text + "'");
+		// Conditions on a single bitmap return the index bitmap itself.
+		return result.copy();
+	}
+
+	private MarsBitmap expression() {
+		MarsBitmap result = term();
+		while (nextIsKeyword("OR")) {
+			position++;
+			result = MarsBitmap.or(result, term());
+		}
+		return result;
+	}
+
+	private MarsBitmap term() {
+		MarsBitmap result = factor();
+		while (nextIsKeyword("AND")) {
+			position++;
+			if (nextIsKeyword("NOT")) {
+				position++;
+				result = MarsBitmap.andNot(result, factor());
+			}
+			else result = MarsBitmap.and(result, factor());
+		}
+		return result;
+	}
+
+	private MarsBitmap factor() {
+		if (position == tokens.size()) throw error("Unexpected end");
+		Token token = tokens.get(position++);
+		if (!token.quoted) {
+			if (token.text.equals("NOT")) return MarsBitmap.andNot(index
+				.allMoleculesBitmap(), factor());
+			if (token.text.equals("(")) {
+				MarsBitmap result = expression();
+				if (!nextIsKeyword(")")) throw error("Missing ')'");
+				position++;
+				return result;
+			}
+			if (token.text.equals(")") || token.text.equals("AND") || token.text
+				.equals("OR")) throw error("Unexpected '" + token.text + "'");
+			int operator = operatorIndex(token.text);
+			if (operator > 0) return condition(token.text.substring(0, operator),
+				token.text.substring(operator));
+		}
+		return index.tagBitmap(token.text);
+	}
+
+	private static int operatorIndex(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '=' || c == '<' || c == '>') return i;
+		}
+		return -1;
+	}
+
+	private MarsBitmap condition(String key, String comparison) {
+		String operator = (comparison.startsWith("<=") || comparison.startsWith(
+			">=")) ? comparison.substring(0, 2) : comparison.substring(0, 1);
+		String value = comparison.substring(operator.length());
+
+		if (operator.equals("=")) {
+			switch (key) {
+				case "channel":
+					return index.channelBitmap(parseInteger(key, value));
+				case "image":
+					return index.imageBitmap(parseInteger(key, value));
+				case "metadata":
+					return index.metadataUIDBitmap(value);
+				case "tag":
+					return index.tagBitmap(value);
+			}
+		}
+		return parameterCondition(key, operator, value);
+	}
+
+	/*
+	 * Any other key is a parameter name. Values are compared as doubles when
+	 * possible and otherwise as strings or booleans for equality.
+	 */
+	private MarsBitmap parameterCondition(String parameter, String operator,
+		String value)
+	{
+		ParameterColumn column = index.parameterColumn(parameter);
+		double number;
+		try {
+			number = Double.parseDouble(value);
+		}
+		catch (NumberFormatException e) {
+			if (!operator.equals("=")) throw error(parameter + operator +
+				" requires a number but was '" + value + "'");
+			if (value.equals("true") || value.equals("false")) return column
+				.equalTo(Boolean.parseBoolean(value));
+			return column.equalTo(value);
+		}
+
+		switch (operator) {
+			case "<":
+				return column.range(Double.NEGATIVE_INFINITY, true, number, false);
+			case "<=":
+				return column.range(Double.NEGATIVE_INFINITY, true, number, true);
+			case ">":
+				return column.range(number, false, Double.POSITIVE_INFINITY, true);
+			case ">=":
+				return column.range(number, true, Double.POSITIVE_INFINITY, true);
+			default:
+				return column.range(number, number);
+		}
+	}
+
+	private int parseInteger(String key, String value) {
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			throw error(key + " must be an integer but was '" + value + "'");
+		}
+	}
+
+	private boolean nextIsKeyword(String keyword) {
+		return position < tokens.size() && !tokens.get(position).quoted && tokens
+			.get(position).text.equals(keyword);
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " in selection '" +
+			expression + "'.");
+	}
+
+	private List<Token> tokenize(String expression) {
+		List<Token> tokens = new ArrayList<>();
+		int i = 0;
+		while (i < expression.length()) {
+			char c = expression.charAt(i);
+			if (Character.isWhitespace(c)) i++;
+			else if (c == '(' || c == ')') {
+				tokens.add(new Token(String.valueOf(c), false));
+				i++;
+			}
+			else if (c == '"') {
+				int end = expression.indexOf('"', i + 1);
+				if (end < 0) throw error("Missing closing quote");
+				tokens.add(new Token(expression.substring(i + 1, end), true));
+				i = end + 1;
+			}
+			else {
+				int start = i;
+				while (i < expression.length() && !Character.isWhitespace(expression
+					.charAt(i)) && expression.charAt(i) != '(' && expression.charAt(
+						i) != ')' && !(expression.charAt(i) == '"' && expression.charAt(
+							i - 1) == '=')) i++;
+				String word = expression.substring(start, i);
+
+				// Allow a quoted value after an equal sign, for example tag="a b".
+				if (word.endsWith("=") && i < expression.length() && expression
+					.charAt(i) == '"')
+				{
+					int end = expression.indexOf('"', i + 1);
+					if (end < 0) throw error("Missing closing quote");
+					word += expression.substring(i + 1, end);
+					i = end + 1;
+				}
+				tokens.add(new Token(word, false));
+			}
+		}
+		return tokens;
+	}
+
+	private static class Token {
+
+		private final String text;
+		private final boolean quoted;
+
+		Token(String text, boolean quoted) {
+			this.text = text;
+			this.quoted = quoted;
+		}
+	}
+}
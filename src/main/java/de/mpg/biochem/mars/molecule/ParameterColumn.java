@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.molecule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.mpg.biochem.mars.util.MarsBitmap;
+
+/**
+ * Values of one molecule parameter for all molecules in a
+ * {@link MoleculeArchiveIndex}, stored by molecule ordinal. Double values are
+ * kept in a primitive array, string values as codes into a dictionary and
+ * boolean values as bitmaps. Columns returned by the index are snapshots and
+ * are not updated when molecules change.
+ */
+public class ParameterColumn {
+
+	private final String name;
+
+	private double[] doubles;
+	private final MarsBitmap doubleOrdinals;
+
+	private int[] stringCodes;
+	private final MarsBitmap stringOrdinals;
+	private final List<String> dictionary;
+	private final Map<String, Integer> dictionaryCodes;
+
+	private final MarsBitmap trueOrdinals;
+	private final MarsBitmap falseOrdinals;
+
+	ParameterColumn(String name) {
+		this.name = name;
+		doubles = new double[0];
+		doubleOrdinals = new MarsBitmap();
+		stringCodes = new int[0];
+		stringOrdinals = new MarsBitmap();
+		dictionary = new ArrayList<>();
+		dictionaryCodes = new HashMap<>();
+		trueOrdinals = new MarsBitmap();
+		falseOrdinals = new MarsBitmap();
+	}
+
+	private ParameterColumn(ParameterColumn column) {
+		name = column.name;
+		doubles = column.doubles.clone();
+		doubleOrdinals = column.doubleOrdinals.copy();
+		stringCodes = column.stringCodes.clone();
+		stringOrdinals = column.stringOrdinals.copy();
+		dictionary = new ArrayList<>(column.dictionary);
+		dictionaryCodes = new HashMap<>(column.dictionaryCodes);
+		trueOrdinals = column.trueOrdinals.copy();
+		falseOrdinals = column.falseOrdinals.copy();
+	}
+
+	ParameterColumn copy() {
+		return new ParameterColumn(this);
+	}
+
+	void set(int ordinal, Object value) {
+		clear(ordinal);
+		if (value instanceof Double) {
+			if (ordinal >= doubles.length) doubles = Arrays.copyOf(doubles,
+				newCapacity(doubles.length, ordinal));
+			doubles[ordinal] = (Double) value;
+			doubleOrdinals.add(ordinal);
+		}
+		else if (value instanceof String) {
+			if (ordinal >= stringCodes.length) stringCodes = Arrays.copyOf(
+				stringCodes, newCapacity(stringCodes.length, ordinal));
+			stringCodes[ordinal] = dictionaryCodes.computeIfAbsent((String) value,
+				s -> {
+					dictionary.add(s);
+					return dictionary.size() - 1;
+				});
+			stringOrdinals.add(ordinal);
+		}
+		else if (value instanceof Boolean) {
+			if ((Boolean) value) trueOrdinals.add(ordinal);
+			else falseOrdinals.add(ordinal);
+		}
+	}
+
+	void clear(int ordinal) {
+		doubleOrdinals.remove(ordinal);
+		stringOrdinals.remove(ordinal);
+		trueOrdinals.remove(ordinal);
+		falseOrdinals.remove(ordinal);
+	}
+
+	boolean isEmpty() {
+		return doubleOrdinals.isEmpty() && stringOrdinals.isEmpty() && trueOrdinals
+			.isEmpty() && falseOrdinals.isEmpty();
+	}
+
+	private static int newCapacity(int capacity, int ordinal) {
+		return Math.max(ordinal + 1, Math.max(16, capacity * 2));
+	}
+
+	/**
+	 * Get the parameter name.
+	 * 
+	 * @return The name of the parameter.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the value for a molecule ordinal.
+	 * 
+	 * @param ordinal The molecule ordinal.
+	 * @return The Double, String or Boolean value or null if the molecule does
+	 *         not have the parameter.
+	 */
+	public Object getValue(int ordinal) {
+		if (doubleOrdinals.contains(ordinal)) return doubles[ordinal];
+		if (stringOrdinals.contains(ordinal)) return dictionary.get(
+			stringCodes[ordinal]);
+		if (trueOrdinals.contains(ordinal)) return Boolean.TRUE;
+		if (falseOrdinals.contains(ordinal)) return Boolean.FALSE;
+		return null;
+	}
+
+	/**
+	 * Get the double value for a molecule ordinal.
+	 * 
+	 * @param ordinal The molecule ordinal.
+	 * @return The value or NaN if the molecule does not have a double value.
+	 */
+	public double getDouble(int ordinal) {
+		return doubleOrdinals.contains(ordinal) ? doubles[ordinal] : Double.NaN;
+	}
+
+	/**
+	 * Get the ordinals of all molecules with a value for the parameter.
+	 * 
+	 * @return Bitmap of molecule ordinals.
+	 */
+	public MarsBitmap getOrdinals() {
+		return MarsBitmap.or(MarsBitmap.or(doubleOrdinals, stringOrdinals),
+			MarsBitmap.or(trueOrdinals, falseOrdinals));
+	}
+
+	/**
+	 * Get the ordinals of all molecules with a double value for the parameter.
+	 * 
+	 * @return Bitmap of molecule ordinals.
+	 */
+	public MarsBitmap getDoubleOrdinals() {
+		return doubleOrdinals.copy();
+	}
+
+	/**
+	 * Get all double values in ordinal order. Useful for histograms and summary
+	 * statistics over the whole archive.
+	 * 
+	 * @return Array of double values.
+	 */
+	public double[] getDoubleValues() {
+		double[] values = new double[doubleOrdinals.getCardinality()];
+		int[] position = new int[1];
+		doubleOrdinals.forEach(ordinal -> values[position[0]++] = doubles[ordinal]);
+		return values;
+	}
+
+	/**
+	 * Get the ordinals of molecules with double values from min to max
+	 * inclusive.
+	 * 
+	 * @param min The lower bound.
+	 * @param max The upper bound.
+	 * @return Bitmap of molecule ordinals.
+	 */
+	public MarsBitmap range(double min, double max) {
+		return range(min, true, max, true);
+	}
+
+	/**
+	 * Get the ordinals of molecules with double values in a range.
+	 * 
+	 * @param min The lower bound.
+	 * @param minInclusive Whether values equal to min are included.
+	 * @param max The upper bound.
+	 * @param maxInclusive Whether values equal to max are included.
+	 * @return Bitmap of molecule ordinals.
+	 */
+	public MarsBitmap range(double min, boolean minInclusive, double max,
+		boolean maxInclusive)
+	{
+		MarsBitmap result = new MarsBitmap();
+		doubleOrdinals.forEach(ordinal -> {
+			double value = doubles[ordinal];
+			if ((minInclusive ? value >= min : value > min) && (maxInclusive
+				? value <= max : value < max)) result.add(ordinal);
+		});
+		return result;
+	}
+
+	/**
+	 * Get the ordinals of molecules with a string value.
+	 * 
+	 * @param value The string value.
+	 * @return Bitmap of molecule ordinals.
+	 */
+	public MarsBitmap equalTo(String value) {
+		MarsBitmap result = new MarsBitmap();
+		Integer code = dictionaryCodes.get(value);
+		if (code != null) stringOrdinals.forEach(ordinal -> {
+			if (stringCodes[ordinal] == code) result.add(ordinal);
+		});
+		return result;
+	}
+
+	/**
+	 * Get the ordinals of molecules with a boolean value.
+	 * 
+	 * @param value The boolean value.
+	 * @return Bitmap of molecule ordinals.
+	 */
+	public MarsBitmap equalTo(boolean value) {
+		return (value) ? trueOrdinals.copy() : falseOrdinals.copy();
+	}
+}
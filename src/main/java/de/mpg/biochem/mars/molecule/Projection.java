@@ -0,0 +1,183 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.molecule;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Selection of the parts of a {@link Molecule} record that should be decoded
+ * when it is read from a {@link MoleculeArchive}. Fields that are not part of
+ * the projection are skipped by the JsonParser without being decoded. The
+ * molecule table can be restricted to a subset of columns using the
+ * table:column1,column2 syntax. The uid, type, metadataUID, image and channel
+ * fields are always decoded.
+ * <p>
+ * For example, the following reads only the X and Y table columns and the
+ * parameters of a molecule:
+ * </p>
+ * 
+ * <pre>
+ * Molecule molecule = archive.get(UID, Projection.of("table:X,Y",
+ * 	"parameters"));
+ * </pre>
+ * <p>
+ * Molecules read with a projection are incomplete and read-only. They are not
+ * cached, changes to them are not passed on to the archive and they cannot
+ * be put back into the archive.
+ * </p>
+ * 
+ * @author Karl Duderstadt
+ */
+public final class Projection {
+
+	public static final String TABLE = "table";
+	public static final String SEGMENT_TABLES = "segmentTables";
+	public static final String TAGS = "tags";
+	public static final String PARAMETERS = "parameters";
+	public static final String NOTES = "notes";
+	public static final String REGIONS = "regionsOfInterest";
+	public static final String POSITIONS = "positionsOfInterest";
+
+	/**
+	 * Json field names, including those of older file versions, mapped to the
+	 * projection field they belong to.
+	 */
+	private static final Map<String, String> JSON_FIELDS = new HashMap<>();
+
+	static {
+		JSON_FIELDS.put("table", TABLE);
+		JSON_FIELDS.put("DataTable", TABLE);
+		JSON_FIELDS.put("segmentTables", SEGMENT_TABLES);
+		JSON_FIELDS.put("SegmentTables", SEGMENT_TABLES);
+		JSON_FIELDS.put("tags", TAGS);
+		JSON_FIELDS.put("Tags", TAGS);
+		JSON_FIELDS.put("parameters", PARAMETERS);
+		JSON_FIELDS.put("Parameters", PARAMETERS);
+		JSON_FIELDS.put("stringParameters", PARAMETERS);
+		JSON_FIELDS.put("notes", NOTES);
+		JSON_FIELDS.put("Notes", NOTES);
+		JSON_FIELDS.put("regionsOfInterest", REGIONS);
+		JSON_FIELDS.put("RegionsOfInterest", REGIONS);
+		JSON_FIELDS.put("positionsOfInterest", POSITIONS);
+		JSON_FIELDS.put("PositionsOfInterest", POSITIONS);
+	}
+
+	private final Set<String> fields;
+	private final Set<String> tableColumns;
+
+	private Projection(Set<String> fields, Set<String> tableColumns) {
+		this.fields = fields;
+		this.tableColumns = tableColumns;
+	}
+
+	/**
+	 * Create a projection from a list of field specifications. Valid fields are
+	 * table, segmentTables, tags, parameters, notes, regionsOfInterest and
+	 * positionsOfInterest. A subset of table columns can be requested using
+	 * table:column1,column2.
+	 * 
+	 * @param specs The fields to decode.
+	 * @return The projection.
+	 * @throws IllegalArgumentException Thrown if a field is not recognized.
+	 */
+	public static Projection of(String... specs) {
+		Set<String> fields = new LinkedHashSet<>();
+		Set<String> tableColumns = null;
+		for (String spec : specs) {
+			String field = spec.trim();
+			if (field.startsWith(TABLE + ":")) {
+				if (tableColumns == null && !fields.contains(TABLE))
+					tableColumns = new LinkedHashSet<>();
+				if (tableColumns != null) for (String column : field.substring(TABLE
+					.length() + 1).split(","))
+					if (!column.trim().isEmpty()) tableColumns.add(column.trim());
+				fields.add(TABLE);
+			}
+			else if (JSON_FIELDS.containsValue(field)) {
+				// Requesting the whole table overrides earlier column selections.
+				if (field.equals(TABLE)) tableColumns = null;
+				fields.add(field);
+			}
+			else throw new IllegalArgumentException("Unknown projection field " +
+				spec + ".");
+		}
+		return new Projection(Collections.unmodifiableSet(fields),
+			(tableColumns == null) ? null : Collections.unmodifiableSet(
+				tableColumns));
+	}
+
+	/**
+	 * Check whether a Json field of a molecule record should be decoded. Fields
+	 * that are not governed by projections are always decoded.
+	 * 
+	 * @param jsonFieldName The name of the field in the record Json.
+	 * @return True if the field should be decoded and false if it should be
+	 *         skipped.
+	 */
+	public boolean includesJsonField(String jsonFieldName) {
+		String field = JSON_FIELDS.get(jsonFieldName);
+		return field == null || fields.contains(field);
+	}
+
+	/**
+	 * Get the requested fields.
+	 * 
+	 * @return The set of requested fields.
+	 */
+	public Set<String> getFields() {
+		return fields;
+	}
+
+	/**
+	 * Get the requested table columns.
+	 * 
+	 * @return The set of requested columns or null if all columns should be
+	 *         decoded.
+	 */
+	public Set<String> getTableColumns() {
+		return tableColumns;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (String field : fields) {
+			if (builder.length() > 0) builder.append(" ");
+			builder.append(field);
+			if (field.equals(TABLE) && tableColumns != null) builder.append(":")
+				.append(String.join(",", tableColumns));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,374 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.util.Arrays;
+
+/**
+ * An aggregate statistic calculated for each group of rows by
+ * {@link MarsTableGroupBy#aggregate(Aggregation...)}. NaN values are ignored.
+ * A statistic is NaN for groups with no values.
+ * <p>
+ * Aggregations are created using the static methods of this class. Each
+ * results in a DoubleColumn in the output table. The default header is the
+ * column name followed by the statistic, for example x_mean, and can be
+ * changed using {@link #as(String)}.
+ * </p>
+ * 
+ * <pre>
+ * MarsTable summary = table.groupBy("molecule").aggregate(count(), mean("x"),
+ * 	median("Intensity").as("medianIntensity"));
+ * </pre>
+ * 
+ * @author Karl Duderstadt
+ */
+public final class Aggregation {
+
+	private enum Kind {
+		ROWS, COUNT, SUM, MEAN, MIN, MAX, STD, VARIANCE, SEM, MEDIAN, MAD
+	}
+
+	private final Kind kind;
+	private final String column;
+	private final String header;
+
+	private Aggregation(Kind kind, String column, String header) {
+		this.kind = kind;
+		this.column = column;
+		this.header = header;
+	}
+
+	private static Aggregation of(Kind kind, String column) {
+		return new Aggregation(kind, column, column + "_" + kind.name()
+			.toLowerCase());
+	}
+
+	/**
+	 * @return The number of rows in each group. The default header is count.
+	 */
+	public static Aggregation count() {
+		return new Aggregation(Kind.ROWS, null, "count");
+	}
+
+	/**
+	 * @param column Name of the column.
+	 * @return The number of values that are not NaN in each group.
+	 */
+	public static Aggregation count(String column) {
+		return of(Kind.COUNT, column);
+	}
+
+	/**
+	 * @param column Name of the column.
+	 * @return The sum of the values in each group.
+	 */
+	public static Aggregation sum(String column) {
+		return of(Kind.SUM, column);
+	}
+
+	/**
+	 * @param column Name of the column.
+	 * @return The mean of the values in each group.
+	 */
+	public static Aggregation mean(String column) {
+		return of(Kind.MEAN, column);
+	}
+
+	/**
+	 * @param column Name of the column.
+	 * @return The smallest value in each group.
+	 */
+	public static Aggregation min(String column) {
+		return of(Kind.MIN, column);
+	}
+
+	/**
+	 * @param column Name of the column.
+	 * @return The largest value in each group.
+	 */
+	public static Aggregation max(String column) {
+		return of(Kind.MAX, column);
+	}
+
+	/**
+	 * @param column Name of the column.
+	 * @return The sample standard deviation of the values in each group.
+	 */
+	public static Aggregation std(String column) {
+		return of(Kind.STD, column);
+	}
+
+	/**
+	 * @param column Name of the column.
+	 * @return The population variance of the values in each group.
+	 */
+	public static Aggregation variance(String column) {
+		return of(Kind.VARIANCE, column);
+	}
+
+	/**
+	 * @param column Name of the column.
+	 * @return The standard error of the mean of the values in each group.
+	 */
+	public static Aggregation sem(String column) {
+		return of(Kind.SEM, column);
+	}
+
+	/**
+	 * @param column Name of the column.
+	 * @return The median of the values in each group.
+	 */
+	public static Aggregation median(String column) {
+		return of(Kind.MEDIAN, column);
+	}
+
+	/**
+	 * @param column Name of the column.
+	 * @return The median absolute deviation of the values in each group.
+	 */
+	public static Aggregation mad(String column) {
+		return of(Kind.MAD, column);
+	}
+
+	/**
+	 * Returns a copy of this aggregation with the output header given.
+	 * 
+	 * @param header Header of the output column.
+	 * @return The renamed aggregation.
+	 */
+	public Aggregation as(String header) {
+		return new Aggregation(kind, column, header);
+	}
+
+	/**
+	 * @return The name of the column aggregated or null for count().
+	 */
+	public String getColumn() {
+		return column;
+	}
+
+	/**
+	 * @return The header of the output column.
+	 */
+	public String getHeader() {
+		return header;
+	}
+
+	@Override
+	public String toString() {
+		return header;
+	}
+
+	Accumulator createAccumulator(int groups) {
+		return new Accumulator(kind, groups);
+	}
+
+	/**
+	 * Partial aggregation state for every group. One accumulator is filled for
+	 * each partition of the rows and the accumulators are then merged.
+	 */
+	static final class Accumulator {
+
+		private final Kind kind;
+		private final int groups;
+
+		private long[] counts;
+		private double[] values;
+		private double[] m2;
+		private double[][] lists;
+
+		private Accumulator(Kind kind, int groups) {
+			this.kind = kind;
+			this.groups = groups;
+			counts = new long[groups];
+			switch (kind) {
+				case SUM:
+				case MEAN:
+					values = new double[groups];
+					break;
+				case MIN:
+				case MAX:
+					values = new double[groups];
+					Arrays.fill(values, Double.NaN);
+					break;
+				case STD:
+				case VARIANCE:
+				case SEM:
+					values = new double[groups];
+					m2 = new double[groups];
+					break;
+				case MEDIAN:
+				case MAD:
+					lists = new double[groups][];
+					break;
+				default:
+					break;
+			}
+		}
+
+		/**
+		 * Adds the value of a row to the state of its group.
+		 */
+		void add(int group, double value) {
+			if (kind == Kind.ROWS) {
+				counts[group]++;
+				return;
+			}
+			if (Double.isNaN(value)) return;
+
+			long n = ++counts[group];
+			switch (kind) {
+				case SUM:
+				case MEAN:
+					values[group] += value;
+					break;
+				case MIN:
+					if (n == 1 || value < values[group]) values[group] = value;
+					break;
+				case MAX:
+					if (n == 1 || value > values[group]) values[group] = value;
+					break;
+				case STD:
+				case VARIANCE:
+				case SEM:
+					// Welford update of the mean and sum of squared deviations
+					double delta = value - values[group];
+					values[group] += delta / n;
+					m2[group] += delta * (value - values[group]);
+					break;
+				case MEDIAN:
+				case MAD:
+					double[] list = lists[group];
+					if (list == null) list = lists[group] = new double[4];
+					else if (list.length < n) list = lists[group] = Arrays.copyOf(list,
+						list.length * 2);
+					list[(int) n - 1] = value;
+					break;
+				default:
+					break;
+			}
+		}
+
+		/**
+		 * Merges the state of another partition into this one.
+		 */
+		void merge(Accumulator other) {
+			for (int group = 0; group < groups; group++) {
+				long nB = other.counts[group];
+				if (nB == 0) continue;
+				long nA = counts[group];
+				long n = nA + nB;
+				counts[group] = n;
+				switch (kind) {
+					case SUM:
+					case MEAN:
+						values[group] += other.values[group];
+						break;
+					case MIN:
+						if (nA == 0 || other.values[group] < values[group])
+							values[group] = other.values[group];
+						break;
+					case MAX:
+						if (nA == 0 || other.values[group] > values[group])
+							values[group] = other.values[group];
+						break;
+					case STD:
+					case VARIANCE:
+					case SEM:
+						double delta = other.values[group] - values[group];
+						values[group] += delta * nB / n;
+						m2[group] += other.m2[group] + delta * delta * nA * nB / n;
+						break;
+					case MEDIAN:
+					case MAD:
+						double[] list = lists[group];
+						if (list == null) list = new double[(int) n];
+						else if (list.length < n) list = Arrays.copyOf(list, (int) n);
+						System.arraycopy(other.lists[group], 0, list, (int) nA, (int) nB);
+						lists[group] = list;
+						break;
+					default:
+						break;
+				}
+			}
+		}
+
+		/**
+		 * Calculates the final value for each group.
+		 */
+		double[] results() {
+			double[] results = new double[groups];
+			MarsTableStatistics statistics = (kind == Kind.MEDIAN ||
+				kind == Kind.MAD) ? new MarsTableStatistics() : null;
+			for (int group = 0; group < groups; group++) {
+				long n = counts[group];
+				if (kind == Kind.ROWS || kind == Kind.COUNT) {
+					results[group] = n;
+					continue;
+				}
+				if (n == 0) {
+					results[group] = Double.NaN;
+					continue;
+				}
+				switch (kind) {
+					case SUM:
+					case MIN:
+					case MAX:
+						results[group] = values[group];
+						break;
+					case MEAN:
+						results[group] = values[group] / n;
+						break;
+					case STD:
+						results[group] = n == 1 ? 0 : Math.sqrt(m2[group] / (n - 1));
+						break;
+					case VARIANCE:
+						results[group] = m2[group] / n;
+						break;
+					case SEM:
+						results[group] = (n == 1 ? 0 : Math.sqrt(m2[group] / (n - 1))) /
+							Math.sqrt(n);
+						break;
+					case MEDIAN:
+						results[group] = statistics.compute(lists[group], (int) n, null, 0,
+							0).getMedian();
+						break;
+					case MAD:
+						results[group] = statistics.compute(lists[group], (int) n, null, 0,
+							0).getMad();
+						break;
+					default:
+						break;
+				}
+			}
+			return results;
+		}
+	}
+}
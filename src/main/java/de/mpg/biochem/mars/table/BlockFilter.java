@@ -0,0 +1,213 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Reversible filters applied to the bytes of DoubleColumn blocks before they
+ * are compressed. Filters rearrange values so they compress better and are
+ * recorded in the block header so they can be reversed after decompression.
+ * <p>
+ * DELTA replaces each value with the difference of its IEEE-754 bit pattern to
+ * the bit pattern of the previous value. This is exact and turns monotonic and
+ * smooth columns, such as T or Time_(s), into long runs of small numbers.
+ * SHUFFLE groups the first bytes of all values, then the second bytes and so
+ * on, similar to the Blosc shuffle filter. Sign and exponent bytes of
+ * neighboring values are often identical and become contiguous.
+ * </p>
+ * 
+ * @author Karl Duderstadt
+ */
+enum BlockFilter {
+
+	DELTA {
+
+		@Override
+		void apply(byte[] block, int length, byte[] scratch) {
+			LongBuffer values = ByteBuffer.wrap(block, 0, length).asLongBuffer();
+			for (int i = values.limit() - 1; i > 0; i--)
+				values.put(i, values.get(i) - values.get(i - 1));
+		}
+
+		@Override
+		void reverse(byte[] block, int length, byte[] scratch) {
+			LongBuffer values = ByteBuffer.wrap(block, 0, length).asLongBuffer();
+			for (int i = 1; i < values.limit(); i++)
+				values.put(i, values.get(i) + values.get(i - 1));
+		}
+	},
+
+	SHUFFLE {
+
+		@Override
+		void apply(byte[] block, int length, byte[] scratch) {
+			int count = length / 8;
+			for (int i = 0; i < count; i++)
+				for (int b = 0; b < 8; b++)
+					scratch[b * count + i] = block[i * 8 + b];
+			System.arraycopy(scratch, 0, block, 0, length);
+		}
+
+		@Override
+		void reverse(byte[] block, int length, byte[] scratch) {
+			int count = length / 8;
+			for (int i = 0; i < count; i++)
+				for (int b = 0; b < 8; b++)
+					scratch[i * 8 + b] = block[b * count + i];
+			System.arraycopy(scratch, 0, block, 0, length);
+		}
+	};
+
+	/**
+	 * Number of values used to estimate which filters help.
+	 */
+	private static final int SAMPLE_SIZE = 2048;
+
+	private static final List<List<BlockFilter>> CANDIDATES = new ArrayList<>();
+
+	static {
+		CANDIDATES.add(Collections.emptyList());
+		CANDIDATES.add(Collections.singletonList(SHUFFLE));
+		CANDIDATES.add(Collections.singletonList(DELTA));
+		List<BlockFilter> deltaShuffle = new ArrayList<>();
+		deltaShuffle.add(DELTA);
+		deltaShuffle.add(SHUFFLE);
+		CANDIDATES.add(Collections.unmodifiableList(deltaShuffle));
+	}
+
+	/**
+	 * Filter the big-endian double values in the block given in place.
+	 * 
+	 * @param block Bytes of the double values.
+	 * @param length Number of bytes used in the block.
+	 * @param scratch Working space of at least length bytes.
+	 */
+	abstract void apply(byte[] block, int length, byte[] scratch);
+
+	/**
+	 * Reverse {@link #apply(byte[], int, byte[])} in place.
+	 * 
+	 * @param block Filtered bytes of the double values.
+	 * @param length Number of bytes used in the block.
+	 * @param scratch Working space of at least length bytes.
+	 */
+	abstract void reverse(byte[] block, int length, byte[] scratch);
+
+	/**
+	 * Choose the filters that give the smallest block. The candidates are
+	 * compared by compressing a sample of values from the start of the block
+	 * with fast deflate compression, whatever codec is used for the block.
+	 * 
+	 * @param block Bytes of the double values.
+	 * @return The filters to apply in order.
+	 */
+	static List<BlockFilter> choose(byte[] block) {
+		int sampleLength = Math.min(block.length, SAMPLE_SIZE * 8);
+		if (sampleLength < 16) return Collections.emptyList();
+
+		byte[] sample = new byte[sampleLength];
+		byte[] scratch = new byte[sampleLength];
+		byte[] output = new byte[sampleLength + 64];
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		List<BlockFilter> best = Collections.emptyList();
+		int bestSize = Integer.MAX_VALUE;
+		try {
+			for (List<BlockFilter> filters : CANDIDATES) {
+				System.arraycopy(block, 0, sample, 0, sampleLength);
+				apply(filters, sample, sampleLength, scratch);
+
+				deflater.reset();
+				deflater.setInput(sample);
+				deflater.finish();
+				int size = 0;
+				while (!deflater.finished())
+					size += deflater.deflate(output);
+
+				if (size < bestSize) {
+					bestSize = size;
+					best = filters;
+				}
+			}
+		}
+		finally {
+			deflater.end();
+		}
+		return best;
+	}
+
+	static void apply(List<BlockFilter> filters, byte[] block, int length,
+		byte[] scratch)
+	{
+		for (BlockFilter filter : filters)
+			filter.apply(block, length, scratch);
+	}
+
+	static void reverse(List<BlockFilter> filters, byte[] block, int length,
+		byte[] scratch)
+	{
+		for (int i = filters.size() - 1; i >= 0; i--)
+			filters.get(i).reverse(block, length, scratch);
+	}
+
+	/**
+	 * Format filters for the block header.
+	 * 
+	 * @param filters The filters in the order they are applied.
+	 * @return Comma separated filter names.
+	 */
+	static String format(List<BlockFilter> filters) {
+		StringBuilder builder = new StringBuilder();
+		for (BlockFilter filter : filters) {
+			if (builder.length() > 0) builder.append(",");
+			builder.append(filter.name());
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Parse filters from the block header.
+	 * 
+	 * @param names Comma separated filter names.
+	 * @return The filters in the order they were applied.
+	 * @throws IllegalArgumentException Thrown if a filter is not recognized.
+	 */
+	static List<BlockFilter> parse(String names) {
+		List<BlockFilter> filters = new ArrayList<>();
+		for (String name : names.split(","))
+			if (!name.isEmpty()) filters.add(valueOf(name));
+		return filters;
+	}
+}
@@ -38,12 +38,8 @@ import de.mpg.biochem.mars.molecule.JsonConvertibleRecord;
 import de.mpg.biochem.mars.util.MarsMath;
 import de.mpg.biochem.mars.util.MarsUtil;
 import de.mpg.biochem.mars.util.MarsUtil.ThrowingConsumer;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipParameters;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.stat.StatUtils;
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 import org.apache.commons.math3.stat.regression.SimpleRegression;
 import org.scijava.app.StatusService;
 import org.scijava.plugin.Parameter;
@@ -57,10 +53,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
-import java.util.zip.Deflater;
 
 /**
  * Mars implementation of a scijava results table. All numbers are stored as
@@ -81,7 +77,9 @@ import java.util.zip.Deflater;
  * More complex row filtering operations can be accomplished using the rowStream
  * method and java 8 stream framework. The optimal implementation would return
  * an {@code ArrayList<Integer>} with a set of rows to remove or keep. This list
- * can then be used with the deleteRows or keepRows methods.
+ * can then be used with the deleteRows or keepRows methods. Alternatively, the
+ * filterRows method keeps the rows accepted by a predicate on the row index
+ * without building a list.
  * </p>
  * <p>
  * All sorting and filtering operations are performed in place. This allows for
@@ -100,6 +98,40 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Field in the Smile encoded data object holding the separately compressed
+	 * DoubleColumn blocks.
+	 */
+	private static final String COLUMN_BLOCKS_FIELD = "DoubleColumnBlocks";
+
+	/**
+	 * Number of values in each compressed chunk of a DoubleColumn block. Bounds
+	 * the buffers needed for reading and writing tables of any size.
+	 */
+	private static final int CHUNK_LENGTH = 1 << 16;
+
+	/**
+	 * Codec used to compress DoubleColumn blocks when tables are written by the
+	 * current thread.
+	 */
+	private static final ThreadLocal<MarsTableCodec> blockCodec = ThreadLocal
+		.withInitial(() -> MarsTableCodec.GZIP);
+
+	/**
+	 * Statistics instance reused by the single statistic methods, such as mean
+	 * and median, so repeated calls do not allocate.
+	 */
+	private static final ThreadLocal<MarsTableStatistics> scratchStatistics =
+		ThreadLocal.withInitial(MarsTableStatistics::new);
+
+	/**
+	 * Column header to column index map. Cleared when a column is replaced or
+	 * renamed with setColumnHeader and rebuilt on the next lookup after columns
+	 * are added or removed. Never modified once published, so concurrent
+	 * readers are safe.
+	 */
+	private volatile ColumnIndex columnIndex;
+
 	private int decimalPlacePrecision = -1;
 
 	private MarsTableWindow win;
@@ -352,17 +384,18 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 */
 	public double[] getColumnAsDoublesNoNaNs(String column) {
 		if (hasColumn(column) && get(column) instanceof DoubleColumn) {
-			ArrayList<Double> values = new ArrayList<>();
 			DoubleColumn dCol = (DoubleColumn) get(column);
 			double[] backingArray = dCol.getArray();
+			double[] values = new double[getRowCount()];
+			int count = 0;
 
 			for (int row = 0; row < getRowCount(); row++) {
 				if (Double.isNaN(backingArray[row])) continue;
 
-				values.add(backingArray[row]);
+				values[count++] = backingArray[row];
 			}
 
-			return values.stream().mapToDouble(i -> i).toArray();
+			return count == values.length ? values : Arrays.copyOf(values, count);
 		}
 		else {
 			return new double[0];
@@ -389,20 +422,21 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 			column) instanceof DoubleColumn && get(
 				rowSelectionColumn) instanceof DoubleColumn)
 		{
-			ArrayList<Double> values = new ArrayList<>();
 			double[] backingArrayColumn = ((DoubleColumn) get(column)).getArray();
 			double[] backingArrayRowSelectionColumn = ((DoubleColumn) get(
 				rowSelectionColumn)).getArray();
+			double[] values = new double[getRowCount()];
+			int count = 0;
 
 			for (int row = 0; row < getRowCount(); row++) {
 				if (Double.isNaN(backingArrayColumn[row])) continue;
 
 				if (backingArrayRowSelectionColumn[row] >= lowerBound &&
-					backingArrayRowSelectionColumn[row] <= upperBound) values.add(
-						backingArrayColumn[row]);
+					backingArrayRowSelectionColumn[row] <= upperBound)
+					values[count++] = backingArrayColumn[row];
 			}
 
-			return values.stream().mapToDouble(i -> i).toArray();
+			return count == values.length ? values : Arrays.copyOf(values, count);
 		}
 		else {
 			return new double[0];
@@ -501,6 +535,38 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 		pw.close();
 	}
 
+	/**
+	 * Set the codec used to compress DoubleColumn blocks when tables are
+	 * written in Smile format by the current thread. The codec applies to all
+	 * tables written by the thread until it is changed again.
+	 * 
+	 * @param codec The codec to use.
+	 * @return The codec used previously. Can be used to restore the previous
+	 *         setting.
+	 */
+	public static MarsTableCodec setBlockCodec(MarsTableCodec codec) {
+		MarsTableCodec previous = blockCodec.get();
+		blockCodec.set(codec);
+		return previous;
+	}
+
+	/**
+	 * Get the codec used to compress DoubleColumn blocks when tables are
+	 * written in Smile format by the current thread.
+	 * 
+	 * @return The codec used.
+	 */
+	public static MarsTableCodec getBlockCodec() {
+		return blockCodec.get();
+	}
+
+	private static MarsTableCodec getCodec(String name) throws IOException {
+		MarsTableCodec codec = MarsTableCodec.forName(name);
+		if (codec == null) throw new IOException("Unsupported table codec " +
+			name + ".");
+		return codec;
+	}
+
 	/**
 	 * JSON serialization of table values. Includes schema with column type
 	 * definitions of either string or number. values specified in records format,
@@ -533,20 +599,73 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 			// writeDataAsRowObjectArray(jGenerator);
 
 			// Actual table data
-			if (jGenerator instanceof SmileGenerator) writeDataAsGzippedBlocks(
+			if (jGenerator instanceof SmileGenerator) writeDataAsColumnBlocks(
 				jGenerator);
 			else writeDataAsRowObjectArray(jGenerator);
 		}
 		jGenerator.writeEndObject();
 	}
 
-	private void writeDataAsGzippedBlocks(JsonGenerator jGenerator)
+	private void writeDataAsColumnBlocks(JsonGenerator jGenerator)
 		throws IOException
 	{
 		jGenerator.writeObjectFieldStart("data");
-		String blockName = "DoubleBlock,GZIP,dims=[" + stream().filter(
-			c -> c instanceof DoubleColumn).count() + "," + getRowCount() + "]";
-		jGenerator.writeBinaryField(blockName, buildDataBlock());
+
+		// Each DoubleColumn is compressed independently so columns can be
+		// inflated individually when reading. Columns are written in chunks so
+		// only buffers for one chunk are needed regardless of the table size.
+		jGenerator.writeArrayFieldStart(COLUMN_BLOCKS_FIELD);
+		MarsTableCodec codec = getBlockCodec();
+		ChunkBuffer out = new ChunkBuffer();
+		byte[] chunk = new byte[Math.min(getRowCount(), CHUNK_LENGTH) * 8];
+		byte[] scratch = new byte[chunk.length];
+		for (int i = 0; i < getColumnCount(); i++)
+			if (get(i) instanceof DoubleColumn) {
+				double[] values = ((DoubleColumn) get(i)).getArray();
+				int rows = getRowCount();
+
+				jGenerator.writeStartObject();
+				jGenerator.writeStringField("name", getColumnHeader(i));
+				jGenerator.writeNumberField("length", rows);
+				jGenerator.writeStringField("codec", codec.getName());
+
+				double min = Double.NaN;
+				double max = Double.NaN;
+				for (int row = 0; row < rows; row++) {
+					if (Double.isNaN(values[row])) continue;
+					if (Double.isNaN(min) || values[row] < min) min = values[row];
+					if (Double.isNaN(max) || values[row] > max) max = values[row];
+				}
+				if (!Double.isNaN(min)) {
+					jGenerator.writeNumberField("min", min);
+					jGenerator.writeNumberField("max", max);
+				}
+
+				// Filters only pay off if the block is compressed. They are chosen
+				// using the first chunk and applied to each chunk separately.
+				List<BlockFilter> filters = Collections.emptyList();
+				if (codec != MarsTableCodec.RAW && rows > 0) {
+					toBytes(values, 0, chunk.length / 8, chunk);
+					filters = BlockFilter.choose(chunk);
+				}
+				if (!filters.isEmpty()) jGenerator.writeStringField("filters",
+					BlockFilter.format(filters));
+
+				jGenerator.writeNumberField("chunkLength", CHUNK_LENGTH);
+				jGenerator.writeArrayFieldStart("chunks");
+				for (int offset = 0; offset < rows; offset += CHUNK_LENGTH) {
+					int count = Math.min(CHUNK_LENGTH, rows - offset);
+					toBytes(values, offset, count, chunk);
+					BlockFilter.apply(filters, chunk, count * 8, scratch);
+
+					out.reset();
+					compressChunk(chunk, count * 8, out, codec);
+					jGenerator.writeBinary(out.getBuffer(), 0, out.size());
+				}
+				jGenerator.writeEndArray();
+				jGenerator.writeEndObject();
+			}
+		jGenerator.writeEndArray();
 
 		// Write GenericColumns as arrays of Strings
 		for (int i = 0; i < getColumnCount(); i++)
@@ -560,25 +679,52 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 		jGenerator.writeEndObject();
 	}
 
-	private byte[] buildDataBlock() throws IOException {
-		long colCount = stream().filter(c -> c instanceof DoubleColumn).count();
-		ByteBuffer byteBuffer = ByteBuffer.allocate((int) colCount * getRowCount() *
-			8);
+	private static void toBytes(double[] values, int offset, int count,
+		byte[] bytes)
+	{
+		ByteBuffer.wrap(bytes).asDoubleBuffer().put(values, offset, count);
+	}
 
-		DoubleBuffer doubleBuffer = byteBuffer.asDoubleBuffer();
-		for (int i = 0; i < getColumnCount(); i++)
-			if (get(i) instanceof DoubleColumn) doubleBuffer.put(((DoubleColumn) get(
-				i)).getArray(), 0, getRowCount());
-
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		GzipParameters parameters = new GzipParameters();
-		parameters.setCompressionLevel(Deflater.DEFAULT_COMPRESSION);
-		GzipCompressorOutputStream deflater = new GzipCompressorOutputStream(out,
-			parameters);
-		deflater.write(byteBuffer.array());
+	private static void compressChunk(byte[] bytes, int length,
+		OutputStream out, MarsTableCodec codec) throws IOException
+	{
+		OutputStream deflater = codec.compress(out);
+		deflater.write(bytes, 0, length);
 		deflater.close();
+	}
+
+	/**
+	 * Inflates a compressed chunk and stores the values in the array given.
+	 * 
+	 * @param compressed Buffer holding the compressed chunk.
+	 * @param values The column values to fill.
+	 * @param offset Index of the first value in the chunk.
+	 * @param count Number of values in the chunk.
+	 * @param bytes Reused buffer of at least count * 8 bytes.
+	 * @param scratch Reused working space of at least count * 8 bytes.
+	 */
+	private static void inflateChunk(ChunkBuffer compressed, double[] values,
+		int offset, int count, MarsTableCodec codec, List<BlockFilter> filters,
+		byte[] bytes, byte[] scratch) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(codec.decompress(
+			new ByteArrayInputStream(compressed.getBuffer(), 0, compressed.size())));
+		dis.readFully(bytes, 0, count * 8);
+		dis.close();
+		BlockFilter.reverse(filters, bytes, count * 8, scratch);
+		ByteBuffer.wrap(bytes, 0, count * 8).asDoubleBuffer().get(values, offset,
+			count);
+	}
 
-		return out.toByteArray();
+	/**
+	 * ByteArrayOutputStream that gives access to its buffer so chunks can be
+	 * written and read without copying them.
+	 */
+	private static class ChunkBuffer extends ByteArrayOutputStream {
+
+		byte[] getBuffer() {
+			return buf;
+		}
 	}
 
 	private void writeDataAsRowObjectArray(JsonGenerator jGenerator)
@@ -613,6 +759,30 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 */
 	@Override
 	public void fromJSON(JsonParser jParser) throws IOException {
+		fromJSON(jParser, null);
+	}
+
+	/**
+	 * JSON deserialization of a subset of the table columns. Only the columns
+	 * given are added to the table. The values of all other columns are skipped
+	 * by the parser. DoubleColumns are stored in separately compressed blocks
+	 * in Smile encoded tables and only the blocks of requested columns are
+	 * inflated. Tables in the older format with all DoubleColumns in a single
+	 * block are still inflated in full.
+	 * 
+	 * @param jParser JsonParser stream to read objects and fields from.
+	 * @param columns The names of the columns to read or null to read all
+	 *          columns.
+	 * @throws IOException Thrown if unable to read from the JsonParser stream.
+	 */
+	public void fromJSON(JsonParser jParser, Set<String> columns)
+		throws IOException
+	{
+		// Names of all double columns in schema order, which is the order they
+		// are stored in within data blocks.
+		List<String> blockColumns = new ArrayList<>();
+		Set<String> stringColumns = new HashSet<>();
+
 		// Then we move through fields
 		while (jParser.nextToken() != JsonToken.END_OBJECT) {
 			String fieldName_L1 = jParser.getCurrentName();
@@ -641,10 +811,14 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 									jParser.nextToken();
 
 									if ("number".equals(jParser.getText())) {
-										add(new DoubleColumn(columnName));
+										blockColumns.add(columnName);
+										if (columns == null || columns.contains(columnName))
+											add(new DoubleColumn(columnName));
 									}
 									else if ("string".equals(jParser.getText())) {
-										add(new GenericColumn(columnName));
+										stringColumns.add(columnName);
+										if (columns == null || columns.contains(columnName))
+											add(new GenericColumn(columnName));
 									}
 								}
 							}
@@ -657,14 +831,17 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 				jParser.nextToken();
 
 				if (jParser.currentToken() == JsonToken.START_ARRAY)
-					readDataAsRowObjectArray(jParser);
+					readDataAsRowObjectArray(jParser, columns);
 				else if (jParser.currentToken() == JsonToken.START_OBJECT)
-					readDataBlockAndStringArrays(jParser);
+					readDataBlockAndStringArrays(jParser, blockColumns,
+						stringColumns);
 			}
 		}
 	}
 
-	private void readDataAsRowObjectArray(JsonParser jParser) throws IOException {
+	private void readDataAsRowObjectArray(JsonParser jParser,
+		Set<String> columns) throws IOException
+	{
 		while (jParser.nextToken() != JsonToken.END_ARRAY) {
 			appendRow();
 			int rowIndex = getRowCount() - 1;
@@ -673,6 +850,10 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 
 				// move to value token
 				jParser.nextToken();
+				if (columns != null && !columns.contains(colName)) {
+					jParser.skipChildren();
+					continue;
+				}
 				if (get(colName) instanceof DoubleColumn) {
 					if (jParser.getCurrentToken().equals(JsonToken.VALUE_STRING)) {
 						String str = jParser.getValueAsString();
@@ -697,15 +878,29 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 		}
 	}
 
-	private void readDataBlockAndStringArrays(JsonParser jParser)
-		throws IOException
+	private void readDataBlockAndStringArrays(JsonParser jParser,
+		List<String> blockColumns, Set<String> stringColumns) throws IOException
 	{
 		int rows = -1;
 		while (jParser.nextToken() != JsonToken.END_OBJECT) {
 			String fieldName = jParser.getCurrentName();
 
-			if (fieldName.startsWith("DoubleBlock,GZIP,dims=[")) {
-				String dimensions = fieldName.substring(23, fieldName.length() - 1);
+			if (!stringColumns.contains(fieldName) && COLUMN_BLOCKS_FIELD.equals(
+				fieldName))
+			{
+				jParser.nextToken();
+				int blockRows = readColumnBlocks(jParser);
+				if (blockRows != -1) rows = blockRows;
+			}
+			// Tables written before columns were compressed separately store all
+			// DoubleColumns in a single block.
+			else if (!stringColumns.contains(fieldName) && fieldName.startsWith(
+				"DoubleBlock,") && fieldName.contains(",dims=["))
+			{
+				MarsTableCodec codec = getCodec(fieldName.substring(12, fieldName
+					.indexOf(",dims=[")));
+				String dimensions = fieldName.substring(fieldName.indexOf(",dims=[") +
+					7, fieldName.length() - 1);
 				int cols = Integer.parseInt(dimensions.substring(0, dimensions.indexOf(
 					",")));
 				rows = Integer.parseInt(dimensions.substring(dimensions.indexOf(",") + 1
@@ -714,25 +909,23 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 				jParser.nextToken();
 				byte[] binaryDataBlock = jParser.getBinaryValue();
 				ByteArrayInputStream input = new ByteArrayInputStream(binaryDataBlock);
-				GzipCompressorInputStream inflater = new GzipCompressorInputStream(
-					input);
-				DataInputStream dis = new DataInputStream(inflater);
+				DataInputStream dis = new DataInputStream(codec.decompress(input));
 
 				ByteBuffer buffer = ByteBuffer.allocate(cols * rows * 8);
 				dis.readFully(buffer.array());
 				DoubleBuffer dubBuf = buffer.asDoubleBuffer();
-				List<DoubleColumn> doubleColumnList = new ArrayList<>();
-				stream().filter(c -> c instanceof DoubleColumn).forEach(
-					col -> doubleColumnList.add((DoubleColumn) col));
 				for (int col = 0; col < cols; col++) {
+					if (!hasColumn(blockColumns.get(col))) {
+						dubBuf.position(dubBuf.position() + rows);
+						continue;
+					}
 					double[] colData = new double[rows];
 					dubBuf.get(colData);
-					doubleColumnList.get(col).fill(colData);
+					((DoubleColumn) get(blockColumns.get(col))).fill(colData);
 				}
 				dis.close();
 			}
-
-			if (hasColumn(fieldName)) {
+			else if (hasColumn(fieldName)) {
 				GenericColumn column = (GenericColumn) get(fieldName);
 				int rowNum = 0;
 				jParser.nextToken();
@@ -742,10 +935,102 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 				}
 				if (rows == -1) rows = rowNum;
 			}
+			else {
+				// Column was not requested
+				jParser.nextToken();
+				if (rows == -1 && jParser.currentToken() == JsonToken.START_ARRAY) {
+					int rowNum = 0;
+					while (jParser.nextToken() != JsonToken.END_ARRAY)
+						rowNum++;
+					rows = rowNum;
+				}
+				else jParser.skipChildren();
+			}
 		}
 		setRowCount(rows);
 	}
 
+	/**
+	 * Reads an array of column blocks. Blocks of columns that are not in the
+	 * table are skipped without being inflated.
+	 * 
+	 * @return The length of the columns or -1 if there are no blocks.
+	 */
+	private int readColumnBlocks(JsonParser jParser) throws IOException {
+		int rows = -1;
+		ChunkBuffer compressed = new ChunkBuffer();
+		byte[] bytes = new byte[0];
+		byte[] scratch = new byte[0];
+		while (jParser.nextToken() != JsonToken.END_ARRAY) {
+			String name = null;
+			String codec = "GZIP";
+			String filters = "";
+			int length = 0;
+			int chunkLength = 0;
+			double[] values = null;
+			while (jParser.nextToken() != JsonToken.END_OBJECT) {
+				String fieldName = jParser.getCurrentName();
+				jParser.nextToken();
+				if ("name".equals(fieldName)) name = jParser.getText();
+				else if ("length".equals(fieldName)) length = jParser.getIntValue();
+				else if ("codec".equals(fieldName)) codec = jParser.getText();
+				else if ("filters".equals(fieldName)) filters = jParser.getText();
+				else if ("chunkLength".equals(fieldName)) chunkLength = jParser
+					.getIntValue();
+				else if ("chunks".equals(fieldName) && hasColumn(name)) {
+					MarsTableCodec blockCodec = getCodec(codec);
+					List<BlockFilter> blockFilters = parseFilters(filters);
+					if (length < 0) throw new IOException("Column " + name +
+						" has a negative length.");
+					if (chunkLength <= 0 || chunkLength > Integer.MAX_VALUE / 8)
+						throw new IOException("Column " + name +
+							" has an invalid chunk length.");
+					values = new double[length];
+					int bufferLength = Math.min(chunkLength, length) * 8;
+					if (bytes.length < bufferLength) {
+						bytes = new byte[bufferLength];
+						scratch = new byte[bufferLength];
+					}
+					int offset = 0;
+					while (jParser.nextToken() != JsonToken.END_ARRAY) {
+						if (offset >= length) throw new IOException("Column " + name +
+							" has more chunks than its length of " + length + ".");
+						int count = Math.min(chunkLength, length - offset);
+						compressed.reset();
+						jParser.readBinaryValue(compressed);
+						inflateChunk(compressed, values, offset, count, blockCodec,
+							blockFilters, bytes, scratch);
+						offset += count;
+					}
+					if (offset != length) throw new IOException("Column " + name +
+						" chunks hold " + offset + " values but its length is " +
+						length + ".");
+				}
+				else jParser.skipChildren();
+			}
+			rows = length;
+
+			if (values != null) {
+				// The column takes over the array to avoid another copy.
+				DoubleColumn column = (DoubleColumn) get(name);
+				column.setArray(values);
+				column.setSize(length);
+			}
+		}
+		return rows;
+	}
+
+	private static List<BlockFilter> parseFilters(String filters)
+		throws IOException
+	{
+		try {
+			return BlockFilter.parse(filters);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException("Unsupported table filters " + filters + ".");
+		}
+	}
+
 	/**
 	 * Saves the table to the file path specified in json format.
 	 * 
@@ -972,7 +1257,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 * @param value The new double value to set at the position given.
 	 */
 	public void setValue(String column, int row, double value) {
-		if (!hasColumn(column)) {
+		final int index = column == null ? -1 : getColumnIndex(column);
+		if (index < 0) {
 			DoubleColumn col = new DoubleColumn(column);
 			for (int i = 0; i < getRowCount(); i++) {
 				if (i == row) col.add(value);
@@ -980,11 +1266,11 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 			}
 			add(col);
 		}
-		else if (get(column) instanceof DoubleColumn) ((DoubleColumn) get(column))
+		else if (get(index) instanceof DoubleColumn) ((DoubleColumn) get(index))
 			.set(row, value);
-		else if (get(column) instanceof GenericColumn) {
+		else if (get(index) instanceof GenericColumn) {
 			String str = String.valueOf(value);
-			((GenericColumn) get(column)).set(row, str);
+			((GenericColumn) get(index)).set(row, str);
 		}
 	}
 
@@ -998,7 +1284,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 * @param value The new double value to set at the position given.
 	 */
 	public void setValue(String column, int row, String value) {
-		if (!hasColumn(column)) {
+		final int index = column == null ? -1 : getColumnIndex(column);
+		if (index < 0) {
 			GenericColumn col = new GenericColumn(column);
 			for (int i = 0; i < getRowCount(); i++) {
 				if (i == row) col.add(value);
@@ -1006,9 +1293,9 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 			}
 			add(col);
 		}
-		else if (get(column) instanceof GenericColumn) ((GenericColumn) get(column))
+		else if (get(index) instanceof GenericColumn) ((GenericColumn) get(index))
 			.set(row, value);
-		else if (get(column) instanceof DoubleColumn) {
+		else if (get(index) instanceof DoubleColumn) {
 			double num = Double.NaN;
 			try {
 				num = Double.parseDouble(value);
@@ -1016,7 +1303,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 			catch (NumberFormatException e) {
 				// Do nothing.. set NaN as value...
 			}
-			((DoubleColumn) get(column)).set(row, num);
+			((DoubleColumn) get(index)).set(row, num);
 		}
 	}
 
@@ -1105,10 +1392,158 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 * @return Returns true if the table contains the column.
 	 */
 	public boolean hasColumn(String colName) {
-		for (String column : getColumnHeadingList()) {
-			if (column.equals(colName)) return true;
+		return colName != null && getColumnIndex(colName) >= 0;
+	}
+
+	/**
+	 * Returns the index of the first column with the header given. Uses a hash
+	 * index of the column headers so lookups by name do not compare or copy the
+	 * headers. Columns must be renamed with {@link #setColumnHeader(int, String)}
+	 * for the index to see the new header. Calling {@link Column#setHeader}
+	 * directly bypasses the index.
+	 * 
+	 * @param colHeader String column header to find.
+	 * @return The index of the column or -1 if there is no column with the
+	 *         header given.
+	 */
+	@Override
+	public int getColumnIndex(String colHeader) {
+		if (colHeader == null) return super.getColumnIndex(colHeader);
+		ColumnIndex index = columnIndex;
+		if (index == null || index.modCount != modCount) index =
+			rebuildColumnIndex();
+
+		Integer col = index.indices.get(colHeader);
+		return col == null ? -1 : col;
+	}
+
+	@Override
+	public Column<?> set(int col, Column<?> column) {
+		Column<?> previous = super.set(col, column);
+		columnIndex = null;
+		return previous;
+	}
+
+	@Override
+	public void setColumnHeader(int col, String colHeader) {
+		super.setColumnHeader(col, colHeader);
+		columnIndex = null;
+	}
+
+	/**
+	 * Returns the column with the header given.
+	 * 
+	 * @param colHeader String column header of the column to retrieve.
+	 * @return The column with the header given.
+	 * @throws IllegalArgumentException if there is no column with the header
+	 *           given.
+	 */
+	@Override
+	public Column<?> get(String colHeader) {
+		final int col = getColumnIndex(colHeader);
+		if (col < 0) throw new IllegalArgumentException("No such column: " +
+			colHeader);
+		return get(col);
+	}
+
+	private ColumnIndex rebuildColumnIndex() {
+		ColumnIndex index = new ColumnIndex(this);
+		columnIndex = index;
+		return index;
+	}
+
+	/**
+	 * Index of the first column with each header and the structural
+	 * modification count of the table it was built for.
+	 */
+	private static final class ColumnIndex {
+
+		private final Map<String, Integer> indices = new HashMap<>();
+		private final int modCount;
+
+		ColumnIndex(MarsTable table) {
+			modCount = table.modCount;
+			for (int c = 0; c < table.getColumnCount(); c++)
+				indices.putIfAbsent(table.get(c).getHeader(), c);
 		}
-		return false;
+	}
+
+	/**
+	 * Calculates summary statistics for the column given in a single call. NaN
+	 * values are ignored. This is faster than calling mean, std, median and the
+	 * other single statistic methods separately when more than one value is
+	 * needed.
+	 * 
+	 * @param column name of the column.
+	 * @return The statistics of the column values. All statistics are NaN if all
+	 *         values are NaN or the column does not exist.
+	 */
+	public MarsTableStatistics summarize(String column) {
+		return summarize(column, new MarsTableStatistics());
+	}
+
+	/**
+	 * Calculates summary statistics for the column given reusing the statistics
+	 * instance provided. Reusing one instance when summarizing many tables avoids
+	 * allocating a new scratch array for each table. NaN values are ignored.
+	 * 
+	 * @param column name of the column.
+	 * @param statistics the statistics instance to fill.
+	 * @return The statistics instance provided.
+	 */
+	public MarsTableStatistics summarize(String column,
+		MarsTableStatistics statistics)
+	{
+		if (!hasColumn(column) || !(get(column) instanceof DoubleColumn))
+			return statistics.compute(null, 0, null, 0, 0);
+		return statistics.compute(((DoubleColumn) get(column)).getArray(),
+			getRowCount(), null, 0, 0);
+	}
+
+	/**
+	 * Calculates summary statistics for the column within the range given for a
+	 * rowSelectionColumn (inclusive of bounds). NaN values are ignored.
+	 * 
+	 * @param column name of the column.
+	 * @param rowSelectionColumn name of the column used for filtering a range of
+	 *          values.
+	 * @param lowerBound smallest value included in the row selection range.
+	 * @param upperBound largest value included in the row selection range.
+	 * @return The statistics of the column values. All statistics are NaN if no
+	 *         values exist for the bounds provided or one of the columns does not
+	 *         exist.
+	 */
+	public MarsTableStatistics summarize(String column,
+		String rowSelectionColumn, double lowerBound, double upperBound)
+	{
+		return summarize(column, rowSelectionColumn, lowerBound, upperBound,
+			new MarsTableStatistics());
+	}
+
+	/**
+	 * Calculates summary statistics for the column within the range given for a
+	 * rowSelectionColumn (inclusive of bounds) reusing the statistics instance
+	 * provided. NaN values are ignored.
+	 * 
+	 * @param column name of the column.
+	 * @param rowSelectionColumn name of the column used for filtering a range of
+	 *          values.
+	 * @param lowerBound smallest value included in the row selection range.
+	 * @param upperBound largest value included in the row selection range.
+	 * @param statistics the statistics instance to fill.
+	 * @return The statistics instance provided.
+	 */
+	public MarsTableStatistics summarize(String column,
+		String rowSelectionColumn, double lowerBound, double upperBound,
+		MarsTableStatistics statistics)
+	{
+		if (!hasColumn(column) || !hasColumn(rowSelectionColumn) || !(get(
+			column) instanceof DoubleColumn) || !(get(
+				rowSelectionColumn) instanceof DoubleColumn)) return statistics.compute(
+					null, 0, null, 0, 0);
+		return statistics.compute(((DoubleColumn) get(column)).getArray(),
+			getRowCount(), ((DoubleColumn) get(rowSelectionColumn)).getArray(),
+			lowerBound, upperBound);
 	}
 
 	/**
@@ -1119,14 +1554,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         are NaN or the column does not exist.
 	 */
 	public double max(String column) {
-		if (!hasColumn(column)) return Double.NaN;
-		double max = Double.MIN_VALUE;
-		for (double value : (DoubleColumn) get(column)) {
-			if (Double.isNaN(value)) continue;
-			if (max < value) max = value;
-		}
-		if (max == Double.MIN_VALUE) return Double.NaN;
-		return max;
+		return summarize(column, scratchStatistics.get()).getMax();
 	}
 
 	/**
@@ -1145,18 +1573,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double max(String maxColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		if (!hasColumn(maxColumn) || !hasColumn(rowSelectionColumn))
-			return Double.NaN;
-		double max = Double.MIN_VALUE;
-		for (int row = 0; row < getRowCount(); row++) {
-			if (Double.isNaN(getValue(maxColumn, row))) continue;
-
-			if (getValue(rowSelectionColumn, row) >= lowerBound && getValue(
-				rowSelectionColumn, row) <= upperBound && max < getValue(maxColumn,
-					row)) max = getValue(maxColumn, row);
-		}
-		if (max == Double.MIN_VALUE) return Double.NaN;
-		return max;
+		return summarize(maxColumn, rowSelectionColumn, lowerBound, upperBound,
+			scratchStatistics.get()).getMax();
 	}
 
 	/**
@@ -1167,14 +1585,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         are NaN or the column does not exist.
 	 */
 	public double min(String column) {
-		if (!hasColumn(column)) return Double.NaN;
-		double min = Double.MAX_VALUE;
-		for (double value : (DoubleColumn) get(column)) {
-			if (Double.isNaN(value)) continue;
-			if (min > value) min = value;
-		}
-		if (min == Double.MAX_VALUE) return Double.NaN;
-		return min;
+		return summarize(column, scratchStatistics.get()).getMin();
 	}
 
 	/**
@@ -1193,18 +1604,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double min(String minColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		if (!hasColumn(minColumn) || !hasColumn(rowSelectionColumn))
-			return Double.NaN;
-		double min = Double.MAX_VALUE;
-		for (int row = 0; row < getRowCount(); row++) {
-			if (Double.isNaN(getValue(minColumn, row))) continue;
-
-			if (getValue(rowSelectionColumn, row) >= lowerBound && getValue(
-				rowSelectionColumn, row) <= upperBound && min > getValue(minColumn,
-					row)) min = getValue(minColumn, row);
-		}
-		if (min == Double.MAX_VALUE) return Double.NaN;
-		return min;
+		return summarize(minColumn, rowSelectionColumn, lowerBound, upperBound,
+			scratchStatistics.get()).getMin();
 	}
 
 	/**
@@ -1216,7 +1617,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         NaN or the column does not exist.
 	 */
 	public double mean(String column) {
-		return StatUtils.mean(this.getColumnAsDoublesNoNaNs(column));
+		return summarize(column, scratchStatistics.get()).getMean();
 	}
 
 	/**
@@ -1235,8 +1636,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double mean(String meanColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		return StatUtils.mean(this.getColumnAsDoublesNoNaNs(meanColumn,
-			rowSelectionColumn, lowerBound, upperBound));
+		return summarize(meanColumn, rowSelectionColumn, lowerBound, upperBound,
+			scratchStatistics.get()).getMean();
 	}
 
 	/**
@@ -1279,22 +1680,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         are NaN or the column does not exist.
 	 */
 	public double median(String column) {
-		if (!hasColumn(column)) return Double.NaN;
-		List<Double> values = new ArrayList<>();
-		for (int i = 0; i < getRowCount(); i++) {
-			if (Double.isNaN(getValue(column, i))) continue;
-			values.add(getValue(column, i));
-		}
-		Collections.sort(values);
-
-		if (values.size() == 0) return Double.NaN;
-
-		double median;
-		if (values.size() % 2 == 0) median = (values.get(values.size() / 2) + values
-			.get(values.size() / 2 - 1)) / 2;
-		else median = values.get(values.size() / 2);
-
-		return median;
+		return summarize(column, scratchStatistics.get()).getMedian();
 	}
 
 	/**
@@ -1313,25 +1699,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double median(String medianColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		if (!hasColumn(medianColumn) || !hasColumn(rowSelectionColumn))
-			return Double.NaN;
-		List<Double> values = new ArrayList<>();
-		for (int row = 0; row < getRowCount(); row++) {
-			if (Double.isNaN(getValue(medianColumn, row))) continue;
-
-			if (getValue(rowSelectionColumn, row) >= lowerBound && getValue(
-				rowSelectionColumn, row) <= upperBound) values.add(getValue(
-					medianColumn, row));
-		}
-		if (values.size() == 0) return Double.NaN;
-
-		Collections.sort(values);
-		double median;
-		if (values.size() % 2 == 0) median = (values.get(values.size() / 2) + values
-			.get(values.size() / 2 - 1)) / 2;
-		else median = values.get(values.size() / 2);
-
-		return median;
+		return summarize(medianColumn, rowSelectionColumn, lowerBound, upperBound,
+			scratchStatistics.get()).getMedian();
 	}
 
 	/**
@@ -1342,8 +1711,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         values are NaN or the column does not exist.
 	 */
 	public double std(String column) {
-		StandardDeviation standardDeviation = new StandardDeviation();
-		return standardDeviation.evaluate(this.getColumnAsDoublesNoNaNs(column));
+		return summarize(column, scratchStatistics.get()).getStd();
 	}
 
 	/**
@@ -1364,9 +1732,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double std(String stdColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		StandardDeviation standardDeviation = new StandardDeviation();
-		return standardDeviation.evaluate(this.getColumnAsDoublesNoNaNs(stdColumn,
-			rowSelectionColumn, lowerBound, upperBound));
+		return summarize(stdColumn, rowSelectionColumn, lowerBound, upperBound,
+			scratchStatistics.get()).getStd();
 	}
 
 	/**
@@ -1377,28 +1744,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         all values are NaN or the column does not exist.
 	 */
 	public double mad(String column) {
-		if (!hasColumn(column)) return Double.NaN;
-		double median = median(column);
-
-		List<Double> medianDevs = new ArrayList<>();
-
-		for (int row = 0; row < getRowCount(); row++) {
-			if (Double.isNaN(getValue(column, row))) continue;
-
-			medianDevs.add(Math.abs(median - getValue(column, row)));
-		}
-
-		if (medianDevs.size() == 0) return Double.NaN;
-
-		// Now find median of the deviations
-		Collections.sort(medianDevs);
-
-		double medianDev;
-		if (medianDevs.size() % 2 == 0) medianDev = (medianDevs.get(medianDevs
-			.size() / 2) + medianDevs.get(medianDevs.size() / 2 - 1)) / 2;
-		else medianDev = medianDevs.get(medianDevs.size() / 2);
-
-		return medianDev;
+		return summarize(column, scratchStatistics.get()).getMad();
 	}
 
 	/**
@@ -1420,33 +1766,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double mad(String madColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		if (!hasColumn(madColumn) || !hasColumn(rowSelectionColumn))
-			return Double.NaN;
-		double median = median(madColumn, rowSelectionColumn, lowerBound,
-			upperBound);
-
-		ArrayList<Double> medianDevs = new ArrayList<>();
-		for (int row = 0; row < getRowCount(); row++) {
-			if (Double.isNaN(getValue(madColumn, row))) continue;
-
-			if (getValue(rowSelectionColumn, row) >= lowerBound && getValue(
-				rowSelectionColumn, row) <= upperBound)
-			{
-				medianDevs.add(Math.abs(median - getValue(madColumn, row)));
-			}
-		}
-
-		if (medianDevs.size() == 0) return Double.NaN;
-
-		// Now find median of the deviations
-		Collections.sort(medianDevs);
-
-		double medianDev;
-		if (medianDevs.size() % 2 == 0) medianDev = (medianDevs.get(medianDevs
-			.size() / 2) + medianDevs.get(medianDevs.size() / 2 - 1)) / 2;
-		else medianDev = medianDevs.get(medianDevs.size() / 2);
-
-		return medianDev;
+		return summarize(madColumn, rowSelectionColumn, lowerBound, upperBound,
+			scratchStatistics.get()).getMad();
 	}
 
 	/**
@@ -1459,9 +1780,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         returned if all values are NaN or one the column does not exist.
 	 */
 	public double sem(String column) {
-		StandardDeviation standardDeviation = new StandardDeviation();
-		double[] values = this.getColumnAsDoublesNoNaNs(column);
-		return standardDeviation.evaluate(values) / Math.sqrt(values.length);
+		return summarize(column, scratchStatistics.get()).getSem();
 	}
 
 	/**
@@ -1481,10 +1800,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double sem(String meanColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		StandardDeviation standardDeviation = new StandardDeviation();
-		double[] values = this.getColumnAsDoublesNoNaNs(meanColumn,
-			rowSelectionColumn, lowerBound, upperBound);
-		return standardDeviation.evaluate(values) / Math.sqrt(values.length);
+		return summarize(meanColumn, rowSelectionColumn, lowerBound, upperBound,
+			scratchStatistics.get()).getSem();
 	}
 
 	/**
@@ -1495,8 +1812,7 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 *         are NaN or the column does not exist.
 	 */
 	public double variance(String varianceColumn) {
-		return StatUtils.populationVariance(this.getColumnAsDoublesNoNaNs(
-			varianceColumn));
+		return summarize(varianceColumn, scratchStatistics.get()).getVariance();
 	}
 
 	/**
@@ -1515,8 +1831,8 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public double variance(String varianceColumn, String rowSelectionColumn,
 		double lowerBound, double upperBound)
 	{
-		return StatUtils.populationVariance(this.getColumnAsDoublesNoNaNs(
-			varianceColumn, rowSelectionColumn, lowerBound, upperBound));
+		return summarize(varianceColumn, rowSelectionColumn, lowerBound, upperBound,
+			scratchStatistics.get()).getVariance();
 	}
 
 	/**
@@ -1591,36 +1907,85 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 
 	/**
 	 * Sort the table on one or more columns either in ascending or descending
-	 * order.
+	 * order. The sort is stable, so rows with equal values keep their order.
 	 * 
 	 * @param ascending Determines sort order.
 	 * @param columns Comma separated list of columns to sort by.
 	 * @return MarsTable for next operation.
 	 */
 	public MarsTable sort(final boolean ascending, String... columns) {
-		final int[] columnIndexes = new int[columns.length];
+		final int rows = getRowCount();
+		final RowPermutation.RowComparator[] keys =
+			new RowPermutation.RowComparator[columns.length];
 
-		for (int i = 0; i < columns.length; i++)
-			columnIndexes[i] = getColumnIndex(columns[i]);
-
-		new ResultsTableList(this).sort((o1, o2) -> {
-			for (int columnIndex : columnIndexes) {
-				int groupDifference = 0;
-				if (get(columnIndex) instanceof DoubleColumn) groupDifference = Double
-						.compare(o1.getValue(columnIndex), o2.getValue(columnIndex));
-				else if (get(columnIndex) instanceof GenericColumn) groupDifference =
-						StringUtils.compare(o1.getStringValue(columnIndex), o2
-								.getStringValue(columnIndex));
+		for (int i = 0; i < columns.length; i++) {
+			Column<?> column = get(getColumnIndex(columns[i]));
+			if (column instanceof DoubleColumn) {
+				final double[] values = ((DoubleColumn) column).getArray();
+				keys[i] = (row1, row2) -> Double.compare(values[row1], values[row2]);
+			}
+			else if (column instanceof GenericColumn) {
+				final GenericColumn values = (GenericColumn) column;
+				keys[i] = (row1, row2) -> StringUtils.compare((String) values.get(
+					row1), (String) values.get(row2));
+			}
+			else keys[i] = (row1, row2) -> 0;
+		}
 
+		int[] order = RowPermutation.sort(rows, (row1, row2) -> {
+			for (RowPermutation.RowComparator key : keys) {
+				int groupDifference = key.compare(row1, row2);
 				if (groupDifference != 0) return ascending ? groupDifference
-						: -groupDifference;
+					: -groupDifference;
 			}
 			return 0;
 		});
 
+		// Apply the permutation one column at a time, reusing the buffers.
+		double[] doubleBuffer = null;
+		Object[] objectBuffer = null;
+		for (int col = 0; col < getColumnCount(); col++) {
+			Column<?> column = get(col);
+			if (column instanceof DoubleColumn) {
+				if (doubleBuffer == null) doubleBuffer = new double[rows];
+				double[] values = ((DoubleColumn) column).getArray();
+				for (int row = 0; row < rows; row++)
+					doubleBuffer[row] = values[order[row]];
+				System.arraycopy(doubleBuffer, 0, values, 0, rows);
+			}
+			else {
+				if (objectBuffer == null) objectBuffer = new Object[rows];
+				permute(column, order, objectBuffer);
+			}
+		}
+
 		return this;
 	}
 
+	@SuppressWarnings("unchecked")
+	private static <T> void permute(Column<T> column, int[] order,
+		Object[] buffer)
+	{
+		for (int row = 0; row < order.length; row++)
+			buffer[row] = column.get(order[row]);
+		for (int row = 0; row < order.length; row++)
+			column.set(row, (T) buffer[row]);
+	}
+
+	/**
+	 * Group the rows of the table by the values of one or more columns. The
+	 * groups can then be summarized using
+	 * {@link MarsTableGroupBy#aggregate(Aggregation...)}. The table does not need
+	 * to be sorted.
+	 * 
+	 * @param columns Columns with the group keys.
+	 * @return The grouping of the rows.
+	 * @throws IllegalArgumentException if one of the columns does not exist.
+	 */
+	public MarsTableGroupBy groupBy(String... columns) {
+		return new MarsTableGroupBy(this, columns);
+	}
+
 	/**
 	 * Returns a stream of MarsTableRow. This is useful for performing operations
 	 * on all rows using Consumers.
@@ -1679,29 +2044,12 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public MarsTable deleteRows(int[] rows) {
 		if (rows.length == 0) return this;
 
-		int pos = 0;
-		int rowsIndex = 0;
-		for (int i = 0; i < getRowCount(); i++) {
-			if (rowsIndex < rows.length) {
-				if (rows[rowsIndex] == i) {
-					rowsIndex++;
-					continue;
-				}
-			}
-
-			if (pos != i) {
-				// means we need to move row i to position row.
-				for (int j = 0; j < getColumnCount(); j++)
-					set(j, pos, get(j, i));
-			}
-			pos++;
-		}
-
-		// delete last rows
-		for (int row = getRowCount() - 1; row > pos - 1; row--)
-			removeRow(row);
+		BitSet keep = new BitSet(getRowCount());
+		keep.set(0, getRowCount());
+		for (int row : rows)
+			if (row >= 0 && row < getRowCount()) keep.clear(row);
 
-		return this;
+		return compactRows(keep);
 	}
 
 	/**
@@ -1713,57 +2061,29 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	public MarsTable deleteRows(List<Integer> rows) {
 		if (rows.size() == 0) return this;
 
-		int pos = 0;
-		int rowsIndex = 0;
-		for (int i = 0; i < getRowCount(); i++) {
-			if (rowsIndex < rows.size()) {
-				if (rows.get(rowsIndex) == i) {
-					rowsIndex++;
-					continue;
-				}
-			}
-
-			if (pos != i) {
-				// means we need to move row i to position row.
-				for (int j = 0; j < getColumnCount(); j++)
-					set(j, pos, get(j, i));
-			}
-			pos++;
-		}
-
-		// delete last rows
-		for (int row = getRowCount() - 1; row > pos - 1; row--)
-			removeRow(row);
+		BitSet keep = new BitSet(getRowCount());
+		keep.set(0, getRowCount());
+		for (int row : rows)
+			if (row >= 0 && row < getRowCount()) keep.clear(row);
 
-		return this;
+		return compactRows(keep);
 	}
 
 	/**
-	 * Remove rows at the positions specified in the ordered list given.
+	 * Keep rows at the positions specified in the ordered list given. Remove all
+	 * other rows.
 	 * 
-	 * @param rows The list of rows to remove.
+	 * @param rows The list of rows to keep.
 	 * @return MarsTable for next operation.
 	 */
 	public MarsTable keepRows(int[] rows) {
 		if (rows.length == 0) return this;
 
-		int rowsIndex = 0;
-		for (int row = 0; row < getRowCount(); row++) {
-			if (rowsIndex < rows.length) {
-				if (rows[rowsIndex] == row) {
-					// means we need to move row i to position row.
-					for (int j = 0; j < getColumnCount(); j++)
-						set(j, rowsIndex, get(j, row));
-					rowsIndex++;
-				}
-			}
-		}
-
-		// delete last rows
-		for (int row = getRowCount() - 1; row > rows.length - 1; row--)
-			removeRow(row);
+		BitSet keep = new BitSet(getRowCount());
+		for (int row : rows)
+			if (row >= 0 && row < getRowCount()) keep.set(row);
 
-		return this;
+		return compactRows(keep);
 	}
 
 	/**
@@ -1774,34 +2094,71 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 	 * @return MarsTable for next operation.
 	 */
 	public MarsTable keepRows(List<Integer> rows) {
-		if (rows.size() == 0) {
-			// Then we remove all rows...
-			// Maybe we just need to change size...
-			// This will work for now...
-			for (int row = getRowCount() - 1; row > rows.size() - 1; row--)
-				removeRow(row);
-			return this;
-		}
+		BitSet keep = new BitSet(getRowCount());
+		for (int row : rows)
+			if (row >= 0 && row < getRowCount()) keep.set(row);
 
-		int rowsIndex = 0;
-		for (int row = 0; row < getRowCount(); row++) {
-			if (rowsIndex < rows.size()) {
-				if (rows.get(rowsIndex) == row) {
-					// means we need to move row i to position row.
-					for (int j = 0; j < getColumnCount(); j++)
-						set(j, rowsIndex, get(j, row));
-					rowsIndex++;
+		return compactRows(keep);
+	}
+
+	/**
+	 * Keep the rows for which the predicate given returns true. Remove all other
+	 * rows. The predicate is called once for each row index in order before any
+	 * rows are removed, so it can read values from the table.
+	 * 
+	 * @param keep Predicate that takes a row index and returns true if the row
+	 *          should be kept.
+	 * @return MarsTable for next operation.
+	 */
+	public MarsTable filterRows(IntPredicate keep) {
+		BitSet mask = new BitSet(getRowCount());
+		for (int row = 0; row < getRowCount(); row++)
+			if (keep.test(row)) mask.set(row);
+
+		return compactRows(mask);
+	}
+
+	/**
+	 * Moves the rows set in the mask given to the top of each column, keeping
+	 * their order, and then truncates the table. Contiguous runs of rows are
+	 * moved with System.arraycopy for DoubleColumns.
+	 */
+	private MarsTable compactRows(BitSet keep) {
+		final int rows = getRowCount();
+		final int kept = keep.cardinality();
+		if (kept == rows) return this;
+
+		for (int col = 0; col < getColumnCount(); col++) {
+			Column<?> column = get(col);
+			if (column instanceof DoubleColumn) {
+				double[] values = ((DoubleColumn) column).getArray();
+				int pos = 0;
+				int start = keep.nextSetBit(0);
+				while (start >= 0) {
+					int end = keep.nextClearBit(start);
+					if (start != pos) System.arraycopy(values, start, values, pos, end -
+						start);
+					pos += end - start;
+					start = keep.nextSetBit(end);
 				}
 			}
+			else compact(column, keep);
 		}
-
-		// delete last rows
-		for (int row = getRowCount() - 1; row > rows.size() - 1; row--)
-			removeRow(row);
+		setRowCount(kept);
 
 		return this;
 	}
 
+	private static <T> void compact(Column<T> column, BitSet keep) {
+		int pos = 0;
+		for (int row = keep.nextSetBit(0); row >= 0; row = keep.nextSetBit(row +
+			1))
+		{
+			if (row != pos) column.set(pos, column.get(row));
+			pos++;
+		}
+	}
+
 	@Override
 	protected DoubleColumn createColumn(final String header) {
 		return new DoubleColumn(header);
@@ -1852,90 +2209,6 @@ public class MarsTable extends AbstractTable<Column<?>, Object>
 		return table;
 	}
 
-	// These classes are used for sorting in place. They
-	// may be replaced with a different sort implementation in future releases.
-	// But the external API will not need to change.
-	private static class ResultsTableList extends AbstractList<Row> {
-
-		private final MarsTable table;
-
-		public ResultsTableList(MarsTable table) {
-			this.table = table;
-		}
-
-		@Override
-		public Row get(int row) {
-			return new Row(row, table);
-		}
-
-		@Override
-		public Row set(int row, Row values) {
-			Row old = get(row);
-
-			for (int colIndex = 0; colIndex < table.getColumnCount(); colIndex++) {
-				Column<?> column = table.get(colIndex);
-
-				if (column instanceof DoubleColumn) {
-					table.setValue(column.getHeader(), row, values.getValue(column
-						.getHeader()));
-				}
-
-				if (column instanceof GenericColumn) {
-					table.setValue(column.getHeader(), row, values.getStringValue(column
-						.getHeader()));
-				}
-			}
-
-			return old;
-		}
-
-		@Override
-		public int size() {
-			return table.getRowCount();
-		}
-	}
-
-	private static class Row {
-
-		private final Map<String, Double> doubleValues = new HashMap<>();
-		private final Map<String, String> stringValues = new HashMap<>();
-
-		private final MarsTable table;
-
-		Row(int row, MarsTable table) {
-			this.table = table;
-
-			for (int colIndex = 0; colIndex < table.getColumnCount(); colIndex++) {
-				Column<?> column = table.get(colIndex);
-
-				if (column instanceof DoubleColumn) {
-					doubleValues.put(column.getHeader(), table.getValue(colIndex, row));
-				}
-
-				if (column instanceof GenericColumn) {
-					stringValues.put(column.getHeader(), table.getStringValue(colIndex,
-						row));
-				}
-			}
-		}
-
-		double getValue(String column) {
-			return doubleValues.get(column);
-		}
-
-		double getValue(int colIndex) {
-			return doubleValues.get(table.getColumnHeader(colIndex));
-		}
-
-		String getStringValue(String column) {
-			return stringValues.get(column);
-		}
-
-		String getStringValue(int colIndex) {
-			return stringValues.get(table.getColumnHeader(colIndex));
-		}
-	}
-
 	@Override
 	public void setShowWarnings(boolean showWarnings) {
 		// TODO Auto-generated method stub
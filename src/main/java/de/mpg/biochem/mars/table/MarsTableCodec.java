@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+
+/**
+ * Compression codec for the DoubleColumn blocks of Smile encoded
+ * {@link MarsTable}s. The codec name is stored with each block so tables can
+ * be read regardless of the codec they were written with. GZIP at the default
+ * compression level is used unless another codec is selected, for example using
+ * {@link MarsTable#setBlockCodec(MarsTableCodec)} or when saving a
+ * MoleculeArchive. RAW stores blocks uncompressed and is by far the fastest
+ * to read at the cost of larger files. Noisy double values compress poorly, so
+ * for many tables the size difference is small. GZIP at level 1 is faster to
+ * write than the default level with similar file sizes.
+ * <p>
+ * Additional codecs can be made available for reading using
+ * {@link #register(MarsTableCodec)}.
+ * </p>
+ * 
+ * @author Karl Duderstadt
+ */
+public abstract class MarsTableCodec {
+
+	private static final Map<String, MarsTableCodec> codecs =
+		new ConcurrentHashMap<>();
+
+	/**
+	 * Uncompressed blocks.
+	 */
+	public static final MarsTableCodec RAW = register(new MarsTableCodec("RAW") {
+
+		@Override
+		public OutputStream compress(OutputStream out) {
+			return out;
+		}
+
+		@Override
+		public InputStream decompress(InputStream in) {
+			return in;
+		}
+	});
+
+	/**
+	 * GZIP compression at the default compression level.
+	 */
+	public static final MarsTableCodec GZIP = register(gzip(
+		Deflater.DEFAULT_COMPRESSION));
+
+	private final String name;
+
+	/**
+	 * Constructor for a codec with the name given. The name is stored with each
+	 * block and used to find the codec when reading.
+	 * 
+	 * @param name The codec name.
+	 */
+	protected MarsTableCodec(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the name stored with blocks written using this codec.
+	 * 
+	 * @return The codec name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Wrap the stream given in a stream that compresses all bytes written.
+	 * Closing the returned stream must finish the compressed data and close the
+	 * stream given.
+	 * 
+	 * @param out The stream to write the compressed block to.
+	 * @return The stream to write uncompressed bytes to.
+	 * @throws IOException Thrown if the stream cannot be created.
+	 */
+	public abstract OutputStream compress(OutputStream out) throws IOException;
+
+	/**
+	 * Wrap the stream given in a stream that decompresses all bytes read.
+	 * 
+	 * @param in The stream to read the compressed block from.
+	 * @return The stream to read uncompressed bytes from.
+	 * @throws IOException Thrown if the stream cannot be created.
+	 */
+	public abstract InputStream decompress(InputStream in) throws IOException;
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * Create a GZIP codec with the compression level given. Blocks written with
+	 * any level are read using {@link #GZIP}.
+	 * 
+	 * @param level The compression level from 1 (fastest) to 9 (smallest) or -1
+	 *          for the default level.
+	 * @return The codec.
+	 */
+	public static MarsTableCodec gzip(final int level) {
+		return new MarsTableCodec("GZIP") {
+
+			@Override
+			public OutputStream compress(OutputStream out) throws IOException {
+				GzipParameters parameters = new GzipParameters();
+				parameters.setCompressionLevel(level);
+				return new GzipCompressorOutputStream(out, parameters);
+			}
+
+			@Override
+			public InputStream decompress(InputStream in) throws IOException {
+				return new GzipCompressorInputStream(in);
+			}
+		};
+	}
+
+	/**
+	 * Make a codec available for reading blocks with its name. Replaces any
+	 * codec previously registered with the same name.
+	 * 
+	 * @param codec The codec to register.
+	 * @return The codec registered.
+	 */
+	public static MarsTableCodec register(MarsTableCodec codec) {
+		codecs.put(codec.getName(), codec);
+		return codec;
+	}
+
+	/**
+	 * Get the codec registered with the name given.
+	 * 
+	 * @param name The codec name.
+	 * @return The codec or null if none is registered with the name.
+	 */
+	public static MarsTableCodec forName(String name) {
+		return codecs.get(name);
+	}
+}
@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.scijava.table.Column;
+import org.scijava.table.DoubleColumn;
+import org.scijava.table.GenericColumn;
+
+/**
+ * Groups the rows of a {@link MarsTable} by the values of one or more key
+ * columns. Created using {@link MarsTable#groupBy(String...)}. Rows do not
+ * need to be sorted. Groups are ordered by the first row in which they
+ * appear.
+ * <p>
+ * Keys are encoded as primitive group codes once, using open-addressing hash
+ * tables for DoubleColumn keys and dictionary codes for GenericColumn keys.
+ * Large tables are aggregated in parallel over partitions of the rows and the
+ * partial results merged. All zeros are one key and all NaN values are one
+ * key.
+ * </p>
+ * 
+ * @author Karl Duderstadt
+ */
+public class MarsTableGroupBy {
+
+	/**
+	 * Tables with fewer rows are aggregated in a single partition.
+	 */
+	private static final int PARTITION_ROWS = 1 << 16;
+
+	private final MarsTable table;
+	private final String[] keys;
+
+	private int[] groupOfRow;
+	private int[] firstRows;
+
+	MarsTableGroupBy(MarsTable table, String... keys) {
+		this.table = table;
+		this.keys = keys.clone();
+		for (String key : keys)
+			if (!table.hasColumn(key)) throw new IllegalArgumentException(
+				"No such column: " + key);
+	}
+
+	/**
+	 * @return The number of groups.
+	 */
+	public int getGroupCount() {
+		encode();
+		return firstRows.length;
+	}
+
+	/**
+	 * Calculates the aggregations given for each group. The output table has
+	 * one row for each group, the key columns followed by one DoubleColumn for
+	 * each aggregation.
+	 * 
+	 * @param aggregations The statistics to calculate.
+	 * @return A new MarsTable with the results.
+	 * @throws IllegalArgumentException if an aggregated column does not exist
+	 *           or is not a DoubleColumn.
+	 */
+	public MarsTable aggregate(Aggregation... aggregations) {
+		final double[][] columns = new double[aggregations.length][];
+		for (int i = 0; i < aggregations.length; i++) {
+			String column = aggregations[i].getColumn();
+			if (column == null) continue;
+			if (!table.hasColumn(column) || !(table.get(
+				column) instanceof DoubleColumn)) throw new IllegalArgumentException(
+					"No such DoubleColumn: " + column);
+			columns[i] = ((DoubleColumn) table.get(column)).getArray();
+		}
+
+		encode();
+		final int rows = table.getRowCount();
+		final int groups = firstRows.length;
+
+		// Each partition keeps state for every group, so only split the rows
+		// when groups are small compared to partitions.
+		int partitions = Math.min(Runtime.getRuntime().availableProcessors(),
+			rows / PARTITION_ROWS);
+		partitions = Math.max(1, Math.min(partitions, rows / Math.max(1,
+			groups)));
+
+		final int partitionCount = partitions;
+		final Aggregation.Accumulator[][] partial =
+			new Aggregation.Accumulator[partitionCount][aggregations.length];
+		IntStream partitionStream = IntStream.range(0, partitionCount);
+		if (partitionCount > 1) partitionStream = partitionStream.parallel();
+		partitionStream.forEach(p -> {
+			int from = (int) ((long) rows * p / partitionCount);
+			int to = (int) ((long) rows * (p + 1) / partitionCount);
+			for (int i = 0; i < aggregations.length; i++) {
+				Aggregation.Accumulator accumulator = aggregations[i]
+					.createAccumulator(groups);
+				double[] values = columns[i];
+				for (int row = from; row < to; row++)
+					accumulator.add(groupOfRow[row], values == null ? 0 : values[row]);
+				partial[p][i] = accumulator;
+			}
+		});
+
+		MarsTable output = new MarsTable(table.getName());
+		for (String key : keys)
+			output.add(keyColumn(table.get(key)));
+
+		for (int i = 0; i < aggregations.length; i++) {
+			for (int p = 1; p < partitionCount; p++)
+				partial[0][i].merge(partial[p][i]);
+
+			DoubleColumn column = new DoubleColumn(aggregations[i].getHeader());
+			double[] results = partial[0][i].results();
+			column.setArray(results);
+			column.setSize(results.length);
+			output.add(column);
+		}
+
+		return output;
+	}
+
+	private Column<?> keyColumn(Column<?> source) {
+		if (source instanceof DoubleColumn) {
+			double[] values = ((DoubleColumn) source).getArray();
+			DoubleColumn column = new DoubleColumn(source.getHeader());
+			for (int firstRow : firstRows)
+				column.add(values[firstRow]);
+			return column;
+		}
+		GenericColumn column = new GenericColumn(source.getHeader());
+		for (int firstRow : firstRows)
+			column.add(source.get(firstRow));
+		return column;
+	}
+
+	/**
+	 * Assigns each row the code of its group. Codes of multiple keys are
+	 * combined one key at a time and renumbered so they stay below the number of
+	 * rows.
+	 */
+	private void encode() {
+		if (groupOfRow != null) return;
+		final int rows = table.getRowCount();
+
+		int[] codes = null;
+		int cardinality = 0;
+		for (String key : keys) {
+			int[] keyCodes = new int[rows];
+			int keyCardinality = encode(table.get(key), keyCodes, rows);
+			if (codes == null) {
+				codes = keyCodes;
+				cardinality = keyCardinality;
+				continue;
+			}
+
+			LongIntHashMap combined = new LongIntHashMap(Math.min(rows, Math.max(
+				cardinality, keyCardinality)));
+			for (int row = 0; row < rows; row++)
+				codes[row] = combined.putIfAbsent((long) codes[row] * keyCardinality +
+					keyCodes[row], combined.size());
+			cardinality = combined.size();
+		}
+
+		// Without keys all rows are one group
+		if (codes == null) {
+			codes = new int[rows];
+			cardinality = rows == 0 ? 0 : 1;
+		}
+
+		firstRows = new int[cardinality];
+		Arrays.fill(firstRows, -1);
+		for (int row = 0; row < rows; row++)
+			if (firstRows[codes[row]] == -1) firstRows[codes[row]] = row;
+		groupOfRow = codes;
+	}
+
+	private static int encode(Column<?> column, int[] codes, int rows) {
+		if (column instanceof DoubleColumn) {
+			double[] values = ((DoubleColumn) column).getArray();
+			LongIntHashMap dictionary = new LongIntHashMap(16);
+			for (int row = 0; row < rows; row++) {
+				// doubleToLongBits collapses NaNs. Collapse zeros too.
+				long bits = values[row] == 0 ? 0L : Double.doubleToLongBits(
+					values[row]);
+				codes[row] = dictionary.putIfAbsent(bits, dictionary.size());
+			}
+			return dictionary.size();
+		}
+
+		Map<Object, Integer> dictionary = new HashMap<>();
+		for (int row = 0; row < rows; row++) {
+			Object value = column.get(row);
+			Integer code = dictionary.get(value);
+			if (code == null) {
+				code = dictionary.size();
+				dictionary.put(value, code);
+			}
+			codes[row] = code;
+		}
+		return dictionary.size();
+	}
+
+	/**
+	 * Open-addressing hash map from long keys to int values with linear probing.
+	 */
+	private static final class LongIntHashMap {
+
+		private long[] keys;
+		private int[] values;
+		private boolean[] used;
+		private int size;
+		private int mask;
+
+		LongIntHashMap(int expected) {
+			allocate(Integer.highestOneBit(Math.max(16, expected) * 2 - 1) << 1);
+		}
+
+		private void allocate(int capacity) {
+			keys = new long[capacity];
+			values = new int[capacity];
+			used = new boolean[capacity];
+			mask = capacity - 1;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the value of the key given, first adding it with the value given
+		 * if it is not present.
+		 */
+		int putIfAbsent(long key, int value) {
+			int slot = slot(key);
+			while (used[slot]) {
+				if (keys[slot] == key) return values[slot];
+				slot = (slot + 1) & mask;
+			}
+			used[slot] = true;
+			keys[slot] = key;
+			values[slot] = value;
+			if (++size > (mask + 1) / 2) grow();
+			return value;
+		}
+
+		/**
+		 * Mixes all bits of the key, since the low bits of doubles with integer
+		 * values are zero.
+		 */
+		private int slot(long key) {
+			long hash = key;
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			hash ^= hash >>> 33;
+			return (int) hash & mask;
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			boolean[] oldUsed = used;
+			allocate(oldKeys.length * 2);
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (!oldUsed[i]) continue;
+				int slot = slot(oldKeys[i]);
+				while (used[slot])
+					slot = (slot + 1) & mask;
+				used[slot] = true;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
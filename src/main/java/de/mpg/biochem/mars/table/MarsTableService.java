@@ -155,6 +155,7 @@ public class MarsTableService extends AbstractPTService<MarsTableService>
 	// Utility method returning HashMap of molecule numbers and start and stop
 	// index positions.
 	// Here we are assuming the table is already sorted on the groupColumn.
+	// MarsTable.groupBy can be used to aggregate groups of unsorted tables.
 	public static Map<String, GroupIndices> find_group_indices(
 		MarsTable table, String groupColumn)
 	{
@@ -0,0 +1,264 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+/**
+ * Summary statistics for the values of a {@link MarsTable} column, calculated
+ * using {@link MarsTable#summarize(String, MarsTableStatistics)}. NaN values
+ * are ignored. All statistics are NaN if there are no values.
+ * <p>
+ * Values are copied into a scratch array that is kept and reused when the
+ * same instance is passed to summarize again, so summarizing the columns of
+ * many tables with one instance does not allocate. The median and median
+ * absolute deviation are calculated by quickselect on the scratch array the
+ * first time they are requested. The mean and variances are calculated the
+ * same way as by the commons-math StatUtils and StandardDeviation classes used
+ * previously and give identical results.
+ * </p>
+ * <p>
+ * Instances are not thread-safe.
+ * </p>
+ * 
+ * @author Karl Duderstadt
+ */
+public class MarsTableStatistics {
+
+	private double[] scratch = new double[0];
+
+	private int count;
+	private double min, max, mean, variance, sampleVariance;
+
+	// Median and MAD are calculated on first request
+	private boolean median, mad;
+	private double medianValue, madValue;
+
+	/**
+	 * Create an empty statistics instance. Pass it to
+	 * {@link MarsTable#summarize(String, MarsTableStatistics)} to calculate
+	 * statistics.
+	 */
+	public MarsTableStatistics() {
+		clear();
+	}
+
+	/**
+	 * Calculate the statistics of the first rows values that are not NaN.
+	 * If a selection array is given, only rows with a selection value within
+	 * the bounds given (inclusive) are included.
+	 */
+	MarsTableStatistics compute(double[] values, int rows, double[] selection,
+		double lowerBound, double upperBound)
+	{
+		clear();
+		if (scratch.length < rows) scratch = new double[Math.max(rows,
+			scratch.length * 2)];
+
+		double sum = 0;
+		double min = Double.NaN;
+		double max = Double.NaN;
+		int n = 0;
+		for (int row = 0; row < rows; row++) {
+			double value = values[row];
+			if (Double.isNaN(value)) continue;
+			if (selection != null && !(selection[row] >= lowerBound &&
+				selection[row] <= upperBound)) continue;
+			scratch[n++] = value;
+			sum += value;
+			if (n == 1 || value < min) min = value;
+			if (n == 1 || value > max) max = value;
+		}
+		count = n;
+		if (n == 0) return this;
+
+		this.min = min;
+		this.max = max;
+
+		// Mean with the correction term used by commons-math.
+		double xbar = sum / n;
+		double correction = 0;
+		for (int i = 0; i < n; i++)
+			correction += scratch[i] - xbar;
+		mean = xbar + correction / n;
+
+		if (n == 1) {
+			variance = 0;
+			sampleVariance = 0;
+			return this;
+		}
+
+		double accum = 0;
+		double accum2 = 0;
+		for (int i = 0; i < n; i++) {
+			double dev = scratch[i] - mean;
+			accum += dev * dev;
+			accum2 += dev;
+		}
+		variance = (accum - (accum2 * accum2 / n)) / n;
+		sampleVariance = (accum - (accum2 * accum2 / n)) / (n - 1.0);
+		return this;
+	}
+
+	private void clear() {
+		count = 0;
+		min = max = mean = variance = sampleVariance = Double.NaN;
+		median = mad = false;
+		medianValue = madValue = Double.NaN;
+	}
+
+	/**
+	 * @return The number of values that are not NaN.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The smallest value.
+	 */
+	public double getMin() {
+		return min;
+	}
+
+	/**
+	 * @return The largest value.
+	 */
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return The mean of the values.
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return The population variance of the values.
+	 */
+	public double getVariance() {
+		return variance;
+	}
+
+	/**
+	 * @return The sample standard deviation of the values.
+	 */
+	public double getStd() {
+		return Math.sqrt(sampleVariance);
+	}
+
+	/**
+	 * @return The standard error of the mean.
+	 */
+	public double getSem() {
+		return getStd() / Math.sqrt(count);
+	}
+
+	/**
+	 * @return The median of the values.
+	 */
+	public double getMedian() {
+		if (!median && count > 0) {
+			medianValue = median(scratch, count);
+			median = true;
+		}
+		return medianValue;
+	}
+
+	/**
+	 * @return The median absolute deviation of the values from the median.
+	 */
+	public double getMad() {
+		if (!mad && count > 0) {
+			double center = getMedian();
+			for (int i = 0; i < count; i++)
+				scratch[i] = Math.abs(center - scratch[i]);
+			madValue = median(scratch, count);
+			mad = true;
+		}
+		return madValue;
+	}
+
+	private static double median(double[] values, int n) {
+		int k = n / 2;
+		double upper = select(values, n, k);
+		if (n % 2 == 1) return upper;
+
+		// After selection all values below k are less than or equal to the value
+		// at k, so the lower middle value is their maximum.
+		double lower = values[0];
+		for (int i = 1; i < k; i++)
+			if (values[i] > lower) lower = values[i];
+		return (upper + lower) / 2;
+	}
+
+	/**
+	 * Partially sorts the first n values so that the value at index k is the
+	 * one that would be there if they were sorted. Values before k are less
+	 * than or equal and values after k greater than or equal to it.
+	 */
+	private static double select(double[] values, int n, int k) {
+		int left = 0;
+		int right = n - 1;
+		while (right > left) {
+			// Median of three pivot
+			int middle = (left + right) >>> 1;
+			if (values[middle] < values[left]) swap(values, middle, left);
+			if (values[right] < values[left]) swap(values, right, left);
+			if (values[right] < values[middle]) swap(values, right, middle);
+			double pivot = values[middle];
+
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[i] < pivot)
+					i++;
+				while (values[j] > pivot)
+					j--;
+				if (i <= j) {
+					swap(values, i, j);
+					i++;
+					j--;
+				}
+			}
+
+			if (k <= j) right = j;
+			else if (k >= i) left = i;
+			else break;
+		}
+		return values[k];
+	}
+
+	private static void swap(double[] values, int i, int j) {
+		double temp = values[i];
+		values[i] = values[j];
+		values[j] = temp;
+	}
+}
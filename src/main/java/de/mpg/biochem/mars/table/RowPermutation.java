@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stable sorting of table row indices. Rows are compared by index so values
+ * are read directly from the column backing arrays, and the resulting
+ * permutation is then applied column by column.
+ * 
+ * @author Karl Duderstadt
+ */
+final class RowPermutation {
+
+	/**
+	 * Tables with at least this many rows are sorted in parallel.
+	 */
+	static final int PARALLEL_THRESHOLD = 1 << 17;
+
+	/**
+	 * Size below which parallel sorts stop splitting.
+	 */
+	private static final int PARALLEL_GRANULARITY = 1 << 13;
+
+	/**
+	 * Size below which insertion sort is used.
+	 */
+	private static final int INSERTION_SORT_THRESHOLD = 32;
+
+	private RowPermutation() {}
+
+	/**
+	 * Compares two rows by index.
+	 */
+	interface RowComparator {
+
+		int compare(int row1, int row2);
+	}
+
+	/**
+	 * Sorts the row indices 0 to rows - 1. Rows that compare equal keep their
+	 * order.
+	 * 
+	 * @param rows Number of rows.
+	 * @param comparator Comparator for the rows.
+	 * @return The permutation. Position i holds the index of the row that
+	 *         belongs at i.
+	 */
+	static int[] sort(int rows, RowComparator comparator) {
+		int[] order = new int[rows];
+		for (int i = 0; i < rows; i++)
+			order[i] = i;
+		if (rows < 2) return order;
+
+		int[] work = order.clone();
+		if (rows >= PARALLEL_THRESHOLD) new MergeSortTask(work, order, 0, rows,
+			comparator).invoke();
+		else mergeSort(work, order, 0, rows, comparator);
+		return order;
+	}
+
+	/**
+	 * Sorts dest between from and to using src, which must hold the same values
+	 * in that range, as working space.
+	 */
+	private static void mergeSort(int[] src, int[] dest, int from, int to,
+		RowComparator comparator)
+	{
+		if (to - from < INSERTION_SORT_THRESHOLD) {
+			insertionSort(dest, from, to, comparator);
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(dest, src, from, mid, comparator);
+		mergeSort(dest, src, mid, to, comparator);
+		merge(src, dest, from, mid, to, comparator);
+	}
+
+	private static void insertionSort(int[] values, int from, int to,
+		RowComparator comparator)
+	{
+		for (int i = from + 1; i < to; i++) {
+			int row = values[i];
+			int j = i - 1;
+			while (j >= from && comparator.compare(values[j], row) > 0) {
+				values[j + 1] = values[j];
+				j--;
+			}
+			values[j + 1] = row;
+		}
+	}
+
+	/**
+	 * Merges the sorted ranges from to mid and mid to to of src into dest. Ties
+	 * are taken from the first range so the sort is stable.
+	 */
+	private static void merge(int[] src, int[] dest, int from, int mid, int to,
+		RowComparator comparator)
+	{
+		// Already in order
+		if (comparator.compare(src[mid - 1], src[mid]) <= 0) {
+			System.arraycopy(src, from, dest, from, to - from);
+			return;
+		}
+		int i = from;
+		int j = mid;
+		for (int k = from; k < to; k++) {
+			if (j >= to || (i < mid && comparator.compare(src[i], src[j]) <= 0))
+				dest[k] = src[i++];
+			else dest[k] = src[j++];
+		}
+	}
+
+	private static class MergeSortTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] src, dest;
+		private final int from, to;
+		private final RowComparator comparator;
+
+		MergeSortTask(int[] src, int[] dest, int from, int to,
+			RowComparator comparator)
+		{
+			this.src = src;
+			this.dest = dest;
+			this.from = from;
+			this.to = to;
+			this.comparator = comparator;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_GRANULARITY) {
+				mergeSort(src, dest, from, to, comparator);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new MergeSortTask(dest, src, from, mid, comparator),
+				new MergeSortTask(dest, src, mid, to, comparator));
+			merge(src, dest, from, mid, to, comparator);
+		}
+	}
+}
@@ -165,58 +165,30 @@ public class MarsTableFilterCommand extends DynamicCommand implements
 		double STD = table.std(columnName);
 		double mean = table.mean(columnName);
 
-		// There is many better ways to do this....
-		// Another option is to take care of includeSelection only at the end.
-		ArrayList<Integer> deleteList = new ArrayList<>();
-		for (int row = 0; row < table.getRowCount(); row++) {
+		final double[] filterValues = filterList;
+		table.filterRows(row -> {
 			double value = table.getValue(columnName, row);
 
-			if (Double.isNaN(value)) {
-				// Let's just remove all null values. They can't be filtered correctly
-				deleteList.add(row);
-			}
-			else if (tableFilter) {
-				if (includeSelection) {
-					deleteList.add(row);
-					for (double v : filterList) {
-						if (value == v) {
-							deleteList.remove(deleteList.size() - 1);
-							break;
-						}
-					}
-				}
-				else {
-					for (double v : filterList) {
-						if (value == v) {
-							deleteList.add(row);
-							break;
-						}
+			// Let's just remove all null values. They can't be filtered correctly
+			if (Double.isNaN(value)) return false;
+
+			if (tableFilter) {
+				boolean inList = false;
+				for (double v : filterValues) {
+					if (value == v) {
+						inList = true;
+						break;
 					}
 				}
+				return inList == includeSelection;
 			}
 			else if (STDFilter) {
-				if (value < (mean - N_STD * STD) || value > (mean + N_STD * STD)) {
-					if (includeSelection) deleteList.add(row);
-				}
-				else {
-					if (!includeSelection) deleteList.add(row);
-				}
-			}
-			else if (value < min || value > max) {
-				if (includeSelection) deleteList.add(row);
+				boolean inside = value >= (mean - N_STD * STD) && value <= (mean +
+					N_STD * STD);
+				return inside == includeSelection;
 			}
-			else if (value >= min && value <= max) {
-				if (!includeSelection) deleteList.add(row);
-			}
-
-		}
-
-		int[] delList = new int[deleteList.size()];
-		for (int i = 0; i < deleteList.size(); i++) {
-			delList[i] = deleteList.get(i);
-		}
-
-		table.deleteRows(delList);
+			else return (value >= min && value <= max) == includeSelection;
+		});
 
 		if (table.getWindow() != null) table.getWindow().update();
 	}
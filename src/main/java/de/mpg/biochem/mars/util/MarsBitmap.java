@@ -0,0 +1,591 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package de.mpg.biochem.mars.util;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed bitmap of non-negative integers. The integers are split into
+ * chunks of 65536 values by their upper 16 bits. Sparse chunks are stored as
+ * sorted arrays of the lower 16 bits and dense chunks as 65536 bit words, the
+ * same layout used by roaring bitmaps. Boolean operations return new bitmaps
+ * and leave their inputs unchanged. Instances are not thread-safe.
+ */
+public class MarsBitmap {
+
+	/*
+	 * Chunks with more values than this are stored as bit words.
+	 */
+	private static final int ARRAY_MAX_SIZE = 4096;
+
+	private static final int WORDS = 1024;
+
+	private char[] keys;
+	private Container[] containers;
+	private int size;
+
+	public MarsBitmap() {
+		keys = new char[4];
+		containers = new Container[4];
+	}
+
+	private MarsBitmap(int capacity) {
+		keys = new char[Math.max(1, capacity)];
+		containers = new Container[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Create a bitmap containing the values given.
+	 * 
+	 * @param values The values to add.
+	 * @return The new bitmap.
+	 */
+	public static MarsBitmap of(int... values) {
+		MarsBitmap bitmap = new MarsBitmap();
+		for (int value : values)
+			bitmap.add(value);
+		return bitmap;
+	}
+
+	/**
+	 * Add a value.
+	 * 
+	 * @param value The non-negative value to add.
+	 */
+	public void add(int value) {
+		if (value < 0) throw new IllegalArgumentException(
+			"Only non-negative values can be stored: " + value);
+		char high = (char) (value >>> 16);
+		int i = indexOf(high);
+		if (i >= 0) containers[i] = containers[i].add((char) value);
+		else {
+			ArrayContainer container = new ArrayContainer();
+			container.add((char) value);
+			insert(-i - 1, high, container);
+		}
+	}
+
+	/**
+	 * Remove a value.
+	 * 
+	 * @param value The value to remove.
+	 */
+	public void remove(int value) {
+		if (value < 0) return;
+		int i = indexOf((char) (value >>> 16));
+		if (i < 0) return;
+		Container container = containers[i].remove((char) value);
+		if (container.cardinality() == 0) delete(i);
+		else containers[i] = container;
+	}
+
+	/**
+	 * Check if a value is in the bitmap.
+	 * 
+	 * @param value The value to check for.
+	 * @return True if the value is present and false if not.
+	 */
+	public boolean contains(int value) {
+		if (value < 0) return false;
+		int i = indexOf((char) (value >>> 16));
+		return i >= 0 && containers[i].contains((char) value);
+	}
+
+	/**
+	 * Get the number of values in the bitmap.
+	 * 
+	 * @return The number of values.
+	 */
+	public int getCardinality() {
+		int cardinality = 0;
+		for (int i = 0; i < size; i++)
+			cardinality += containers[i].cardinality();
+		return cardinality;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Remove all values.
+	 */
+	public void clear() {
+		Arrays.fill(containers, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * Apply the consumer to all values in ascending order.
+	 * 
+	 * @param consumer The consumer to call for each value.
+	 */
+	public void forEach(IntConsumer consumer) {
+		for (int i = 0; i < size; i++)
+			containers[i].forEach(keys[i] << 16, consumer);
+	}
+
+	/**
+	 * Get all values in ascending order.
+	 * 
+	 * @return Array of values.
+	 */
+	public int[] toArray() {
+		int[] values = new int[getCardinality()];
+		int[] position = new int[1];
+		forEach(value -> values[position[0]++] = value);
+		return values;
+	}
+
+	/**
+	 * Approximate memory used by the values in bytes.
+	 * 
+	 * @return The size in bytes.
+	 */
+	public long getSizeInBytes() {
+		long bytes = 2L * keys.length + 8L * containers.length;
+		for (int i = 0; i < size; i++)
+			bytes += containers[i].sizeInBytes();
+		return bytes;
+	}
+
+	public MarsBitmap copy() {
+		MarsBitmap copy = new MarsBitmap(size);
+		for (int i = 0; i < size; i++)
+			copy.append(keys[i], containers[i].copy());
+		return copy;
+	}
+
+	/**
+	 * Intersection of two bitmaps.
+	 * 
+	 * @param a The first bitmap.
+	 * @param b The second bitmap.
+	 * @return New bitmap with the values in both a and b.
+	 */
+	public static MarsBitmap and(MarsBitmap a, MarsBitmap b) {
+		MarsBitmap result = new MarsBitmap(Math.min(a.size, b.size));
+		int i = 0, j = 0;
+		while (i < a.size && j < b.size) {
+			if (a.keys[i] < b.keys[j]) i++;
+			else if (a.keys[i] > b.keys[j]) j++;
+			else {
+				Container container = a.containers[i].and(b.containers[j]);
+				if (container.cardinality() > 0) result.append(a.keys[i], container);
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Union of two bitmaps.
+	 * 
+	 * @param a The first bitmap.
+	 * @param b The second bitmap.
+	 * @return New bitmap with the values in a or b.
+	 */
+	public static MarsBitmap or(MarsBitmap a, MarsBitmap b) {
+		MarsBitmap result = new MarsBitmap(a.size + b.size);
+		int i = 0, j = 0;
+		while (i < a.size || j < b.size) {
+			if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+				result.append(a.keys[i], a.containers[i].copy());
+				i++;
+			}
+			else if (i == a.size || a.keys[i] > b.keys[j]) {
+				result.append(b.keys[j], b.containers[j].copy());
+				j++;
+			}
+			else {
+				result.append(a.keys[i], a.containers[i].or(b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Difference of two bitmaps.
+	 * 
+	 * @param a The bitmap to remove values from.
+	 * @param b The values to remove.
+	 * @return New bitmap with the values in a that are not in b.
+	 */
+	public static MarsBitmap andNot(MarsBitmap a, MarsBitmap b) {
+		MarsBitmap result = new MarsBitmap(a.size);
+		int j = 0;
+		for (int i = 0; i < a.size; i++) {
+			while (j < b.size && b.keys[j] < a.keys[i])
+				j++;
+			Container container = (j < b.size && b.keys[j] == a.keys[i])
+				? a.containers[i].andNot(b.containers[j]) : a.containers[i].copy();
+			if (container.cardinality() > 0) result.append(a.keys[i], container);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof MarsBitmap)) return false;
+		return Arrays.equals(toArray(), ((MarsBitmap) obj).toArray());
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(toArray());
+	}
+
+	private int indexOf(char key) {
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	private void insert(int index, char key, Container container) {
+		ensureCapacity(size + 1);
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(containers, index, containers, index + 1, size - index);
+		keys[index] = key;
+		containers[index] = container;
+		size++;
+	}
+
+	private void delete(int index) {
+		System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+		System.arraycopy(containers, index + 1, containers, index, size - index -
+			1);
+		containers[--size] = null;
+	}
+
+	private void append(char key, Container container) {
+		ensureCapacity(size + 1);
+		keys[size] = key;
+		containers[size] = container;
+		size++;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > keys.length) {
+			int newCapacity = Math.max(capacity, keys.length * 2);
+			keys = Arrays.copyOf(keys, newCapacity);
+			containers = Arrays.copyOf(containers, newCapacity);
+		}
+	}
+
+	private static abstract class Container {
+
+		abstract Container add(char value);
+
+		abstract Container remove(char value);
+
+		abstract boolean contains(char value);
+
+		abstract int cardinality();
+
+		abstract Container and(Container other);
+
+		abstract Container or(Container other);
+
+		abstract Container andNot(Container other);
+
+		abstract void forEach(int high, IntConsumer consumer);
+
+		abstract Container copy();
+
+		abstract long sizeInBytes();
+	}
+
+	private static final class ArrayContainer extends Container {
+
+		private char[] values;
+		private int cardinality;
+
+		ArrayContainer() {
+			values = new char[4];
+		}
+
+		ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		Container add(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i >= 0) return this;
+			if (cardinality == ARRAY_MAX_SIZE) {
+				BitmapContainer bitmap = toBitmap();
+				return bitmap.add(value);
+			}
+			i = -i - 1;
+			if (cardinality == values.length) values = Arrays.copyOf(values, Math.min(
+				ARRAY_MAX_SIZE, values.length * 2));
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i >= 0) {
+				System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container and(Container other) {
+			char[] result = new char[cardinality];
+			int n = 0;
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				int i = 0, j = 0;
+				while (i < cardinality && j < array.cardinality) {
+					if (values[i] < array.values[j]) i++;
+					else if (values[i] > array.values[j]) j++;
+					else {
+						result[n++] = values[i];
+						i++;
+						j++;
+					}
+				}
+			}
+			else {
+				for (int i = 0; i < cardinality; i++)
+					if (other.contains(values[i])) result[n++] = values[i];
+			}
+			return new ArrayContainer(result, n);
+		}
+
+		@Override
+		Container or(Container other) {
+			if (other instanceof BitmapContainer) return other.or(this);
+			ArrayContainer array = (ArrayContainer) other;
+			char[] result = new char[cardinality + array.cardinality];
+			int n = 0, i = 0, j = 0;
+			while (i < cardinality || j < array.cardinality) {
+				if (j == array.cardinality || (i < cardinality &&
+					values[i] < array.values[j])) result[n++] = values[i++];
+				else if (i == cardinality || values[i] > array.values[j])
+					result[n++] = array.values[j++];
+				else {
+					result[n++] = values[i++];
+					j++;
+				}
+			}
+			ArrayContainer union = new ArrayContainer(result, n);
+			return (n > ARRAY_MAX_SIZE) ? union.toBitmap() : union;
+		}
+
+		@Override
+		Container andNot(Container other) {
+			char[] result = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < cardinality; i++)
+				if (!other.contains(values[i])) result[n++] = values[i];
+			return new ArrayContainer(result, n);
+		}
+
+		@Override
+		void forEach(int high, IntConsumer consumer) {
+			for (int i = 0; i < cardinality; i++)
+				consumer.accept(high | values[i]);
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, Math.max(1,
+				cardinality)), cardinality);
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 16L + 2L * values.length;
+		}
+
+		BitmapContainer toBitmap() {
+			BitmapContainer bitmap = new BitmapContainer();
+			for (int i = 0; i < cardinality; i++)
+				bitmap.words[values[i] >>> 6] |= 1L << values[i];
+			bitmap.cardinality = cardinality;
+			return bitmap;
+		}
+	}
+
+	private static final class BitmapContainer extends Container {
+
+		private final long[] words = new long[WORDS];
+		private int cardinality;
+
+		@Override
+		Container add(char value) {
+			long word = words[value >>> 6];
+			long updated = word | (1L << value);
+			if (word != updated) {
+				words[value >>> 6] = updated;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			long word = words[value >>> 6];
+			long updated = word & ~(1L << value);
+			if (word != updated) {
+				words[value >>> 6] = updated;
+				cardinality--;
+			}
+			return (cardinality <= ARRAY_MAX_SIZE) ? toArrayContainer() : this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container and(Container other) {
+			if (other instanceof ArrayContainer) return other.and(this);
+			BitmapContainer bitmap = (BitmapContainer) other;
+			BitmapContainer result = new BitmapContainer();
+			for (int i = 0; i < WORDS; i++) {
+				result.words[i] = words[i] & bitmap.words[i];
+				result.cardinality += Long.bitCount(result.words[i]);
+			}
+			return result.compact();
+		}
+
+		@Override
+		Container or(Container other) {
+			BitmapContainer result = new BitmapContainer();
+			System.arraycopy(words, 0, result.words, 0, WORDS);
+			result.cardinality = cardinality;
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.cardinality; i++)
+					result.add(array.values[i]);
+			}
+			else {
+				BitmapContainer bitmap = (BitmapContainer) other;
+				result.cardinality = 0;
+				for (int i = 0; i < WORDS; i++) {
+					result.words[i] |= bitmap.words[i];
+					result.cardinality += Long.bitCount(result.words[i]);
+				}
+			}
+			return result;
+		}
+
+		@Override
+		Container andNot(Container other) {
+			BitmapContainer result = new BitmapContainer();
+			System.arraycopy(words, 0, result.words, 0, WORDS);
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				result.cardinality = cardinality;
+				for (int i = 0; i < array.cardinality; i++) {
+					char value = array.values[i];
+					long word = result.words[value >>> 6];
+					long updated = word & ~(1L << value);
+					if (word != updated) {
+						result.words[value >>> 6] = updated;
+						result.cardinality--;
+					}
+				}
+			}
+			else {
+				BitmapContainer bitmap = (BitmapContainer) other;
+				for (int i = 0; i < WORDS; i++) {
+					result.words[i] &= ~bitmap.words[i];
+					result.cardinality += Long.bitCount(result.words[i]);
+				}
+			}
+			return result.compact();
+		}
+
+		@Override
+		void forEach(int high, IntConsumer consumer) {
+			for (int i = 0; i < WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					consumer.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+
+		@Override
+		Container copy() {
+			BitmapContainer copy = new BitmapContainer();
+			System.arraycopy(words, 0, copy.words, 0, WORDS);
+			copy.cardinality = cardinality;
+			return copy;
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 16L + 8L * WORDS;
+		}
+
+		private Container compact() {
+			return (cardinality <= ARRAY_MAX_SIZE) ? toArrayContainer() : this;
+		}
+
+		private ArrayContainer toArrayContainer() {
+			char[] values = new char[Math.max(1, cardinality)];
+			int[] n = new int[1];
+			forEach(0, value -> values[n[0]++] = (char) value);
+			return new ArrayContainer(values, cardinality);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.util;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent set that counts how many times each element was added. An
+ * element stays in the set until it has been released as many times as it
+ * was retained. {@link #add(Object)} retains an element once and
+ * {@link #remove(Object)} drops an element regardless of its count.
+ *
+ * @param <E> The element type.
+ */
+public class ReferenceCountedSet<E> extends AbstractSet<E> {
+
+	private final ConcurrentHashMap<E, Integer> counts = new ConcurrentHashMap<>();
+
+	public ReferenceCountedSet() {}
+
+	public ReferenceCountedSet(Collection<? extends E> elements) {
+		addAll(elements);
+	}
+
+	/**
+	 * Add one reference to an element.
+	 *
+	 * @param element The element to retain.
+	 * @return True if the element was not in the set before.
+	 */
+	public boolean retain(E element) {
+		return counts.merge(element, 1, Integer::sum) == 1;
+	}
+
+	/**
+	 * Remove one reference to an element. The element is removed from the set
+	 * when no references remain.
+	 *
+	 * @param element The element to release.
+	 * @return True if the element was removed from the set.
+	 */
+	public boolean release(E element) {
+		boolean[] removed = new boolean[1];
+		counts.computeIfPresent(element, (key, count) -> {
+			if (count > 1) return count - 1;
+			removed[0] = true;
+			return null;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Get the number of references to an element.
+	 *
+	 * @param element The element.
+	 * @return The number of references or 0 if the element is not in the set.
+	 */
+	public int count(E element) {
+		return counts.getOrDefault(element, 0);
+	}
+
+	@Override
+	public boolean add(E element) {
+		return retain(element);
+	}
+
+	@Override
+	public boolean remove(Object element) {
+		return counts.remove(element) != null;
+	}
+
+	@Override
+	public boolean contains(Object element) {
+		return counts.containsKey(element);
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		return counts.keySet().iterator();
+	}
+
+	@Override
+	public int size() {
+		return counts.size();
+	}
+
+	@Override
+	public void clear() {
+		counts.clear();
+	}
+}
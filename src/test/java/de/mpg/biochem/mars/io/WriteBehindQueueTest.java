@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package de.mpg.biochem.mars.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.jupiter.api.Test;
+
+public class WriteBehindQueueTest {
+
+	@Test
+	void coalescing() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> written = Collections.synchronizedList(new ArrayList<>());
+		try (WriteBehindQueue<String> queue = createQueue(Long.MAX_VALUE, release,
+			written))
+		{
+			queue.put("blocked", "0");
+			awaitWriting(queue, "blocked");
+
+			queue.put("a", "1");
+			queue.put("a", "2");
+			queue.put("a", "3");
+			assertEquals(2, queue.size());
+			assertEquals("3", queue.get("a"));
+
+			release.countDown();
+			queue.flush();
+			assertEquals(0, queue.size());
+			assertNull(queue.get("a"));
+			assertEquals(Arrays.asList("blocked=0", "a=3"), written);
+		}
+	}
+
+	@Test
+	void removePending() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> written = Collections.synchronizedList(new ArrayList<>());
+		try (WriteBehindQueue<String> queue = createQueue(Long.MAX_VALUE, release,
+			written))
+		{
+			queue.put("blocked", "0");
+			awaitWriting(queue, "blocked");
+
+			queue.put("a", "1");
+			assertTrue(queue.remove("a"));
+			assertFalse(queue.remove("a"));
+			assertEquals(1, queue.size());
+
+			release.countDown();
+			queue.flush();
+			assertEquals(Arrays.asList("blocked=0"), written);
+		}
+	}
+
+	@Test
+	void backpressure() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		List<String> written = Collections.synchronizedList(new ArrayList<>());
+		try (WriteBehindQueue<String> queue = createQueue(10, release, written)) {
+			queue.put("a", "0123456789abcdef");
+
+			Thread producer = new Thread(() -> {
+				queue.awaitCapacity();
+				queue.put("b", "b");
+			});
+			producer.start();
+			producer.join(200);
+			assertTrue(producer.isAlive());
+			assertNull(queue.get("b"));
+
+			release.countDown();
+			producer.join(10000);
+			assertFalse(producer.isAlive());
+			queue.flush();
+			assertEquals(Arrays.asList("a=0123456789abcdef", "b=b"), written);
+		}
+	}
+
+	@Test
+	void flushRethrowsWriteErrors() throws Exception {
+		List<String> written = Collections.synchronizedList(new ArrayList<>());
+		try (WriteBehindQueue<String> queue = new WriteBehindQueue<>(2,
+			Long.MAX_VALUE, String::length, key -> new ReentrantLock(), (key,
+				record) -> {
+				if (key.equals("io")) throw new IOException("Cannot write " + key);
+				if (key.equals("runtime")) throw new IllegalStateException(key);
+				written.add(key);
+			}))
+		{
+			queue.put("io", "1");
+			queue.put("runtime", "2");
+			queue.put("good", "3");
+
+			IOException exception = assertThrows(IOException.class, queue::flush);
+			assertEquals(1, exception.getSuppressed().length);
+			assertEquals(Arrays.asList("good"), written);
+
+			// Errors are reported once.
+			queue.put("good", "4");
+			queue.flush();
+			assertEquals(Arrays.asList("good", "good"), written);
+		}
+	}
+
+	@Test
+	void close() throws Exception {
+		List<String> written = Collections.synchronizedList(new ArrayList<>());
+		WriteBehindQueue<String> queue = createQueue(1, new CountDownLatch(0),
+			written);
+		for (int i = 0; i < 100; i++)
+			queue.put("key" + i, "value" + i);
+		queue.close();
+
+		assertEquals(100, written.size());
+		assertEquals(0, queue.size());
+		assertFalse(queue.put("late", "value"));
+		queue.awaitCapacity();
+		queue.close();
+		assertEquals(100, written.size());
+
+		WriteBehindQueue<String> failing = new WriteBehindQueue<>(1,
+			Long.MAX_VALUE, String::length, key -> new ReentrantLock(), (key,
+				record) -> {
+				throw new IOException("Cannot write " + key);
+			});
+		failing.put("a", "1");
+		assertThrows(IOException.class, failing::close);
+	}
+
+	/* UTILITY METHODS */
+
+	/*
+	 * Creates a queue with one writer that waits for the latch given before
+	 * writing each record.
+	 */
+	private static WriteBehindQueue<String> createQueue(long memoryBudget,
+		CountDownLatch release, List<String> written)
+	{
+		Lock lock = new ReentrantLock();
+		return new WriteBehindQueue<>(1, memoryBudget, String::length,
+			key -> lock, (key, record) -> {
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				written.add(key + "=" + record);
+			});
+	}
+
+	/*
+	 * Waits until the writer has taken the record given from the queue.
+	 */
+	private static void awaitWriting(WriteBehindQueue<String> queue, String key)
+		throws InterruptedException
+	{
+		while (queue.get(key) != null)
+			Thread.sleep(1);
+	}
+}
@@ -30,11 +30,34 @@
 package de.mpg.biochem.mars.molecule;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
-
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Order;
@@ -45,6 +68,10 @@ import org.scijava.io.location.LocationService;
 import org.scijava.options.OptionsService;
 import org.scijava.table.DoubleColumn;
 
+import de.mpg.biochem.mars.io.MoleculeArchiveIOFactory;
+import de.mpg.biochem.mars.io.MoleculeArchiveLazyYamaSource;
+import de.mpg.biochem.mars.io.MoleculeArchivePackedSource;
+import de.mpg.biochem.mars.io.MoleculeArchiveSource;
 import de.mpg.biochem.mars.metadata.MarsBdvSource;
 import de.mpg.biochem.mars.metadata.MarsMetadata;
 import de.mpg.biochem.mars.metadata.MarsOMEChannel;
@@ -160,6 +187,663 @@ public class MoleculeArchiveTests {
 		isEqual(archive, reloadedArchive);
 	}
 
+	@Test
+	@Order(10)
+	void virtualMoleculeCache() throws IOException {
+		File storeDir = archive.saveAsVirtualStore(new File(sharedTempDir
+			.getAbsoluteFile() + "/cacheTestArchive.yama.store/"));
+		SingleMoleculeArchive virtualArchive = new SingleMoleculeArchive(storeDir);
+
+		// Without the cache every retrieval decodes a new instance.
+		String UID = virtualArchive.getMoleculeUIDs().get(0);
+		assertEquals(0, virtualArchive.getMoleculeCacheMaximumWeight());
+		SingleMolecule uncached = virtualArchive.get(UID);
+		assertNotSame(uncached, virtualArchive.get(UID));
+		uncached.addTag("unsaved");
+		assertFalse(virtualArchive.get(UID).hasTag("unsaved"));
+
+		virtualArchive.setMoleculeCacheMaximumWeight(10_000_000);
+		long misses = virtualArchive.getMoleculeCacheMissCount();
+		long hits = virtualArchive.getMoleculeCacheHitCount();
+
+		// Cached instances are shared, so unsaved changes are visible to others.
+		SingleMolecule molecule = virtualArchive.get(UID);
+		assertSame(molecule, virtualArchive.get(UID));
+		assertEquals(misses + 1, virtualArchive.getMoleculeCacheMissCount());
+		assertEquals(hits + 1, virtualArchive.getMoleculeCacheHitCount());
+		molecule.addTag("shared");
+		assertTrue(virtualArchive.get(UID).hasTag("shared"));
+		virtualArchive.clearMoleculeCache();
+		assertFalse(virtualArchive.get(UID).hasTag("shared"));
+
+		molecule = virtualArchive.get(UID);
+		molecule.addTag("cached");
+		virtualArchive.put(molecule);
+		assertEquals(true, virtualArchive.get(UID).hasTag("cached"));
+
+		virtualArchive.remove(UID);
+		virtualArchive.clearMoleculeCache();
+		assertEquals(false, virtualArchive.contains(UID));
+	}
+
+	@Test
+	@Order(11)
+	void moleculeQuery() throws IOException {
+		SingleMoleculeArchive queryArchive = generateSingleMoleculeArchive();
+		List<String> UIDs = queryArchive.getMoleculeUIDs();
+		queryArchive.get(UIDs.get(0)).addTag("query");
+		queryArchive.get(UIDs.get(1)).addTag("query");
+		queryArchive.get(UIDs.get(1)).addTag("reject");
+
+		MoleculeQuery query = MoleculeQuery.all().withTag("query").withoutTag(
+			"reject");
+		assertEquals(Collections.singletonList(UIDs.get(0)), queryArchive
+			.moleculeUIDs(query));
+		assertEquals(Collections.singletonList(UIDs.get(0)), queryArchive.select(
+			"query AND NOT reject"));
+		assertEquals(UIDs.size() - 2, queryArchive.select("NOT query").size());
+		assertEquals(2, queryArchive.selectBitmap("query OR reject")
+			.getCardinality());
+
+		String metaUID = queryArchive.getMetadataUIDs().get(0);
+		List<String> expected = UIDs.stream().filter(UID -> queryArchive
+			.getMetadataUIDforMolecule(UID).equals(metaUID)).collect(Collectors
+				.toList());
+		assertEquals(expected, queryArchive.moleculeUIDs(MoleculeQuery.all()
+			.withMetadataUID(metaUID)));
+		assertEquals(new HashSet<>(expected), queryArchive.index()
+			.getMoleculeUIDsForMetadataUID(metaUID));
+		assertEquals(new HashSet<>(UIDs.subList(0, 2)), queryArchive.index()
+			.getMoleculeUIDsWithTag("query"));
+		assertTrue(queryArchive.index().getMoleculeUIDsWithTag("missing")
+			.isEmpty());
+
+		File storeDir = queryArchive.saveAsVirtualStore(new File(sharedTempDir
+			.getAbsoluteFile() + "/queryTestArchive.yama.store/"));
+		SingleMoleculeArchive virtualArchive = new SingleMoleculeArchive(storeDir);
+		assertEquals(Collections.singletonList(UIDs.get(0)), virtualArchive
+			.moleculeUIDs(query));
+		assertEquals(expected, virtualArchive.select("metadata=" + metaUID));
+
+		queryArchive.get(UIDs.get(0)).removeTag("query");
+		assertEquals(0, queryArchive.moleculeUIDs(query).size());
+	}
+
+	@Test
+	@Order(12)
+	void parameterColumn() throws IOException {
+		SingleMoleculeArchive parameterArchive = generateSingleMoleculeArchive();
+		List<String> UIDs = parameterArchive.getMoleculeUIDs();
+		for (int i = 0; i < UIDs.size(); i++)
+			parameterArchive.get(UIDs.get(i)).setParameter("rank", i);
+		parameterArchive.get(UIDs.get(0)).setParameter("label", "first");
+
+		ParameterColumn column = parameterArchive.parameterColumn("rank");
+		assertEquals(UIDs.size(), column.getDoubleValues().length);
+		assertEquals(UIDs.subList(0, 3), parameterArchive.index().getMoleculeUIDs(
+			column.range(0, 2)));
+		assertEquals(UIDs.subList(1, 3), parameterArchive.select(
+			"rank>0 AND rank<3"));
+		assertEquals(UIDs.subList(0, 1), parameterArchive.select("label=first"));
+
+		File storeDir = parameterArchive.saveAsVirtualStore(new File(sharedTempDir
+			.getAbsoluteFile() + "/parameterTestArchive.yama.store/"));
+		SingleMoleculeArchive virtualArchive = new SingleMoleculeArchive(storeDir);
+		assertEquals(UIDs.subList(1, 3), virtualArchive.moleculeUIDs(MoleculeQuery
+			.all().withParameterInRange("rank", 1, 2)));
+
+		parameterArchive.get(UIDs.get(1)).removeParameter("rank");
+		assertEquals(UIDs.size() - 1, parameterArchive.parameterColumn("rank")
+			.getDoubleValues().length);
+
+		// Replacing a value with one of another type moves it between selections.
+		parameterArchive.get(UIDs.get(0)).setParameter("label", 1);
+		assertTrue(parameterArchive.select("label=first").isEmpty());
+		assertEquals(UIDs.subList(0, 1), parameterArchive.index().getMoleculeUIDs(
+			parameterArchive.parameterColumn("label").range(1, 1)));
+		parameterArchive.get(UIDs.get(0)).removeParameter("label");
+		assertFalse(parameterArchive.index().getParameterColumnNames().contains(
+			"label"));
+	}
+
+	@Test
+	@Order(13)
+	void propertyReferenceCounts() throws IOException {
+		SingleMoleculeArchive countedArchive = generateSingleMoleculeArchive();
+		List<String> UIDs = countedArchive.getMoleculeUIDs();
+		countedArchive.get(UIDs.get(0)).addTag("only");
+		countedArchive.get(UIDs.get(1)).addTag("shared");
+		countedArchive.get(UIDs.get(2)).addTag("shared");
+		assertTrue(countedArchive.properties().getTagSet().contains("only"));
+
+		countedArchive.get(UIDs.get(0)).removeTag("only");
+		assertFalse(countedArchive.properties().getTagSet().contains("only"));
+
+		countedArchive.remove(UIDs.get(1));
+		assertTrue(countedArchive.properties().getTagSet().contains("shared"));
+
+		File storeDir = countedArchive.saveAsVirtualStore(new File(sharedTempDir
+			.getAbsoluteFile() + "/countedTestArchive.yama.store/"));
+		SingleMoleculeArchive virtualArchive = new SingleMoleculeArchive(storeDir);
+		assertTrue(virtualArchive.properties().getTagSet().contains("shared"));
+		virtualArchive.remove(UIDs.get(2));
+		assertFalse(virtualArchive.properties().getTagSet().contains("shared"));
+
+		SingleMolecule molecule = virtualArchive.get(UIDs.get(3));
+		molecule.addTag("virtual");
+		virtualArchive.put(molecule);
+		virtualArchive.save();
+
+		// Only the number of molecules per property group is stored.
+		SingleMoleculeArchive reopened = new SingleMoleculeArchive(storeDir);
+		assertTrue(reopened.properties().getTagSet().contains("virtual"));
+		molecule = reopened.get(UIDs.get(3));
+		molecule.removeTag("virtual");
+		reopened.put(molecule);
+		assertFalse(reopened.properties().getTagSet().contains("virtual"));
+	}
+
+	@Test
+	@Order(14)
+	void updateIndexes() throws IOException {
+		File storeDir = generateSingleMoleculeArchive().saveAsVirtualStore(
+			new File(sharedTempDir.getAbsoluteFile() +
+				"/updateTestArchive.yama.store/"));
+		SingleMoleculeArchive virtualArchive = new SingleMoleculeArchive(storeDir);
+		List<String> UIDs = virtualArchive.getMoleculeUIDs();
+		virtualArchive.rebuildIndexes();
+
+		// Change the store through a second archive the first one does not see.
+		SingleMoleculeArchive externalArchive = new SingleMoleculeArchive(
+			storeDir);
+		SingleMolecule molecule = externalArchive.get(UIDs.get(0));
+		molecule.addTag("external");
+		externalArchive.put(molecule);
+		externalArchive.remove(UIDs.get(1));
+		String metaUID = externalArchive.getMetadataUIDs().get(0);
+		MarsOMEMetadata metadata = externalArchive.getMetadata(metaUID);
+		metadata.addTag("external");
+		externalArchive.putMetadata(metadata);
+		externalArchive.save();
+
+		virtualArchive.updateIndexes();
+		assertTrue(virtualArchive.getMetadata(metaUID).hasTag("external"));
+		assertEquals(virtualArchive.index().getMetadataVersion(metaUID),
+			externalArchive.index().getMetadataVersion(metaUID));
+		assertEquals(UIDs.size() - 1, virtualArchive.getNumberOfMolecules());
+		assertFalse(virtualArchive.getMoleculeUIDs().contains(UIDs.get(1)));
+		assertEquals(UIDs.subList(0, 1), virtualArchive.moleculeUIDs(MoleculeQuery
+			.all().withTag("external")));
+		assertEquals(virtualArchive.index().getMoleculeVersion(UIDs.get(2)),
+			externalArchive.index().getMoleculeVersion(UIDs.get(2)));
+	}
+
+	@Test
+	@Order(15)
+	void lazyYamaLoading() throws IOException {
+		SingleMoleculeArchive original = generateSingleMoleculeArchive();
+		File smileFile = original.saveAs(new File(sharedTempDir
+			.getAbsoluteFile() + "/lazyTestArchive.yama"));
+		File jsonFile = original.saveAsJson(new File(sharedTempDir
+			.getAbsoluteFile() + "/lazyTestArchive.yama.json"));
+
+		for (File file : new File[] { smileFile, jsonFile }) {
+			SingleMoleculeArchive lazyArchive = new SingleMoleculeArchive(
+				new MoleculeArchiveIOFactory().openLazyYamaSource(file));
+			isEqual(original, lazyArchive);
+			for (String UID : original.getMoleculeUIDs())
+				isEqual(original.get(UID), lazyArchive.get(UID));
+
+			String UID = lazyArchive.getMoleculeUIDs().get(0);
+			SingleMolecule molecule = lazyArchive.get(UID);
+			molecule.addTag("lazy");
+			lazyArchive.put(molecule);
+			lazyArchive.remove(lazyArchive.getMoleculeUIDs().get(1));
+			lazyArchive.save();
+
+			SingleMoleculeArchive reloaded = new SingleMoleculeArchive(file);
+			assertEquals(original.getNumberOfMolecules() - 1, reloaded
+				.getNumberOfMolecules());
+			assertTrue(reloaded.get(UID).hasTag("lazy"));
+		}
+	}
+
+	@Test
+	@Order(16)
+	void packedVirtualStore() throws IOException {
+		SingleMoleculeArchive original = generateSingleMoleculeArchive();
+		File storeDir = original.saveAsPackedVirtualStore(new File(sharedTempDir
+			.getAbsoluteFile() + "/packedTestArchive.yama.store/"));
+		assertTrue(MoleculeArchivePackedSource.isPackedStore(storeDir));
+
+		SingleMoleculeArchive packedArchive = new SingleMoleculeArchive(storeDir);
+		isEqual(original, packedArchive);
+		for (String UID : original.getMoleculeUIDs())
+			isEqual(original.get(UID), packedArchive.get(UID));
+
+		String UID = packedArchive.getMoleculeUIDs().get(0);
+		SingleMolecule molecule = packedArchive.get(UID);
+		molecule.addTag("packed");
+		packedArchive.put(molecule);
+		packedArchive.remove(packedArchive.getMoleculeUIDs().get(1));
+		packedArchive.save();
+		packedArchive.close();
+
+		MoleculeArchivePackedSource packedSource =
+			new MoleculeArchiveIOFactory().openPackedSource(storeDir);
+		assertTrue(packedSource.getSupersededBytes() > 0);
+		packedSource.compact();
+		assertEquals(0, packedSource.getSupersededBytes());
+		packedSource.close();
+
+		SingleMoleculeArchive reopened = new SingleMoleculeArchive(storeDir);
+		assertEquals(original.getNumberOfMolecules() - 1, reopened
+			.getNumberOfMolecules());
+		assertTrue(reopened.get(UID).hasTag("packed"));
+		for (String otherUID : reopened.getMoleculeUIDs())
+			if (!otherUID.equals(UID)) isEqual(original.get(otherUID), reopened
+				.get(otherUID));
+
+		SingleMoleculeArchive mapped = new SingleMoleculeArchive(storeDir);
+		((MoleculeArchivePackedSource) mapped.getSource()).setMemoryMapped(true);
+		for (String otherUID : reopened.getMoleculeUIDs())
+			isEqual(reopened.get(otherUID), mapped.get(otherUID));
+		mapped.close();
+		reopened.close();
+	}
+
+	@Test
+	@Order(17)
+	void indexJournal() throws IOException {
+		File storeDir = generateSingleMoleculeArchive().saveAsVirtualStore(
+			new File(sharedTempDir.getAbsoluteFile() +
+				"/journalTestArchive.yama.store/"));
+		File journalFile = new File(storeDir,
+			MoleculeArchiveSource.INDEXES_JOURNAL_FILE_NAME);
+
+		SingleMoleculeArchive virtualArchive = new SingleMoleculeArchive(storeDir);
+		List<String> UIDs = virtualArchive.getMoleculeUIDs();
+		SingleMolecule molecule = virtualArchive.get(UIDs.get(0));
+		molecule.addTag("journaled");
+		virtualArchive.put(molecule);
+		virtualArchive.remove(UIDs.get(1));
+		virtualArchive.save();
+		assertTrue(journalFile.exists());
+		assertEquals(0, virtualArchive.index().getNumberOfChanges());
+
+		SingleMoleculeArchive reopened = new SingleMoleculeArchive(storeDir);
+		assertEquals(UIDs.size() - 1, reopened.getNumberOfMolecules());
+		assertFalse(reopened.getMoleculeUIDs().contains(UIDs.get(1)));
+		assertEquals(UIDs.subList(0, 1), reopened.moleculeUIDs(MoleculeQuery.all()
+			.withTag("journaled")));
+
+		reopened.rebuildIndexes();
+		assertFalse(journalFile.exists());
+		assertEquals(UIDs.subList(0, 1), new SingleMoleculeArchive(storeDir)
+			.moleculeUIDs(MoleculeQuery.all().withTag("journaled")));
+	}
+
+	@Test
+	@Order(18)
+	void projectionReads() throws IOException {
+		SingleMoleculeArchive archive = generateSingleMoleculeArchive();
+		File storeDir = archive.saveAsVirtualStore(new File(sharedTempDir
+			.getAbsoluteFile() + "/projectionTestArchive.yama.store/"));
+
+		SingleMoleculeArchive virtualArchive = new SingleMoleculeArchive(storeDir);
+		Projection projection = Projection.of("table:T,x", "parameters");
+		for (String UID : archive.getMoleculeUIDs()) {
+			SingleMolecule molecule = archive.get(UID);
+			SingleMolecule projected = virtualArchive.get(UID, projection);
+
+			assertEquals(molecule.getUID(), projected.getUID());
+			assertEquals(molecule.getMetadataUID(), projected.getMetadataUID());
+			assertEquals(molecule.getParameters(), projected.getParameters());
+			assertTrue(projected.getTags().isEmpty());
+			assertTrue(projected.getRegionNames().isEmpty());
+
+			assertEquals(2, projected.getTable().getColumnCount());
+			assertFalse(projected.getTable().hasColumn("y"));
+			assertEquals(molecule.getTable().getRowCount(), projected.getTable()
+				.getRowCount());
+			for (String column : projection.getTableColumns())
+				for (int row = 0; row < molecule.getTable().getRowCount(); row++)
+					assertEquals(molecule.getTable().getValue(column, row), projected
+						.getTable().getValue(column, row));
+		}
+
+		String UID = archive.getMoleculeUIDs().get(0);
+		SingleMolecule tagsOnly = virtualArchive.get(UID, Projection.of("tags"));
+		assertEquals(archive.get(UID).getTags(), tagsOnly.getTags());
+		assertEquals(0, tagsOnly.getTable().getColumnCount());
+		assertThrows(IllegalArgumentException.class, () -> virtualArchive.put(
+			tagsOnly));
+		assertThrows(IllegalArgumentException.class, () -> Projection.of(
+			"unknown"));
+
+		// Complete records are returned for molecules already in memory.
+		assertEquals(4, archive.get(UID, projection).getTable().getColumnCount());
+	}
+
+	@Test
+	@Order(19)
+	void packedStoreTruncatedPack() throws IOException {
+		File storeDir = generateSingleMoleculeArchive().saveAsPackedVirtualStore(
+			new File(sharedTempDir.getAbsoluteFile() +
+				"/truncatedPackTestArchive.yama.store/"));
+		File packFile = Collections.max(Arrays.asList(storeDir.listFiles((dir,
+			name) -> name.startsWith(MoleculeArchivePackedSource.PACK_FILE_PREFIX))));
+		long packSize = packFile.length();
+
+		MoleculeArchivePackedSource packedSource =
+			new MoleculeArchiveIOFactory().openPackedSource(storeDir);
+		String UID = packedSource.getMoleculeUIDs().get(0);
+		try (OutputStream outputStream = packedSource.getMoleculeOutputStream(
+			"lost"))
+		{
+			outputStream.write(new byte[] { 1, 2, 3 });
+		}
+		packedSource.close();
+
+		// Simulate a crash that kept the journal entry but lost the record bytes.
+		try (RandomAccessFile pack = new RandomAccessFile(packFile, "rw")) {
+			pack.setLength(packSize);
+		}
+
+		MoleculeArchivePackedSource reopened = new MoleculeArchiveIOFactory()
+			.openPackedSource(storeDir);
+		assertFalse(reopened.getMoleculeUIDs().contains("lost"));
+		assertThrows(IOException.class, () -> reopened.getMoleculeInputStream(
+			"lost"));
+		try (InputStream inputStream = reopened.getMoleculeInputStream(UID)) {
+			assertTrue(inputStream.read() >= 0);
+		}
+		reopened.close();
+	}
+
+	@Test
+	@Order(20)
+	void moleculeUIDSnapshots() throws IOException {
+		SingleMoleculeArchive archive = generateSingleMoleculeArchive();
+		checkMoleculeUIDSnapshots(archive);
+
+		File storeDir = generateSingleMoleculeArchive().saveAsVirtualStore(
+			new File(sharedTempDir.getAbsoluteFile() +
+				"/snapshotTestArchive.yama.store/"));
+		checkMoleculeUIDSnapshots(new SingleMoleculeArchive(storeDir));
+	}
+
+	@Test
+	@Order(22)
+	void parallelMoleculeWriting() throws IOException {
+		SingleMoleculeArchive original = generateSingleMoleculeArchive();
+		File sequentialFile = original.saveAs(new File(sharedTempDir
+			.getAbsoluteFile() + "/sequentialTestArchive.yama"));
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			original.setEncodingExecutor(executor);
+
+			// Generators that do not write to an OutputStream use the sequential
+			// writer.
+			StringWriter sequential = new StringWriter();
+			try (JsonGenerator jGenerator = new JsonFactory().createGenerator(
+				sequential))
+			{
+				original.toJSON(jGenerator);
+			}
+			ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+			try (JsonGenerator jGenerator = new JsonFactory().createGenerator(
+				parallel))
+			{
+				original.toJSON(jGenerator);
+			}
+			assertEquals(sequential.toString(), parallel.toString("UTF-8"));
+
+			File smileFile = original.saveAs(new File(sharedTempDir
+				.getAbsoluteFile() + "/parallelTestArchive.yama"));
+			SingleMoleculeArchive reloaded = new SingleMoleculeArchive(smileFile);
+			assertEquals(original.getMoleculeUIDs(), reloaded.getMoleculeUIDs());
+			for (String UID : original.getMoleculeUIDs())
+				isEqual(original.get(UID), reloaded.get(UID));
+
+			// Smile records are only written without shared names when opted in.
+			assertTrue(sequentialFile.length() < smileFile.length());
+		}
+		finally {
+			original.setEncodingExecutor(null);
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	@Order(23)
+	void parallelLoadManyFieldNames() throws IOException {
+		// More distinct field names than fit in the Smile shared name table.
+		SingleMoleculeArchive original = generateSingleMoleculeArchive();
+		int label = 0;
+		for (String UID : original.getMoleculeUIDs()) {
+			MarsTable table = original.get(UID).getTable();
+			for (int i = 0; i < 15; i++, label++)
+				for (int row = 0; row < table.getRowCount(); row++)
+					table.setValue("label" + label, row, String.valueOf(row));
+		}
+		assertTrue(label > 1024);
+		File file = original.saveAs(new File(sharedTempDir.getAbsoluteFile() +
+			"/manyFieldNamesTestArchive.yama"));
+
+		// Records after the shared name table is cleared are not decoded in
+		// parallel.
+		assertFalse(new SingleMoleculeArchive("parallel").loadInParallel(file, 4));
+
+		SingleMoleculeArchive loaded = new SingleMoleculeArchive(file);
+		SingleMoleculeArchive sequential = new SingleMoleculeArchive("sequential");
+		try (JsonParser jParser = new SmileFactory().createParser(file)) {
+			sequential.fromJSON(jParser);
+		}
+
+		assertEquals(original.getMoleculeUIDs(), loaded.getMoleculeUIDs());
+		assertEquals(sequential.getMoleculeUIDs(), loaded.getMoleculeUIDs());
+		for (String UID : original.getMoleculeUIDs()) {
+			isEqual(sequential.get(UID), loaded.get(UID));
+			assertEquals(original.get(UID).getTable().getColumnHeadingList(),
+				loaded.get(UID).getTable().getColumnHeadingList());
+		}
+	}
+
+	void checkMoleculeUIDSnapshots(SingleMoleculeArchive archive) {
+		List<String> snapshot = archive.getMoleculeUIDs();
+		assertSame(snapshot, archive.getMoleculeUIDs());
+		List<String> original = new ArrayList<>(snapshot);
+
+		// Replace every molecule while iterating the snapshot.
+		List<String> added = new ArrayList<>();
+		for (String UID : snapshot) {
+			archive.remove(UID);
+			SingleMolecule molecule = new SingleMolecule(MarsMath.getUUID58());
+			molecule.setTable(generateRandomTable(5));
+			archive.put(molecule);
+			added.add(molecule.getUID());
+		}
+
+		assertEquals(original, snapshot);
+		List<String> current = archive.getMoleculeUIDs();
+		assertNotSame(snapshot, current);
+		assertEquals(new HashSet<>(added), new HashSet<>(current));
+		assertSame(current, archive.getMoleculeUIDs());
+		for (int index = 0; index < current.size(); index++)
+			assertEquals(current.get(index), archive.get(index).getUID());
+		assertNull(archive.get(current.size()));
+	}
+
+	@Test
+	@Order(21)
+	void writeBehindOwnership() throws IOException {
+		File storeDir = generateSingleMoleculeArchive().saveAsVirtualStore(
+			new File(sharedTempDir.getAbsoluteFile() +
+				"/writeBehindTestArchive.yama.store/"));
+		SingleMoleculeArchive virtualArchive = new SingleMoleculeArchive(storeDir);
+		virtualArchive.enableWriteBehind(2, 1 << 20);
+
+		List<String> UIDs = virtualArchive.getMoleculeUIDs();
+		for (String UID : UIDs) {
+			SingleMolecule molecule = virtualArchive.get(UID);
+			molecule.addTag("queued");
+			virtualArchive.put(molecule);
+			// The queued copy is not affected by changes after put.
+			molecule.addTag("unsaved");
+			assertTrue(virtualArchive.get(UID).hasTag("queued"));
+			assertFalse(virtualArchive.get(UID).hasTag("unsaved"));
+		}
+		virtualArchive.flush();
+		assertTrue(virtualArchive.isWriteBehind());
+		virtualArchive.close();
+		assertFalse(virtualArchive.isWriteBehind());
+
+		SingleMoleculeArchive reopened = new SingleMoleculeArchive(storeDir);
+		for (String UID : UIDs) {
+			assertTrue(reopened.get(UID).hasTag("queued"));
+			assertFalse(reopened.get(UID).hasTag("unsaved"));
+		}
+	}
+
+	@Test
+	@Order(24)
+	void indexJournalTornBatch() throws IOException {
+		File storeDir = generateSingleMoleculeArchive().saveAsVirtualStore(
+			new File(sharedTempDir.getAbsoluteFile() +
+				"/tornJournalTestArchive.yama.store/"));
+		File journalFile = new File(storeDir,
+			MoleculeArchiveSource.INDEXES_JOURNAL_FILE_NAME);
+
+		SingleMoleculeArchive virtualArchive = new SingleMoleculeArchive(storeDir);
+		List<String> UIDs = virtualArchive.getMoleculeUIDs();
+		SingleMolecule molecule = virtualArchive.get(UIDs.get(0));
+		molecule.addTag("complete");
+		virtualArchive.put(molecule);
+		virtualArchive.save();
+		long completeLength = journalFile.length();
+
+		molecule = virtualArchive.get(UIDs.get(1));
+		molecule.addTag("torn");
+		virtualArchive.put(molecule);
+		virtualArchive.save();
+
+		// Simulate a crash in the middle of appending the second batch.
+		try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+			journal.setLength(completeLength + (journal.length() - completeLength) /
+				2);
+		}
+
+		SingleMoleculeArchive reopened = new SingleMoleculeArchive(storeDir);
+		assertEquals(UIDs.subList(0, 1), reopened.moleculeUIDs(MoleculeQuery.all()
+			.withTag("complete")));
+		assertTrue(reopened.moleculeUIDs(MoleculeQuery.all().withTag("torn"))
+			.isEmpty());
+
+		// The torn batch is dropped before the next batch is appended.
+		molecule = reopened.get(UIDs.get(2));
+		molecule.addTag("appended");
+		reopened.put(molecule);
+		reopened.save();
+
+		SingleMoleculeArchive recovered = new SingleMoleculeArchive(storeDir);
+		assertEquals(UIDs.subList(0, 1), recovered.moleculeUIDs(MoleculeQuery
+			.all().withTag("complete")));
+		assertEquals(UIDs.subList(2, 3), recovered.moleculeUIDs(MoleculeQuery
+			.all().withTag("appended")));
+	}
+
+	@Test
+	@Order(25)
+	void parallelLoad() throws IOException {
+		SingleMoleculeArchive original = generateSingleMoleculeArchive();
+		File file = original.saveAs(new File(sharedTempDir.getAbsoluteFile() +
+			"/parallelLoadTestArchive.yama"));
+
+		SingleMoleculeArchive parallel = new SingleMoleculeArchive("parallel");
+		assertTrue(parallel.loadInParallel(file, 4));
+		parallel.rebuildIndexes();
+
+		assertEquals(new HashSet<>(original.getMoleculeUIDs()), new HashSet<>(
+			parallel.getMoleculeUIDs()));
+		for (String UID : original.getMoleculeUIDs())
+			isEqual(original.get(UID), parallel.get(UID));
+	}
+
+	@Test
+	@Order(26)
+	void lazyYamaLoadingManyFieldNames() throws IOException {
+		// More distinct field names than fit in the Smile shared name table, so
+		// the table is cleared within the file.
+		SingleMoleculeArchive original = generateSingleMoleculeArchive();
+		int label = 0;
+		for (String UID : original.getMoleculeUIDs()) {
+			MarsTable table = original.get(UID).getTable();
+			for (int i = 0; i < 15; i++, label++)
+				for (int row = 0; row < table.getRowCount(); row++)
+					table.setValue("label" + label, row, String.valueOf(row));
+		}
+		assertTrue(label > 1024);
+		File file = original.saveAs(new File(sharedTempDir.getAbsoluteFile() +
+			"/lazyManyFieldNamesTestArchive.yama"));
+
+		MoleculeArchiveLazyYamaSource lazySource = new MoleculeArchiveIOFactory()
+			.openLazyYamaSource(file);
+		SingleMoleculeArchive lazyArchive = new SingleMoleculeArchive(lazySource);
+		assertFalse(lazySource.canDecodeIndependently());
+
+		// Every record is checked the first time it is read.
+		for (String UID : original.getMoleculeUIDs()) {
+			isEqual(original.get(UID), lazyArchive.get(UID));
+			assertEquals(original.get(UID).getTable().getColumnHeadingList(),
+				lazyArchive.get(UID).getTable().getColumnHeadingList());
+		}
+	}
+
+	@Test
+	@Order(27)
+	void indexPendingUpdates() throws IOException {
+		SingleMoleculeArchive archive = generateSingleMoleculeArchive();
+		List<String> UIDs = archive.getMoleculeUIDs();
+
+		// Several changes to a molecule in memory are applied together.
+		SingleMolecule molecule = archive.get(UIDs.get(0));
+		molecule.addTag("first");
+		molecule.setParameter("pending", 1.0);
+		molecule.removeTag("first");
+		molecule.addTag("second");
+		assertTrue(archive.index().getMoleculeUIDsWithTag("first").isEmpty());
+		assertEquals(Collections.singleton(UIDs.get(0)), archive.index()
+			.getMoleculeUIDsWithTag("second"));
+		assertEquals(UIDs.subList(0, 1), archive.moleculeUIDs(MoleculeQuery.all()
+			.withParameterInRange("pending", 1, 1)));
+
+		// Changes not yet applied are dropped with the molecule.
+		molecule.addTag("removed");
+		molecule.setParameter("removed", 1.0);
+		archive.remove(UIDs.get(0));
+		assertTrue(archive.index().getMoleculeUIDsWithTag("second").isEmpty());
+		assertTrue(archive.index().getMoleculeUIDsWithTag("removed").isEmpty());
+		assertFalse(archive.index().getParameterColumnNames().contains(
+			"removed"));
+
+		// Ordinals of removed molecules are reused.
+		int[] ordinals = archive.index().getMoleculeBitmap().toArray();
+		int maxOrdinal = ordinals[ordinals.length - 1];
+		for (int i = 0; i < 10; i++) {
+			SingleMolecule added = new SingleMolecule(MarsMath.getUUID58());
+			added.addTag("churn");
+			archive.put(added);
+			assertEquals(Collections.singleton(added.getUID()), archive.index()
+				.getMoleculeUIDsWithTag("churn"));
+			archive.remove(added.getUID());
+		}
+		ordinals = archive.index().getMoleculeBitmap().toArray();
+		assertTrue(ordinals[ordinals.length - 1] <= maxOrdinal);
+		assertEquals(UIDs.size() - 1, ordinals.length);
+	}
+
 	void isEqual(MoleculeArchive<?, ?, ?, ?> archive1,
 		MoleculeArchive<?, ?, ?, ?> archive2)
 	{
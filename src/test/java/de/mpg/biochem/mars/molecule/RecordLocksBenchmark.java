@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.molecule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.util.concurrent.Striped;
+
+import de.mpg.biochem.mars.util.MarsMath;
+
+/**
+ * Compares the heap retained by record locks when every molecule in a large
+ * virtual store is read once. The previous approach kept one ReentrantLock per
+ * UID ever accessed. The striped lock table used by
+ * {@link AbstractMoleculeArchive} has a fixed size.
+ * <p>
+ * This is not a unit test. Run the main method with a large heap, for example
+ * -Xmx4g, and an optional molecule count as the first argument.
+ * </p>
+ */
+public class RecordLocksBenchmark {
+
+	public static void main(String[] args) {
+		int moleculeCount = (args.length > 0) ? Integer.parseInt(args[0])
+			: 1_000_000;
+
+		List<String> UIDs = new ArrayList<>(moleculeCount);
+		for (int i = 0; i < moleculeCount; i++)
+			UIDs.add(MarsMath.getUUID58());
+
+		long baseline = usedMemory();
+
+		ConcurrentMap<String, ReentrantLock> lockMap = new ConcurrentHashMap<>();
+		long start = System.nanoTime();
+		for (String UID : UIDs) {
+			lockMap.computeIfAbsent(UID, key -> new ReentrantLock()).lock();
+			lockMap.get(UID).unlock();
+		}
+		long mapTime = System.nanoTime() - start;
+		long mapMemory = usedMemory() - baseline;
+		System.out.println("Lock map entries: " + lockMap.size());
+		lockMap = null;
+
+		baseline = usedMemory();
+
+		Striped<Lock> stripedLocks = Striped.lock(
+			AbstractMoleculeArchive.RECORD_LOCK_STRIPES);
+		start = System.nanoTime();
+		for (String UID : UIDs) {
+			Lock lock = stripedLocks.get(UID);
+			lock.lock();
+			lock.unlock();
+		}
+		long stripedTime = System.nanoTime() - start;
+		long stripedMemory = usedMemory() - baseline;
+		System.out.println("Lock stripes: " + stripedLocks.size());
+
+		System.out.println(String.format(
+			"Per-UID lock map: %,d bytes retained, %.1f ms", mapMemory, mapTime /
+				1e6));
+		System.out.println(String.format(
+			"Striped locks:    %,d bytes retained, %.1f ms", stripedMemory,
+			stripedTime / 1e6));
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
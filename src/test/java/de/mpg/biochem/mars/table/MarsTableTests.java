@@ -31,13 +31,24 @@ package de.mpg.biochem.mars.table;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.jupiter.api.Test;
 import org.scijava.table.DoubleColumn;
 import org.scijava.table.GenericColumn;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
 public class MarsTableTests {
 
 	public static final double[] testArray = { 721.4053492, -2340.864487,
@@ -954,6 +965,76 @@ public class MarsTableTests {
 		assertEquals(Double.NaN, table.variance("Not a column", "col0", 2, 4));
 	}
 
+	/*
+	 * TEST summarize()
+	 */
+
+	@Test
+	void summarize() {
+		MarsTable table = buildTestArrayNaNsTable();
+		MarsTableStatistics statistics = table.summarize("col0");
+		assertEquals(-457.49063168200007, statistics.getMean());
+		assertEquals(-786.38545115, statistics.getMedian());
+		assertEquals(table.mad("col0"), statistics.getMad());
+		assertEquals(table.std("col0"), statistics.getStd());
+		assertEquals(table.sem("col0"), statistics.getSem());
+		assertEquals(7684037.390989021, statistics.getVariance());
+		assertEquals(4995.646673, statistics.getMax());
+		assertEquals(table.min("col0"), statistics.getMin());
+	}
+
+	@Test
+	void summarizeSelectedRows() {
+		MarsTable table = buildTestXYNaNsTable();
+		MarsTableStatistics statistics = table.summarize("col1", "col0", 2, 4);
+		assertEquals(table.mean("col1", "col0", 2, 4), statistics.getMean());
+		assertEquals(table.median("col1", "col0", 2, 4), statistics.getMedian());
+		assertEquals(table.mad("col1", "col0", 2, 4), statistics.getMad());
+		assertEquals(table.std("col1", "col0", 2, 4), statistics.getStd());
+		assertEquals(6526451.494029807, statistics.getVariance());
+		assertEquals(table.max("col1", "col0", 2, 4), statistics.getMax());
+		assertEquals(table.min("col1", "col0", 2, 4), statistics.getMin());
+	}
+
+	@Test
+	void summarizeReuse() {
+		MarsTableStatistics statistics = new MarsTableStatistics();
+		buildTestArrayTable().summarize("col0", statistics);
+		assertEquals(-786.38545115, statistics.getMedian());
+
+		buildTestArrayOddTable().summarize("col0", statistics);
+		assertEquals(-742.773464, statistics.getMedian());
+
+		buildTestArrayAllNaNsTable().summarize("col0", statistics);
+		assertEquals(0, statistics.getCount());
+		assertEquals(Double.NaN, statistics.getMean());
+		assertEquals(Double.NaN, statistics.getMedian());
+		assertEquals(Double.NaN, statistics.getMax());
+	}
+
+	@Test
+	void summarizeNegativeValues() {
+		MarsTable table = new MarsTable();
+		DoubleColumn col0 = new DoubleColumn("col0");
+		for (double value : new double[] { -3, -1, -2, -5 })
+			col0.add(value);
+		table.add(col0);
+
+		assertEquals(-1, table.max("col0"));
+		assertEquals(-5, table.min("col0"));
+		assertEquals(-2.5, table.median("col0"));
+		assertEquals(1, table.mad("col0"));
+	}
+
+	@Test
+	void summarizeNoColumn() {
+		MarsTableStatistics statistics = buildTestArrayTable().summarize(
+			"not here");
+		assertEquals(0, statistics.getCount());
+		assertEquals(Double.NaN, statistics.getMean());
+		assertEquals(Double.NaN, statistics.getMad());
+	}
+
 	/*
 	 * TEST sort()
 	 */
@@ -1005,6 +1086,55 @@ public class MarsTableTests {
 		assertArrayEquals(stringColumnSorted, stringResult);
 	}
 
+	@Test
+	void sortDescendingStable() {
+		MarsTable table = new MarsTable();
+		DoubleColumn key = new DoubleColumn("key");
+		DoubleColumn order = new DoubleColumn("order");
+		double[] keys = { 1, 3, 2, 3, 1, Double.NaN, 2 };
+		for (int row = 0; row < keys.length; row++) {
+			key.add(keys[row]);
+			order.add(row);
+		}
+		table.add(key);
+		table.add(order);
+
+		table.sort(false, "key");
+		double[] result = new double[table.getRowCount()];
+		for (int row = 0; row < table.getRowCount(); row++)
+			result[row] = table.getValue("order", row);
+
+		assertArrayEquals(new double[] { 5, 1, 3, 2, 6, 0, 4 }, result);
+	}
+
+	@Test
+	void sortLargeTable() {
+		int rows = 300000;
+		MarsTable table = new MarsTable();
+		DoubleColumn key = new DoubleColumn("key");
+		DoubleColumn order = new DoubleColumn("order");
+		GenericColumn label = new GenericColumn("label");
+		for (int row = 0; row < rows; row++) {
+			key.add((double) ((row * 7919) % 1000));
+			order.add(row);
+			label.add("row" + row);
+		}
+		table.add(key);
+		table.add(order);
+		table.add(label);
+
+		table.sort(true, "key");
+		for (int row = 1; row < rows; row++) {
+			double previous = table.getValue("key", row - 1);
+			double current = table.getValue("key", row);
+			assertTrue(previous <= current);
+			if (previous == current) assertTrue(table.getValue("order",
+				row - 1) < table.getValue("order", row));
+			assertEquals("row" + (int) table.getValue("order", row), table
+				.getStringValue("label", row));
+		}
+	}
+
 	/*
 	 * TEST deleteRows()
 	 */
@@ -1083,6 +1213,218 @@ public class MarsTableTests {
 		assertArrayEquals(XYZKeepRows, result);
 	}
 
+	@Test
+	void keepRowsEmptyArrayList() {
+		MarsTable table = buildTestXYZTable();
+		table.keepRows(new ArrayList<>());
+		assertEquals(0, table.getRowCount());
+		assertEquals(3, table.getColumnCount());
+	}
+
+	/*
+	 * TEST filterRows()
+	 */
+
+	@Test
+	void filterRows() {
+		MarsTable table = buildTestXYZTable();
+		Set<Integer> deleted = new HashSet<>(Arrays.asList(9, 10, 11, 12, 24));
+		table.filterRows(row -> !deleted.contains(row));
+		double[][] result = new double[table.getRowCount()][3];
+		for (int row = 0; row < table.getRowCount(); row++) {
+			result[row][0] = table.getValue("col0", row);
+			result[row][1] = table.getValue("col1", row);
+			result[row][2] = table.getValue("col2", row);
+		}
+
+		assertArrayEquals(XYZRowsDeleted, result);
+	}
+
+	@Test
+	void filterRowsStringColumn() {
+		MarsTable table = buildTestXYStringTable();
+		MarsTable expected = table.clone();
+		table.filterRows(row -> row % 3 != 1);
+
+		assertEquals(expected.getRowCount() - (expected.getRowCount() + 1) / 3,
+			table.getRowCount());
+		int row = 0;
+		for (int expectedRow = 0; expectedRow < expected
+			.getRowCount(); expectedRow++)
+		{
+			if (expectedRow % 3 == 1) continue;
+			assertEquals(expected.getValue("col0", expectedRow), table.getValue(
+				"col0", row));
+			assertEquals(expected.getValue("col1", expectedRow), table.getValue(
+				"col1", row));
+			assertEquals(expected.getStringValue("col2", expectedRow), table
+				.getStringValue("col2", row));
+			row++;
+		}
+	}
+
+	/*
+	 * TEST column lookup
+	 */
+
+	@Test
+	void columnLookupAddRemove() {
+		MarsTable table = buildTestXYStringTable();
+		assertEquals(1, table.getColumnIndex("col1"));
+		assertEquals(-1, table.getColumnIndex("col3"));
+
+		table.removeColumn("col0");
+		assertFalse(table.hasColumn("col0"));
+		assertEquals(0, table.getColumnIndex("col1"));
+		assertEquals(1, table.getColumnIndex("col2"));
+
+		table.setValue("col3", 0, 5.0);
+		assertEquals(2, table.getColumnIndex("col3"));
+		assertEquals(5.0, table.getValue("col3", 0));
+	}
+
+	@Test
+	void columnLookupRename() {
+		MarsTable table = buildTestXYStringTable();
+		assertTrue(table.hasColumn("col1"));
+
+		table.setColumnHeader(1, "renamed");
+		assertFalse(table.hasColumn("col1"));
+		assertEquals(1, table.getColumnIndex("renamed"));
+
+		table.setColumnHeader(0, "col1");
+		assertEquals(0, table.getColumnIndex("col1"));
+		assertFalse(table.hasColumn("col0"));
+
+		table.set(2, new DoubleColumn("replaced"));
+		assertFalse(table.hasColumn("col2"));
+		assertEquals(2, table.getColumnIndex("replaced"));
+	}
+
+	@Test
+	void columnLookupDuplicateHeader() {
+		MarsTable table = buildTestXYStringTable();
+		assertEquals(1, table.getColumnIndex("col1"));
+
+		table.setColumnHeader(0, "col1");
+		assertEquals(0, table.getColumnIndex("col1"));
+		assertSame(table.get(0), table.get("col1"));
+		assertEquals(-1, table.getColumnIndex("col0"));
+	}
+
+	@Test
+	void columnLookupConcurrentReads() throws InterruptedException {
+		MarsTable table = buildTestXYStringTable();
+		for (int col = 3; col < 200; col++)
+			table.add(new DoubleColumn("col" + col));
+
+		AtomicBoolean failed = new AtomicBoolean();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 20000; i++) {
+					int col = i % 199;
+					if (table.getColumnIndex("col" + col) != col) failed.set(true);
+				}
+			});
+			threads[t].start();
+		}
+		// Renaming a column that is not looked up forces the readers to rebuild
+		// the index while other readers use it.
+		for (int i = 0; i < 100; i++)
+			table.setColumnHeader(199, i % 2 == 0 ? "tmp" : "col199");
+		for (Thread thread : threads)
+			thread.join();
+
+		assertFalse(failed.get());
+	}
+
+	@Test
+	void columnLookupDeserialized() throws IOException {
+		MarsTable table = buildTestXYStringTable();
+		MarsTable copy = new MarsTable();
+		assertFalse(copy.hasColumn("col2"));
+
+		copy.fromJSON(new SmileFactory().createParser(toSmile(table)));
+		for (int col = 0; col < table.getColumnCount(); col++)
+			assertEquals(col, copy.getColumnIndex(table.getColumnHeader(col)));
+		assertEquals(table.getStringValue("col2", 1), copy.getStringValue("col2",
+			1));
+	}
+
+	/*
+	 * TEST groupBy()
+	 */
+
+	@Test
+	void groupByAggregate() {
+		MarsTable table = buildTestGroupTable();
+		MarsTable summary = table.groupBy("molecule").aggregate(Aggregation
+			.count(), Aggregation.mean("x"), Aggregation.median("x").as("medianX"),
+			Aggregation.max("x"));
+
+		assertEquals(3, summary.getRowCount());
+		assertArrayEquals(new String[] { "molecule", "count", "x_mean", "medianX",
+			"x_max" }, summary.getColumnHeadings());
+
+		// Groups are ordered by first appearance
+		assertArrayEquals(new double[] { 2, 1, 3 }, summary.getColumnAsDoubles(
+			"molecule"));
+		assertArrayEquals(new double[] { 3, 2, 1 }, summary.getColumnAsDoubles(
+			"count"));
+		assertArrayEquals(new double[] { 5, 1.5, Double.NaN }, summary
+			.getColumnAsDoubles("x_mean"));
+		assertArrayEquals(new double[] { 4, 1.5, Double.NaN }, summary
+			.getColumnAsDoubles("medianX"));
+		assertArrayEquals(new double[] { 8, 2, Double.NaN }, summary
+			.getColumnAsDoubles("x_max"));
+	}
+
+	@Test
+	void groupByMultipleKeys() {
+		MarsTable table = buildTestGroupTable();
+		MarsTable summary = table.groupBy("molecule", "channel").aggregate(
+			Aggregation.count(), Aggregation.sum("x"), Aggregation.count("x"));
+
+		assertEquals(5, summary.getRowCount());
+		for (int row = 0; row < summary.getRowCount(); row++) {
+			double molecule = summary.getValue("molecule", row);
+			String channel = summary.getStringValue("channel", row);
+			MarsTable group = table.clone();
+			group.filterRows(r -> group.getValue("molecule", r) == molecule && group
+				.getStringValue("channel", r).equals(channel));
+
+			assertEquals(group.getRowCount(), summary.getValue("count", row));
+			assertEquals(group.getColumnAsDoublesNoNaNs("x").length, summary
+				.getValue("x_count", row));
+			if (group.getColumnAsDoublesNoNaNs("x").length > 0) assertEquals(group
+				.sum("x"), summary.getValue("x_sum", row));
+			else assertEquals(Double.NaN, summary.getValue("x_sum", row));
+		}
+	}
+
+	@Test
+	void groupByMatchesTableStatistics() {
+		MarsTable table = buildTestXYZTable();
+		MarsTable summary = table.groupBy().aggregate(Aggregation.std("col1"),
+			Aggregation.variance("col1"), Aggregation.mad("col1"));
+
+		assertEquals(1, summary.getRowCount());
+		assertEquals(table.std("col1"), summary.getValue("col1_std", 0), 1e-9);
+		assertEquals(table.variance("col1"), summary.getValue("col1_variance", 0),
+			1e-6);
+		assertEquals(table.mad("col1"), summary.getValue("col1_mad", 0));
+	}
+
+	@Test
+	void groupByNoColumn() {
+		MarsTable table = buildTestGroupTable();
+		assertThrows(IllegalArgumentException.class, () -> table.groupBy(
+			"not here"));
+		assertThrows(IllegalArgumentException.class, () -> table.groupBy(
+			"molecule").aggregate(Aggregation.mean("channel")));
+	}
+
 	/*
 	 * TEST clone()
 	 */
@@ -1095,10 +1437,246 @@ public class MarsTableTests {
 		assert (table.equals(copy));
 	}
 
+	/*
+	 * TEST Smile encoding
+	 */
+
+	@Test
+	void smileColumnBlocks() throws IOException {
+		MarsTable table = buildTestXYStringTable();
+		byte[] smile = toSmile(table);
+
+		MarsTable copy = new MarsTable();
+		copy.fromJSON(new SmileFactory().createParser(smile));
+		assertEquals(table, copy);
+
+		MarsTable projected = new MarsTable();
+		projected.fromJSON(new SmileFactory().createParser(smile), Collections
+			.singleton("col1"));
+		assertEquals(1, projected.getColumnCount());
+		assertEquals(table.getRowCount(), projected.getRowCount());
+		for (int row = 0; row < table.getRowCount(); row++)
+			assertEquals(table.getValue("col1", row), projected.getValue("col1",
+				row));
+	}
+
+	@Test
+	void smileBlockCodecs() throws IOException {
+		MarsTable table = buildTestXYStringTable();
+		for (MarsTableCodec codec : new MarsTableCodec[] { MarsTableCodec.RAW,
+			MarsTableCodec.gzip(1), MarsTableCodec.gzip(9) })
+		{
+			MarsTableCodec previous = MarsTable.setBlockCodec(codec);
+			byte[] smile;
+			try {
+				smile = toSmile(table);
+			}
+			finally {
+				MarsTable.setBlockCodec(previous);
+			}
+
+			MarsTable copy = new MarsTable();
+			copy.fromJSON(new SmileFactory().createParser(smile));
+			assertEquals(table, copy, codec.getName());
+		}
+		assertEquals(MarsTableCodec.GZIP, MarsTable.getBlockCodec());
+	}
+
+	@Test
+	void smileBlockFilters() throws IOException {
+		MarsTable table = new MarsTable();
+		DoubleColumn tCol = new DoubleColumn("T");
+		DoubleColumn timeCol = new DoubleColumn("Time_(s)");
+		DoubleColumn xCol = new DoubleColumn("x");
+		for (int t = 0; t < 10000; t++) {
+			tCol.add((double) t);
+			timeCol.add(t * 0.0501);
+			xCol.add((t % 13 == 0) ? Double.NaN : testArray[t % testArray.length]);
+		}
+		table.add(tCol);
+		table.add(timeCol);
+		table.add(xCol);
+
+		byte[] smile = toSmile(table);
+		MarsTable copy = new MarsTable();
+		copy.fromJSON(new SmileFactory().createParser(smile));
+		assertEquals(table, copy);
+
+		// Monotonic columns compress to almost nothing after delta filtering.
+		MarsTable monotonic = new MarsTable();
+		monotonic.add(tCol);
+		monotonic.add(timeCol);
+		assertTrue(toSmile(monotonic).length < 2000);
+	}
+
+	@Test
+	void smileChunkedColumns() throws IOException {
+		// Spans several chunks with a partial last chunk
+		MarsTable table = new MarsTable();
+		DoubleColumn tCol = new DoubleColumn("T");
+		DoubleColumn xCol = new DoubleColumn("x");
+		GenericColumn labelCol = new GenericColumn("label");
+		for (int t = 0; t < 150000; t++) {
+			tCol.add((double) t);
+			xCol.add(testArray[t % testArray.length]);
+			labelCol.add(stringColumn[t % stringColumn.length]);
+		}
+		table.add(tCol);
+		table.add(xCol);
+		table.add(labelCol);
+
+		byte[] smile = toSmile(table);
+		MarsTable copy = new MarsTable();
+		copy.fromJSON(new SmileFactory().createParser(smile));
+		assertEquals(table, copy);
+
+		MarsTable projected = new MarsTable();
+		projected.fromJSON(new SmileFactory().createParser(smile), Collections
+			.singleton("x"));
+		assertEquals(1, projected.getColumnCount());
+		assertEquals(150000, projected.getRowCount());
+		assertEquals(xCol, projected.get("x"));
+	}
+
+	@Test
+	void smileChunkCountMismatch() throws IOException {
+		MarsTable table = new MarsTable();
+		table.fromJSON(new SmileFactory().createParser(chunkedColumnSmile(10, 4,
+			3)));
+		assertEquals(10, table.getRowCount());
+		assertEquals(9.0, table.getValue("x", 9));
+
+		// Too few chunks would leave zeros and too many overrun the column.
+		assertThrows(IOException.class, () -> new MarsTable().fromJSON(
+			new SmileFactory().createParser(chunkedColumnSmile(10, 4, 2))));
+		assertThrows(IOException.class, () -> new MarsTable().fromJSON(
+			new SmileFactory().createParser(chunkedColumnSmile(10, 4, 4))));
+	}
+
+	@Test
+	void smileSingleDoubleBlock() throws IOException {
+		MarsTable table = buildTestXYStringTable();
+
+		// Layout written before DoubleColumns were compressed separately
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonGenerator jGenerator = new SmileFactory().createGenerator(out);
+		jGenerator.writeStartObject();
+		jGenerator.writeObjectFieldStart("schema");
+		jGenerator.writeArrayFieldStart("fields");
+		for (String[] field : new String[][] { { "col0", "number" }, { "col1",
+			"number" }, { "col2", "string" } })
+		{
+			jGenerator.writeStartObject();
+			jGenerator.writeStringField("name", field[0]);
+			jGenerator.writeStringField("type", field[1]);
+			jGenerator.writeEndObject();
+		}
+		jGenerator.writeEndArray();
+		jGenerator.writeEndObject();
+
+		ByteBuffer buffer = ByteBuffer.allocate(2 * XYString.length * 8);
+		for (int col = 0; col < 2; col++)
+			for (double[] value : XYString)
+				buffer.putDouble(value[col]);
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(block);
+		gzip.write(buffer.array());
+		gzip.close();
+
+		jGenerator.writeObjectFieldStart("data");
+		jGenerator.writeBinaryField("DoubleBlock,GZIP,dims=[2," + XYString.length +
+			"]", block.toByteArray());
+		jGenerator.writeArrayFieldStart("col2");
+		for (String value : stringColumn)
+			jGenerator.writeString(value);
+		jGenerator.writeEndArray();
+		jGenerator.writeEndObject();
+		jGenerator.writeEndObject();
+		jGenerator.close();
+
+		MarsTable copy = new MarsTable();
+		copy.fromJSON(new SmileFactory().createParser(out.toByteArray()));
+		assertEquals(table, copy);
+	}
+
 	/*
 	 * UTILITY METHODS
 	 */
 
+	public static byte[] toSmile(MarsTable table) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonGenerator jGenerator = new SmileFactory().createGenerator(out);
+		table.toJSON(jGenerator);
+		jGenerator.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Smile encoding of a table with one RAW DoubleColumn x of the length given
+	 * holding 0, 1, 2... written in the number of chunks given.
+	 */
+	public static byte[] chunkedColumnSmile(int length, int chunkLength,
+		int chunks) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonGenerator jGenerator = new SmileFactory().createGenerator(out);
+		jGenerator.writeStartObject();
+		jGenerator.writeObjectFieldStart("schema");
+		jGenerator.writeArrayFieldStart("fields");
+		jGenerator.writeStartObject();
+		jGenerator.writeStringField("name", "x");
+		jGenerator.writeStringField("type", "number");
+		jGenerator.writeEndObject();
+		jGenerator.writeEndArray();
+		jGenerator.writeEndObject();
+
+		jGenerator.writeObjectFieldStart("data");
+		jGenerator.writeArrayFieldStart("DoubleColumnBlocks");
+		jGenerator.writeStartObject();
+		jGenerator.writeStringField("name", "x");
+		jGenerator.writeNumberField("length", length);
+		jGenerator.writeStringField("codec", "RAW");
+		jGenerator.writeNumberField("chunkLength", chunkLength);
+		jGenerator.writeArrayFieldStart("chunks");
+		int value = 0;
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int count = Math.max(1, Math.min(chunkLength, length - chunk *
+				chunkLength));
+			ByteBuffer buffer = ByteBuffer.allocate(count * 8);
+			for (int i = 0; i < count; i++)
+				buffer.putDouble(value++);
+			jGenerator.writeBinary(buffer.array());
+		}
+		jGenerator.writeEndArray();
+		jGenerator.writeEndObject();
+		jGenerator.writeEndArray();
+		jGenerator.writeEndObject();
+		jGenerator.writeEndObject();
+		jGenerator.close();
+		return out.toByteArray();
+	}
+
+	public static MarsTable buildTestGroupTable() {
+		MarsTable table = new MarsTable();
+		DoubleColumn molecule = new DoubleColumn("molecule");
+		GenericColumn channel = new GenericColumn("channel");
+		DoubleColumn x = new DoubleColumn("x");
+		double[][] rows = { { 2, 4 }, { 1, 1 }, { 2, 3 }, { 3, Double.NaN }, { 1,
+			2 }, { 2, 8 } };
+		String[] channels = { "A", "A", "B", "A", "B", "A" };
+		for (int row = 0; row < rows.length; row++) {
+			molecule.add(rows[row][0]);
+			x.add(rows[row][1]);
+			channel.add(channels[row]);
+		}
+
+		table.add(molecule);
+		table.add(channel);
+		table.add(x);
+
+		return table;
+	}
+
 	public static MarsTable buildTestArrayTable() {
 		MarsTable table = new MarsTable();
 		DoubleColumn col0 = new DoubleColumn("col0");
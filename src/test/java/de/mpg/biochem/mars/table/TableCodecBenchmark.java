@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.table;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.scijava.table.DoubleColumn;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Compares the size and the encoding and decoding times of Smile encoded
+ * {@link MarsTable}s for each {@link MarsTableCodec}. Tables resemble molecule
+ * tables with a time column and several noisy position and intensity
+ * columns.
+ * <p>
+ * This is not a unit test. Run the main method with an optional row count as
+ * the first argument and an optional table count as the second argument.
+ * </p>
+ */
+public class TableCodecBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 5_000;
+		int tableCount = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+		MarsTable table = buildTable(rows);
+		SmileFactory smileFactory = new SmileFactory();
+
+		MarsTableCodec[] codecs = { MarsTableCodec.RAW, MarsTableCodec.gzip(1),
+			MarsTableCodec.GZIP, MarsTableCodec.gzip(9) };
+		String[] labels = { "RAW", "GZIP level 1", "GZIP default",
+			"GZIP level 9" };
+
+		for (int i = 0; i < codecs.length; i++) {
+			MarsTableCodec previous = MarsTable.setBlockCodec(codecs[i]);
+			byte[] smile;
+			try {
+				// Warm up before timing
+				for (int t = 0; t < tableCount / 4; t++)
+					MarsTableTests.toSmile(table);
+
+				long start = System.nanoTime();
+				smile = null;
+				for (int t = 0; t < tableCount; t++)
+					smile = MarsTableTests.toSmile(table);
+				long encodeTime = System.nanoTime() - start;
+
+				for (int t = 0; t < tableCount / 4; t++)
+					decode(smileFactory, smile);
+
+				start = System.nanoTime();
+				for (int t = 0; t < tableCount; t++)
+					decode(smileFactory, smile);
+				long decodeTime = System.nanoTime() - start;
+
+				System.out.println(String.format(
+					"%-13s %,12d bytes  encode %8.3f ms/table  decode %8.3f ms/table",
+					labels[i], smile.length, encodeTime / 1e6 / tableCount, decodeTime /
+						1e6 / tableCount));
+			}
+			finally {
+				MarsTable.setBlockCodec(previous);
+			}
+		}
+	}
+
+	private static MarsTable decode(SmileFactory smileFactory, byte[] smile)
+		throws IOException
+	{
+		MarsTable table = new MarsTable();
+		try (JsonParser jParser = smileFactory.createParser(smile)) {
+			table.fromJSON(jParser);
+		}
+		return table;
+	}
+
+	private static MarsTable buildTable(int rows) {
+		MarsTable table = new MarsTable();
+		String[] headers = { "T", "x", "y", "Intensity", "Background" };
+		Random ran = new Random(42);
+		for (String header : headers) {
+			DoubleColumn column = new DoubleColumn(header);
+			for (int row = 0; row < rows; row++) {
+				if (header.equals("T")) column.add((double) row);
+				else if (header.equals("Intensity")) column.add(5000 + 300 * ran
+					.nextGaussian());
+				else column.add(row * 0.01 + ran.nextGaussian());
+			}
+			table.add(column);
+		}
+		return table;
+	}
+}
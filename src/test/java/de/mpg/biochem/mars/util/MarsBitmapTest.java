@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * Molecule Archive Suite (Mars) - core data storage and processing algorithms.
+ * %%
+ * Copyright (C) 2018 - 2025 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.mpg.biochem.mars.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+public class MarsBitmapTest {
+
+	@Test
+	void addRemoveContains() {
+		MarsBitmap bitmap = MarsBitmap.of(3, 70000, 1);
+		assertTrue(bitmap.contains(70000));
+		assertFalse(bitmap.contains(2));
+		assertArrayEquals(new int[] { 1, 3, 70000 }, bitmap.toArray());
+
+		bitmap.remove(70000);
+		assertEquals(2, bitmap.getCardinality());
+		assertArrayEquals(new int[] { 1, 3 }, bitmap.toArray());
+	}
+
+	@Test
+	void booleanOperations() {
+		Random random = new Random(42);
+		TreeSet<Integer> a = new TreeSet<>();
+		TreeSet<Integer> b = new TreeSet<>();
+
+		// Dense and sparse chunks are both needed to cover all container pairs.
+		for (int i = 0; i < 20000; i++)
+			a.add(i);
+		for (int i = 0; i < 20000; i++) {
+			a.add(random.nextInt(300000));
+			b.add(random.nextInt(300000));
+		}
+
+		MarsBitmap bitmapA = toBitmap(a);
+		MarsBitmap bitmapB = toBitmap(b);
+
+		TreeSet<Integer> and = new TreeSet<>(a);
+		and.retainAll(b);
+		assertArrayEquals(toArray(and), MarsBitmap.and(bitmapA, bitmapB).toArray());
+
+		TreeSet<Integer> or = new TreeSet<>(a);
+		or.addAll(b);
+		assertArrayEquals(toArray(or), MarsBitmap.or(bitmapA, bitmapB).toArray());
+
+		TreeSet<Integer> andNot = new TreeSet<>(a);
+		andNot.removeAll(b);
+		assertArrayEquals(toArray(andNot), MarsBitmap.andNot(bitmapA, bitmapB)
+			.toArray());
+
+		assertEquals(a.size(), bitmapA.getCardinality());
+	}
+
+	private static MarsBitmap toBitmap(TreeSet<Integer> values) {
+		MarsBitmap bitmap = new MarsBitmap();
+		for (int value : values)
+			bitmap.add(value);
+		return bitmap;
+	}
+
+	private static int[] toArray(TreeSet<Integer> values) {
+		return values.stream().mapToInt(Integer::intValue).toArray();
+	}
+}